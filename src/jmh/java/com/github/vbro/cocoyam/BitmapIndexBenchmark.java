@@ -0,0 +1,143 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares indexes of few values, whose buckets are bitmaps of element ids, with indexes of the
+ * same values whose buckets are HashSets, on orders with an enum status and boolean flags.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BitmapIndexBenchmark {
+
+    private static final String[] METHOD_NAMES = {"getStatus", "getRegion", "isPriority", "isGift"};
+
+    private static final Query<Order> AND_QUERY = Query.and(Query.eq("getStatus", Status.PAID),
+            Query.eq("getRegion", 3), Query.eq("isPriority", true));
+
+    private static final Query<Order> OR_QUERY = Query.or(Query.eq("getStatus", Status.CANCELLED),
+            Query.eq("isGift", true));
+
+    @Param({"1000000"})
+    public int size;
+
+    private IndexedSet<Order> bitmapSet;
+
+    private IndexedSet<Order> hashSet;
+
+    public enum Status {NEW, PAID, SHIPPED, DELIVERED, CANCELLED}
+
+    /**
+     * Element type of this benchmark
+     */
+    public static class Order {
+
+        private final long id;
+        private final Status status;
+        private final int region;
+        private final boolean priority;
+        private final boolean gift;
+
+        public Order(long id, Status status, int region, boolean priority, boolean gift) {
+            this.id = id;
+            this.status = status;
+            this.region = region;
+            this.priority = priority;
+            this.gift = gift;
+        }
+
+        public Status getStatus() {
+            return status;
+        }
+
+        public int getRegion() {
+            return region;
+        }
+
+        public boolean isPriority() {
+            return priority;
+        }
+
+        public boolean isGift() {
+            return gift;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Order && ((Order) o).id == id;
+        }
+
+        public int hashCode() {
+            return Long.hashCode(id);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setupSets() {
+        Random random = new Random(42);
+        List<Order> orders = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            orders.add(new Order(i, Status.values()[random.nextInt(Status.values().length)],
+                    random.nextInt(8), random.nextInt(10) == 0, random.nextInt(20) == 0));
+        }
+        bitmapSet = new IndexedSet<>(Order.class, METHOD_NAMES);
+        bitmapSet.addAll(orders);
+        hashSet = new IndexedSet<Order>(Order.class, METHOD_NAMES) {
+            protected Map<Object, Set<Order>> newBitmapValuesMap() {
+                return null;
+            }
+        };
+        hashSet.addAll(orders);
+    }
+
+    @Benchmark
+    public int andBitmap() {
+        return bitmapSet.count(AND_QUERY);
+    }
+
+    @Benchmark
+    public int andHashSet() {
+        return hashSet.count(AND_QUERY);
+    }
+
+    @Benchmark
+    public int orBitmap() {
+        return bitmapSet.count(OR_QUERY);
+    }
+
+    @Benchmark
+    public int orHashSet() {
+        return hashSet.count(OR_QUERY);
+    }
+
+    @Benchmark
+    public Set<Order> queryAndBitmap() {
+        return bitmapSet.query(AND_QUERY);
+    }
+
+    @Benchmark
+    public Set<Order> queryAndHashSet() {
+        return hashSet.query(AND_QUERY);
+    }
+}
@@ -0,0 +1,74 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares queries of several conditions on an {@link IndexedSet} and on a {@link CompactIndexedSet},
+ * which intersects and unites the ids of the buckets of the conditions.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CompactIndexedSetBenchmark {
+
+    private static final String[] METHOD_NAMES = {"getCity", "getAge", "isActive"};
+
+    private static final Query<Person> AND_QUERY = Query.and(Query.eq("getCity", "Berlin"),
+            Query.in("getAge", 30, 31, 32), Query.eq("isActive", true));
+
+    private static final Query<Person> OR_QUERY = Query.or(Query.eq("getCity", "Berlin"),
+            Query.eq("getAge", 30));
+
+    @Param({"1000000"})
+    public int size;
+
+    private IndexedSet<Person> indexedSet;
+
+    private IndexedSet<Person> compactSet;
+
+    @Setup(Level.Trial)
+    public void setupSets() {
+        List<Person> people = Person.generate(size, 42);
+        indexedSet = new IndexedSet<>(Person.class, METHOD_NAMES);
+        indexedSet.addAll(people);
+        compactSet = new CompactIndexedSet<>(Person.class, METHOD_NAMES);
+        compactSet.addAll(people);
+    }
+
+    @Benchmark
+    public int andIndexedSet() {
+        return indexedSet.count(AND_QUERY);
+    }
+
+    @Benchmark
+    public int andCompactIndexedSet() {
+        return compactSet.count(AND_QUERY);
+    }
+
+    @Benchmark
+    public int orIndexedSet() {
+        return indexedSet.count(OR_QUERY);
+    }
+
+    @Benchmark
+    public int orCompactIndexedSet() {
+        return compactSet.count(OR_QUERY);
+    }
+}
@@ -0,0 +1,98 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a ConcurrentIndexedSet with an IndexedSet behind a global lock, with
+ * writer threads that add and remove elements while reader threads look up the index.
+ * Run with e.g. {@code -PjmhArgs="ConcurrentIndexedSetBenchmark -prof gc"}.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Group)
+public class ConcurrentIndexedSetBenchmark {
+
+    @Param({"100000"})
+    public int size;
+
+    private List<Person> people;
+
+    private IndexedSet<Person> concurrentSet;
+
+    private IndexedSet<Person> synchronizedSet;
+
+    @Setup
+    public void setup() {
+        people = Person.generate(size, 42);
+        String[] methodNames = {"getCity", "getAge", "isActive"};
+        concurrentSet = new ConcurrentIndexedSet<>(Person.class, methodNames);
+        synchronizedSet = new IndexedSet<>(Person.class, methodNames);
+        // start half full, so adds and removes both succeed
+        for (int i = 0; i < size; i += 2) {
+            concurrentSet.add(people.get(i));
+            synchronizedSet.add(people.get(i));
+        }
+    }
+
+    private Person randomPerson() {
+        return people.get(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    private static int randomAge() {
+        return ThreadLocalRandom.current().nextInt(18, 90);
+    }
+
+    @Benchmark
+    @Group("concurrent")
+    @GroupThreads(4)
+    public boolean concurrentWrite() {
+        Person person = randomPerson();
+        return concurrentSet.add(person) || concurrentSet.remove(person);
+    }
+
+    @Benchmark
+    @Group("concurrent")
+    @GroupThreads(4)
+    public int concurrentRead() {
+        return concurrentSet.count("getAge", randomAge());
+    }
+
+    @Benchmark
+    @Group("synchronized")
+    @GroupThreads(4)
+    public boolean synchronizedWrite() {
+        Person person = randomPerson();
+        synchronized (synchronizedSet) {
+            return synchronizedSet.add(person) || synchronizedSet.remove(person);
+        }
+    }
+
+    @Benchmark
+    @Group("synchronized")
+    @GroupThreads(4)
+    public int synchronizedRead() {
+        int age = randomAge();
+        synchronized (synchronizedSet) {
+            return synchronizedSet.count("getAge", age);
+        }
+    }
+}
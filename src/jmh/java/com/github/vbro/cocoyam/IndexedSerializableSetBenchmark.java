@@ -0,0 +1,109 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares writing and reading a set of ten indexes with its index, see
+ * {@link SerializationOptions#writeIndex()}, with rebuilding the index when the set is read, see
+ * {@link SerializationOptions#rebuildIndex()}: with one thread, with parallelism threads, or lazily.
+ * A lazily read set is measured with one lookup, which builds one index. Also measures the binary
+ * format, see {@link IndexedSerializableSet#writeTo(java.io.OutputStream, ElementCodec)}, with
+ * elements written by Java serialization or by a codec of their fields. The size of the
+ * serialized set is printed once per trial.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class IndexedSerializableSetBenchmark {
+
+    private static final String[] METHOD_NAMES = {"getId", "getName", "getCity", "getAge", "getBalance", "isActive",
+            "getCity+getAge", "getCity+isActive", "getAge+isActive", "getName+getAge"};
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"writeIndex", "rebuildIndex", "rebuildIndexInParallel", "rebuildIndexLazily", "binaryFormat",
+            "binaryFormatWithCodec"})
+    public String options;
+
+    @Param({"4"})
+    public int parallelism;
+
+    private IndexedSerializableSet<Person> set;
+
+    private byte[] bytes;
+
+    @Setup(Level.Trial)
+    public void setupSet() throws IOException {
+        set = new IndexedSerializableSet<>(Person.class, METHOD_NAMES);
+        set.addAll(Person.generate(size, 42));
+        switch (options) {
+            case "rebuildIndex":
+                set.setSerializationOptions(SerializationOptions.rebuildIndex());
+                break;
+            case "rebuildIndexInParallel":
+                set.setSerializationOptions(SerializationOptions.rebuildIndex().withParallelism(parallelism));
+                break;
+            case "rebuildIndexLazily":
+                set.setSerializationOptions(SerializationOptions.rebuildIndex().withLazyIndexes(true));
+                break;
+            default:
+                set.setSerializationOptions(SerializationOptions.writeIndex());
+        }
+        bytes = write();
+        System.out.println(String.format("%n%s: %d bytes", options, bytes.length));
+    }
+
+    @Benchmark
+    public byte[] write() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes == null ? 1 << 20 : bytes.length);
+        if (options.equals("binaryFormat")) {
+            set.writeTo(out);
+            return out.toByteArray();
+        }
+        if (options.equals("binaryFormatWithCodec")) {
+            set.writeTo(out, Person.CODEC);
+            return out.toByteArray();
+        }
+        try (ObjectOutputStream oos = new ObjectOutputStream(out)) {
+            oos.writeObject(set);
+        }
+        return out.toByteArray();
+    }
+
+    @Benchmark
+    public int read() throws IOException, ClassNotFoundException {
+        if (options.equals("binaryFormat")) {
+            return IndexedSerializableSet.<Person>readFrom(new ByteArrayInputStream(bytes)).count("getCity", "Berlin");
+        }
+        if (options.equals("binaryFormatWithCodec")) {
+            return IndexedSerializableSet.readFrom(new ByteArrayInputStream(bytes), Person.CODEC)
+                    .count("getCity", "Berlin");
+        }
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            IndexedSerializableSet<Person> read = (IndexedSerializableSet<Person>) ois.readObject();
+            return read.count("getCity", "Berlin");
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Compares computing index values through Method.invoke, which is what
+ * IndexedSet.addToIndex used to do, with the generated accessors, and
+ * measures the resulting cost of IndexedSet.addAll, with the index changed
+ * at once and with changes buffered by IndexedSet.bufferIndexing.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexedSetAddBenchmark {
+
+    @Param({"10000"})
+    public int size;
+
+    @Param({"1024"})
+    public int bufferSize;
+
+    private List<Person> persons;
+    private List<Method> methods;
+    private List<Function<Person, Object>> accessors;
+
+    @Setup
+    public void setup() {
+        persons = Person.generate(size, 42);
+        methods = new ArrayList<>();
+        accessors = new ArrayList<>();
+        for (Method method : Person.class.getMethods()) {
+            if (method.getParameterCount() == 0 && !method.getReturnType().equals(Void.TYPE)) {
+                methods.add(method);
+                accessors.add(Accessors.of(method));
+            }
+        }
+    }
+
+    @Benchmark
+    public void reflectiveInvoke(Blackhole bh) throws Exception {
+        for (Person person : persons) {
+            for (Method method : methods) {
+                bh.consume(method.invoke(person));
+            }
+        }
+    }
+
+    @Benchmark
+    public void accessorApply(Blackhole bh) {
+        for (Person person : persons) {
+            for (Function<Person, Object> accessor : accessors) {
+                bh.consume(accessor.apply(person));
+            }
+        }
+    }
+
+    @Benchmark
+    public IndexedSet<Person> addAllIndexingEveryGetter() {
+        IndexedSet<Person> set = new IndexedSet<>(Person.class);
+        set.addAll(persons);
+        return set;
+    }
+
+    @Benchmark
+    public IndexedSet<Person> addAllIndexingEveryGetterBuffered() {
+        IndexedSet<Person> set = new IndexedSet<>(Person.class);
+        set.bufferIndexing(bufferSize);
+        set.addAll(persons);
+        set.flushIndex();
+        return set;
+    }
+}
@@ -0,0 +1,85 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares loading and re-indexing a set element by element with the parallel bulk build,
+ * see {@link IndexedSet#addAll(java.util.Collection, BulkOptions)} and {@link IndexedSet#reIndex(int)}.
+ * The parallel build uses parallelism threads, or one thread per available processor if parallelism is 0.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexedSetBulkLoadBenchmark {
+
+    private static final String[] METHOD_NAMES =
+            {"getId", "getName", "getCity", "getAge", "getBalance", "isActive", "getCity+getAge"};
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"0"})
+    public int parallelism;
+
+    private List<Person> people;
+
+    private IndexedSet<Person> emptySet;
+
+    private IndexedSet<Person> loadedSet;
+
+    @Setup(Level.Trial)
+    public void setupPeople() {
+        if (parallelism == 0) {
+            parallelism = Runtime.getRuntime().availableProcessors();
+        }
+        people = Person.generate(size, 42);
+        loadedSet = new IndexedSet<>(Person.class, METHOD_NAMES);
+        loadedSet.addAll(people);
+    }
+
+    @Setup(Level.Invocation)
+    public void setupSet() {
+        emptySet = new IndexedSet<>(Person.class, METHOD_NAMES);
+    }
+
+    @Benchmark
+    public IndexedSet<Person> addAllSequential() {
+        emptySet.addAll(people);
+        return emptySet;
+    }
+
+    @Benchmark
+    public IndexedSet<Person> addAllParallel() {
+        emptySet.addAll(people, BulkOptions.parallel(parallelism));
+        return emptySet;
+    }
+
+    @Benchmark
+    public IndexedSet<Person> reIndexSequential() {
+        loadedSet.reIndex();
+        return loadedSet;
+    }
+
+    @Benchmark
+    public IndexedSet<Person> reIndexParallel() {
+        loadedSet.reIndex(parallelism);
+        return loadedSet;
+    }
+}
@@ -0,0 +1,71 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compares range and top-n queries on a sorted index with a scan of the whole set.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class IndexedSetRangeBenchmark {
+
+    @Param({"100000"})
+    public int size;
+
+    private IndexedSet<Person> set;
+
+    @Setup
+    public void setup() {
+        set = new IndexedSet<>(Person.class, new String[] {"getCity"}, new String[] {"getBalance", "getId"});
+        set.addAll(Person.generate(size, 42));
+    }
+
+    @Benchmark
+    public Set<Person> rangeSortedIndex() {
+        return set.getRange("getBalance", 1000.0, 1100.0);
+    }
+
+    @Benchmark
+    public Set<Person> rangeScan() {
+        return set.stream().filter(p -> p.getBalance() >= 1000.0 && p.getBalance() < 1100.0)
+                .collect(Collectors.toSet());
+    }
+
+    @Benchmark
+    public List<Person> top10SortedIndex() {
+        List<Person> top = new ArrayList<>(10);
+        for (Person person : set.orderedBy("getId", true)) {
+            if (top.size() == 10) {
+                break;
+            }
+            top.add(person);
+        }
+        return top;
+    }
+
+    @Benchmark
+    public List<Person> top10Scan() {
+        return set.stream().sorted((p1, p2) -> Long.compare(p2.getId(), p1.getId())).limit(10)
+                .collect(Collectors.toList());
+    }
+}
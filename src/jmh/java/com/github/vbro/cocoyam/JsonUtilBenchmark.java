@@ -0,0 +1,135 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the JSON encoding of large numeric arrays by {@link JsonUtil}: toJson builds the tree of
+ * an int[] and a double[], writeJson streams them, and scalars encodes a list of boxed longs, one
+ * JSON value each.
+ *
+ * writeJsonBeans streams persons registered as beans, whose getters are called through generated
+ * accessors, and writeJsonReflectiveBeans streams the same persons as maps filled by reflection.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class JsonUtilBenchmark {
+
+    @Param({"1000000"})
+    public int size;
+
+    private int[] ints;
+
+    private double[] doubles;
+
+    private List<Long> longs;
+
+    private List<Person> people;
+
+    private List<Method> getters;
+
+    @Setup(Level.Trial)
+    public void setupArrays() {
+        Random random = new Random(42);
+        ints = new int[size];
+        doubles = new double[size];
+        longs = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ints[i] = random.nextInt();
+            doubles[i] = random.nextInt(1000000) / 100.0;
+            longs.add(random.nextLong());
+        }
+        people = Person.generate(size / 10, 42);
+        JsonUtil.registerBean(Person.class);
+        getters = new ArrayList<>();
+        for (String name : new String[] {"isActive", "getAge", "getBalance", "getCity", "getId", "getName"}) {
+            try {
+                getters.add(Person.class.getMethod(name));
+            }
+            catch (NoSuchMethodException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+
+    @Benchmark
+    public Object toJsonInts() {
+        return JsonUtil.toJson(ints);
+    }
+
+    @Benchmark
+    public Object toJsonDoubles() {
+        return JsonUtil.toJson(doubles);
+    }
+
+    @Benchmark
+    public Object toJsonScalars() {
+        return JsonUtil.toJson(longs);
+    }
+
+    @Benchmark
+    public int writeJsonInts() throws IOException {
+        StringWriter writer = new StringWriter(size * 12);
+        JsonUtil.writeJson(ints, writer);
+        return writer.getBuffer().length();
+    }
+
+    @Benchmark
+    public int writeJsonDoubles() throws IOException {
+        StringWriter writer = new StringWriter(size * 12);
+        JsonUtil.writeJson(doubles, writer);
+        return writer.getBuffer().length();
+    }
+
+    @Benchmark
+    public int writeJsonBeans() throws IOException {
+        StringWriter writer = new StringWriter(size * 10);
+        JsonUtil.writeJson(people, writer);
+        return writer.getBuffer().length();
+    }
+
+    @Benchmark
+    public int writeJsonReflectiveBeans() throws IOException {
+        List<Map<String, Object>> maps = new ArrayList<>(people.size());
+        for (Person person : people) {
+            Map<String, Object> map = new LinkedHashMap<>();
+            for (Method getter : getters) {
+                try {
+                    map.put(getter.getName(), getter.invoke(person));
+                }
+                catch (IllegalAccessException | InvocationTargetException e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+            maps.add(map);
+        }
+        StringWriter writer = new StringWriter(size * 10);
+        JsonUtil.writeJson(maps, writer);
+        return writer.getBuffer().length();
+    }
+}
@@ -0,0 +1,139 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Compares persisting a set by a {@link LoggedIndexedSet} with persisting it by full snapshots.
+ *
+ * recover opens a directory whose log holds changes records on top of its snapshot, and reloadSnapshot
+ * reads a full snapshot of the same set. logChange replaces a person, a remove and an add that are each
+ * forced to the storage device, and writeSnapshot persists a change by writing and forcing a full
+ * snapshot. Snapshots are written by {@link Person#CODEC}.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Benchmark)
+public class LoggedIndexedSetBenchmark {
+
+    private static final String[] METHOD_NAMES = {"getId", "getCity", "getAge", "isActive", "getCity+getAge"};
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"100000"})
+    public int changes;
+
+    private File directory;
+
+    private File snapshot;
+
+    private LoggedIndexedSet<Person> set;
+
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setupFiles() throws IOException, ClassNotFoundException {
+        directory = Files.createTempDirectory("cocoyam").toFile();
+        Supplier<IndexedSerializableSet<Person>> newSet = () -> {
+            IndexedSerializableSet<Person> persons = new IndexedSerializableSet<>(Person.class, METHOD_NAMES);
+            persons.addAll(Person.generate(size, 42));
+            return persons;
+        };
+        set = LoggedIndexedSet.open(new File(directory, "set"), newSet, Person.CODEC,
+                ChangeLogOptions.fsyncNever().withCompactionThreshold(Long.MAX_VALUE));
+        for (int i = 0; i < changes; i++) {
+            replaceOnePerson();
+        }
+        set.close();
+        System.out.println(String.format("%nlog of %d changes: %d bytes", changes, set.getLogSize()));
+
+        snapshot = new File(directory, "snapshot");
+        try (FileOutputStream out = new FileOutputStream(snapshot)) {
+            set.writeTo(out, Person.CODEC);
+        }
+        System.out.println(String.format("snapshot: %d bytes", snapshot.length()));
+
+        set = LoggedIndexedSet.open(new File(directory, "set"), newSet, Person.CODEC,
+                ChangeLogOptions.fsyncEveryChange().withCompactionThreshold(Long.MAX_VALUE));
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        set.close();
+        try (Stream<File> files = Files.walk(directory.toPath()).map(path -> path.toFile())) {
+            files.sorted(Comparator.reverseOrder()).forEach(File::delete);
+        }
+    }
+
+    /**
+     * Replaces a person by a person with the same id, name and city, and another age and activity
+     */
+    private void replaceOnePerson() {
+        Person person = set.get("getId", (long) next).iterator().next();
+        set.remove(person);
+        next = (next + 1) % size;
+        set.add(new Person(person.getId(), person.getName(), person.getCity(), (person.getAge() + 1) % 100,
+                person.getBalance(), !person.isActive()));
+    }
+
+    @Benchmark
+    public int recover() throws IOException, ClassNotFoundException {
+        try (LoggedIndexedSet<Person> recovered = LoggedIndexedSet.open(new File(directory, "set"), null,
+                Person.CODEC, ChangeLogOptions.fsyncNever())) {
+            return recovered.size();
+        }
+    }
+
+    @Benchmark
+    public int reloadSnapshot() throws IOException, ClassNotFoundException {
+        try (InputStream in = new BufferedInputStream(new FileInputStream(snapshot), 1 << 16)) {
+            return IndexedSerializableSet.readFrom(in, Person.CODEC).size();
+        }
+    }
+
+    @Benchmark
+    @BenchmarkMode(Mode.AverageTime)
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    @Warmup(iterations = 2, time = 2)
+    @Measurement(iterations = 5, time = 2)
+    public long logChange() {
+        replaceOnePerson();
+        return set.getLogSize();
+    }
+
+    @Benchmark
+    public long writeSnapshot() throws IOException {
+        try (FileOutputStream out = new FileOutputStream(snapshot)) {
+            set.writeTo(out, Person.CODEC);
+            out.getFD().sync();
+        }
+        return snapshot.length();
+    }
+}
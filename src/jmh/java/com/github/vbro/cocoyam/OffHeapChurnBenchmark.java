@@ -0,0 +1,72 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares an IndexedSet with an OffHeapIndexedSet of the same elements under sustained churn:
+ * every operation replaces the oldest element by a new one, so the set keeps its size while its
+ * elements and their index entries die at a steady rate. Only the set of one storage is on the heap
+ * in a fork. Run with e.g. {@code -PjmhArgs="OffHeapChurnBenchmark -prof gc"} to compare the number
+ * and time of garbage collections.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx2g"})
+@State(Scope.Benchmark)
+public class OffHeapChurnBenchmark {
+
+    private static final String[] METHOD_NAMES = {"getId", "getName", "getCity", "getAge", "getBalance",
+            "isActive"};
+
+    @Param({"1000000"})
+    public int size;
+
+    @Param({"onHeap", "offHeap"})
+    public String storage;
+
+    private IndexedSet<Person> set;
+
+    // the elements of the set, replaced in turn
+    private Person[] people;
+
+    private int next;
+
+    private long nextId;
+
+    @Setup(Level.Trial)
+    public void setupSet() {
+        List<Person> generated = Person.generate(size, 42);
+        set = storage.equals("offHeap") ?
+                new OffHeapIndexedSet<>(Person.class, METHOD_NAMES) : new IndexedSet<>(Person.class, METHOD_NAMES);
+        set.addAll(generated);
+        people = generated.toArray(new Person[0]);
+        nextId = size;
+    }
+
+    @Benchmark
+    public boolean churn() {
+        Person old = people[next];
+        Person person = new Person(nextId, "person" + nextId, old.getCity(), old.getAge(), old.getBalance(),
+                old.isActive());
+        nextId++;
+        people[next] = person;
+        next = (next + 1) % size;
+        return set.remove(old) & set.add(person);
+    }
+}
@@ -0,0 +1,105 @@
+package com.github.vbro.cocoyam;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Element type shared by the benchmarks.
+ */
+public class Person implements Serializable {
+
+    private static final String[] CITIES = {"Amsterdam", "Berlin", "Chicago", "Denver", "Edinburgh",
+            "Florence", "Geneva", "Houston", "Istanbul", "Jakarta"};
+
+    /**
+     * Writes the fields of a person, see {@link IndexedSerializableSet#writeTo(java.io.OutputStream, ElementCodec)}
+     */
+    public static final ElementCodec<Person> CODEC = new ElementCodec<Person>() {
+        public void write(Person person, DataOutput out) throws IOException {
+            out.writeLong(person.id);
+            out.writeUTF(person.name);
+            out.writeUTF(person.city);
+            out.writeInt(person.age);
+            out.writeDouble(person.balance);
+            out.writeBoolean(person.active);
+        }
+
+        public Person read(DataInput in) throws IOException {
+            return new Person(in.readLong(), in.readUTF(), in.readUTF().intern(), in.readInt(), in.readDouble(),
+                    in.readBoolean());
+        }
+    };
+
+    private final long id;
+    private final String name;
+    private final String city;
+    private final int age;
+    private final double balance;
+    private final boolean active;
+
+    public Person(long id, String name, String city, int age, double balance, boolean active) {
+        this.id = id;
+        this.name = name;
+        this.city = city;
+        this.age = age;
+        this.balance = balance;
+        this.active = active;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCity() {
+        return city;
+    }
+
+    public int getAge() {
+        return age;
+    }
+
+    public double getBalance() {
+        return balance;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return o instanceof Person && ((Person) o).id == id;
+    }
+
+    @Override
+    public int hashCode() {
+        return Long.hashCode(id);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    /**
+     * @return count persons with pseudo-random attributes, generated from seed
+     */
+    public static List<Person> generate(int count, long seed) {
+        Random random = new Random(seed);
+        List<Person> persons = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            persons.add(new Person(i, "person" + i, CITIES[random.nextInt(CITIES.length)],
+                    18 + random.nextInt(70), random.nextInt(1000000) / 100.0, random.nextBoolean()));
+        }
+        return persons;
+    }
+}
@@ -0,0 +1,106 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Compares the indexes of methods that return int, long and double, which keep their values unboxed,
+ * with indexes of the same values computed by key functions, which are boxed.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrimitiveIndexBenchmark {
+
+    private static final String[] METHOD_NAMES = {"getId", "getAge", "getBalance"};
+
+    @Param({"1000000"})
+    public int size;
+
+    private List<Person> people;
+
+    private IndexedSet<Person> primitiveSet;
+
+    private IndexedSet<Person> boxedSet;
+
+    @Setup(Level.Trial)
+    public void setupPeople() {
+        people = Person.generate(size, 42);
+        primitiveSet = newPrimitiveSet();
+        primitiveSet.addAll(people);
+        boxedSet = newBoxedSet();
+        boxedSet.addAll(people);
+    }
+
+    /**
+     * Empty sets, created before every call of a benchmark that fills them
+     */
+    @State(Scope.Thread)
+    public static class EmptySets {
+
+        private IndexedSet<Person> primitiveSet;
+
+        private IndexedSet<Person> boxedSet;
+
+        @Setup(Level.Invocation)
+        public void setupSets() {
+            primitiveSet = newPrimitiveSet();
+            boxedSet = newBoxedSet();
+        }
+    }
+
+    private static IndexedSet<Person> newPrimitiveSet() {
+        return new IndexedSet<>(Person.class, METHOD_NAMES);
+    }
+
+    private static IndexedSet<Person> newBoxedSet() {
+        Map<String, Function<? super Person, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("getId", Person::getId);
+        keyFunctions.put("getAge", Person::getAge);
+        keyFunctions.put("getBalance", Person::getBalance);
+        return new IndexedSet<>(Person.class, keyFunctions);
+    }
+
+    @Benchmark
+    public IndexedSet<Person> addAllPrimitive(EmptySets sets) {
+        sets.primitiveSet.addAll(people);
+        return sets.primitiveSet;
+    }
+
+    @Benchmark
+    public IndexedSet<Person> addAllBoxed(EmptySets sets) {
+        sets.boxedSet.addAll(people);
+        return sets.boxedSet;
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int countPrimitive() {
+        return primitiveSet.count("getId", (long) (size / 2));
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.NANOSECONDS)
+    public int countBoxed() {
+        return boxedSet.count("getId", (long) (size / 2));
+    }
+}
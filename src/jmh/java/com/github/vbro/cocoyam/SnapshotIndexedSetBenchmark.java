@@ -0,0 +1,80 @@
+package com.github.vbro.cocoyam;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares publishing an immutable version of a SnapshotIndexedSet after a small change
+ * with a deep copy of an IndexedSet by clone(), and lookups in both.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotIndexedSetBenchmark {
+
+    @Param({"100000"})
+    public int size;
+
+    private List<Person> people;
+
+    private IndexedSet<Person> indexedSet;
+
+    private SnapshotIndexedSet<Person> snapshotSet;
+
+    @Setup
+    public void setup() {
+        people = Person.generate(size, 42);
+        String[] methodNames = {"getCity", "getAge", "isActive"};
+        indexedSet = new IndexedSet<>(Person.class, methodNames);
+        indexedSet.addAll(people);
+        snapshotSet = new SnapshotIndexedSet<>(Person.class, methodNames);
+        snapshotSet.addAll(people);
+    }
+
+    private Person randomPerson() {
+        return people.get(ThreadLocalRandom.current().nextInt(size));
+    }
+
+    @Benchmark
+    public IndexedSet<Person> changeAndClone() {
+        Person person = randomPerson();
+        indexedSet.remove(person);
+        indexedSet.add(person);
+        return indexedSet.clone();
+    }
+
+    @Benchmark
+    public IndexedSet<Person> changeAndPublish() {
+        Person person = randomPerson();
+        return snapshotSet.update(set -> {
+            set.remove(person);
+            set.add(person);
+        });
+    }
+
+    @Benchmark
+    public int countIndexedSet() {
+        return indexedSet.count("getAge", ThreadLocalRandom.current().nextInt(18, 90));
+    }
+
+    @Benchmark
+    public int countSnapshot() {
+        return snapshotSet.snapshot().count("getAge", ThreadLocalRandom.current().nextInt(18, 90));
+    }
+}
@@ -0,0 +1,136 @@
+package com.github.vbro.cocoyam;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.function.Function;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * Turns zero-argument Methods into Functions that can be called without
+ * going through {@link Method#invoke(Object, Object...)} on every call.
+ */
+class Accessors {
+
+    private Accessors() {}
+
+    /**
+     * @return a Function that calls the public, zero-argument method on its argument.
+     * The Function is generated with {@link LambdaMetafactory} where possible, and
+     * falls back to a MethodHandle or to reflection when the method is not accessible
+     * from this package. Exceptions thrown by the method are rethrown as is.
+     */
+    static <T> Function<T, Object> of(Method method) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        MethodHandle handle;
+        try {
+            handle = lookup.unreflect(method);
+        }
+        catch (IllegalAccessException e) {
+            return reflective(method);
+        }
+
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, "apply",
+                    MethodType.methodType(Function.class),
+                    MethodType.methodType(Object.class, Object.class),
+                    handle,
+                    MethodType.methodType(Object.class, method.getDeclaringClass()));
+            return (Function<T, Object>) site.getTarget().invoke();
+        }
+        catch (Throwable t) {
+            MethodHandle generic = handle.asType(MethodType.methodType(Object.class, Object.class));
+            return element -> {
+                try {
+                    return generic.invokeExact((Object) element);
+                }
+                catch (RuntimeException | Error e) {
+                    throw e;
+                }
+                catch (Throwable e) {
+                    throw new IllegalStateException(e);
+                }
+            };
+        }
+    }
+
+    /**
+     * @return a ToIntFunction that calls the public, zero-argument method, which returns int,
+     * on its argument without boxing the result, see {@link #of(Method)}
+     */
+    static <T> ToIntFunction<T> ofInt(Method method) {
+        ToIntFunction<T> function = unboxed(method, ToIntFunction.class, "applyAsInt", int.class);
+        if (function != null) {
+            return function;
+        }
+        Function<T, Object> boxed = of(method);
+        return element -> (Integer) boxed.apply(element);
+    }
+
+    /**
+     * @return a ToLongFunction that calls the public, zero-argument method, which returns long,
+     * on its argument without boxing the result, see {@link #of(Method)}
+     */
+    static <T> ToLongFunction<T> ofLong(Method method) {
+        ToLongFunction<T> function = unboxed(method, ToLongFunction.class, "applyAsLong", long.class);
+        if (function != null) {
+            return function;
+        }
+        Function<T, Object> boxed = of(method);
+        return element -> (Long) boxed.apply(element);
+    }
+
+    /**
+     * @return a ToDoubleFunction that calls the public, zero-argument method, which returns double,
+     * on its argument without boxing the result, see {@link #of(Method)}
+     */
+    static <T> ToDoubleFunction<T> ofDouble(Method method) {
+        ToDoubleFunction<T> function = unboxed(method, ToDoubleFunction.class, "applyAsDouble", double.class);
+        if (function != null) {
+            return function;
+        }
+        Function<T, Object> boxed = of(method);
+        return element -> (Double) boxed.apply(element);
+    }
+
+    /**
+     * @return an instance of functionalInterface, whose method functionName takes an Object and
+     * returns returnType, generated with {@link LambdaMetafactory} to call method on its argument,
+     * or null if method is not accessible from this package
+     */
+    private static <F> F unboxed(Method method, Class<?> functionalInterface, String functionName,
+                                 Class<?> returnType) {
+        MethodHandles.Lookup lookup = MethodHandles.lookup();
+        try {
+            CallSite site = LambdaMetafactory.metafactory(lookup, functionName,
+                    MethodType.methodType(functionalInterface),
+                    MethodType.methodType(returnType, Object.class),
+                    lookup.unreflect(method),
+                    MethodType.methodType(returnType, method.getDeclaringClass()));
+            return (F) site.getTarget().invoke();
+        }
+        catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * @return a Function that calls method through {@link Method#invoke(Object, Object...)}.
+     */
+    private static <T> Function<T, Object> reflective(Method method) {
+        return element -> {
+            try {
+                return method.invoke(element);
+            }
+            catch (IllegalAccessException | InvocationTargetException e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+}
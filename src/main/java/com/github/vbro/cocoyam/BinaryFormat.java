@@ -0,0 +1,269 @@
+package com.github.vbro.cocoyam;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The compact, versioned binary format of an {@link IndexedSerializableSet}, see
+ * {@link IndexedSerializableSet#writeTo(OutputStream, ElementCodec)}.
+ *
+ * Elements are numbered in the order they are written, and the index refers to them by number.
+ * Each distinct value of the index is written once, in a dictionary of values encoded by
+ * {@link KeyCodec}, and referred to by number. The bucket of a value is a posting list of ascending
+ * element numbers, written as the differences between consecutive numbers. Numbers and lengths are
+ * varints: seven bits per byte, low bits first, with the high bit set on all bytes but the last.
+ *
+ * Layout, with names as the varint length and UTF-8 bytes of the name:
+ * <pre>
+ * header:      MAGIC (4 bytes), VERSION, element class name
+ * elements:    JAVA_SERIALIZATION or ELEMENT_CODEC (1 byte), size, element count, and each element.
+ *              The first size elements are the elements of the set, the others are only held by
+ *              its index. With JAVA_SERIALIZATION, elements are written in blocks of BLOCK_SIZE
+ *              elements, each the length and bytes of an ObjectOutputStream
+ * dictionary:  value count, and the encoding of each value
+ * indexes:     index count, the name and sortedness (1 byte) of each index, and then per index
+ *              its value count, and per value its number, its element count and its posting list
+ * </pre>
+ */
+final class BinaryFormat {
+
+    static final int MAGIC = 0x43594246; // "CYBF"
+
+    static final int VERSION = 1;
+
+    // how elements are written
+    private static final byte JAVA_SERIALIZATION = 0;
+    private static final byte ELEMENT_CODEC = 1;
+
+    private static final int BLOCK_SIZE = 1024;
+
+    private BinaryFormat() {}
+
+    /**
+     * Writes set to os, with its elements written by codec, or by Java serialization if codec is null.
+     * os is flushed, but not closed.
+     */
+    static <ElementType extends Serializable> void write(IndexedSet<ElementType> set, OutputStream os,
+                                                         ElementCodec<? super ElementType> codec) throws IOException {
+        set.completeIndex();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(os, 1 << 16));
+        out.writeInt(MAGIC);
+        writeVarInt(VERSION, out);
+        writeString(set.elementClass.getName(), out);
+
+        // number the elements of the set, then the elements only held by the index
+        Map<ElementType, Integer> numbers = new HashMap<>(set.inventory.size() * 4 / 3 + 1);
+        List<ElementType> elements = new ArrayList<>(set.inventory);
+        for (ElementType element : elements) {
+            numbers.put(element, numbers.size());
+        }
+        Map<Object, Integer> values = new LinkedHashMap<>();
+        for (Map<Object, Set<ElementType>> valuesMap : set.index.values()) {
+            for (Map.Entry<Object, Set<ElementType>> entry : valuesMap.entrySet()) {
+                values.putIfAbsent(entry.getKey(), values.size());
+                for (ElementType element : entry.getValue()) {
+                    if (numbers.putIfAbsent(element, numbers.size()) == null) {
+                        elements.add(element);
+                    }
+                }
+            }
+        }
+
+        out.writeByte(codec == null ? JAVA_SERIALIZATION : ELEMENT_CODEC);
+        writeVarInt(set.inventory.size(), out);
+        writeVarInt(elements.size(), out);
+        if (codec == null) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int from = 0; from < elements.size(); from += BLOCK_SIZE) {
+                bytes.reset();
+                try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                    for (ElementType element : elements.subList(from, Math.min(from + BLOCK_SIZE, elements.size()))) {
+                        oos.writeObject(element);
+                    }
+                }
+                writeVarInt(bytes.size(), out);
+                bytes.writeTo(out);
+            }
+        }
+        else {
+            for (ElementType element : elements) {
+                codec.write(element, out);
+            }
+        }
+
+        writeVarInt(values.size(), out);
+        for (Object value : values.keySet()) {
+            KeyCodec.write(value, out);
+        }
+
+        writeVarInt(set.index.size(), out);
+        for (String indexName : set.index.keySet()) {
+            writeString(indexName, out);
+            out.writeBoolean(set.isSorted(indexName));
+        }
+        int[] posting = new int[16];
+        for (Map<Object, Set<ElementType>> valuesMap : set.index.values()) {
+            writeVarInt(valuesMap.size(), out);
+            for (Map.Entry<Object, Set<ElementType>> entry : valuesMap.entrySet()) {
+                if (posting.length < entry.getValue().size()) {
+                    posting = new int[Math.max(entry.getValue().size(), posting.length * 2)];
+                }
+                int count = 0;
+                for (ElementType element : entry.getValue()) {
+                    posting[count++] = numbers.get(element);
+                }
+                Arrays.sort(posting, 0, count);
+                writeVarInt(values.get(entry.getKey()), out);
+                writeVarInt(count, out);
+                int previous = 0;
+                for (int i = 0; i < count; i++) {
+                    writeVarInt(posting[i] - previous, out);
+                    previous = posting[i];
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * @return the set read from is, with its elements read by codec, or by Java serialization
+     * if codec is null. is is read up to the end of the set, and should be buffered.
+     * @throws IOException if is cannot be read, or is not a set in this format of a supported version,
+     * or its elements were not written as they are read
+     * @throws ClassNotFoundException if the class of the elements, of an enum value or of a
+     * serialized value cannot be found
+     */
+    static <ElementType extends Serializable> IndexedSerializableSet<ElementType> read(
+            InputStream is, ElementCodec<ElementType> codec) throws IOException, ClassNotFoundException {
+        return read(is, codec, new IndexedSerializableSet<>());
+    }
+
+    /**
+     * Reads a set from is into set, see {@link #read(InputStream, ElementCodec)}
+     * @param set a set created by its zero-argument constructor, whose fields are all read from is
+     * @return set
+     */
+    static <ElementType extends Serializable, S extends IndexedSerializableSet<ElementType>> S read(
+            InputStream is, ElementCodec<ElementType> codec, S set) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(is);
+        if (in.readInt() != MAGIC) {
+            throw new IOException("Not an IndexedSerializableSet in binary format");
+        }
+        int version = readVarInt(in);
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported version (%d) of binary format", version));
+        }
+        set.elementClass = Class.forName(readString(in));
+
+        byte elementEncoding = in.readByte();
+        if (elementEncoding != (codec == null ? JAVA_SERIALIZATION : ELEMENT_CODEC)) {
+            throw new IOException(elementEncoding == ELEMENT_CODEC ?
+                    "Elements were written by an ElementCodec" : "Elements were written by Java serialization");
+        }
+        int size = readVarInt(in);
+        Object[] elements = new Object[readVarInt(in)];
+        if (codec == null) {
+            for (int from = 0; from < elements.length; from += BLOCK_SIZE) {
+                byte[] bytes = new byte[readVarInt(in)];
+                in.readFully(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    for (int i = from; i < Math.min(from + BLOCK_SIZE, elements.length); i++) {
+                        elements[i] = ois.readObject();
+                    }
+                }
+            }
+        }
+        else {
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = codec.read(in);
+            }
+        }
+        set.inventory = set.newInventory(size);
+        for (int i = 0; i < size; i++) {
+            set.inventory.add((ElementType) elements[i]);
+        }
+
+        Object[] values = new Object[readVarInt(in)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = KeyCodec.read(in);
+        }
+
+        // the values maps are created before they are filled, so they are of the kind of their method
+        String[] indexNames = new String[readVarInt(in)];
+        set.index = new HashMap<>();
+        for (int i = 0; i < indexNames.length; i++) {
+            indexNames[i] = readString(in);
+            set.index.put(indexNames[i], set.newValuesMap(in.readBoolean(), 0));
+        }
+        set.initIndexedMethods(set.index.keySet());
+        List<ElementType> bucket = new ArrayList<>();
+        for (String indexName : indexNames) {
+            Map<Object, Set<ElementType>> valuesMap = set.index.get(indexName);
+            int valueCount = readVarInt(in);
+            for (int i = 0; i < valueCount; i++) {
+                Object value = values[readVarInt(in)];
+                int count = readVarInt(in);
+                bucket.clear();
+                int number = 0;
+                for (int j = 0; j < count; j++) {
+                    number += readVarInt(in);
+                    bucket.add((ElementType) elements[number]);
+                }
+                set.addAllToBucket(valuesMap, value, bucket);
+            }
+        }
+        set.initBitmapValuesMaps();
+        return set;
+    }
+
+    static void writeVarInt(int n, DataOutput out) throws IOException {
+        while ((n & ~0x7f) != 0) {
+            out.writeByte((n & 0x7f) | 0x80);
+            n >>>= 7;
+        }
+        out.writeByte(n);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int n = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            byte b = in.readByte();
+            n |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return n;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static void writeString(String s, DataOutput out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length, out);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
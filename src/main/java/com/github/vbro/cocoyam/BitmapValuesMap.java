@@ -0,0 +1,91 @@
+package com.github.vbro.cocoyam;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The values map of an unsorted index of few values, each of which is returned by many elements,
+ * e.g. the index of a method that returns a boolean, an enum or a status code.
+ *
+ * The bucket of a value is an {@link IdBucket}, which keeps the ids of its elements in a bitmap once
+ * they are more than one in 32 of the ids in use. The ids are given by an {@link ElementIds} that is
+ * shared by the bitmap values maps of a set, so queries of several conditions on these indexes
+ * intersect and unite the bitmaps of their buckets, and are counted without visiting their elements.
+ *
+ * An {@link IndexedSet} replaces the values map of an index by a BitmapValuesMap when the index
+ * has few values, see {@link #hasFewValues(Map)}, and replaces it back when it has many values,
+ * see {@link #hasManyValues(Map)}. This map is serialized as a HashMap of HashSets.
+ */
+final class BitmapValuesMap<E> extends HashMap<Object, Set<E>> {
+
+    // an index of at most MAX_VALUES values, and of at least MIN_BUCKET_SIZE elements per value
+    // on average, has few values
+    static final int MAX_VALUES = 256;
+    static final int MIN_BUCKET_SIZE = 64;
+
+    // an index of less than MIN_SIZE elements is small enough to keep its buckets as they are
+    static final int MIN_SIZE = 1024;
+
+    private final transient ElementIds<E> elementIds;
+
+    BitmapValuesMap(ElementIds<E> elementIds) {
+        this.elementIds = elementIds;
+    }
+
+    /**
+     * @return true if valuesMap has at most MAX_VALUES values and at least MIN_SIZE elements,
+     * and at least MIN_BUCKET_SIZE elements per value on average
+     */
+    static boolean hasFewValues(Map<Object, ? extends Set<?>> valuesMap) {
+        if (valuesMap.isEmpty() || valuesMap.size() > MAX_VALUES) {
+            return false;
+        }
+        long size = 0;
+        for (Set<?> elementSet : valuesMap.values()) {
+            size += elementSet.size();
+        }
+        return size >= MIN_SIZE && size >= (long) valuesMap.size() * MIN_BUCKET_SIZE;
+    }
+
+    /**
+     * @return true if valuesMap has more than four times MAX_VALUES values, so a values map
+     * of few values is not replaced back and forth
+     */
+    static boolean hasManyValues(Map<Object, ? extends Set<?>> valuesMap) {
+        return valuesMap.size() > 4 * MAX_VALUES;
+    }
+
+    /**
+     * @return the ElementIds of the ids in the buckets of this map
+     */
+    ElementIds<E> elementIds() {
+        return this.elementIds;
+    }
+
+    /**
+     * @return a new, empty bucket for this map
+     */
+    IdBucket<E> newBucket() {
+        return new IdBucket<>(this.elementIds);
+    }
+
+    /**
+     * Removes all buckets from this map, and releases the ids of their elements
+     */
+    void releaseAll() {
+        for (Set<E> elementSet : values()) {
+            ((IdBucket<E>) elementSet).releaseAll();
+        }
+        super.clear();
+    }
+
+    private Object writeReplace() {
+        Map<Object, Set<E>> map = new HashMap<>(size() * 4 / 3 + 1);
+        for (Map.Entry<Object, Set<E>> entry : entrySet()) {
+            map.put(entry.getKey(), new HashSet<>(entry.getValue()));
+        }
+        return map;
+    }
+}
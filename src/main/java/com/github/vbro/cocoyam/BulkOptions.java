@@ -0,0 +1,57 @@
+package com.github.vbro.cocoyam;
+
+/**
+ * Options of a bulk load into an {@link IndexedSet}, see {@link IndexedSet#addAll(java.util.Collection, BulkOptions)}.
+ * BulkOptions are immutable.
+ */
+public final class BulkOptions {
+
+    private final int parallelism;
+
+    private final boolean shouldIndex;
+
+    private BulkOptions(int parallelism, boolean shouldIndex) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Parallelism should be at least 1, but is %d", parallelism));
+        }
+        this.parallelism = parallelism;
+        this.shouldIndex = shouldIndex;
+    }
+
+    /**
+     * @return options to index elements with one thread per available processor
+     */
+    public static BulkOptions parallel() {
+        return parallel(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @return options to index elements with parallelism threads
+     * @throws IllegalArgumentException if parallelism is less than 1
+     */
+    public static BulkOptions parallel(int parallelism) {
+        return new BulkOptions(parallelism, true);
+    }
+
+    /**
+     * @return options like these, which add elements to the index if shouldIndex
+     */
+    public BulkOptions withShouldIndex(boolean shouldIndex) {
+        return new BulkOptions(this.parallelism, shouldIndex);
+    }
+
+    /**
+     * @return the number of threads that index elements
+     */
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * @return true if elements are added to the index
+     */
+    public boolean shouldIndex() {
+        return this.shouldIndex;
+    }
+}
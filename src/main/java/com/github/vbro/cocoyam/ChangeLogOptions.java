@@ -0,0 +1,86 @@
+package com.github.vbro.cocoyam;
+
+/**
+ * Options of the change log of a {@link LoggedIndexedSet}: when logged changes are forced to the
+ * storage device, and when the log is compacted into a new snapshot.
+ * ChangeLogOptions are immutable.
+ */
+public final class ChangeLogOptions {
+
+    private static final long DEFAULT_COMPACTION_THRESHOLD = 64L << 20;
+
+    // a change is forced before the method that made it returns
+    private static final long EVERY_CHANGE = 0;
+
+    // changes are never forced, except when the log is closed
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private final long fsyncIntervalMillis;
+
+    private final long compactionThreshold;
+
+    private ChangeLogOptions(long fsyncIntervalMillis, long compactionThreshold) {
+        if (fsyncIntervalMillis < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Fsync interval should be at least 0 ms, but is %d ms", fsyncIntervalMillis));
+        }
+        if (compactionThreshold < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Compaction threshold should be at least 1 byte, but is %d", compactionThreshold));
+        }
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.compactionThreshold = compactionThreshold;
+    }
+
+    /**
+     * @return options to write and force each change to the storage device before the method that
+     * made it returns. No acknowledged change is lost, but each change waits for the device.
+     */
+    public static ChangeLogOptions fsyncEveryChange() {
+        return new ChangeLogOptions(EVERY_CHANGE, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @return options to buffer changes, and to write and force them to the storage device with the
+     * first change made at least intervalMillis after they were last forced. There is no background
+     * thread: changes made in the interval before the last change are only forced by the next change,
+     * by {@link LoggedIndexedSet#sync()} or by {@link LoggedIndexedSet#close()}.
+     * @throws IllegalArgumentException if intervalMillis is negative
+     */
+    public static ChangeLogOptions fsyncEvery(long intervalMillis) {
+        return new ChangeLogOptions(intervalMillis, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @return options to buffer changes, and to write them to the file when the buffer is full, without
+     * forcing them to the storage device, which is left to the operating system. Changes are written
+     * and forced by {@link LoggedIndexedSet#sync()} and {@link LoggedIndexedSet#close()}.
+     */
+    public static ChangeLogOptions fsyncNever() {
+        return new ChangeLogOptions(NEVER, DEFAULT_COMPACTION_THRESHOLD);
+    }
+
+    /**
+     * @return options like these, which compact the log into a new snapshot when a change makes it
+     * larger than compactionThreshold bytes. By default, the threshold is 64 MB.
+     * @throws IllegalArgumentException if compactionThreshold is less than 1
+     */
+    public ChangeLogOptions withCompactionThreshold(long compactionThreshold) {
+        return new ChangeLogOptions(this.fsyncIntervalMillis, compactionThreshold);
+    }
+
+    /**
+     * @return the minimum time between two forces of the log to the storage device: 0 if every change
+     * is forced, or Long.MAX_VALUE if changes are never forced
+     */
+    public long getFsyncIntervalMillis() {
+        return this.fsyncIntervalMillis;
+    }
+
+    /**
+     * @return the size in bytes of the log above which it is compacted into a new snapshot
+     */
+    public long getCompactionThreshold() {
+        return this.compactionThreshold;
+    }
+}
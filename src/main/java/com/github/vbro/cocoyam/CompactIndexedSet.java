@@ -0,0 +1,157 @@
+package com.github.vbro.cocoyam;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * An {@link IndexedSet} that gives each element a dense int id, and keeps the ids of the elements
+ * of a bucket instead of references to them.
+ *
+ * A bucket of an IndexedSet is a HashSet, which takes a map entry of about 40 bytes per element,
+ * for every indexed method. A bucket of a CompactIndexedSet is a sorted array of ids, 4 bytes per
+ * element, or a bitmap of ids once it holds more than one in 32 of the ids in use. The inventory
+ * keeps the elements by id, and a hash table of their ids.
+ *
+ * The Set API is unchanged: buckets are Sets of elements. Queries of several conditions, see
+ * {@link #query(Query)}, intersect and unite the ids of the buckets of their conditions, instead
+ * of checking every element of one condition against the others.
+ *
+ * Values of methods that return primitives are boxed, as their buckets are also sets of ids.
+ * Like an IndexedSet, a CompactIndexedSet is not thread-safe.
+ */
+public class CompactIndexedSet<ElementType> extends IndexedSet<ElementType> {
+
+    /**
+     * This protected zero-argument constructor is for {@link #clone()}.
+     */
+    protected CompactIndexedSet() {
+        super();
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Collection)}
+     */
+    public CompactIndexedSet(Class elementClass, Collection<Method> methods) {
+        super(elementClass, methods);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Collection, Collection)}
+     */
+    public CompactIndexedSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods) {
+        super(elementClass, methods, sortedMethods);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Collection, Collection, Collection, Collection)}
+     */
+    public CompactIndexedSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods,
+                             Collection<List<Method>> compositeMethods,
+                             Collection<List<Method>> sortedCompositeMethods) {
+        super(elementClass, methods, sortedMethods, compositeMethods, sortedCompositeMethods);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, String[])}
+     */
+    public CompactIndexedSet(Class elementClass, String[] methodNames) {
+        super(elementClass, methodNames);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, String[], String[])}
+     */
+    public CompactIndexedSet(Class elementClass, String[] methodNames, String[] sortedMethodNames) {
+        super(elementClass, methodNames, sortedMethodNames);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Map)}
+     */
+    public CompactIndexedSet(Class elementClass, Map<String, Function<? super ElementType, ?>> keyFunctions) {
+        super(elementClass, keyFunctions);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class)}
+     */
+    public CompactIndexedSet(Class elementClass) {
+        super(elementClass);
+    }
+
+    /**
+     * Clears the contents of the index, and releases the ids of elements that
+     * are no longer in the set or in the index, so they can be reused.
+     * This has no effects on the set of elements in this Set.
+     */
+    public void clearIndex() {
+        for (Map<Object, Set<ElementType>> valuesMap : this.index.values()) {
+            for (Set<ElementType> elementSet : valuesMap.values()) {
+                if (elementSet instanceof IdBucket) {
+                    ((IdBucket<ElementType>) elementSet).releaseAll();
+                }
+            }
+        }
+        super.clearIndex();
+    }
+
+    /**
+     * Drops the index named indexName, see {@link IndexedSet#dropIndex(String)}, and releases the ids
+     * of elements that are no longer in the set or in the index, so they can be reused.
+     */
+    public void dropIndex(String indexName) {
+        Map<Object, Set<ElementType>> valuesMap = this.index.get(indexName);
+        super.dropIndex(indexName);
+        for (Set<ElementType> elementSet : valuesMap.values()) {
+            if (elementSet instanceof IdBucket) {
+                ((IdBucket<ElementType>) elementSet).releaseAll();
+            }
+        }
+    }
+
+    public CompactIndexedSet<ElementType> clone() {
+        return (CompactIndexedSet<ElementType>) super.clone();
+    }
+
+    protected IndexedSet<ElementType> newEmptySet() {
+        return new CompactIndexedSet<>();
+    }
+
+    protected Set<ElementType> newInventory(int expectedSize) {
+        return new ElementIds<>(expectedSize);
+    }
+
+    protected Map<Object, Set<ElementType>> newPrimitiveValuesMap(Method method, int expectedSize) {
+        return null;
+    }
+
+    /**
+     * All buckets are sets of element ids, so indexes of few values are not replaced.
+     */
+    protected Map<Object, Set<ElementType>> newBitmapValuesMap() {
+        return null;
+    }
+
+    protected Set<ElementType> newBucket() {
+        return new IdBucket<>((ElementIds<ElementType>) this.inventory);
+    }
+
+    ElementIds<ElementType> elementIds() {
+        return this.inventory instanceof ElementIds ? (ElementIds<ElementType>) this.inventory : null;
+    }
+
+    /**
+     * The parallel bulk load files the elements of different methods at the same time,
+     * so the holds on their ids are taken under the lock of the inventory.
+     */
+    protected void addAllToBucket(Map<Object, Set<ElementType>> valuesMap, Object value,
+                                  Collection<ElementType> elements) {
+        synchronized (this.inventory) {
+            super.addAllToBucket(valuesMap, value, elements);
+        }
+    }
+}
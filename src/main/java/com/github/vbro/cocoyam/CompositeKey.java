@@ -0,0 +1,113 @@
+package com.github.vbro.cocoyam;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * The value of an element for a composite index of an {@link IndexedSet}, i.e. the
+ * tuple of the values returned by each of the methods of the composite index.
+ * Use {@link #of(Object...)} to look up elements in a composite index, e.g.
+ * {@code set.get("getTenant+getRegion", CompositeKey.of(tenant, region))}.
+ *
+ * Keys of sorted composite indexes are ordered by their first value, then by their
+ * second value and so on. Each value is in natural order, with null first.
+ */
+public final class CompositeKey implements Comparable<CompositeKey>, Serializable {
+
+    private static final Comparator<Object> VALUE_ORDER =
+            (Comparator) Comparator.nullsFirst(Comparator.<Comparable>naturalOrder());
+
+    private final Object[] values;
+
+    // an upper bound is greater than every key it is a prefix of
+    private final boolean isUpperBound;
+
+    private final int hash;
+
+    private CompositeKey(Object[] values, boolean isUpperBound) {
+        this.values = values;
+        this.isUpperBound = isUpperBound;
+        this.hash = Arrays.hashCode(values) * 31 + (isUpperBound ? 1 : 0);
+    }
+
+    /**
+     * @return the key of the given values, in the order of the methods of a composite index
+     */
+    public static CompositeKey of(Object... values) {
+        return new CompositeKey(values.clone(), false);
+    }
+
+    /**
+     * @return a key that is less than every key that starts with prefixValues
+     */
+    static CompositeKey lowerBound(Object[] prefixValues) {
+        return new CompositeKey(prefixValues.clone(), false);
+    }
+
+    /**
+     * @return a key that is greater than every key that starts with prefixValues
+     */
+    static CompositeKey upperBound(Object[] prefixValues) {
+        return new CompositeKey(prefixValues.clone(), true);
+    }
+
+    /**
+     * Creates the key of values without copying values. values should not be modified afterwards.
+     */
+    static CompositeKey wrap(Object[] values) {
+        return new CompositeKey(values, false);
+    }
+
+    /**
+     * @return the number of values in this key
+     */
+    public int size() {
+        return this.values.length;
+    }
+
+    /**
+     * @return the i-th value of this key
+     */
+    public Object get(int i) {
+        return this.values[i];
+    }
+
+    public int compareTo(CompositeKey other) {
+        int length = Math.min(this.values.length, other.values.length);
+        for (int i = 0; i < length; i++) {
+            int comparison = VALUE_ORDER.compare(this.values[i], other.values[i]);
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        if (this.values.length == other.values.length) {
+            return Boolean.compare(this.isUpperBound, other.isUpperBound);
+        }
+        // a prefix is less than the keys it starts, unless it is an upper bound
+        if (this.values.length < other.values.length) {
+            return this.isUpperBound ? 1 : -1;
+        }
+        return other.isUpperBound ? -1 : 1;
+    }
+
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof CompositeKey)) {
+            return false;
+        }
+        CompositeKey other = (CompositeKey) o;
+        return this.hash == other.hash && this.isUpperBound == other.isUpperBound &&
+                Arrays.equals(this.values, other.values);
+    }
+
+    public int hashCode() {
+        return this.hash;
+    }
+
+    public String toString() {
+        return Arrays.toString(this.values);
+    }
+}
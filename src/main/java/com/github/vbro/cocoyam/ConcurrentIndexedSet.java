@@ -0,0 +1,448 @@
+package com.github.vbro.cocoyam;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * An {@link IndexedSet} that can be read and modified by several threads at once.
+ *
+ * The inventory, the values maps and the buckets of the index are concurrent collections,
+ * so lookups such as {@link #get(String, Object)}, {@link #getView(String, Object)} and
+ * {@link #query(Query)} never take a lock and never block writers.
+ *
+ * Writers take two kinds of striped locks. Adding and removing an element holds the stripe of
+ * the element, so an element is never indexed and removed at the same time. Changing a bucket
+ * holds the stripe of its value, so an element that is added to a bucket is never lost when the
+ * bucket becomes empty and is removed from its values map. Writers of different elements and
+ * values run in parallel.
+ *
+ * An element is added to the inventory before it is added to the index, and removed from the
+ * index before it is removed from the inventory, so every element found through the index is
+ * contained in this set. A reader may not yet find an element in the index while it is being added.
+ * Bulk operations such as {@link #clear()}, {@link #reIndex()} and {@link #trimToSize()} hold all
+ * stripes of the elements, but are not atomic for readers.
+ *
+ * Values maps of sorted indexes do not accept null as a bound of a range.
+ */
+public class ConcurrentIndexedSet<ElementType> extends IndexedSet<ElementType> {
+
+    private static final int STRIPES = 64;
+
+    // key of the bucket of the elements that return null, which concurrent maps do not accept
+    private static final Object NULL_KEY = new Object() {
+        public String toString() {
+            return "null";
+        }
+    };
+
+    private static final Comparator<Object> NULLS_FIRST_ORDER =
+            (Comparator) Comparator.nullsFirst(Comparator.<Comparable>naturalOrder());
+
+    // order of the values of sorted indexes: natural order, with null before all other values
+    private static final Comparator<Object> SORTED_VALUES_ORDER = (a, b) ->
+            NULLS_FIRST_ORDER.compare(a == NULL_KEY ? null : a, b == NULL_KEY ? null : b);
+
+    private final ReentrantLock[] elementLocks = newLocks();
+
+    private final Object[] bucketLocks = newBucketLocks();
+
+    /**
+     * This protected zero-argument constructor is for {@link #clone()}.
+     */
+    protected ConcurrentIndexedSet() {
+        super();
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Collection)}
+     */
+    public ConcurrentIndexedSet(Class elementClass, Collection<Method> methods) {
+        super(elementClass, methods);
+        this.index = new ConcurrentHashMap<>(this.index);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Collection, Collection)}
+     */
+    public ConcurrentIndexedSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods) {
+        super(elementClass, methods, sortedMethods);
+        this.index = new ConcurrentHashMap<>(this.index);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Collection, Collection, Collection, Collection)}
+     */
+    public ConcurrentIndexedSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods,
+                                Collection<List<Method>> compositeMethods,
+                                Collection<List<Method>> sortedCompositeMethods) {
+        super(elementClass, methods, sortedMethods, compositeMethods, sortedCompositeMethods);
+        this.index = new ConcurrentHashMap<>(this.index);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, String[])}
+     */
+    public ConcurrentIndexedSet(Class elementClass, String[] methodNames) {
+        super(elementClass, methodNames);
+        this.index = new ConcurrentHashMap<>(this.index);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, String[], String[])}
+     */
+    public ConcurrentIndexedSet(Class elementClass, String[] methodNames, String[] sortedMethodNames) {
+        super(elementClass, methodNames, sortedMethodNames);
+        this.index = new ConcurrentHashMap<>(this.index);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Map)}
+     */
+    public ConcurrentIndexedSet(Class elementClass, Map<String, Function<? super ElementType, ?>> keyFunctions) {
+        super(elementClass, keyFunctions);
+        this.index = new ConcurrentHashMap<>(this.index);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class)}
+     */
+    public ConcurrentIndexedSet(Class elementClass) {
+        super(elementClass);
+        this.index = new ConcurrentHashMap<>(this.index);
+    }
+
+    public boolean add(ElementType element, boolean shouldIndex) {
+        if (element == null) {
+            throw new NullPointerException("IndexedSet does not accept null elements.");
+        }
+        ReentrantLock lock = elementLock(element);
+        lock.lock();
+        try {
+            return super.add(element, shouldIndex);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean remove(Object o, boolean shouldRemoveFromIndex) {
+        if (o == null) {
+            return false;
+        }
+        ReentrantLock lock = elementLock(o);
+        lock.lock();
+        try {
+            return super.remove(o, shouldRemoveFromIndex);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#update(Object, Consumer)}
+     * element is changed under the lock of its stripe, so it is never changed while it is added or
+     * removed. A reader may not find element in the index while it is changed.
+     */
+    public boolean update(ElementType element, Consumer<? super ElementType> change) {
+        ReentrantLock lock = elementLock(element);
+        lock.lock();
+        try {
+            return super.update(element, change);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    public void reIndex(ElementType element) {
+        ReentrantLock lock = elementLock(element);
+        lock.lock();
+        try {
+            super.reIndex(element);
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#reIndex(Collection)}
+     * Each element is re-indexed under the lock of its stripe, one at a time.
+     */
+    public void reIndex(Collection<? extends ElementType> elements) {
+        for (ElementType element : elements) {
+            reIndex(element);
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#removeAll(Collection, boolean)}
+     * Each object is removed under the lock of its stripe, one at a time.
+     */
+    public boolean removeAll(Collection<?> c, boolean shouldRemoveFromIndex) {
+        boolean changed = false;
+        for (Object o : c) {
+            boolean b = this.remove(o, shouldRemoveFromIndex);
+            changed = changed || b;
+        }
+        return changed;
+    }
+
+    /**
+     * see {@link IndexedSet#addAll(Collection, BulkOptions)}
+     * Elements are added in parallel, each under the lock of its stripe, so other threads
+     * may change this set meanwhile. If c contains null or an element that is not an
+     * instance of the element class, the elements before it may have been added.
+     */
+    public boolean addAll(Collection<? extends ElementType> c, BulkOptions options) {
+        if (options.getParallelism() == 1) {
+            return addAll(c, options.shouldIndex());
+        }
+        return runInParallel(options.getParallelism(), () -> c.parallelStream()
+                .map(element -> add(element, options.shouldIndex()))
+                .reduce(false, Boolean::logicalOr));
+    }
+
+    public void clear(boolean shouldClearIndex) {
+        lockAll();
+        try {
+            if (shouldClearIndex) {
+                clearIndex();
+            }
+            this.inventory.clear();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public void clearIndex() {
+        lockAll();
+        try {
+            super.clearIndex();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#addIndex(String, boolean)}
+     * Writers wait while the index is built, but readers do not: lookups in the other indexes
+     * continue, and the new index is found by lookups once it has been built.
+     */
+    public void addIndex(String indexName, boolean isSorted) {
+        lockAll();
+        try {
+            super.addIndex(indexName, isSorted);
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#addIndex(String, Function)}
+     * Writers wait while the index is built, but readers do not.
+     */
+    public void addIndex(String indexName, Function<? super ElementType, ?> keyFunction) {
+        lockAll();
+        try {
+            super.addIndex(indexName, keyFunction);
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public void dropIndex(String indexName) {
+        lockAll();
+        try {
+            super.dropIndex(indexName);
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    /**
+     * Indexes are built eagerly, as building a deferred index on first use would change the
+     * index while other threads read it.
+     * @throws UnsupportedOperationException always
+     */
+    public void deferIndexing() {
+        throw new UnsupportedOperationException("ConcurrentIndexedSet does not defer indexing");
+    }
+
+    /**
+     * The index is changed at once, as applying buffered changes on the next lookup would change
+     * the index while other threads read it.
+     * @throws UnsupportedOperationException always
+     */
+    public void bufferIndexing(int bufferSize) {
+        throw new UnsupportedOperationException("ConcurrentIndexedSet does not buffer indexing");
+    }
+
+    public void reIndex() {
+        lockAll();
+        try {
+            super.reIndex();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public void reIndex(int parallelism) {
+        lockAll();
+        try {
+            super.reIndex(parallelism);
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public void trimToSize() {
+        lockAll();
+        try {
+            super.trimToSize();
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    public ConcurrentIndexedSet<ElementType> clone() {
+        lockAll();
+        try {
+            ConcurrentIndexedSet<ElementType> cloneSet = (ConcurrentIndexedSet<ElementType>) super.clone();
+            cloneSet.index = new ConcurrentHashMap<>(cloneSet.index);
+            return cloneSet;
+        }
+        finally {
+            unlockAll();
+        }
+    }
+
+    protected IndexedSet<ElementType> newEmptySet() {
+        return new ConcurrentIndexedSet<>();
+    }
+
+    protected Set<ElementType> newInventory(int expectedSize) {
+        return Collections.newSetFromMap(new ConcurrentHashMap<>(Math.max(expectedSize, 16)));
+    }
+
+    protected Map<Object, Set<ElementType>> newValuesMap(boolean isSorted, int expectedSize) {
+        if (isSorted) {
+            return new ConcurrentSkipListMap<>(SORTED_VALUES_ORDER);
+        }
+        return new ConcurrentHashMap<>(Math.max(expectedSize, 16));
+    }
+
+    /**
+     * Values of methods that return primitives are boxed, as the values maps are concurrent maps.
+     */
+    protected Map<Object, Set<ElementType>> newPrimitiveValuesMap(Method method, int expectedSize) {
+        return null;
+    }
+
+    /**
+     * Indexes of few values keep their buckets, as the values maps are concurrent maps.
+     */
+    protected Map<Object, Set<ElementType>> newBitmapValuesMap() {
+        return null;
+    }
+
+    protected Set<ElementType> newBucket() {
+        return Collections.newSetFromMap(new ConcurrentHashMap<>());
+    }
+
+    protected void addToBucket(Map<Object, Set<ElementType>> valuesMap, Object value, ElementType element) {
+        Object key = value == null ? NULL_KEY : value;
+        synchronized (bucketLock(key)) {
+            super.addToBucket(valuesMap, key, element);
+        }
+    }
+
+    protected void addAllToBucket(Map<Object, Set<ElementType>> valuesMap, Object value,
+                                  Collection<ElementType> elements) {
+        Object key = value == null ? NULL_KEY : value;
+        synchronized (bucketLock(key)) {
+            super.addAllToBucket(valuesMap, key, elements);
+        }
+    }
+
+    protected boolean removeFromBucket(Map<Object, Set<ElementType>> valuesMap, Object value, Object o) {
+        Object key = value == null ? NULL_KEY : value;
+        synchronized (bucketLock(key)) {
+            return super.removeFromBucket(valuesMap, key, o);
+        }
+    }
+
+    protected void removeFromAllBuckets(Map<Object, Set<ElementType>> valuesMap, Collection<?> c) {
+        for (Map.Entry<Object, Set<ElementType>> entry : valuesMap.entrySet()) {
+            if (!Collections.disjoint(entry.getValue(), c)) {
+                for (Object o : c) {
+                    removeFromBucket(valuesMap, entry.getKey(), o);
+                }
+            }
+        }
+    }
+
+    protected Set<ElementType> getBucket(Map<Object, Set<ElementType>> valuesMap, Object value) {
+        return super.getBucket(valuesMap, value == null ? NULL_KEY : value);
+    }
+
+    private ReentrantLock elementLock(Object o) {
+        return this.elementLocks[stripe(o)];
+    }
+
+    private Object bucketLock(Object key) {
+        return this.bucketLocks[stripe(key)];
+    }
+
+    private static int stripe(Object o) {
+        int h = o.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    private void lockAll() {
+        for (ReentrantLock lock : this.elementLocks) {
+            lock.lock();
+        }
+    }
+
+    private void unlockAll() {
+        for (ReentrantLock lock : this.elementLocks) {
+            lock.unlock();
+        }
+    }
+
+    private static ReentrantLock[] newLocks() {
+        ReentrantLock[] locks = new ReentrantLock[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private static Object[] newBucketLocks() {
+        Object[] locks = new Object[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            locks[i] = new Object();
+        }
+        return locks;
+    }
+}
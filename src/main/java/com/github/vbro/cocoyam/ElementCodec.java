@@ -0,0 +1,23 @@
+package com.github.vbro.cocoyam;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Writes and reads the elements of an {@link IndexedSerializableSet} in its binary format, see
+ * {@link IndexedSerializableSet#writeTo(java.io.OutputStream, ElementCodec)}. A codec that writes
+ * the fields of an element is usually much more compact and faster than Java serialization.
+ */
+public interface ElementCodec<ElementType> {
+
+    /**
+     * Writes element to out, so that {@link #read(DataInput)} reads an equal element back
+     */
+    void write(ElementType element, DataOutput out) throws IOException;
+
+    /**
+     * @return the next element in in, as written by {@link #write(Object, DataOutput)}
+     */
+    ElementType read(DataInput in) throws IOException;
+}
@@ -0,0 +1,253 @@
+package com.github.vbro.cocoyam;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * The inventory of a {@link CompactIndexedSet}, which gives each of its elements a dense int id.
+ *
+ * Elements are kept in an array by id, and are found by a hash table of ids with linear probing.
+ * An element keeps its id while it is in the inventory or in any bucket of the index, see
+ * {@link #acquire(Object)} and {@link #release(int)}, so a bucket still finds an element that was
+ * removed from the inventory but not from the index. Released ids are reused by new elements,
+ * so ids stay smaller than the largest number of elements that were held at once.
+ */
+final class ElementIds<E> extends AbstractSet<E> {
+
+    // element of each id, or null if the id is free
+    private Object[] elements;
+
+    // hash code of the element of each id
+    private int[] hashes;
+
+    // number of holders of each id: the inventory and the buckets that contain its element
+    private int[] refs;
+
+    // bit i of word i / 64 is set if the element of id i is in the inventory
+    private long[] members;
+
+    // id + 1 of an element per slot, or 0 if the slot is free
+    private int[] table;
+
+    // number of elements in the inventory
+    private int size;
+
+    // number of ids that are held
+    private int count;
+
+    // ids below nextId have been handed out; the free ones among them are in freeIds
+    private int nextId;
+
+    private int[] freeIds = new int[0];
+
+    private int freeCount;
+
+    ElementIds(int expectedSize) {
+        int capacity = Math.max(expectedSize, 16);
+        this.elements = new Object[capacity];
+        this.hashes = new int[capacity];
+        this.refs = new int[capacity];
+        this.members = new long[(capacity >>> 6) + 1];
+        int tableSize = 16;
+        while (tableSize / 4 * 3 < capacity) {
+            tableSize <<= 1;
+        }
+        this.table = new int[tableSize];
+    }
+
+    /**
+     * @return the id of o, or -1 if o has no id
+     */
+    int idOf(Object o) {
+        if (o == null) {
+            return -1;
+        }
+        int h = o.hashCode();
+        int mask = this.table.length - 1;
+        for (int i = home(h); this.table[i] != 0; i = (i + 1) & mask) {
+            int id = this.table[i] - 1;
+            if (this.hashes[id] == h && o.equals(this.elements[id])) {
+                return id;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the element of id
+     */
+    E element(int id) {
+        return (E) this.elements[id];
+    }
+
+    /**
+     * Holds the id of element, and gives element a new id if it has none
+     * @return the id of element
+     */
+    int acquire(E element) {
+        int id = idOf(element);
+        if (id < 0) {
+            id = this.freeCount > 0 ? this.freeIds[--this.freeCount] : this.nextId++;
+            if (id == this.elements.length) {
+                int capacity = id + (id >> 1);
+                this.elements = Arrays.copyOf(this.elements, capacity);
+                this.hashes = Arrays.copyOf(this.hashes, capacity);
+                this.refs = Arrays.copyOf(this.refs, capacity);
+                this.members = Arrays.copyOf(this.members, (capacity >>> 6) + 1);
+            }
+            this.elements[id] = element;
+            this.hashes[id] = element.hashCode();
+            this.count++;
+            if (this.count > this.table.length / 4 * 3) {
+                rehash(this.table.length * 2);
+            }
+            insert(id);
+        }
+        this.refs[id]++;
+        return id;
+    }
+
+    /**
+     * Releases a hold of id. An id that is no longer held is freed, and its element forgotten.
+     */
+    void release(int id) {
+        if (--this.refs[id] > 0) {
+            return;
+        }
+        int mask = this.table.length - 1;
+        int i = home(this.hashes[id]);
+        while (this.table[i] != id + 1) {
+            i = (i + 1) & mask;
+        }
+        free(i);
+        this.elements[id] = null;
+        this.count--;
+        if (this.freeCount == this.freeIds.length) {
+            this.freeIds = Arrays.copyOf(this.freeIds, Math.max(16, this.freeCount * 2));
+        }
+        this.freeIds[this.freeCount++] = id;
+    }
+
+    public boolean add(E element) {
+        int id = idOf(element);
+        if (id >= 0 && isMember(id)) {
+            return false;
+        }
+        id = acquire(element);
+        this.members[id >>> 6] |= 1L << id;
+        this.size++;
+        return true;
+    }
+
+    public boolean remove(Object o) {
+        int id = idOf(o);
+        if (id < 0 || !isMember(id)) {
+            return false;
+        }
+        this.members[id >>> 6] &= ~(1L << id);
+        this.size--;
+        release(id);
+        return true;
+    }
+
+    public boolean contains(Object o) {
+        int id = idOf(o);
+        return id >= 0 && isMember(id);
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public Iterator<E> iterator() {
+        return new Iterator<E>() {
+
+            private int next = advance(0);
+
+            private int last = -1;
+
+            private int advance(int id) {
+                while (id < ElementIds.this.nextId && !isMember(id)) {
+                    id++;
+                }
+                return id;
+            }
+
+            public boolean hasNext() {
+                return this.next < ElementIds.this.nextId;
+            }
+
+            public E next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                this.last = this.next;
+                this.next = advance(this.next + 1);
+                return element(this.last);
+            }
+
+            public void remove() {
+                if (this.last < 0) {
+                    throw new IllegalStateException();
+                }
+                ElementIds.this.remove(element(this.last));
+                this.last = -1;
+            }
+        };
+    }
+
+    private boolean isMember(int id) {
+        return (this.members[id >>> 6] & (1L << id)) != 0;
+    }
+
+    private int home(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & (this.table.length - 1);
+    }
+
+    private void insert(int id) {
+        int mask = this.table.length - 1;
+        int i = home(this.hashes[id]);
+        while (this.table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        this.table[i] = id + 1;
+    }
+
+    /**
+     * Frees slot i of the table, and moves the slots after it that would no longer be found from their home slot
+     */
+    private void free(int i) {
+        int mask = this.table.length - 1;
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (this.table[j] == 0) {
+                break;
+            }
+            int home = home(this.hashes[this.table[j] - 1]);
+            // the slot can move to the hole unless its home is cyclically in (hole, j]
+            boolean isBetween = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!isBetween) {
+                this.table[hole] = this.table[j];
+                hole = j;
+            }
+        }
+        this.table[hole] = 0;
+    }
+
+    private void rehash(int tableSize) {
+        int[] oldTable = this.table;
+        this.table = new int[tableSize];
+        for (int slot : oldTable) {
+            if (slot != 0) {
+                insert(slot - 1);
+            }
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.github.vbro.cocoyam;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+
+/**
+ * A bucket of a {@link CompactIndexedSet}, which keeps the ids of its elements in an {@link IdSet}
+ * instead of references to the elements. The bucket holds the ids of its elements in elementIds,
+ * which finds the id of an element and the element of an id.
+ */
+final class IdBucket<E> extends AbstractSet<E> {
+
+    private final ElementIds<E> elementIds;
+
+    private final IdSet ids = new IdSet();
+
+    IdBucket(ElementIds<E> elementIds) {
+        this.elementIds = elementIds;
+    }
+
+    /**
+     * @return the ElementIds of the ids in this bucket
+     */
+    ElementIds<E> elementIds() {
+        return this.elementIds;
+    }
+
+    /**
+     * @return the ids of the elements in this bucket, which should not be modified
+     */
+    IdSet ids() {
+        return this.ids;
+    }
+
+    /**
+     * Removes all elements from this bucket, and releases their ids
+     */
+    void releaseAll() {
+        PrimitiveIterator.OfInt iterator = this.ids.iterator();
+        while (iterator.hasNext()) {
+            this.elementIds.release(iterator.nextInt());
+            iterator.remove();
+        }
+    }
+
+    public boolean add(E element) {
+        int id = this.elementIds.acquire(element);
+        if (!this.ids.add(id)) {
+            this.elementIds.release(id);
+            return false;
+        }
+        return true;
+    }
+
+    public boolean remove(Object o) {
+        int id = this.elementIds.idOf(o);
+        if (id < 0 || !this.ids.remove(id)) {
+            return false;
+        }
+        this.elementIds.release(id);
+        return true;
+    }
+
+    public boolean contains(Object o) {
+        int id = this.elementIds.idOf(o);
+        return id >= 0 && this.ids.contains(id);
+    }
+
+    public int size() {
+        return this.ids.size();
+    }
+
+    public boolean isEmpty() {
+        return this.ids.isEmpty();
+    }
+
+    public Iterator<E> iterator() {
+        PrimitiveIterator.OfInt iterator = this.ids.iterator();
+        return new Iterator<E>() {
+
+            private int last = -1;
+
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public E next() {
+                this.last = iterator.nextInt();
+                return IdBucket.this.elementIds.element(this.last);
+            }
+
+            public void remove() {
+                iterator.remove();
+                IdBucket.this.elementIds.release(this.last);
+            }
+        };
+    }
+}
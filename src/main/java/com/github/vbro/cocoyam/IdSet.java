@@ -0,0 +1,321 @@
+package com.github.vbro.cocoyam;
+
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.IntStream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A set of non-negative ints, e.g. the ids of the elements in a bucket of a {@link CompactIndexedSet}.
+ *
+ * The ints are kept in a sorted array while the set is sparse, and in a bitmap once the array would
+ * take more memory than a bitmap of all ints up to the largest one, like the containers of a Roaring
+ * bitmap. A set is not converted back to an array when ints are removed.
+ *
+ * The intersection and union of two sets are computed word by word, by merging arrays, or by looking
+ * up the ints of an array in a bitmap, see {@link #and(IdSet, IdSet)} and {@link #or(IdSet, IdSet)}.
+ */
+final class IdSet {
+
+    private static final int[] NO_IDS = new int[0];
+
+    // the sorted ints of this set in its first size entries, or null if this set is a bitmap
+    private int[] array = NO_IDS;
+
+    // bit i of word i / 64 is set if i is in this set, or null if this set is an array
+    private long[] words;
+
+    private int size;
+
+    int size() {
+        return this.size;
+    }
+
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    boolean isBitmap() {
+        return this.words != null;
+    }
+
+    boolean contains(int id) {
+        if (this.words != null) {
+            int w = id >>> 6;
+            return w < this.words.length && (this.words[w] & (1L << id)) != 0;
+        }
+        return Arrays.binarySearch(this.array, 0, this.size, id) >= 0;
+    }
+
+    /**
+     * @return true if id was not in this set
+     */
+    boolean add(int id) {
+        if (this.words != null) {
+            int w = id >>> 6;
+            if (w >= this.words.length) {
+                this.words = Arrays.copyOf(this.words, Math.max(w + 1, this.words.length * 2));
+            }
+            if ((this.words[w] & (1L << id)) != 0) {
+                return false;
+            }
+            this.words[w] |= 1L << id;
+            this.size++;
+            return true;
+        }
+        // ids are mostly added in ascending order
+        int i = this.size == 0 || this.array[this.size - 1] < id ?
+                -this.size - 1 : Arrays.binarySearch(this.array, 0, this.size, id);
+        if (i >= 0) {
+            return false;
+        }
+        i = -i - 1;
+        if (this.size == this.array.length) {
+            this.array = Arrays.copyOf(this.array, Math.max(4, this.size + (this.size >> 1)));
+        }
+        System.arraycopy(this.array, i, this.array, i + 1, this.size - i);
+        this.array[i] = id;
+        this.size++;
+        if (isDense(this.size, this.array[this.size - 1])) {
+            toBitmap();
+        }
+        return true;
+    }
+
+    /**
+     * @return true if id was in this set
+     */
+    boolean remove(int id) {
+        if (this.words != null) {
+            int w = id >>> 6;
+            if (w >= this.words.length || (this.words[w] & (1L << id)) == 0) {
+                return false;
+            }
+            this.words[w] &= ~(1L << id);
+            this.size--;
+            return true;
+        }
+        int i = Arrays.binarySearch(this.array, 0, this.size, id);
+        if (i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    private void removeAt(int i) {
+        System.arraycopy(this.array, i + 1, this.array, i, this.size - i - 1);
+        this.size--;
+    }
+
+    /**
+     * @return true if an array of size ints up to maxId takes more memory than a bitmap up to maxId
+     */
+    private static boolean isDense(int size, int maxId) {
+        return (long) size * 32 > (long) maxId + 64;
+    }
+
+    private void toBitmap() {
+        long[] words = new long[(this.array[this.size - 1] >>> 6) + 1];
+        for (int i = 0; i < this.size; i++) {
+            words[this.array[i] >>> 6] |= 1L << this.array[i];
+        }
+        this.words = words;
+        this.array = null;
+    }
+
+    /**
+     * @return a new set of the ints that are in both a and b
+     */
+    static IdSet and(IdSet a, IdSet b) {
+        IdSet result = new IdSet();
+        if (a.words != null && b.words != null) {
+            long[] words = new long[Math.min(a.words.length, b.words.length)];
+            for (int w = 0; w < words.length; w++) {
+                words[w] = a.words[w] & b.words[w];
+                result.size += Long.bitCount(words[w]);
+            }
+            result.words = words;
+            result.array = null;
+            return result;
+        }
+        if (a.words != null || (b.words == null && a.size > b.size)) {
+            IdSet swap = a;
+            a = b;
+            b = swap;
+        }
+        // a is an array, and is the smaller set if both are arrays
+        int[] array = new int[a.size];
+        int size = 0;
+        if (b.words != null) {
+            for (int i = 0; i < a.size; i++) {
+                if (b.contains(a.array[i])) {
+                    array[size++] = a.array[i];
+                }
+            }
+        }
+        else if (b.size / 8 > a.size) {
+            // the ids of a much smaller array are looked up in the larger one
+            for (int i = 0; i < a.size; i++) {
+                if (Arrays.binarySearch(b.array, 0, b.size, a.array[i]) >= 0) {
+                    array[size++] = a.array[i];
+                }
+            }
+        }
+        else {
+            int j = 0;
+            for (int i = 0; i < a.size && j < b.size; i++) {
+                int id = a.array[i];
+                while (j < b.size && b.array[j] < id) {
+                    j++;
+                }
+                if (j < b.size && b.array[j] == id) {
+                    array[size++] = id;
+                }
+            }
+        }
+        result.array = array;
+        result.size = size;
+        return result;
+    }
+
+    /**
+     * @return a new set of the ints that are in a or in b
+     */
+    static IdSet or(IdSet a, IdSet b) {
+        IdSet result = new IdSet();
+        if (a.words != null || b.words != null) {
+            if (a.words == null) {
+                IdSet swap = a;
+                a = b;
+                b = swap;
+            }
+            // a is a bitmap
+            long[] words = Arrays.copyOf(a.words, b.words == null ?
+                    Math.max(a.words.length, b.size == 0 ? 0 : (b.array[b.size - 1] >>> 6) + 1) :
+                    Math.max(a.words.length, b.words.length));
+            if (b.words != null) {
+                for (int w = 0; w < b.words.length; w++) {
+                    words[w] |= b.words[w];
+                }
+            }
+            else {
+                for (int i = 0; i < b.size; i++) {
+                    words[b.array[i] >>> 6] |= 1L << b.array[i];
+                }
+            }
+            for (long word : words) {
+                result.size += Long.bitCount(word);
+            }
+            result.words = words;
+            result.array = null;
+            return result;
+        }
+        int[] array = new int[a.size + b.size];
+        int size = 0;
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j == b.size || (i < a.size && a.array[i] < b.array[j])) {
+                array[size++] = a.array[i++];
+            }
+            else if (i == a.size || b.array[j] < a.array[i]) {
+                array[size++] = b.array[j++];
+            }
+            else {
+                array[size++] = a.array[i++];
+                j++;
+            }
+        }
+        result.array = array;
+        result.size = size;
+        if (size > 0 && isDense(size, array[size - 1])) {
+            result.toBitmap();
+        }
+        return result;
+    }
+
+    /**
+     * @return an iterator over the ints of this set in ascending order. Its remove method
+     * removes the last int from this set.
+     */
+    PrimitiveIterator.OfInt iterator() {
+        return this.words != null ? new BitmapIterator() : new ArrayIterator();
+    }
+
+    IntStream stream() {
+        return StreamSupport.intStream(Spliterators.spliterator(iterator(), this.size,
+                Spliterator.ORDERED | Spliterator.SORTED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    private final class ArrayIterator implements PrimitiveIterator.OfInt {
+
+        private int next;
+
+        private boolean canRemove;
+
+        public boolean hasNext() {
+            return this.next < IdSet.this.size;
+        }
+
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.canRemove = true;
+            return IdSet.this.array[this.next++];
+        }
+
+        public void remove() {
+            if (!this.canRemove) {
+                throw new IllegalStateException();
+            }
+            this.canRemove = false;
+            removeAt(--this.next);
+        }
+    }
+
+    private final class BitmapIterator implements PrimitiveIterator.OfInt {
+
+        // index of the word of the next int, and the bits of that word that are not returned yet
+        private int w = -1;
+        private long bits;
+
+        private int last = -1;
+
+        private BitmapIterator() {
+            advance();
+        }
+
+        private void advance() {
+            while (this.bits == 0 && ++this.w < IdSet.this.words.length) {
+                this.bits = IdSet.this.words[this.w];
+            }
+        }
+
+        public boolean hasNext() {
+            return this.bits != 0;
+        }
+
+        public int nextInt() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            this.last = (this.w << 6) + Long.numberOfTrailingZeros(this.bits);
+            this.bits &= this.bits - 1;
+            advance();
+            return this.last;
+        }
+
+        public void remove() {
+            if (this.last < 0) {
+                throw new IllegalStateException();
+            }
+            IdSet.this.remove(this.last);
+            this.last = -1;
+        }
+    }
+}
@@ -1,14 +1,21 @@
 package com.github.vbro.cocoyam;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
+import java.io.OutputStream;
 import java.io.Serializable;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
 /**
  * Created by vbro on 03 October 2016.
@@ -16,6 +23,9 @@ import java.util.Set;
 public class IndexedSerializableSet<ElementType extends Serializable> extends IndexedSet<ElementType>
         implements Serializable {
 
+    // how this set is written by writeObject. A set that is read back has the options it was written with
+    private transient SerializationOptions serializationOptions = SerializationOptions.writeIndex();
+
     /**
      * Zero-argument constructor to meet requirements of Serializable classes
      */
@@ -38,6 +48,23 @@ public class IndexedSerializableSet<ElementType extends Serializable> extends In
         checkReturnValueSerializable();
     }
 
+    public IndexedSerializableSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods) {
+        super(elementClass, methods, sortedMethods);
+        checkReturnValueSerializable();
+    }
+
+    public IndexedSerializableSet(Class elementClass, String[] methodNames, String[] sortedMethodNames) {
+        super(elementClass, methodNames, sortedMethodNames);
+        checkReturnValueSerializable();
+    }
+
+    public IndexedSerializableSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods,
+                                  Collection<List<Method>> compositeMethods,
+                                  Collection<List<Method>> sortedCompositeMethods) {
+        super(elementClass, methods, sortedMethods, compositeMethods, sortedCompositeMethods);
+        checkReturnValueSerializable();
+    }
+
     /**
      * Custom method to deserialize an IndexedSerializableSet
      * @param ois
@@ -48,11 +75,32 @@ public class IndexedSerializableSet<ElementType extends Serializable> extends In
         ois.defaultReadObject();
         this.elementClass = (Class) ois.readObject();
         this.inventory = (Set) ois.readObject();
-        this.index = (Map) ois.readObject();
+        Object index = ois.readObject();
+        if (!(index instanceof IndexDefinition)) {
+            this.index = (Map) index;
+            this.serializationOptions = SerializationOptions.writeIndex();
+            initIndexedMethods(this.index.keySet());
+            return;
+        }
 
-        this.indexedMethods = new HashMap();
-        for (Method method : getMethods(this.elementClass, this.index.keySet())) {
-            this.indexedMethods.put(method.getName(), method);
+        // the index was not written, and is rebuilt from the inventory
+        IndexDefinition definition = (IndexDefinition) index;
+        this.index = new HashMap<>();
+        for (String indexName : definition.indexNames) {
+            this.index.put(indexName, newValuesMap(false, 0));
+        }
+        for (String indexName : definition.sortedIndexNames) {
+            this.index.put(indexName, newValuesMap(true, 0));
+        }
+        this.serializationOptions = SerializationOptions.rebuildIndex()
+                .withParallelism(definition.parallelism)
+                .withLazyIndexes(definition.isLazy);
+        initIndexedMethods(this.index.keySet());
+        if (definition.isLazy) {
+            deferIndexing();
+        }
+        else {
+            reIndex(definition.parallelism);
         }
     }
 
@@ -65,7 +113,121 @@ public class IndexedSerializableSet<ElementType extends Serializable> extends In
         oos.defaultWriteObject();
         oos.writeObject(this.elementClass);
         oos.writeObject(this.inventory);
-        oos.writeObject(this.index);
+        if (this.serializationOptions.shouldWriteIndex()) {
+            completeIndex();
+            oos.writeObject(this.index);
+        }
+        else {
+            oos.writeObject(new IndexDefinition(this.index.keySet().stream().filter(name -> !isSorted(name)),
+                    this.index.keySet().stream().filter(this::isSorted), this.serializationOptions));
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#addIndex(String, boolean)}
+     * @throws IllegalArgumentException if the return type of a method is not Serializable
+     */
+    public void addIndex(String indexName, boolean isSorted) {
+        checkReturnValueSerializable(getIndexMethods(this.elementClass, indexName));
+        super.addIndex(indexName, isSorted);
+    }
+
+    /**
+     * The indexes of a set that is read back are recreated from the names of their methods,
+     * so only methods can be indexed.
+     * @throws UnsupportedOperationException always
+     */
+    public void addIndex(String indexName, Function<? super ElementType, ?> keyFunction) {
+        throw new UnsupportedOperationException("IndexedSerializableSet does not index functions");
+    }
+
+    /**
+     * Sets how this set is serialized. By default, the index is written with the elements. With
+     * {@link SerializationOptions#rebuildIndex()}, only the elements and the names of the indexes
+     * are written, which makes the stream smaller and faster to write, and the index is rebuilt from
+     * the elements when the set is read. The index of a set read back may then differ from the index
+     * of this set, as by {@link #reIndex()}, e.g. if elements changed after they were indexed.
+     */
+    public void setSerializationOptions(SerializationOptions options) {
+        this.serializationOptions = options;
+    }
+
+    /**
+     * @return how this set is serialized, see {@link #setSerializationOptions(SerializationOptions)}
+     */
+    public SerializationOptions getSerializationOptions() {
+        return this.serializationOptions;
+    }
+
+    /**
+     * Writes the elements and the index of this set to file, as it is, so that another process
+     * can look up elements through {@link MappedIndexFile#open(File)} without reading the whole set.
+     * @throws IOException if file cannot be written, or would be larger than 2 GB
+     */
+    public void writeIndexFile(File file) throws IOException {
+        MappedIndexFile.write(this, file);
+    }
+
+    /**
+     * Writes this set to out in a compact, versioned binary format, with its elements written by Java
+     * serialization, see {@link #writeTo(OutputStream, ElementCodec)}
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        BinaryFormat.write(this, out, null);
+    }
+
+    /**
+     * Writes this set to out in a compact, versioned binary format, with its elements written by codec.
+     * Each value of the index is written once, and its bucket as a list of element numbers, so the
+     * format does not depend on the classes of the index. The whole index is written, as it is.
+     * out is flushed, but not closed.
+     */
+    public void writeTo(OutputStream out, ElementCodec<? super ElementType> codec) throws IOException {
+        BinaryFormat.write(this, out, codec);
+    }
+
+    /**
+     * @return the set read from in, as written by {@link #writeTo(OutputStream)}
+     * @throws IOException if in cannot be read, or does not contain a set written by {@link #writeTo(OutputStream)}
+     * @throws ClassNotFoundException if the class of the elements or of a value of the index cannot be found
+     */
+    public static <E extends Serializable> IndexedSerializableSet<E> readFrom(InputStream in)
+            throws IOException, ClassNotFoundException {
+        return BinaryFormat.read(in, null);
+    }
+
+    /**
+     * @return the set read from in, as written by {@link #writeTo(OutputStream, ElementCodec)} with
+     * a codec like codec. in is read up to the end of the set, and should be buffered.
+     * @throws IOException if in cannot be read, or does not contain a set written with an ElementCodec
+     * @throws ClassNotFoundException if the class of the elements or of a value of the index cannot be found
+     */
+    public static <E extends Serializable> IndexedSerializableSet<E> readFrom(InputStream in, ElementCodec<E> codec)
+            throws IOException, ClassNotFoundException {
+        return BinaryFormat.read(in, codec);
+    }
+
+    /**
+     * What is written instead of the index of a set whose index is rebuilt when it is read:
+     * the names of its indexes, and how the index is rebuilt
+     */
+    private static final class IndexDefinition implements Serializable {
+
+        private final String[] indexNames;
+
+        private final String[] sortedIndexNames;
+
+        private final int parallelism;
+
+        private final boolean isLazy;
+
+        private IndexDefinition(Stream<String> indexNames, Stream<String> sortedIndexNames,
+                                SerializationOptions options) {
+            this.indexNames = indexNames.toArray(String[]::new);
+            this.sortedIndexNames = sortedIndexNames.toArray(String[]::new);
+            this.parallelism = options.getParallelism();
+            this.isLazy = options.isLazy();
+        }
     }
 
     /**
@@ -73,7 +235,15 @@ public class IndexedSerializableSet<ElementType extends Serializable> extends In
      * that return types of indexed methods are serializable
      */
     private void checkReturnValueSerializable() {
-        for (Method method : this.indexedMethods.values()) {
+        List<Method> methods = new ArrayList<>(this.indexedMethods.values());
+        for (List<Method> composite : this.compositeMethods.values()) {
+            methods.addAll(composite);
+        }
+        checkReturnValueSerializable(methods);
+    }
+
+    private static void checkReturnValueSerializable(Collection<Method> methods) {
+        for (Method method : methods) {
             Class returnType = method.getReturnType();
             if(!(returnType.isPrimitive() || Serializable.class.isAssignableFrom(returnType))) {
                 throw new IllegalArgumentException(String.format(
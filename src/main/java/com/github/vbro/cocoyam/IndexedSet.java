@@ -1,18 +1,36 @@
 package com.github.vbro.cocoyam;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.lang.reflect.InvocationTargetException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.AbstractSet;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
+import java.util.NavigableMap;
 import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 
@@ -31,7 +49,40 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
     protected Map<String, Map<Object, Set<ElementType>>> index = Collections.emptyMap();
 
     // maps method name to Method
-    protected transient  Map<String, Method> indexedMethods = Collections.emptyMap();
+    // volatile, as addIndex and dropIndex replace the maps of indexes while a ConcurrentIndexedSet is read
+    protected transient volatile Map<String, Method> indexedMethods = Collections.emptyMap();
+
+    // maps name of composite index, e.g. "getTenant+getRegion", to its Methods
+    protected transient volatile Map<String, List<Method>> compositeMethods = Collections.emptyMap();
+
+    // maps index name to the Function that computes an element's value for that index
+    protected transient volatile Map<String, Function<ElementType, Object>> accessors = Collections.emptyMap();
+
+    // maps the name of each deferred index to its accessor, see deferIndexing()
+    private transient Map<String, Function<ElementType, Object>> deferredAccessors = Collections.emptyMap();
+
+    // number of buffered changes of the index at which they are flushed, or 0 if changes are not buffered,
+    // see bufferIndexing(int)
+    private transient int indexBufferSize;
+
+    // elements added to this set that are not in the index yet
+    private transient Set<ElementType> pendingAdds = Collections.emptySet();
+
+    // elements removed from this set that are still in the index
+    private transient List<Object> pendingRemovals = Collections.emptyList();
+
+    // gives ids to the elements in the buckets of the bitmap values maps of the index, or null
+    private transient ElementIds<ElementType> bitmapElementIds;
+
+    // maps index name to the number of lookups in that index, see getIndexUsage()
+    private final transient Map<String, LongAdder> indexUsage = new ConcurrentHashMap<>();
+
+    // separates the method names in the name of a composite index
+    public static final String COMPOSITE_SEPARATOR = "+";
+
+    // order of the values of sorted indexes: natural order, with null before all other values
+    private static final Comparator<Object> SORTED_VALUES_ORDER =
+            (Comparator) Comparator.nullsFirst(Comparator.<Comparable>naturalOrder());
 
     /**
      * This protected zero-argument constructor is for Serialized subclasses
@@ -47,33 +98,131 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
      * elementClass, is not public, is not zero-argument or has void return type
      */
     public IndexedSet(Class elementClass, Collection<Method> methods) {
-        for (Method method : methods) {
-            if (!method.getDeclaringClass().isAssignableFrom(elementClass)) {
-                throw new IllegalArgumentException(String.format(
-                        "Method %s cannot be called from an object of class %s",
-                        method.toString(), elementClass.getName()));
-            }
-            if (method.getParameterCount() > 0 || !Modifier.isPublic(method.getModifiers())) {
-                throw new IllegalArgumentException(String.format(
-                        "Method %s should be a zero-argument method", method.toString()));
-            }
-            if (!Modifier.isPublic(method.getModifiers())) {
-                throw new IllegalArgumentException(String.format(
-                        "Method %s should be a public method", method.toString()));
-            }
+        this(elementClass, methods, Collections.emptySet());
+    }
+
+    /**
+     * Creates an IndexedSet that indexes all methods in methods and in sortedMethods.
+     * The index of a method in sortedMethods keeps its values in ascending order,
+     * which allows range queries such as {@link #getRange(String, Object, Object)}.
+     * @param elementClass Class type of elements in this set
+     * @param methods collection of Methods to index
+     * @param sortedMethods collection of Methods to index in sorted order of their values
+     * @throws IllegalArgumentException if any of the methods cannot be called from
+     * elementClass, is not public, is not zero-argument or has void return type,
+     * or if the return type of a method in sortedMethods is not primitive or Comparable
+     */
+    public IndexedSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods) {
+        this(elementClass, methods, sortedMethods, Collections.emptySet(), Collections.emptySet());
+    }
+
+    /**
+     * Creates an IndexedSet that indexes all methods in methods and in sortedMethods, and that
+     * has a composite index for each list of methods in compositeMethods and sortedCompositeMethods.
+     * The value of an element for a composite index is the {@link CompositeKey} of the values returned
+     * by its methods, so a lookup on all of them is a single lookup, e.g.
+     * {@code get("getTenant+getRegion", CompositeKey.of(tenant, region))}.
+     * The name of a composite index is the names of its methods joined by {@link #COMPOSITE_SEPARATOR}.
+     * Sorted composite indexes also allow lookups by the values of their first methods,
+     * see {@link #getByPrefix(String, Object...)}.
+     * @param elementClass Class type of elements in this set
+     * @param methods collection of Methods to index
+     * @param sortedMethods collection of Methods to index in sorted order of their values
+     * @param compositeMethods collection of lists of at least two Methods to index together
+     * @param sortedCompositeMethods collection of lists of at least two Methods to index together,
+     * in sorted order of their values
+     * @throws IllegalArgumentException if any of the methods cannot be called from
+     * elementClass, is not public, is not zero-argument or has void return type,
+     * if the return type of a method of a sorted index is not primitive or Comparable,
+     * or if a composite index has less than two methods
+     */
+    public IndexedSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods,
+                      Collection<List<Method>> compositeMethods, Collection<List<Method>> sortedCompositeMethods) {
+        checkMethods(elementClass, methods);
+        checkMethods(elementClass, sortedMethods);
+        for (List<Method> composite : compositeMethods) {
+            checkMethods(elementClass, composite);
         }
-        constructIndexedSet(elementClass, methods);
+        for (List<Method> composite : sortedCompositeMethods) {
+            checkMethods(elementClass, composite);
+        }
+        constructIndexedSet(elementClass, methods, sortedMethods, compositeMethods, sortedCompositeMethods);
     }
 
     /**
      * Creates an IndexedSet that indexes all methods in methods
      * @param elementClass Class type of elements in this set
-     * @param methodNames array of method names to index
+     * @param methodNames array of method names to index. The name of a composite index,
+     * e.g. "getTenant+getRegion", creates a composite index of the named methods.
      * @throws IllegalArgumentException if any of the methods cannot be called from
      * elementClass, is not public, is not zero-argument or has void return type
      */
     public IndexedSet(Class elementClass, String[] methodNames) {
-        constructIndexedSet(elementClass, getMethods(elementClass, Arrays.asList(methodNames)));
+        this(elementClass, methodNames, new String[0]);
+    }
+
+    /**
+     * Creates an IndexedSet that indexes all methods in methodNames and in sortedMethodNames.
+     * The index of a method in sortedMethodNames keeps its values in ascending order,
+     * which allows range queries such as {@link #getRange(String, Object, Object)}.
+     * @param elementClass Class type of elements in this set
+     * @param methodNames array of method names to index
+     * @param sortedMethodNames array of method names to index in sorted order of their values
+     * The name of a composite index, e.g. "getTenant+getRegion", in either array creates
+     * a composite index of the named methods.
+     * @throws IllegalArgumentException if any of the methods cannot be called from
+     * elementClass, is not public, is not zero-argument or has void return type,
+     * or if the return type of a method in sortedMethodNames is not primitive or Comparable
+     */
+    public IndexedSet(Class elementClass, String[] methodNames, String[] sortedMethodNames) {
+        List<Method> methods = new ArrayList<>();
+        List<List<Method>> compositeMethods = new ArrayList<>();
+        for (String methodName : methodNames) {
+            List<Method> indexMethods = getIndexMethods(elementClass, methodName);
+            if (indexMethods.size() == 1) {
+                methods.addAll(indexMethods);
+            }
+            else {
+                compositeMethods.add(indexMethods);
+            }
+        }
+        List<Method> sortedMethods = new ArrayList<>();
+        List<List<Method>> sortedCompositeMethods = new ArrayList<>();
+        for (String methodName : sortedMethodNames) {
+            List<Method> indexMethods = getIndexMethods(elementClass, methodName);
+            if (indexMethods.size() == 1) {
+                sortedMethods.addAll(indexMethods);
+            }
+            else {
+                sortedCompositeMethods.add(indexMethods);
+            }
+        }
+        constructIndexedSet(elementClass, methods, sortedMethods, compositeMethods, sortedCompositeMethods);
+    }
+
+    /**
+     * Creates an IndexedSet that indexes elements by the values returned from keyFunctions,
+     * e.g. {@code Person::getCity}. No reflection is used to index elements.
+     * @param elementClass Class type of elements in this set
+     * @param keyFunctions maps index name to the function that computes an element's value
+     * @throws IllegalArgumentException if keyFunctions is empty or contains a null name or function
+     */
+    public IndexedSet(Class elementClass, Map<String, Function<? super ElementType, ?>> keyFunctions) {
+        if (keyFunctions.size() == 0) {
+            throw new IllegalArgumentException("Map of functions to index is empty");
+        }
+        this.index = new HashMap<>();
+        this.inventory = newInventory(0);
+        this.indexedMethods = new HashMap<>();
+        this.accessors = new HashMap<>();
+        for (Map.Entry<String, Function<? super ElementType, ?>> entry : keyFunctions.entrySet()) {
+            if (entry.getKey() == null || entry.getValue() == null) {
+                throw new IllegalArgumentException("Index names and functions should not be null");
+            }
+            this.index.put(entry.getKey(), newValuesMap(false, 0));
+            this.accessors.put(entry.getKey(), (Function) entry.getValue());
+        }
+        this.elementClass = elementClass;
     }
 
     /**
@@ -106,26 +255,245 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
         constructIndexedSet(elementClass, methods);
     }
 
+    /**
+     * Checks that all methods can be indexed for elements of elementClass
+     * @throws IllegalArgumentException if any of the methods cannot be called from
+     * elementClass, is not public or is not zero-argument
+     */
+    private static void checkMethods(Class elementClass, Collection<Method> methods) {
+        for (Method method : methods) {
+            if (!method.getDeclaringClass().isAssignableFrom(elementClass)) {
+                throw new IllegalArgumentException(String.format(
+                        "Method %s cannot be called from an object of class %s",
+                        method.toString(), elementClass.getName()));
+            }
+            if (method.getParameterCount() > 0 || !Modifier.isPublic(method.getModifiers())) {
+                throw new IllegalArgumentException(String.format(
+                        "Method %s should be a zero-argument method", method.toString()));
+            }
+            if (!Modifier.isPublic(method.getModifiers())) {
+                throw new IllegalArgumentException(String.format(
+                        "Method %s should be a public method", method.toString()));
+            }
+        }
+    }
+
     /**
      * Helper method to initialize the fields of this IndexedSet
      */
     private void constructIndexedSet(Class elementClass, Collection<Method> methods) {
+        constructIndexedSet(elementClass, methods, Collections.emptySet(), Collections.emptySet(),
+                Collections.emptySet());
+    }
+
+    /**
+     * Helper method to initialize the fields of this IndexedSet.
+     * Methods that are in both methods and sortedMethods are indexed in sorted order.
+     */
+    private void constructIndexedSet(Class elementClass, Collection<Method> methods, Collection<Method> sortedMethods,
+                                     Collection<List<Method>> compositeMethods,
+                                     Collection<List<Method>> sortedCompositeMethods) {
         // check if elementClass is instance of ElementType
-        if (methods.size() == 0) {
+        if (methods.size() == 0 && sortedMethods.size() == 0 &&
+                compositeMethods.size() == 0 && sortedCompositeMethods.size() == 0) {
             throw new IllegalArgumentException("List of methods to index is empty");
         }
         this.index = new HashMap<>();
-        this.inventory = new HashSet<>();
+        this.inventory = newInventory(0);
         this.indexedMethods = new HashMap<>();
+        this.compositeMethods = new HashMap<>();
         for (Method method : methods) {
-            if (method.getReturnType().equals(Void.TYPE)) {
-                throw new IllegalArgumentException(String.format(
-                        "Method %s should have a non-void return type", method.toString()));
-            }
-            this.index.put(method.getName(), new HashMap<>());
+            checkReturnType(method, false);
+            this.index.put(method.getName(), newValuesMap(false, 0));
             this.indexedMethods.put(method.getName(), method);
         }
+        for (Method method : sortedMethods) {
+            checkReturnType(method, true);
+            this.index.put(method.getName(), newValuesMap(true, 0));
+            this.indexedMethods.put(method.getName(), method);
+        }
+        for (List<Method> composite : compositeMethods) {
+            String name = getCompositeName(composite);
+            for (Method method : composite) {
+                checkReturnType(method, false);
+            }
+            this.index.put(name, newValuesMap(false, 0));
+            this.compositeMethods.put(name, new ArrayList<>(composite));
+        }
+        for (List<Method> composite : sortedCompositeMethods) {
+            String name = getCompositeName(composite);
+            for (Method method : composite) {
+                checkReturnType(method, true);
+            }
+            this.index.put(name, newValuesMap(true, 0));
+            this.compositeMethods.put(name, new ArrayList<>(composite));
+        }
         this.elementClass = elementClass;
+        initAccessors();
+        initPrimitiveValuesMaps();
+    }
+
+    /**
+     * @throws IllegalArgumentException if method has void return type, or if isSorted
+     * and the return type of method is not primitive or Comparable
+     */
+    private static void checkReturnType(Method method, boolean isSorted) {
+        Class returnType = method.getReturnType();
+        if (returnType.equals(Void.TYPE)) {
+            throw new IllegalArgumentException(String.format(
+                    "Method %s should have a non-void return type", method.toString()));
+        }
+        if (isSorted && !(returnType.isPrimitive() || Comparable.class.isAssignableFrom(returnType))) {
+            throw new IllegalArgumentException(String.format(
+                    "Return type (%s) of method (%s) is neither primitive nor a sub class of java.lang.Comparable",
+                    returnType.getName(), method.getName()));
+        }
+    }
+
+    /**
+     * @return the name of the composite index of methods
+     * @throws IllegalArgumentException if there are less than two methods
+     */
+    private static String getCompositeName(List<Method> methods) {
+        if (methods.size() < 2) {
+            throw new IllegalArgumentException(String.format(
+                    "Composite index %s should have at least two methods", methods.toString()));
+        }
+        return methods.stream().map(Method::getName).collect(Collectors.joining(COMPOSITE_SEPARATOR));
+    }
+
+    /**
+     * @return the methods of the index named indexName: a single method,
+     * or the methods of a composite index in their order in indexName
+     * @throws IllegalArgumentException if clazz does not have a public, zero-argument method
+     * for any of the names
+     */
+    protected List<Method> getIndexMethods(Class clazz, String indexName) {
+        List<Method> methods = new ArrayList<>();
+        for (String methodName : indexName.split(Pattern.quote(COMPOSITE_SEPARATOR), -1)) {
+            methods.addAll(getMethods(clazz, Collections.singleton(methodName)));
+        }
+        return methods;
+    }
+
+    /**
+     * (Re)creates the indexed methods, composite methods and accessors of the indexes named
+     * indexNames, e.g. after the index has been deserialized.
+     * @throws IllegalArgumentException if elementClass does not have a public, zero-argument method
+     * for any of the names
+     */
+    protected void initIndexedMethods(Collection<String> indexNames) {
+        this.indexedMethods = new HashMap<>();
+        this.compositeMethods = new HashMap<>();
+        for (String indexName : indexNames) {
+            List<Method> methods = getIndexMethods(this.elementClass, indexName);
+            if (methods.size() == 1) {
+                this.indexedMethods.put(indexName, methods.get(0));
+            }
+            else {
+                this.compositeMethods.put(indexName, methods);
+            }
+        }
+        initAccessors();
+        initPrimitiveValuesMaps();
+        initBitmapValuesMaps();
+    }
+
+    /**
+     * (Re)creates the accessors of the indexed methods. This is done once, when
+     * the set is constructed or deserialized, so that no reflection is needed
+     * when elements are indexed.
+     */
+    protected void initAccessors() {
+        this.accessors = new HashMap<>();
+        this.deferredAccessors = Collections.emptyMap();
+        for (Method method : this.indexedMethods.values()) {
+            this.accessors.put(method.getName(), Accessors.of(method));
+        }
+        for (Map.Entry<String, List<Method>> entry : this.compositeMethods.entrySet()) {
+            this.accessors.put(entry.getKey(), compositeAccessor(entry.getValue()));
+        }
+    }
+
+    /**
+     * @return the accessor of the composite index of methods, which wraps their values in a {@link CompositeKey}
+     */
+    private static <E> Function<E, Object> compositeAccessor(List<Method> methods) {
+        Function<E, Object>[] parts = new Function[methods.size()];
+        for (int i = 0; i < parts.length; i++) {
+            parts[i] = Accessors.of(methods.get(i));
+        }
+        return element -> {
+            Object[] values = new Object[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = parts[i].apply(element);
+            }
+            return CompositeKey.wrap(values);
+        };
+    }
+
+    /**
+     * Replaces the values map of each unsorted index of a method that returns int, long or double
+     * by the values map of {@link #newPrimitiveValuesMap(Method, int)}, which keeps the values of
+     * the method unboxed. The values and buckets of the replaced map are copied.
+     */
+    private void initPrimitiveValuesMaps() {
+        for (Method method : this.indexedMethods.values()) {
+            Map<Object, Set<ElementType>> valuesMap = this.index.get(method.getName());
+            if (valuesMap instanceof PrimitiveValuesMap || valuesMap instanceof BitmapValuesMap ||
+                    valuesMap instanceof SortedMap) {
+                continue;
+            }
+            Map<Object, Set<ElementType>> primitiveMap = newPrimitiveValuesMap(method, valuesMap.size());
+            if (primitiveMap == null) {
+                continue;
+            }
+            for (Map.Entry<Object, Set<ElementType>> entry : valuesMap.entrySet()) {
+                addAllToBucket(primitiveMap, entry.getKey(), entry.getValue());
+            }
+            this.index.put(method.getName(), primitiveMap);
+        }
+    }
+
+    /**
+     * Replaces the values map of each unsorted index that has few values, each of which is returned
+     * by many elements, by the values map of {@link #newBitmapValuesMap()}, which keeps the ids of the
+     * elements of a bucket in a bitmap. A bitmap values map that has come to have many values is
+     * replaced back by a values map of its method. The values and buckets of the replaced map are copied.
+     * This is done when the set is deserialized or reindexed, after a parallel bulk load, and
+     * whenever the number of elements added one by one reaches a power of two.
+     */
+    void initBitmapValuesMaps() {
+        for (Map.Entry<String, Map<Object, Set<ElementType>>> entry : this.index.entrySet()) {
+            Map<Object, Set<ElementType>> valuesMap = entry.getValue();
+            Map<Object, Set<ElementType>> replacement;
+            if (valuesMap instanceof BitmapValuesMap) {
+                if (!BitmapValuesMap.hasManyValues(valuesMap)) {
+                    continue;
+                }
+                Method method = this.indexedMethods.get(entry.getKey());
+                replacement = method == null ? null : newPrimitiveValuesMap(method, valuesMap.size());
+                if (replacement == null) {
+                    replacement = newValuesMap(false, valuesMap.size());
+                }
+            }
+            else if (valuesMap instanceof SortedMap || !BitmapValuesMap.hasFewValues(valuesMap)) {
+                continue;
+            }
+            else {
+                replacement = newBitmapValuesMap();
+                if (replacement == null) {
+                    return;
+                }
+            }
+            for (Map.Entry<Object, Set<ElementType>> valueEntry : valuesMap.entrySet()) {
+                addAllToBucket(replacement, valueEntry.getKey(), valueEntry.getValue());
+            }
+            if (valuesMap instanceof BitmapValuesMap) {
+                ((BitmapValuesMap<ElementType>) valuesMap).releaseAll();
+            }
+            entry.setValue(replacement);
+        }
     }
 
     /**
@@ -179,30 +547,204 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
                     "%s is not an instance of %s", element.toString(), this.elementClass.getName()));
         }
 
-        if (shouldIndex) {
+        // element is added to the inventory before the index, so every element found
+        // through the index is contained in this set
+        boolean added = this.inventory.add(element);
+        if (shouldIndex && this.indexBufferSize > 0) {
+            this.pendingAdds.add(element);
+            flushIndexIfFull();
+        }
+        else if (shouldIndex) {
             addToIndex(element);
+            int size = this.inventory.size();
+            if (size >= BitmapValuesMap.MIN_SIZE && (size & (size - 1)) == 0) {
+                initBitmapValuesMaps();
+            }
         }
-        return this.inventory.add(element);
+        return added;
     }
 
     /**
      * Adds element to the index of this IndexedSet
      */
     private void addToIndex(ElementType element) {
-        for (Method method : this.indexedMethods.values()) {
-            try {
-                Object value = method.invoke(element);
-                Map<Object, Set<ElementType>> valuesMap = this.index.get(method.getName());
-                if (valuesMap.containsKey(value)) {
-                    valuesMap.get(value).add(element);
-                } else {
-                    Set elementSet = new HashSet<>();
-                    elementSet.add(element);
-                    valuesMap.put(value, elementSet);
+        for (Map.Entry<String, Function<ElementType, Object>> entry : this.accessors.entrySet()) {
+            addToValuesMap(this.index.get(entry.getKey()), entry.getValue(), element);
+        }
+    }
+
+    /**
+     * Adds element to the bucket of its value in valuesMap, computed by accessor
+     */
+    private void addToValuesMap(Map<Object, Set<ElementType>> valuesMap, Function<ElementType, Object> accessor,
+                                ElementType element) {
+        try {
+            if (valuesMap instanceof PrimitiveValuesMap) {
+                // the value of element is computed without boxing it
+                ((PrimitiveValuesMap<ElementType>) valuesMap).addElement(element);
+            }
+            else {
+                addToBucket(valuesMap, accessor.apply(element), element);
+            }
+        } catch (Exception e) {
+            // element is not indexed by a method that throws
+        }
+    }
+
+    /**
+     * Defers all indexes of this set, which are cleared: the index of a method is built from the
+     * elements in this set the first time it is used, e.g. by {@link #get(String, Object)}, and is
+     * then kept up to date like any other index. Until then, adding and removing elements costs nothing
+     * for it, and it does not keep elements that were removed from this set only, see
+     * {@link #remove(Object, boolean)}. Operations on the whole index, such as {@link #clone()},
+     * build all deferred indexes first, and {@link #clearIndex()} ends the deferral.
+     * A deferred index is still indexed, see {@link #isIndexed(String)}.
+     *
+     * This is the lazy mode of a set that indexes many methods of which few are used, e.g. all
+     * methods of its element class, see {@link #IndexedSet(Class)}: only the indexes that are used
+     * are built and maintained. See {@link #getIndexUsage()} to find the indexes that are not used,
+     * and {@link #dropIndex(String)} to drop them.
+     */
+    public void deferIndexing() {
+        clearIndex();
+        this.deferredAccessors = this.accessors;
+        this.accessors = new HashMap<>();
+    }
+
+    /**
+     * @return true if the index named indexName is deferred, and has not been built yet,
+     * see {@link #deferIndexing()}
+     */
+    public boolean isDeferred(String indexName) {
+        return this.deferredAccessors.containsKey(indexName);
+    }
+
+    /**
+     * Builds the index named indexName from the elements in this set if it is deferred
+     */
+    private void buildDeferredIndex(String indexName) {
+        if (this.deferredAccessors.isEmpty()) {
+            return;
+        }
+        Function<ElementType, Object> accessor = this.deferredAccessors.remove(indexName);
+        if (accessor == null) {
+            return;
+        }
+        Map<Object, Set<ElementType>> valuesMap = this.index.get(indexName);
+        for (ElementType element : this.inventory) {
+            addToValuesMap(valuesMap, accessor, element);
+        }
+        this.accessors.put(indexName, accessor);
+        initBitmapValuesMaps();
+    }
+
+    /**
+     * Applies the buffered changes of the index, see {@link #bufferIndexing(int)}, and builds
+     * all deferred indexes of this set, see {@link #deferIndexing()}
+     */
+    void completeIndex() {
+        flushIndex();
+        for (String indexName : new ArrayList<>(this.deferredAccessors.keySet())) {
+            buildDeferredIndex(indexName);
+        }
+    }
+
+    /**
+     * Buffers the changes of the index of this set: elements added to or removed from this set are
+     * recorded, and the index is changed when bufferSize changes have been recorded, when the index is
+     * next read, e.g. by {@link #get(String, Object)}, or by {@link #flushIndex()}. Buffered changes are
+     * applied index by index, with the elements added grouped by their value, so each bucket is visited
+     * once per flush instead of once per element. Elements are indexed by their values when the index
+     * is flushed. Elements removed from this set only, see {@link #remove(Object, boolean)}, are not
+     * recorded, and {@link #clearIndex()} discards the buffered changes.
+     *
+     * This is the mode of a set that is written at a high rate and read in between, e.g. by ingestion
+     * in batches: adding an element costs one record instead of a change of every index.
+     * @param bufferSize number of buffered changes at which they are applied, or 0 to change the index
+     * at once again, after the buffered changes are applied
+     * @throws IllegalArgumentException if bufferSize is negative
+     */
+    public void bufferIndexing(int bufferSize) {
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Buffer size should be at least 0, but is %d", bufferSize));
+        }
+        flushIndex();
+        this.indexBufferSize = bufferSize;
+        if (bufferSize > 0) {
+            this.pendingAdds = new LinkedHashSet<>();
+            this.pendingRemovals = new ArrayList<>();
+        }
+    }
+
+    /**
+     * Applies the buffered changes of the index, see {@link #bufferIndexing(int)}: the elements
+     * removed are removed from the index, and then the elements added are added to it.
+     */
+    public void flushIndex() {
+        if (this.pendingAdds.isEmpty() && this.pendingRemovals.isEmpty()) {
+            return;
+        }
+        // the buffers are replaced first, so that a change that throws is not applied again
+        List<Object> removals = this.pendingRemovals;
+        Set<ElementType> adds = this.pendingAdds;
+        this.pendingRemovals = new ArrayList<>();
+        this.pendingAdds = new LinkedHashSet<>();
+        if (!removals.isEmpty()) {
+            removeAllFromIndex(removals, true);
+        }
+        if (!adds.isEmpty()) {
+            addAllToIndex(adds);
+            int size = this.inventory.size();
+            if (size >= BitmapValuesMap.MIN_SIZE &&
+                    Integer.highestOneBit(size) != Integer.highestOneBit(Math.max(size - adds.size(), 1))) {
+                initBitmapValuesMaps();
+            }
+        }
+    }
+
+    private void flushIndexIfFull() {
+        if (this.pendingAdds.size() + this.pendingRemovals.size() >= this.indexBufferSize) {
+            flushIndex();
+        }
+    }
+
+    /**
+     * Adds elements to the index, one index at a time: elements are grouped by their value for the index,
+     * and each group is added to its bucket at once.
+     */
+    private void addAllToIndex(Collection<ElementType> elements) {
+        for (Map.Entry<String, Function<ElementType, Object>> entry : this.accessors.entrySet()) {
+            Map<Object, Set<ElementType>> valuesMap = this.index.get(entry.getKey());
+            if (valuesMap instanceof PrimitiveValuesMap) {
+                // the values are computed without boxing them, and a bucket is a single element
+                for (ElementType element : elements) {
+                    addToValuesMap(valuesMap, entry.getValue(), element);
                 }
-            } catch (IllegalAccessException | InvocationTargetException e) {
                 continue;
             }
+            // HashMap accepts the null value, unlike Collectors.groupingBy
+            Map<Object, List<ElementType>> elementsByValue = new HashMap<>();
+            for (ElementType element : elements) {
+                Object value;
+                try {
+                    value = entry.getValue().apply(element);
+                }
+                catch (Exception e) {
+                    // element is not indexed by a method that throws
+                    continue;
+                }
+                elementsByValue.computeIfAbsent(value, v -> new ArrayList<>()).add(element);
+            }
+            for (Map.Entry<Object, List<ElementType>> valueEntry : elementsByValue.entrySet()) {
+                try {
+                    addAllToBucket(valuesMap, valueEntry.getKey(), valueEntry.getValue());
+                }
+                catch (Exception e) {
+                    // e.g. a value that cannot be compared to the values of a sorted index
+                    continue;
+                }
+            }
         }
     }
 
@@ -211,9 +753,100 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
      * This has no effects on the set of elements in this Set.
      */
     public void clearIndex() {
-        for (String methodName : this.indexedMethods.keySet()) {
-            this.index.put(methodName, new HashMap());
+        // the ids of the elements of the old buckets are not released, so new buckets get new ids
+        this.bitmapElementIds = null;
+        if (this.indexBufferSize > 0) {
+            this.pendingAdds.clear();
+            this.pendingRemovals.clear();
+        }
+        if (!this.deferredAccessors.isEmpty()) {
+            this.accessors.putAll(this.deferredAccessors);
+            this.deferredAccessors = Collections.emptyMap();
+        }
+        for (String methodName : this.accessors.keySet()) {
+            this.index.put(methodName, newValuesMap(this.index.get(methodName), 0));
+        }
+    }
+
+    /**
+     * @return a new, empty values map of the same kind as valuesMap, with room for expectedSize values
+     */
+    private Map<Object, Set<ElementType>> newValuesMap(Map<Object, Set<ElementType>> valuesMap, int expectedSize) {
+        if (valuesMap instanceof PrimitiveValuesMap) {
+            return ((PrimitiveValuesMap<ElementType>) valuesMap).newEmptyMap(expectedSize);
         }
+        if (valuesMap instanceof BitmapValuesMap) {
+            Map<Object, Set<ElementType>> bitmapMap = newBitmapValuesMap();
+            if (bitmapMap != null) {
+                return bitmapMap;
+            }
+        }
+        return newValuesMap(valuesMap instanceof SortedMap, expectedSize);
+    }
+
+    /**
+     * Creates the inventory of this set. Subclasses may override this to use another Set implementation.
+     * @return a new, empty Set with room for expectedSize elements
+     */
+    protected Set<ElementType> newInventory(int expectedSize) {
+        return expectedSize == 0 ? new HashSet<>() : new HashSet<>(expectedSize * 4 / 3 + 1);
+    }
+
+    /**
+     * Creates a values map of the index. Subclasses may override this to use another Map implementation;
+     * the values map of a sorted index should be a NavigableMap.
+     * @return a new, empty map of values to buckets, with room for expectedSize values,
+     * that is sorted in natural order of the values with null first if isSorted
+     */
+    protected Map<Object, Set<ElementType>> newValuesMap(boolean isSorted, int expectedSize) {
+        if (isSorted) {
+            return new TreeMap<>(SORTED_VALUES_ORDER);
+        }
+        return expectedSize == 0 ? new HashMap<>() : new HashMap<>(expectedSize * 4 / 3 + 1);
+    }
+
+    /**
+     * Creates the values map of the unsorted index of method, if method returns int, long or double.
+     * The values map keeps values unboxed, keeps a single element instead of a bucket, and computes
+     * the values of elements without boxing them. Subclasses that override the other methods that
+     * create or change values maps and buckets should return null.
+     * @return a new, empty map of values to buckets, with room for expectedSize values, or null to
+     * use {@link #newValuesMap(boolean, int)} for method
+     */
+    protected Map<Object, Set<ElementType>> newPrimitiveValuesMap(Method method, int expectedSize) {
+        return PrimitiveValuesMap.of(method, expectedSize);
+    }
+
+    /**
+     * Creates the values map of an unsorted index that has few values, each of which is returned by
+     * many elements, e.g. of a method that returns a boolean or an enum. The buckets of the values map
+     * keep the ids of their elements in bitmaps, and the values maps of this method share the ids.
+     * Subclasses that override the other methods that create or change values maps and buckets
+     * should return null.
+     * @return a new, empty map of values to buckets of element ids, or null to keep the values maps
+     * of indexes of few values as they are
+     */
+    protected Map<Object, Set<ElementType>> newBitmapValuesMap() {
+        if (this.bitmapElementIds == null) {
+            this.bitmapElementIds = new ElementIds<>(this.inventory.size());
+        }
+        return new BitmapValuesMap<>(this.bitmapElementIds);
+    }
+
+    /**
+     * @return the ElementIds of the ids in the {@link IdBucket}s of the index that queries
+     * intersect and unite, or null if there are none
+     */
+    ElementIds<ElementType> elementIds() {
+        return this.bitmapElementIds;
+    }
+
+    /**
+     * Creates a bucket of the index. Subclasses may override this to use another Set implementation.
+     * @return a new, empty Set for the elements filed under one value
+     */
+    protected Set<ElementType> newBucket() {
+        return new HashSet<>();
     }
 
     /**
@@ -225,6 +858,108 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
         for (ElementType element : this.inventory) {
             addToIndex(element);
         }
+        initBitmapValuesMaps();
+    }
+
+    /**
+     * Recreates the index with parallelism threads, see {@link #addAll(Collection, BulkOptions)}.
+     * This has no effects on the set of elements in this Set.
+     * @throws IllegalArgumentException if parallelism is less than 1
+     */
+    public void reIndex(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Parallelism should be at least 1, but is %d", parallelism));
+        }
+        if (parallelism == 1) {
+            reIndex();
+            return;
+        }
+        this.clearIndex();
+        indexInParallel(new ArrayList<>(this.inventory), parallelism);
+        initBitmapValuesMaps();
+    }
+
+    /**
+     * Changes element in place by change, and moves it from the buckets of its values before change
+     * to the buckets of its values after it, so that only its own entries in the index are touched.
+     * This is the way for elements to announce a change of the values of their indexed methods, e.g.
+     * {@code set.update(person, p -> p.setCity("Paris"))}. change should not change the equality or
+     * the hash code of element. If change throws, element is indexed by its values as they are.
+     * @param element the instance of the element in this set
+     * @return true if element was changed, or false if this set does not contain element,
+     * which is then not changed
+     */
+    public boolean update(ElementType element, Consumer<? super ElementType> change) {
+        if (!this.inventory.contains(element)) {
+            return false;
+        }
+        flushIndex();
+        removeFromIndex(element);
+        try {
+            change.accept(element);
+        }
+        finally {
+            addToIndex(element);
+        }
+        return true;
+    }
+
+    /**
+     * Re-indexes element after it changed, e.g. when the values of its indexed methods changed
+     * without {@link #update(Object, Consumer)}: element is moved to the buckets of its current values.
+     * The old values of element are not known, so each index where element is no longer in the bucket
+     * of its current value is scanned for its old bucket, which costs in the number of values of that
+     * index; {@link #update(Object, Consumer)} removes element before the change and avoids the scan.
+     * This has no effects if this set does not contain element.
+     * @param element the instance of the element in this set
+     */
+    public void reIndex(ElementType element) {
+        flushIndex();
+        if (this.inventory.contains(element)) {
+            removeFromIndex(element);
+            addToIndex(element);
+        }
+    }
+
+    /**
+     * Re-indexes each of elements that this set contains after they changed, see {@link #reIndex(Object)}.
+     * The values of an index where some of elements changed are scanned once for all of elements.
+     */
+    public void reIndex(Collection<? extends ElementType> elements) {
+        flushIndex();
+        Set<ElementType> contained = new LinkedHashSet<>();
+        for (ElementType element : elements) {
+            if (this.inventory.contains(element)) {
+                contained.add(element);
+            }
+        }
+        removeAllFromIndex(contained, false);
+        for (ElementType element : contained) {
+            addToIndex(element);
+        }
+    }
+
+    /**
+     * Shrinks the inventory, the values maps and the buckets of the index to the
+     * capacity needed for their current contents, e.g. after a large removeAll.
+     * This has no effects on the elements or on the index of this Set.
+     */
+    public void trimToSize() {
+        completeIndex();
+        Set<ElementType> trimmedInventory = newInventory(this.inventory.size());
+        trimmedInventory.addAll(this.inventory);
+        this.inventory = trimmedInventory;
+        this.bitmapElementIds = null;
+        for (Map.Entry<String, Map<Object, Set<ElementType>>> entry : this.index.entrySet()) {
+            Map<Object, Set<ElementType>> valuesMap = newValuesMap(entry.getValue(), entry.getValue().size());
+            for (Map.Entry<Object, Set<ElementType>> valueEntry : entry.getValue().entrySet()) {
+                if (!valueEntry.getValue().isEmpty()) {
+                    addAllToBucket(valuesMap, valueEntry.getKey(), valueEntry.getValue());
+                }
+            }
+            entry.setValue(valuesMap);
+        }
     }
 
     /**
@@ -245,55 +980,331 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
             boolean b = this.add(element, shouldIndex);
             changed = changed || b;
         }
-        return changed;
+        return changed;
+    }
+
+    /**
+     * see {@link Set#addAll(java.util.Collection)}
+     * Elements are added to the set first, and then to the index with options.getParallelism() threads:
+     * the values of each method are computed, and the elements grouped by value, in parallel
+     * partitions of the elements, and the groups are then filed into the buckets of each method,
+     * with the methods in parallel.
+     * If options.shouldIndex() is false, elements added to the set are not added to the index.
+     * @throws NullPointerException if c contains null, in which case no element is added
+     * @throws IllegalArgumentException if c contains an element that is not an instance of the
+     * element class of this set, in which case no element is added
+     */
+    public boolean addAll(Collection<? extends ElementType> c, BulkOptions options) {
+        if (options.getParallelism() == 1) {
+            return addAll(c, options.shouldIndex());
+        }
+        for (ElementType element : c) {
+            if (element == null) {
+                throw new NullPointerException("IndexedSet does not accept null elements.");
+            }
+            if (!this.elementClass.isInstance(element)) {
+                throw new IllegalArgumentException(String.format(
+                        "%s is not an instance of %s", element.toString(), this.elementClass.getName()));
+            }
+        }
+        flushIndex();
+        List<ElementType> added = new ArrayList<>();
+        for (ElementType element : c) {
+            if (this.inventory.add(element)) {
+                added.add(element);
+            }
+        }
+        if (options.shouldIndex() && !added.isEmpty()) {
+            indexInParallel(added, options.getParallelism());
+            initBitmapValuesMaps();
+        }
+        return !added.isEmpty();
+    }
+
+    /**
+     * Adds elements to the index with parallelism threads
+     */
+    private void indexInParallel(List<ElementType> elements, int parallelism) {
+        Map<String, Map<Object, Set<ElementType>>> valuesMaps = runInParallel(parallelism, () ->
+                this.accessors.entrySet().parallelStream().collect(Collectors.toMap(
+                        Map.Entry::getKey,
+                        entry -> indexInParallel(elements, entry.getKey(), entry.getValue()))));
+        this.index.putAll(valuesMaps);
+    }
+
+    /**
+     * Runs task in a new ForkJoinPool of parallelism threads, and waits for its result.
+     * Parallel streams that are run by task are split among the threads of the pool.
+     * A RuntimeException thrown by task is rethrown.
+     */
+    static <T> T runInParallel(int parallelism, Callable<T> task) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            return pool.submit(task).get();
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for a parallel task", e);
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Adds elements to the index of methodName, and returns its values map. An empty values
+     * map is replaced by a new values map with room for all values of elements.
+     */
+    private Map<Object, Set<ElementType>> indexInParallel(List<ElementType> elements, String methodName,
+                                                         Function<ElementType, Object> accessor) {
+        // HashMap accepts the null value, unlike Collectors.groupingBy
+        Map<Object, List<ElementType>> elementsByValue = elements.parallelStream().collect(
+                HashMap::new,
+                (map, element) -> {
+                    Object value;
+                    try {
+                        value = accessor.apply(element);
+                    }
+                    catch (Exception e) {
+                        // element is not indexed by a method that throws
+                        return;
+                    }
+                    map.computeIfAbsent(value, v -> new ArrayList<>()).add(element);
+                },
+                (map, other) -> other.forEach((value, list) ->
+                        map.merge(value, list, (list1, list2) -> {
+                            list1.addAll(list2);
+                            return list1;
+                        })));
+        Map<Object, Set<ElementType>> valuesMap = this.index.get(methodName);
+        if (valuesMap.isEmpty()) {
+            valuesMap = newValuesMap(valuesMap, elementsByValue.size());
+        }
+        for (Map.Entry<Object, List<ElementType>> entry : elementsByValue.entrySet()) {
+            try {
+                addAllToBucket(valuesMap, entry.getKey(), entry.getValue());
+            }
+            catch (Exception e) {
+                // e.g. a value that cannot be compared to the values of a sorted index
+                continue;
+            }
+        }
+        return valuesMap;
+    }
+
+    /**
+     * see {@link Set#clear()}
+     * This also clears the index.
+     */
+    public void clear() {
+        this.clear(true);
+    }
+
+    /**
+     * see {@link Set#clear()}
+     * If shouldClearIndex, this also clears the index.
+     */
+    public void clear(boolean shouldClearIndex) {
+        if (shouldClearIndex) {
+            clearIndex();
+        }
+        this.inventory = newInventory(0);
+    }
+
+    /**
+     * see {@link Set#remove(java.lang.Object)}
+     * Element removed will also be removed from the index.
+     */
+    public boolean remove(Object o) {
+        return remove(o, true);
+    }
+
+    /**
+     * see {@link Set#remove(java.lang.Object)}
+     * If shouldRemoveFromIndex, element removed will also
+     * be removed from the index.
+     */
+    public boolean remove(Object o, boolean shouldRemoveFromIndex) {
+        if (shouldRemoveFromIndex) {
+            if (this.indexBufferSize > 0) {
+                bufferRemoval(o);
+            }
+            else {
+                removeFromIndex(o);
+            }
+        }
+        return this.inventory.remove(o);
+    }
+
+    /**
+     * Buffers the removal of o from the index, before o is removed from this set. An element whose
+     * addition is buffered is not in the index, and an object that is not in this set is removed at once.
+     */
+    private void bufferRemoval(Object o) {
+        if (this.pendingAdds.remove(o)) {
+            return;
+        }
+        if (this.inventory.contains(o)) {
+            this.pendingRemovals.add(o);
+            flushIndexIfFull();
+        }
+        else {
+            removeFromIndex(o);
+        }
+    }
+
+    /**
+     * Removes Object o from the index.
+     * The value o was filed under is recomputed through the accessor of each index,
+     * so only the affected buckets are touched. The values of an index are only
+     * scanned if o is in this set but not in the bucket of its current value,
+     * e.g. because o changed after it was indexed.
+     * Buckets that become empty are removed from the index.
+     */
+    private void removeFromIndex(Object o) {
+        boolean isContained = this.inventory.contains(o);
+        for (Map.Entry<String, Function<ElementType, Object>> entry : this.accessors.entrySet()) {
+            Map<Object, Set<ElementType>> valuesMap = this.index.get(entry.getKey());
+            boolean isRemoved;
+            try {
+                if (valuesMap instanceof PrimitiveValuesMap) {
+                    isRemoved = ((PrimitiveValuesMap<ElementType>) valuesMap).removeElement(o);
+                }
+                else {
+                    isRemoved = removeFromBucket(valuesMap, entry.getValue().apply((ElementType) o), o);
+                }
+            }
+            catch (Exception e) {
+                // o is not an element or its value cannot be computed
+                isRemoved = false;
+            }
+            if (!isRemoved && isContained) {
+                removeFromAllBuckets(valuesMap, Collections.singleton(o));
+            }
+        }
     }
 
     /**
-     * see {@link Set#clear()}
-     * This also clears the index.
+     * Removes all objects in c from the index.
+     * Objects are grouped by the value they are filed under, so each bucket is visited
+     * once, and the values of an index are scanned at most once for all objects in c
+     * that could not be found in the bucket of their current value, and that are in this
+     * set or, if wereContained, were in this set when they were removed.
+     * Buckets that become empty are removed from the index.
      */
-    public void clear() {
-        this.clear(true);
+    private void removeAllFromIndex(Collection<?> c, boolean wereContained) {
+        for (Map.Entry<String, Function<ElementType, Object>> entry : this.accessors.entrySet()) {
+            Map<Object, Set<ElementType>> valuesMap = this.index.get(entry.getKey());
+            Map<Object, List<Object>> objectsByValue = new HashMap<>();
+            Set<Object> notFound = new HashSet<>();
+            for (Object o : c) {
+                try {
+                    Object value = entry.getValue().apply((ElementType) o);
+                    objectsByValue.computeIfAbsent(value, v -> new ArrayList<>()).add(o);
+                }
+                catch (Exception e) {
+                    // o is not an element or its value cannot be computed
+                    if (wereContained || this.inventory.contains(o)) {
+                        notFound.add(o);
+                    }
+                }
+            }
+            for (Map.Entry<Object, List<Object>> valueEntry : objectsByValue.entrySet()) {
+                for (Object o : valueEntry.getValue()) {
+                    if (!removeFromBucket(valuesMap, valueEntry.getKey(), o) &&
+                            (wereContained || this.inventory.contains(o))) {
+                        notFound.add(o);
+                    }
+                }
+            }
+            if (!notFound.isEmpty()) {
+                removeFromAllBuckets(valuesMap, notFound);
+            }
+        }
     }
 
     /**
-     * see {@link Set#clear()}
-     * If shouldClearIndex, this also clears the index.
+     * Adds element to the bucket of value in valuesMap, and creates the bucket if there is none.
      */
-    public void clear(boolean shouldClearIndex) {
-        if (shouldClearIndex) {
-            clearIndex();
+    protected void addToBucket(Map<Object, Set<ElementType>> valuesMap, Object value, ElementType element) {
+        if (valuesMap instanceof PrimitiveValuesMap) {
+            ((PrimitiveValuesMap<ElementType>) valuesMap).addToBucket(value, element);
+            return;
         }
-        this.inventory = new HashSet();
+        Set<ElementType> elementSet = valuesMap.get(value);
+        if (elementSet == null) {
+            elementSet = valuesMap instanceof BitmapValuesMap ?
+                    ((BitmapValuesMap<ElementType>) valuesMap).newBucket() : newBucket();
+            valuesMap.put(value, elementSet);
+        }
+        elementSet.add(element);
     }
 
     /**
-     * see {@link Set#remove(java.lang.Object)}
-     * Element removed will also be removed from the index.
+     * Adds elements to the bucket of value in valuesMap, and creates the bucket if there is none.
      */
-    public boolean remove(Object o) {
-        return remove(o, true);
+    protected void addAllToBucket(Map<Object, Set<ElementType>> valuesMap, Object value,
+                                  Collection<ElementType> elements) {
+        if (valuesMap instanceof PrimitiveValuesMap) {
+            ((PrimitiveValuesMap<ElementType>) valuesMap).addAllToBucket(value, elements);
+            return;
+        }
+        if (valuesMap instanceof BitmapValuesMap) {
+            // the parallel bulk load fills the values maps of several indexes at the same time,
+            // so the holds on the shared ids are taken under their lock
+            BitmapValuesMap<ElementType> bitmapMap = (BitmapValuesMap<ElementType>) valuesMap;
+            synchronized (bitmapMap.elementIds()) {
+                bitmapMap.computeIfAbsent(value, v -> bitmapMap.newBucket()).addAll(elements);
+            }
+            return;
+        }
+        Set<ElementType> elementSet = valuesMap.get(value);
+        if (elementSet == null) {
+            elementSet = newBucket();
+            valuesMap.put(value, elementSet);
+        }
+        elementSet.addAll(elements);
     }
 
     /**
-     * see {@link Set#remove(java.lang.Object)}
-     * If shouldRemoveFromIndex, element removed will also
-     * be removed from the index.
+     * Removes o from the bucket of value in valuesMap, and removes the bucket if it becomes empty.
+     * @return true if o was found in the bucket
      */
-    public boolean remove(Object o, boolean shouldRemoveFromIndex) {
-        if (shouldRemoveFromIndex) {
-            removeFromIndex(o);
+    protected boolean removeFromBucket(Map<Object, Set<ElementType>> valuesMap, Object value, Object o) {
+        if (valuesMap instanceof PrimitiveValuesMap) {
+            return ((PrimitiveValuesMap<ElementType>) valuesMap).removeFromBucket(value, o);
         }
-        return this.inventory.remove(o);
+        Set<ElementType> elementSet = valuesMap.get(value);
+        if (elementSet == null) {
+            return false;
+        }
+        boolean isRemoved = elementSet.remove(o);
+        if (elementSet.isEmpty()) {
+            valuesMap.remove(value);
+        }
+        return isRemoved;
     }
 
     /**
-     * Removes Object o from the index.
+     * Removes all objects in c from every bucket of valuesMap, and removes buckets that become empty.
      */
-    private void removeFromIndex(Object o) {
-        for (Map<Object, Set<ElementType>> valuesMap : this.index.values()) {
-            for (Set<ElementType> elementSet : valuesMap.values()) {
-                elementSet.remove(o);
+    protected void removeFromAllBuckets(Map<Object, Set<ElementType>> valuesMap, Collection<?> c) {
+        if (valuesMap instanceof PrimitiveValuesMap) {
+            ((PrimitiveValuesMap<ElementType>) valuesMap).removeFromAllBuckets(c);
+            return;
+        }
+        Iterator<Set<ElementType>> iterator = valuesMap.values().iterator();
+        while (iterator.hasNext()) {
+            Set<ElementType> elementSet = iterator.next();
+            elementSet.removeAll(c);
+            if (elementSet.isEmpty()) {
+                iterator.remove();
             }
         }
     }
@@ -312,15 +1323,13 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
      * be removed from the index.
      */
     public boolean retainAll(Collection<?> c, boolean shouldRemoveFromIndex) {
-        boolean changed = false;
-        Set<ElementType> copy = new HashSet<>(this.inventory);
-        for (ElementType element : copy) {
+        List<ElementType> removed = new ArrayList<>();
+        for (ElementType element : this.inventory) {
             if (!c.contains(element)) {
-                boolean b = this.remove(element, shouldRemoveFromIndex);
-                changed = changed || b;
+                removed.add(element);
             }
         }
-        return changed;
+        return this.removeAll(removed, shouldRemoveFromIndex);
     }
 
     /**
@@ -338,9 +1347,20 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
      * be removed from the index.
      */
     public boolean removeAll(Collection<?> c, boolean shouldRemoveFromIndex) {
+        if (c.isEmpty()) {
+            return false;
+        }
+        if (shouldRemoveFromIndex && this.indexBufferSize > 0) {
+            for (Object o : c) {
+                bufferRemoval(o);
+            }
+        }
+        else if (shouldRemoveFromIndex) {
+            removeAllFromIndex(c, false);
+        }
         boolean changed = false;
-        for (Object element : c) {
-            boolean b = this.remove(element, shouldRemoveFromIndex);
+        for (Object o : c) {
+            boolean b = this.inventory.remove(o);
             changed = changed || b;
         }
         return changed;
@@ -353,6 +1373,8 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
     public boolean equalsComparingIndexes(Object o) {
         if (o instanceof IndexedSet) {
             IndexedSet otherSet = (IndexedSet)o;
+            completeIndex();
+            otherSet.completeIndex();
             return (this.equals(otherSet) &&
                     this.indexedMethods.equals(otherSet.indexedMethods) &&
                     this.index.equals(otherSet.index));
@@ -432,16 +1454,405 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
      */
     public Set<ElementType> get(String methodName, Object value) {
         Set<ElementType> s = new HashSet();
-        if (this.index.keySet().contains(methodName)) {
-            Map<Object, Set<ElementType>> methodValues = this.index.get(methodName);
-            if (methodValues.containsKey(value)) {
-                s.addAll(methodValues.get(value));
-            }
-            return s;
+        Set<ElementType> elementSet = getBucket(getValuesMap(methodName), value);
+        if (elementSet != null) {
+            s.addAll(elementSet);
+        }
+        return s;
+    }
+
+    /**
+     * Unlike {@link #get(Method, Object)}, no elements are copied.
+     * @return an unmodifiable, live view of the elements in this set that return
+     * the given value when method is invoked, based on the current state of the index.
+     * @throws IllegalArgumentException if method is not in the index
+     */
+    public Set<ElementType> getView(Method method, Object value) {
+        if (this.indexedMethods.values().contains(method)) {
+            return getView(method.getName(), value);
         }
         else {
+            throw new IllegalArgumentException(String.format("Method \"%s\" is not indexed", method.toString()));
+        }
+    }
+
+    /**
+     * Unlike {@link #get(String, Object)}, no elements are copied.
+     * The view follows later changes to the index, and should not be used while
+     * another thread modifies this set.
+     * @return an unmodifiable, live view of the elements in this set that return
+     * the given value when method methodName is invoked, based on the current state of the index.
+     * @throws IllegalArgumentException if method methodName is not in the index
+     */
+    public Set<ElementType> getView(String methodName, Object value) {
+        getValuesMap(methodName);
+        return new BucketView(methodName, value);
+    }
+
+    /**
+     * @return the number of elements in this set that return the given value when
+     * method methodName is invoked, based on the current state of the index.
+     * @throws IllegalArgumentException if method methodName is not in the index
+     */
+    public int count(String methodName, Object value) {
+        Set<ElementType> elementSet = getBucket(getValuesMap(methodName), value);
+        return elementSet == null ? 0 : elementSet.size();
+    }
+
+    /**
+     * @return true if any element in this set returns the given value when
+     * method methodName is invoked, based on the current state of the index.
+     * @throws IllegalArgumentException if method methodName is not in the index
+     */
+    public boolean containsAny(String methodName, Object value) {
+        Set<ElementType> elementSet = getBucket(getValuesMap(methodName), value);
+        return elementSet != null && !elementSet.isEmpty();
+    }
+
+    /**
+     * @return the elements of the index of method methodName filed under value, or
+     * an empty set. The returned set is not a copy, and should not be modified.
+     * @throws IllegalArgumentException if method methodName is not in the index
+     */
+    Set<ElementType> bucket(String methodName, Object value) {
+        Set<ElementType> elementSet = getBucket(getValuesMap(methodName), value);
+        return elementSet == null ? Collections.emptySet() : elementSet;
+    }
+
+    /**
+     * @return the bucket of value in valuesMap, or null if there is none.
+     * A value that cannot be compared to the values of a sorted index has no bucket.
+     */
+    protected Set<ElementType> getBucket(Map<Object, Set<ElementType>> valuesMap, Object value) {
+        try {
+            return valuesMap.get(value);
+        }
+        catch (ClassCastException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return the map of values to elements of the index of method methodName
+     * @throws IllegalArgumentException if method methodName is not in the index
+     */
+    private Map<Object, Set<ElementType>> getValuesMap(String methodName) {
+        countLookup(methodName);
+        flushIndex();
+        buildDeferredIndex(methodName);
+        Map<Object, Set<ElementType>> valuesMap = this.index.get(methodName);
+        if (valuesMap == null) {
             throw new IllegalArgumentException(String.format("Method \"%s\" is not indexed", methodName));
         }
+        return valuesMap;
+    }
+
+    /**
+     * Counts a lookup in the index named indexName, see {@link #getIndexUsage()}
+     */
+    private void countLookup(String indexName) {
+        LongAdder lookups = this.indexUsage.get(indexName);
+        if (lookups == null) {
+            if (!this.index.containsKey(indexName)) {
+                return;
+            }
+            lookups = this.indexUsage.computeIfAbsent(indexName, name -> new LongAdder());
+        }
+        lookups.increment();
+    }
+
+    /**
+     * Reports how much each index of this set is used, e.g. to find indexes that can be dropped
+     * with {@link #dropIndex(String)}. A lookup is counted each time an index is read, e.g. by
+     * {@link #get(String, Object)}, {@link #count(String, Object)} or {@link #getRange(String, Object, Object)},
+     * by a view of {@link #getView(String, Object)}, or by a {@link Query} for each of its conditions
+     * on the index, which may read the index once per candidate element.
+     * Lookups are counted from the creation of this set, or of its clone.
+     * @return a new map of the name of each index of this set to its number of lookups
+     */
+    public Map<String, Long> getIndexUsage() {
+        Map<String, Long> usage = new HashMap<>();
+        for (String indexName : this.index.keySet()) {
+            LongAdder lookups = this.indexUsage.get(indexName);
+            usage.put(indexName, lookups == null ? 0 : lookups.sum());
+        }
+        return usage;
+    }
+
+    /**
+     * Adds an unsorted index of method to this set, see {@link #addIndex(String, boolean)}
+     * @throws IllegalArgumentException if method cannot be called from the element class, is not public,
+     * is not zero-argument or has void return type, or if this set already has an index of its name
+     */
+    public void addIndex(Method method) {
+        checkMethods(this.elementClass, Collections.singleton(method));
+        addIndex(method.getName(), false);
+    }
+
+    /**
+     * Adds an unsorted index named indexName to this set, see {@link #addIndex(String, boolean)}
+     */
+    public void addIndex(String indexName) {
+        addIndex(indexName, false);
+    }
+
+    /**
+     * Adds an index of the method named indexName, or a composite index of the methods named in indexName,
+     * e.g. "getTenant+getRegion", to this set, as if this set had been created with it. The values map of
+     * the index is built from the elements in this set before the index is published, so lookups in the
+     * other indexes are not affected meanwhile, and the other indexes are not rebuilt. Elements that were
+     * removed from this set only, see {@link #remove(Object, boolean)}, are not in the new index.
+     * While indexes are deferred, see {@link #deferIndexing()}, the new index is deferred too.
+     * @param indexName name of a method, or of a composite index
+     * @param isSorted if isSorted, the index keeps its values in ascending order, see {@link #isSorted(String)}
+     * @throws IllegalArgumentException if the element class does not have a public, zero-argument method
+     * for any of the names, if a method has void return type, if isSorted and the return type of a method
+     * is not primitive or Comparable, or if this set already has an index named indexName
+     */
+    public void addIndex(String indexName, boolean isSorted) {
+        checkNotIndexed(indexName);
+        flushIndex();
+        List<Method> methods = getIndexMethods(this.elementClass, indexName);
+        for (Method method : methods) {
+            checkReturnType(method, isSorted);
+        }
+        Map<Object, Set<ElementType>> valuesMap = null;
+        if (methods.size() == 1 && !isSorted) {
+            valuesMap = newPrimitiveValuesMap(methods.get(0), this.inventory.size());
+        }
+        if (valuesMap == null) {
+            valuesMap = newValuesMap(isSorted, this.inventory.size());
+        }
+        if (methods.size() == 1) {
+            this.indexedMethods = with(this.indexedMethods, indexName, methods.get(0));
+            putIndex(indexName, valuesMap, Accessors.of(methods.get(0)));
+        }
+        else {
+            this.compositeMethods = with(this.compositeMethods, indexName, methods);
+            putIndex(indexName, valuesMap, compositeAccessor(methods));
+        }
+    }
+
+    /**
+     * Adds an unsorted index named indexName of the values returned from keyFunction to this set,
+     * as if this set had been created with it, see {@link #IndexedSet(Class, Map)} and
+     * {@link #addIndex(String, boolean)}.
+     * @throws IllegalArgumentException if keyFunction is null, or if this set already has an index named indexName
+     */
+    public void addIndex(String indexName, Function<? super ElementType, ?> keyFunction) {
+        if (indexName == null || keyFunction == null) {
+            throw new IllegalArgumentException("Index names and functions should not be null");
+        }
+        checkNotIndexed(indexName);
+        flushIndex();
+        putIndex(indexName, newValuesMap(false, this.inventory.size()), (Function) keyFunction);
+    }
+
+    /**
+     * @throws IllegalArgumentException if this set has an index named indexName
+     */
+    private void checkNotIndexed(String indexName) {
+        if (this.index.containsKey(indexName)) {
+            throw new IllegalArgumentException(String.format("Method \"%s\" is already indexed", indexName));
+        }
+    }
+
+    /**
+     * Fills valuesMap with the elements in this set, and publishes it as the index named indexName,
+     * or publishes it empty as a deferred index while indexes are deferred
+     */
+    private void putIndex(String indexName, Map<Object, Set<ElementType>> valuesMap,
+                          Function<ElementType, Object> accessor) {
+        if (!this.deferredAccessors.isEmpty()) {
+            this.index.put(indexName, valuesMap);
+            this.deferredAccessors = with(this.deferredAccessors, indexName, accessor);
+            return;
+        }
+        for (ElementType element : this.inventory) {
+            addToValuesMap(valuesMap, accessor, element);
+        }
+        // the accessor is published before the index, so readers that find the index find its accessor
+        this.accessors = with(this.accessors, indexName, accessor);
+        this.index.put(indexName, valuesMap);
+        initBitmapValuesMaps();
+    }
+
+    /**
+     * Drops the index of method, see {@link #dropIndex(String)}
+     * @throws IllegalArgumentException if method is not indexed by this set
+     */
+    public void dropIndex(Method method) {
+        dropIndex(method.getName());
+    }
+
+    /**
+     * Drops the index named indexName: its values map is discarded, and elements added to or removed
+     * from this set are no longer indexed by it. Lookups in the index throw IllegalArgumentException,
+     * like lookups in an index that this set never had.
+     * This has no effects on the set of elements in this Set.
+     * @throws IllegalArgumentException if indexName is not indexed by this set
+     */
+    public void dropIndex(String indexName) {
+        Map<Object, Set<ElementType>> valuesMap = this.index.get(indexName);
+        if (valuesMap == null) {
+            throw new IllegalArgumentException(String.format("Method \"%s\" is not indexed", indexName));
+        }
+        // the index is removed before its accessor, so readers that find the index find its accessor,
+        // and the maps of methods and accessors are replaced, not changed, as clones and snapshots may share them
+        this.index.remove(indexName);
+        this.accessors = without(this.accessors, indexName);
+        this.deferredAccessors = without(this.deferredAccessors, indexName);
+        this.indexedMethods = without(this.indexedMethods, indexName);
+        this.compositeMethods = without(this.compositeMethods, indexName);
+        this.indexUsage.remove(indexName);
+        if (valuesMap instanceof BitmapValuesMap) {
+            ((BitmapValuesMap<ElementType>) valuesMap).releaseAll();
+        }
+    }
+
+    /**
+     * @return a new HashMap of the entries of map, and of key mapped to value
+     */
+    private static <V> Map<String, V> with(Map<String, V> map, String key, V value) {
+        Map<String, V> copy = new HashMap<>(map);
+        copy.put(key, value);
+        return copy;
+    }
+
+    /**
+     * @return map if it does not contain key, or else a new HashMap of the other entries of map
+     */
+    private static <V> Map<String, V> without(Map<String, V> map, String key) {
+        if (!map.containsKey(key)) {
+            return map;
+        }
+        Map<String, V> copy = new HashMap<>(map);
+        copy.remove(key);
+        return copy;
+    }
+
+    /**
+     * @return a Set of elements in this set that match query, based on the current state of the index.
+     * @throws IllegalArgumentException if query has a condition on a method that is not in the index
+     */
+    public Set<ElementType> query(Query<ElementType> query) {
+        return query.evaluate(this).collect(Collectors.toCollection(HashSet::new));
+    }
+
+    /**
+     * @return the number of elements in this set that match query, based on the current state of the index.
+     * @throws IllegalArgumentException if query has a condition on a method that is not in the index
+     */
+    public int count(Query<ElementType> query) {
+        return query.count(this);
+    }
+
+    /**
+     * @return a Set of elements in this set that return a value from fromValue (inclusive)
+     * to toValue (exclusive) when method methodName is invoked, based on the current state
+     * of the index. The Set iterates over the elements in ascending order of their values.
+     * @throws IllegalArgumentException if method methodName is not in the index or is not sorted
+     */
+    public Set<ElementType> getRange(String methodName, Object fromValue, Object toValue) {
+        return getRange(methodName, fromValue, true, toValue, false);
+    }
+
+    /**
+     * @return a Set of elements in this set that return a value between fromValue and toValue
+     * when method methodName is invoked, based on the current state of the index.
+     * The Set iterates over the elements in ascending order of their values.
+     * @throws IllegalArgumentException if method methodName is not in the index or is not sorted,
+     * or if fromValue is greater than toValue
+     */
+    public Set<ElementType> getRange(String methodName, Object fromValue, boolean fromInclusive,
+                                     Object toValue, boolean toInclusive) {
+        return collectBuckets(getSortedValuesMap(methodName).subMap(fromValue, fromInclusive, toValue, toInclusive));
+    }
+
+    /**
+     * @return a Set of elements in this set that return a value less than (or equal to,
+     * if inclusive) toValue when method methodName is invoked, based on the current state
+     * of the index. The Set iterates over the elements in ascending order of their values.
+     * @throws IllegalArgumentException if method methodName is not in the index or is not sorted
+     */
+    public Set<ElementType> getHead(String methodName, Object toValue, boolean inclusive) {
+        return collectBuckets(getSortedValuesMap(methodName).headMap(toValue, inclusive));
+    }
+
+    /**
+     * @return a Set of elements in this set that return a value greater than (or equal to,
+     * if inclusive) fromValue when method methodName is invoked, based on the current state
+     * of the index. The Set iterates over the elements in ascending order of their values.
+     * @throws IllegalArgumentException if method methodName is not in the index or is not sorted
+     */
+    public Set<ElementType> getTail(String methodName, Object fromValue, boolean inclusive) {
+        return collectBuckets(getSortedValuesMap(methodName).tailMap(fromValue, inclusive));
+    }
+
+    /**
+     * @return a Set of elements in this set whose values for the sorted composite index
+     * compositeName start with prefixValues, based on the current state of the index.
+     * E.g. {@code getByPrefix("getTenant+getRegion+getCity", tenant, region)}.
+     * The Set iterates over the elements in ascending order of their values.
+     * @throws IllegalArgumentException if compositeName is not a sorted composite index,
+     * or if there are more prefixValues than methods in the composite index
+     */
+    public Set<ElementType> getByPrefix(String compositeName, Object... prefixValues) {
+        NavigableMap<Object, Set<ElementType>> valuesMap = getSortedValuesMap(compositeName);
+        List<Method> methods = this.compositeMethods.get(compositeName);
+        if (methods == null) {
+            throw new IllegalArgumentException(String.format("\"%s\" is not a composite index", compositeName));
+        }
+        if (prefixValues.length > methods.size()) {
+            throw new IllegalArgumentException(String.format(
+                    "Composite index \"%s\" has less than %d methods", compositeName, prefixValues.length));
+        }
+        return collectBuckets(valuesMap.subMap(CompositeKey.lowerBound(prefixValues), true,
+                CompositeKey.upperBound(prefixValues), true));
+    }
+
+    /**
+     * @return the indexed elements of this set in ascending (or descending) order of the
+     * values they return when method methodName is invoked, based on the current state
+     * of the index. Elements are not copied; e.g. the first n elements of a descending
+     * iteration are the top n elements by that method.
+     * @throws IllegalArgumentException if method methodName is not in the index or is not sorted
+     */
+    public Iterable<ElementType> orderedBy(String methodName, boolean descending) {
+        NavigableMap<Object, Set<ElementType>> valuesMap = getSortedValuesMap(methodName);
+        Collection<Set<ElementType>> buckets = descending ?
+                valuesMap.descendingMap().values() : valuesMap.values();
+        return () -> buckets.stream().flatMap(Set::stream).iterator();
+    }
+
+    /**
+     * @return true if method methodName is indexed by this set in sorted order of its values
+     */
+    public boolean isSorted(String methodName) {
+        return this.index.get(methodName) instanceof NavigableMap;
+    }
+
+    /**
+     * @return the sorted map of values to elements of the index of method methodName
+     * @throws IllegalArgumentException if method methodName is not in the index or is not sorted
+     */
+    NavigableMap<Object, Set<ElementType>> getSortedValuesMap(String methodName) {
+        Map<Object, Set<ElementType>> valuesMap = getValuesMap(methodName);
+        if (!(valuesMap instanceof NavigableMap)) {
+            throw new IllegalArgumentException(String.format("Method \"%s\" is not indexed in sorted order", methodName));
+        }
+        return (NavigableMap<Object, Set<ElementType>>) valuesMap;
+    }
+
+    /**
+     * @return a Set of all elements in the buckets of valuesMap, in the iteration order of valuesMap
+     */
+    private Set<ElementType> collectBuckets(Map<Object, Set<ElementType>> valuesMap) {
+        Set<ElementType> s = new LinkedHashSet<>();
+        for (Set<ElementType> elementSet : valuesMap.values()) {
+            s.addAll(elementSet);
+        }
+        return s;
     }
 
     /**
@@ -462,20 +1873,34 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
      * see {@link java.lang.Object#clone()}
      */
     public IndexedSet<ElementType> clone() {
-        IndexedSet<ElementType> cloneSet = new IndexedSet(this.elementClass, this.indexedMethods.values());
-        cloneSet.inventory = new HashSet(this.inventory);
+        completeIndex();
+        IndexedSet<ElementType> cloneSet = newEmptySet();
+        cloneSet.elementClass = this.elementClass;
+        cloneSet.indexedMethods = new HashMap<>(this.indexedMethods);
+        cloneSet.compositeMethods = new HashMap<>(this.compositeMethods);
+        cloneSet.accessors = new HashMap<>(this.accessors);
+        cloneSet.inventory = cloneSet.newInventory(this.inventory.size());
+        cloneSet.inventory.addAll(this.inventory);
+        cloneSet.index = new HashMap<>();
         for (String methodName : this.index.keySet()) {
             Map<Object, Set<ElementType>> thisMap = this.index.get(methodName);
-            if (!thisMap.isEmpty()) {
-                Map<Object, Set<ElementType>> cloneMap = cloneSet.index.get(methodName);
-                for (Object key : thisMap.keySet()) {
-                    cloneMap.put(key, new HashSet(thisMap.get(key)));
-                }
+            Map<Object, Set<ElementType>> cloneMap = cloneSet.newValuesMap(thisMap, thisMap.size());
+            for (Map.Entry<Object, Set<ElementType>> entry : thisMap.entrySet()) {
+                cloneSet.addAllToBucket(cloneMap, entry.getKey(), entry.getValue());
             }
+            cloneSet.index.put(methodName, cloneMap);
         }
         return cloneSet;
     }
 
+    /**
+     * Creates the IndexedSet returned by {@link #clone()}, before its fields are copied from this set.
+     * @return a new IndexedSet created with the zero-argument constructor
+     */
+    protected IndexedSet<ElementType> newEmptySet() {
+        return new IndexedSet<>();
+    }
+
     /**
      * @return see {@link java.util.AbstractCollection#toString()}
      */
@@ -493,6 +1918,7 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
         sb.append("\n");
 
         sb.append("index:\n");
+        completeIndex();
         for (String methodName : this.index.keySet()) {
             sb.append("\t" + methodName + ":\n");
             Map<Object, Set<ElementType>> map = this.index.get(methodName);
@@ -511,19 +1937,95 @@ public class IndexedSet<ElementType> extends AbstractSet<ElementType> implements
      * @return a json string representation of the elements and index this set
      */
     public String toStringJson() {
-        Map<String, Object> jsonObject = new HashMap();
-        jsonObject.put("elements", this.inventory);
-        jsonObject.put("index", this.index);
-        return JsonUtil.toJsonString(jsonObject);
+        StringWriter writer = new StringWriter();
+        try {
+            writeJson(writer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
     }
 
     /**
      * @return a pretty-printed json string representation of the elements and index this set
      */
     public String toStringJsonPrettyPrint() {
+        StringWriter writer = new StringWriter();
+        try {
+            writeJsonPrettyPrint(writer);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return writer.toString();
+    }
+
+    /**
+     * Writes the compact json representation of the elements and index of this set, as returned
+     * by {@link #toStringJson()}, to writer while they are walked, without building the string.
+     * writer is flushed, but not closed.
+     * @throws IOException if writing to writer fails
+     */
+    public void writeJson(Writer writer) throws IOException {
+        JsonUtil.writeJson(getJsonObject(), writer);
+    }
+
+    /**
+     * Writes the pretty-printed json representation of the elements and index of this set,
+     * as returned by {@link #toStringJsonPrettyPrint()}, to writer. writer is flushed, but not closed.
+     * @throws IOException if writing to writer fails
+     */
+    public void writeJsonPrettyPrint(Writer writer) throws IOException {
+        JsonUtil.writeJsonPrettyPrint(getJsonObject(), writer);
+    }
+
+    private Map<String, Object> getJsonObject() {
         Map<String, Object> jsonObject = new HashMap();
         jsonObject.put("elements", this.inventory);
+        completeIndex();
         jsonObject.put("index", this.index);
-        return JsonUtil.toJsonStringPrettyPrint(jsonObject);
+        return jsonObject;
+    }
+
+    /**
+     * Unmodifiable view of the bucket of one value in the index.
+     * The bucket is looked up on every call because it is removed from its values
+     * map when it becomes empty, and values maps are replaced by clearIndex and trimToSize.
+     */
+    private class BucketView extends AbstractSet<ElementType> {
+
+        private final String methodName;
+        private final Object value;
+
+        private BucketView(String methodName, Object value) {
+            this.methodName = methodName;
+            this.value = value;
+        }
+
+        private Set<ElementType> bucket() {
+            countLookup(this.methodName);
+            flushIndex();
+            buildDeferredIndex(this.methodName);
+            Map<Object, Set<ElementType>> valuesMap = IndexedSet.this.index.get(this.methodName);
+            Set<ElementType> elementSet = valuesMap == null ? null : getBucket(valuesMap, this.value);
+            return elementSet == null ? Collections.emptySet() : elementSet;
+        }
+
+        public int size() {
+            return bucket().size();
+        }
+
+        public boolean isEmpty() {
+            return bucket().isEmpty();
+        }
+
+        public boolean contains(Object o) {
+            return bucket().contains(o);
+        }
+
+        public Iterator<ElementType> iterator() {
+            return Collections.unmodifiableSet(bucket()).iterator();
+        }
     }
 }
@@ -1,37 +1,382 @@
 package com.github.vbro.cocoyam;
 
 import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonArrayBuilder;
+import javax.json.JsonBuilderFactory;
+import javax.json.JsonException;
+import javax.json.JsonNumber;
+import javax.json.JsonObject;
 import javax.json.JsonObjectBuilder;
+import javax.json.JsonString;
 import javax.json.JsonStructure;
 import javax.json.JsonValue;
 import javax.json.JsonWriter;
 import javax.json.JsonWriterFactory;
 import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
 
+import java.beans.Introspector;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
 import java.math.BigDecimal;
 import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 /**
  * Created by vbro on 20 September 2016.
  */
 public class JsonUtil {
 
-    private static String PLACE_HOLDER_KEY = "place_holder_key";
+    private static final JsonBuilderFactory BUILDER_FACTORY = Json.createBuilderFactory(Collections.emptyMap());
+
+    private static final JsonGeneratorFactory GENERATOR_FACTORY =
+            Json.createGeneratorFactory(Collections.emptyMap());
+
+    private static final JsonGeneratorFactory PRETTY_PRINT_GENERATOR_FACTORY =
+            Json.createGeneratorFactory(Collections.singletonMap(JsonGenerator.PRETTY_PRINTING, true));
+
+    // serializers and beans registered by class
+    private static final Map<Class<?>, Encoding> REGISTERED = new ConcurrentHashMap<>();
+
+    // the encoding of each class, resolved on its first use; replaced when the registrations change
+    private static volatile ClassValue<Encoding> encodings = newEncodings();
+
+    /**
+     * Registers serializer to represent the instances of type and of its subclasses: each instance is
+     * represented as the value serializer returns, e.g. a Map, a List, a String or a JsonValue,
+     * which is itself represented by this class. A serializer registered for a class takes precedence
+     * over one registered for its superclasses, which takes precedence over one registered for its
+     * interfaces, and over the representations of {@link #toJson(Object)}.
+     * Replaces any serializer or bean registered for type.
+     */
+    public static <T> void registerSerializer(Class<T> type, Function<? super T, ?> serializer) {
+        register(type, new Encoding(Kind.SERIALIZER, (Function<Object, ?>) serializer, null));
+    }
+
+    /**
+     * Registers type as a bean: its instances, and those of its subclasses, are represented as
+     * JSON objects with a member for each public getter of type, a method getX, or isX returning
+     * boolean, without parameters. Members are named x, are sorted by name, and their values are
+     * represented by this class. The getters are called through generated accessors rather than
+     * by reflection. Replaces any serializer or bean registered for type.
+     * @throws IllegalArgumentException if type has no public getter
+     */
+    public static void registerBean(Class<?> type) {
+        List<Property> properties = new ArrayList<>();
+        for (Method method : type.getMethods()) {
+            String name = getPropertyName(method);
+            if (name != null) {
+                properties.add(new Property(name, Accessors.of(method)));
+            }
+        }
+        if (properties.isEmpty()) {
+            throw new IllegalArgumentException(String.format("Class %s has no public getter", type.getName()));
+        }
+        properties.sort(Comparator.comparing(property -> property.name));
+        register(type, new Encoding(Kind.BEAN, null, properties.toArray(new Property[properties.size()])));
+    }
+
+    /**
+     * Removes the serializer or bean registered for type, if any
+     */
+    public static void unregister(Class<?> type) {
+        synchronized (REGISTERED) {
+            if (REGISTERED.remove(type) != null) {
+                encodings = newEncodings();
+            }
+        }
+    }
+
+    private static void register(Class<?> type, Encoding encoding) {
+        synchronized (REGISTERED) {
+            REGISTERED.put(type, encoding);
+            encodings = newEncodings();
+        }
+    }
+
+    /**
+     * @return the name of the bean property read by method, or null if method is not a getter
+     */
+    private static String getPropertyName(Method method) {
+        if (Modifier.isStatic(method.getModifiers()) || method.getParameterCount() != 0 || method.isBridge() ||
+                method.getDeclaringClass() == Object.class) {
+            return null;
+        }
+        String name = method.getName();
+        if (name.startsWith("get") && name.length() > 3 && method.getReturnType() != void.class) {
+            return Introspector.decapitalize(name.substring(3));
+        }
+        else if (name.startsWith("is") && name.length() > 2 && method.getReturnType() == boolean.class) {
+            return Introspector.decapitalize(name.substring(2));
+        }
+        return null;
+    }
 
     /**
      * @param o
      * @return A compact JSON string representation of Object o.
      */
     public static String toJsonString(Object o) {
-        return toJson(o).toString();
+        if (o instanceof JsonValue) {
+            return o.toString();
+        }
+        StringWriter stringWriter = new StringWriter();
+        try {
+            writeJson(o, stringWriter);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return stringWriter.toString();
+    }
+
+    /**
+     * Writes the compact JSON representation of Object o to writer, as {@link #toJson(Object)}
+     * represents it, without building it: the tokens of maps, arrays and iterables are written
+     * while they are walked, so the memory used grows with the number of entries of the widest map
+     * in o, not with the size of o. Of the keys of a map whose strings are equal, the member is written
+     * once, at the position of the first key, with the value of the last, as by toJson.
+     * writer is flushed, but not closed.
+     * @throws IOException if writing to writer fails
+     */
+    public static void writeJson(Object o, Writer writer) throws IOException {
+        writeJson(o, writer, GENERATOR_FACTORY);
+    }
+
+    /**
+     * Writes the compact JSON representation of Object o to out, encoded in UTF-8,
+     * see {@link #writeJson(Object, Writer)}. out is flushed, but not closed.
+     * @throws IOException if writing to out fails
+     */
+    public static void writeJson(Object o, OutputStream out) throws IOException {
+        writeJson(o, new OutputStreamWriter(out, StandardCharsets.UTF_8), GENERATOR_FACTORY);
+    }
+
+    /**
+     * Writes the pretty-printed JSON representation of Object o to writer,
+     * see {@link #writeJson(Object, Writer)}. writer is flushed, but not closed.
+     * @throws IOException if writing to writer fails
+     */
+    public static void writeJsonPrettyPrint(Object o, Writer writer) throws IOException {
+        writeJson(o, writer, PRETTY_PRINT_GENERATOR_FACTORY);
+    }
+
+    private static void writeJson(Object o, Writer writer, JsonGeneratorFactory factory) throws IOException {
+        Object value = o;
+        Encoding encoding = value == null ? null : encodings.get(value.getClass());
+        while (encoding != null && encoding.kind == Kind.SERIALIZER) {
+            Encoding serializerEncoding = encoding;
+            value = serializerEncoding.serializer.apply(value);
+            encoding = value == null ? null : getSerializedEncoding(serializerEncoding, value);
+        }
+        if (encoding == null || !encoding.kind.isStructure) {
+            // a generator only writes objects and arrays at the top level
+            writer.write(toJson(value).toString());
+            writer.flush();
+            return;
+        }
+        // closing the generator completes and flushes its output, without closing writer
+        Writer unclosedWriter = new FilterWriter(writer) {
+            public void close() throws IOException {
+                flush();
+            }
+        };
+        try (JsonGenerator generator = factory.createGenerator(unclosedWriter)) {
+            write(generator, null, value, encoding);
+        }
+        catch (JsonException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the JSON representation of Object o, named name in a JSON object,
+     * or in a JSON array or at the top level if name is null
+     */
+    private static void write(JsonGenerator generator, String name, Object o) {
+        if (o == null) {
+            if (name == null) {
+                generator.writeNull();
+            }
+            else {
+                generator.writeNull(name);
+            }
+            return;
+        }
+        write(generator, name, o, encodings.get(o.getClass()));
+    }
+
+    private static void write(JsonGenerator generator, String name, Object o, Encoding encoding) {
+        switch (encoding.kind) {
+            case SERIALIZER: {
+                Object value = encoding.serializer.apply(o);
+                if (value == null) {
+                    write(generator, name, null);
+                }
+                else {
+                    write(generator, name, value, getSerializedEncoding(encoding, value));
+                }
+                break;
+            }
+            case JSON_VALUE:
+                if (name == null) {
+                    generator.write((JsonValue) o);
+                }
+                else {
+                    generator.write(name, (JsonValue) o);
+                }
+                break;
+            // JSON objects and arrays are walked as maps and lists, since a generator does not write them
+            // at the top level
+            case JSON_OBJECT:
+                writeStartObject(generator, name);
+                for (Map.Entry<String, JsonValue> entry : ((JsonObject) o).entrySet()) {
+                    write(generator, entry.getKey(), entry.getValue());
+                }
+                generator.writeEnd();
+                break;
+            case MAP: {
+                // keys whose strings are equal make one member, with the value of the last key, as by toJson
+                Map<String, Object> members = new LinkedHashMap<>();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) o).entrySet()) {
+                    members.put(getJsonKey(entry.getKey()), entry.getValue());
+                }
+                writeStartObject(generator, name);
+                for (Map.Entry<String, Object> member : members.entrySet()) {
+                    write(generator, member.getKey(), member.getValue());
+                }
+                generator.writeEnd();
+                break;
+            }
+            case BEAN:
+                writeStartObject(generator, name);
+                for (Property property : encoding.properties) {
+                    write(generator, property.name, property.accessor.apply(o));
+                }
+                generator.writeEnd();
+                break;
+            case JSON_ARRAY:
+            case ITERABLE:
+                writeStartArray(generator, name);
+                for (Object item : (Iterable<?>) o) {
+                    write(generator, null, item);
+                }
+                generator.writeEnd();
+                break;
+            case OBJECT_ARRAY:
+                writeStartArray(generator, name);
+                for (Object item : (Object[]) o) {
+                    write(generator, null, item);
+                }
+                generator.writeEnd();
+                break;
+            case PRIMITIVE_ARRAY:
+                writeStartArray(generator, name);
+                writePrimitiveArray(generator, o);
+                generator.writeEnd();
+                break;
+            default:
+                writeScalar(generator, name, o, encoding.kind);
+        }
+    }
+
+    private static void writeStartObject(JsonGenerator generator, String name) {
+        if (name == null) {
+            generator.writeStartObject();
+        }
+        else {
+            generator.writeStartObject(name);
+        }
+    }
+
+    private static void writeStartArray(JsonGenerator generator, String name) {
+        if (name == null) {
+            generator.writeStartArray();
+        }
+        else {
+            generator.writeStartArray(name);
+        }
+    }
+
+    /**
+     * Writes the JSON representation of Object o of the given scalar kind,
+     * as {@link #getJsonValue(Object, Kind)} represents it: doubles are written as the BigDecimals
+     * that JSON builders hold, e.g. 1.0E+10 rather than 1.0E10
+     */
+    private static void writeScalar(JsonGenerator generator, String name, Object o, Kind kind) {
+        if (name == null) {
+            switch (kind) {
+                case BOOLEAN:
+                    generator.write((Boolean) o);
+                    break;
+                case BIG_DECIMAL:
+                    generator.write((BigDecimal) o);
+                    break;
+                case BIG_INTEGER:
+                    generator.write((BigInteger) o);
+                    break;
+                case DOUBLE:
+                    generator.write(BigDecimal.valueOf((Double) o));
+                    break;
+                case INTEGER:
+                    generator.write((Integer) o);
+                    break;
+                case LONG:
+                    generator.write((Long) o);
+                    break;
+                default:
+                    generator.write(o.toString());
+            }
+        }
+        else {
+            switch (kind) {
+                case BOOLEAN:
+                    generator.write(name, (Boolean) o);
+                    break;
+                case BIG_DECIMAL:
+                    generator.write(name, (BigDecimal) o);
+                    break;
+                case BIG_INTEGER:
+                    generator.write(name, (BigInteger) o);
+                    break;
+                case DOUBLE:
+                    generator.write(name, BigDecimal.valueOf((Double) o));
+                    break;
+                case INTEGER:
+                    generator.write(name, (Integer) o);
+                    break;
+                case LONG:
+                    generator.write(name, (Long) o);
+                    break;
+                default:
+                    generator.write(name, o.toString());
+            }
+        }
     }
 
     /**
@@ -48,7 +393,14 @@ public class JsonUtil {
             return o.toString();
         }
         else {
-            return toJsonStringPrettyPrint(toJson(o));
+            StringWriter stringWriter = new StringWriter();
+            try {
+                writeJsonPrettyPrint(o, stringWriter);
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return stringWriter.toString();
         }
 
         StringWriter stringWriter = new StringWriter();
@@ -69,151 +421,551 @@ public class JsonUtil {
      * A java.util.Map is represented as a JSON object with key "null" or key.toString.
      * An array or java.util.Iterable is represented as a JSON array.
      * Primitives are represented by their corresponding JSON primitive.
+     * Instances of classes with a registered serializer or bean are represented as registered,
+     * see {@link #registerSerializer(Class, Function)} and {@link #registerBean(Class)}.
      * All other objects are represented as strings with value o.toString().
      * Values in maps, arrays and iterables are recursively evaluated by this method.
+     * How a class is represented is resolved on its first use, and cached.
      */
     public static JsonValue toJson(Object o) {
-        if (o == null) {
-            return JsonValue.NULL;
+        return o == null ? JsonValue.NULL : toJson(o, encodings.get(o.getClass()));
+    }
+
+    private static JsonValue toJson(Object o, Encoding encoding) {
+        switch (encoding.kind) {
+            case SERIALIZER: {
+                Object value = encoding.serializer.apply(o);
+                return value == null ? JsonValue.NULL : toJson(value, getSerializedEncoding(encoding, value));
+            }
+            case JSON_VALUE:
+            case JSON_OBJECT:
+            case JSON_ARRAY:
+                return (JsonValue)o;
+            case MAP: {
+                JsonObjectBuilder job = BUILDER_FACTORY.createObjectBuilder();
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>)o).entrySet()) {
+                    job.add(getJsonKey(entry.getKey()), toJson(entry.getValue()));
+                }
+                return job.build();
+            }
+            case BEAN: {
+                JsonObjectBuilder job = BUILDER_FACTORY.createObjectBuilder();
+                for (Property property : encoding.properties) {
+                    job.add(property.name, toJson(property.accessor.apply(o)));
+                }
+                return job.build();
+            }
+            case ITERABLE:
+            case OBJECT_ARRAY: {
+                JsonArrayBuilder jab = BUILDER_FACTORY.createArrayBuilder();
+                Iterable<?> i = encoding.kind == Kind.ITERABLE ? (Iterable<?>)o : Arrays.asList((Object[])o);
+                for (Object item : i) {
+                    jab.add(toJson(item));
+                }
+                return jab.build();
+            }
+            case PRIMITIVE_ARRAY: {
+                JsonArrayBuilder jab = BUILDER_FACTORY.createArrayBuilder();
+                addPrimitiveArray(jab, o);
+                return jab.build();
+            }
+            default:
+                return getJsonValue(o, encoding.kind);
         }
-        else if (o instanceof JsonValue) {
-            return (JsonValue)o;
+    }
+
+    /**
+     * Adds the items of primitive array o to jab, without boxing them.
+     * Items of types other than int, long, double and boolean are added as strings, as
+     * {@link #getJsonValue(Object, Kind)} represents their boxed values.
+     */
+    private static void addPrimitiveArray(JsonArrayBuilder jab, Object o) {
+        if (o instanceof int[]) {
+            for (int primitiveValue : (int[])o) {
+                jab.add(primitiveValue);
+            }
         }
-        else if (o instanceof Map) {
-            JsonObjectBuilder job = Json.createObjectBuilder();
-            Map m = (Map)o;
-            for (Object key : m.keySet()) {
-                job.add(getJsonKey(key), toJson(m.get(key)));
+        else if (o instanceof double[]) {
+            for (double primitiveValue : (double[])o) {
+                jab.add(primitiveValue);
             }
-            return job.build();
         }
-        else if (o instanceof Iterable || o.getClass().isArray()) {
-            Iterable i;
-            JsonArrayBuilder jab = Json.createArrayBuilder();
-            if (o instanceof  Iterable) {
-                i = (Iterable)o;
+        else if (o instanceof long[]) {
+            for (long primitiveValue : (long[])o) {
+                jab.add(primitiveValue);
             }
-            else if (o instanceof Object[]) {
-                Object[] arrayObject = (Object[])o;
-                i = Arrays.asList(arrayObject);
+        }
+        else if (o instanceof boolean[]) {
+            for (boolean primitiveValue : (boolean[])o) {
+                jab.add(primitiveValue);
             }
-            else {
-                i = getPrimitiveArray(o);
+        }
+        else if (o instanceof char[]) {
+            for (char primitiveValue : (char[])o) {
+                jab.add(String.valueOf(primitiveValue));
+            }
+        }
+        else if (o instanceof byte[]) {
+            for (byte primitiveValue : (byte[])o) {
+                jab.add(Byte.toString(primitiveValue));
             }
-            for (Object item : i) {
-                jab.add(toJson(item));
+        }
+        else if (o instanceof short[]) {
+            for (short primitiveValue : (short[])o) {
+                jab.add(Short.toString(primitiveValue));
+            }
+        }
+        else if (o instanceof float[]) {
+            for (float primitiveValue : (float[])o) {
+                jab.add(Float.toString(primitiveValue));
             }
-            return jab.build();
         }
         else {
-            return getJsonValue(o);
+            throw new IllegalArgumentException(String.format(
+                    "Cannot convert object (%s) of type %s to a JSON array",
+                    o.toString(), o.getClass().getName()));
         }
     }
 
     /**
-     * @param o
-     * @return java.lang.Iterable of boxed primitive values contained in array o.
+     * Writes the items of primitive array o, as {@link #addPrimitiveArray(JsonArrayBuilder, Object)} adds them
      */
-    private static Iterable getPrimitiveArray(Object o) {
-
+    private static void writePrimitiveArray(JsonGenerator generator, Object o) {
         if (o instanceof int[]) {
-            return Arrays.stream((int[])o).boxed().collect(
-                    Collectors.toList());
+            for (int primitiveValue : (int[])o) {
+                generator.write(primitiveValue);
+            }
         }
         else if (o instanceof double[]) {
-            return Arrays.stream((double[])o).boxed().collect(
-                    Collectors.toList());
+            for (double primitiveValue : (double[])o) {
+                generator.write(BigDecimal.valueOf(primitiveValue));
+            }
         }
         else if (o instanceof long[]) {
-            return Arrays.stream((long[])o).boxed().collect(
-                    Collectors.toList());
+            for (long primitiveValue : (long[])o) {
+                generator.write(primitiveValue);
+            }
         }
         else if (o instanceof boolean[]) {
-            List<Boolean> objList = new ArrayList();
             for (boolean primitiveValue : (boolean[])o) {
-                objList.add(primitiveValue);
+                generator.write(primitiveValue);
             }
-            return objList;
         }
         else if (o instanceof char[]) {
-            List<Character> objList = new ArrayList();
             for (char primitiveValue : (char[])o) {
-                objList.add(primitiveValue);
+                generator.write(String.valueOf(primitiveValue));
             }
-            return objList;
         }
         else if (o instanceof byte[]) {
-            List<Byte> objList = new ArrayList();
             for (byte primitiveValue : (byte[])o) {
-                objList.add(primitiveValue);
+                generator.write(Byte.toString(primitiveValue));
             }
-            return objList;
         }
         else if (o instanceof short[]) {
-            List<Short> objList = new ArrayList();
             for (short primitiveValue : (short[])o) {
-                objList.add(primitiveValue);
+                generator.write(Short.toString(primitiveValue));
             }
-            return objList;
         }
         else if (o instanceof float[]) {
-            List<Float> objList = new ArrayList();
             for (float primitiveValue : (float[])o) {
-                objList.add(primitiveValue);
+                generator.write(Float.toString(primitiveValue));
             }
-            return objList;
         }
-        throw new IllegalArgumentException(String.format(
-                "Cannot convert object (%s) of type %s to java.lang.Iterable",
-                o.toString(), o.getClass().getName()));
+        else {
+            throw new IllegalArgumentException(String.format(
+                    "Cannot convert object (%s) of type %s to a JSON array",
+                    o.toString(), o.getClass().getName()));
+        }
     }
 
     /**
      * @param o
+     * @param kind the scalar kind of o
      * @return a JsonValue representation of primitive object o,
      * i.e. Object o is neither a JSON object nor a JSON array.
+     * Numbers and strings are wrapped as they are, without building a JSON object to hold them.
+     */
+    private static JsonValue getJsonValue(Object o, Kind kind) {
+        switch (kind) {
+            case BOOLEAN:
+                return (Boolean)o ? JsonValue.TRUE : JsonValue.FALSE;
+            case BIG_DECIMAL:
+                return new DecimalNumber((BigDecimal)o);
+            case BIG_INTEGER:
+                return new DecimalNumber(new BigDecimal((BigInteger)o));
+            case DOUBLE:
+                return new DecimalNumber(BigDecimal.valueOf((Double)o));
+            case INTEGER:
+            case LONG:
+                return new LongNumber(((Number)o).longValue());
+            default:
+                return new StringValue(o.toString());
+        }
+    }
+
+    /**
+     * @param o
+     * @return a string representation of Object o that can be used as a json object key.
      */
-    private static JsonValue getJsonValue(Object o) {
-        JsonObjectBuilder job = Json.createObjectBuilder();
-        if (o instanceof Boolean) {
-            if ((Boolean)o) {
-                return JsonValue.TRUE;
+    private static String getJsonKey(Object o) {
+        return o==null ? "null" : o.toString();
+    }
+
+    private static ClassValue<Encoding> newEncodings() {
+        return new ClassValue<Encoding>() {
+            protected Encoding computeValue(Class<?> type) {
+                return resolve(type);
             }
-            else {
-                return JsonValue.FALSE;
+        };
+    }
+
+    /**
+     * @return the encoding of value, returned by the serializer of serializerEncoding. The serializer
+     * is not applied again to the values it returns, which are represented as by {@link #toJson(Object)}
+     */
+    private static Encoding getSerializedEncoding(Encoding serializerEncoding, Object value) {
+        Encoding encoding = encodings.get(value.getClass());
+        return encoding == serializerEncoding ? resolveBuiltIn(value.getClass()) : encoding;
+    }
+
+    /**
+     * @return the encoding of the instances of type: the registered encoding of type or of its closest
+     * superclass, else of its closest interface, else the representation of {@link #toJson(Object)}
+     */
+    private static Encoding resolve(Class<?> type) {
+        if (!REGISTERED.isEmpty()) {
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                Encoding encoding = REGISTERED.get(c);
+                if (encoding != null) {
+                    return encoding;
+                }
+            }
+            // interfaces breadth first, those of a class before those of its superclasses
+            Deque<Class<?>> interfaces = new ArrayDeque<>();
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                interfaces.addAll(Arrays.asList(c.getInterfaces()));
+            }
+            Set<Class<?>> visited = new HashSet<>();
+            while (!interfaces.isEmpty()) {
+                Class<?> c = interfaces.poll();
+                if (visited.add(c)) {
+                    Encoding encoding = REGISTERED.get(c);
+                    if (encoding != null) {
+                        return encoding;
+                    }
+                    interfaces.addAll(Arrays.asList(c.getInterfaces()));
+                }
             }
         }
-        else if (o instanceof BigDecimal) {
-            job.add(PLACE_HOLDER_KEY, (BigDecimal)o);
-            return job.build().getJsonNumber(PLACE_HOLDER_KEY);
+        return resolveBuiltIn(type);
+    }
+
+    /**
+     * @return the encoding of the instances of type by {@link #toJson(Object)}, without serializers
+     */
+    private static Encoding resolveBuiltIn(Class<?> type) {
+        if (JsonValue.class.isAssignableFrom(type)) {
+            return JsonObject.class.isAssignableFrom(type) ? Encoding.JSON_OBJECT :
+                    JsonArray.class.isAssignableFrom(type) ? Encoding.JSON_ARRAY : Encoding.JSON_VALUE;
         }
-        else if (o instanceof BigInteger) {
-            job.add(PLACE_HOLDER_KEY, (BigInteger)o);
-            return job.build().getJsonNumber(PLACE_HOLDER_KEY);
+        else if (Map.class.isAssignableFrom(type)) {
+            return Encoding.MAP;
         }
-        else if (o instanceof Double) {
-            job.add(PLACE_HOLDER_KEY, (Double)o);
-            return job.build().getJsonNumber(PLACE_HOLDER_KEY);
+        else if (Iterable.class.isAssignableFrom(type)) {
+            return Encoding.ITERABLE;
         }
-        else if (o instanceof Integer) {
-            job.add(PLACE_HOLDER_KEY, (Integer)o);
-            return job.build().getJsonNumber(PLACE_HOLDER_KEY);
+        else if (type.isArray()) {
+            return type.getComponentType().isPrimitive() ? Encoding.PRIMITIVE_ARRAY : Encoding.OBJECT_ARRAY;
         }
-        else if (o instanceof Long) {
-            job.add(PLACE_HOLDER_KEY, (Long)o);
-            return job.build().getJsonNumber(PLACE_HOLDER_KEY);
+        else if (type == Boolean.class) {
+            return Encoding.BOOLEAN;
         }
-        else {
-            job.add(PLACE_HOLDER_KEY, o.toString());
-            return job.build().getJsonString(PLACE_HOLDER_KEY);
+        else if (BigDecimal.class.isAssignableFrom(type)) {
+            return Encoding.BIG_DECIMAL;
+        }
+        else if (BigInteger.class.isAssignableFrom(type)) {
+            return Encoding.BIG_INTEGER;
         }
+        else if (type == Double.class) {
+            return Encoding.DOUBLE;
+        }
+        else if (type == Integer.class) {
+            return Encoding.INTEGER;
+        }
+        else if (type == Long.class) {
+            return Encoding.LONG;
+        }
+        return Encoding.STRING;
     }
 
     /**
-     * @param o
-     * @return a string representation of Object o that can be used as a json object key.
+     * How instances of a class are represented in JSON
      */
-    private static String getJsonKey(Object o) {
-        return o==null ? "null" : o.toString();
+    private enum Kind {
+        SERIALIZER(false),
+        BEAN(true),
+        JSON_VALUE(false),
+        JSON_OBJECT(true),
+        JSON_ARRAY(true),
+        MAP(true),
+        ITERABLE(true),
+        OBJECT_ARRAY(true),
+        PRIMITIVE_ARRAY(true),
+        BOOLEAN(false),
+        BIG_DECIMAL(false),
+        BIG_INTEGER(false),
+        DOUBLE(false),
+        INTEGER(false),
+        LONG(false),
+        STRING(false);
+
+        // represented as a JSON object or a JSON array
+        private final boolean isStructure;
+
+        Kind(boolean isStructure) {
+            this.isStructure = isStructure;
+        }
+    }
+
+    private static final class Encoding {
+
+        private static final Encoding JSON_VALUE = new Encoding(Kind.JSON_VALUE, null, null);
+        private static final Encoding JSON_OBJECT = new Encoding(Kind.JSON_OBJECT, null, null);
+        private static final Encoding JSON_ARRAY = new Encoding(Kind.JSON_ARRAY, null, null);
+        private static final Encoding MAP = new Encoding(Kind.MAP, null, null);
+        private static final Encoding ITERABLE = new Encoding(Kind.ITERABLE, null, null);
+        private static final Encoding OBJECT_ARRAY = new Encoding(Kind.OBJECT_ARRAY, null, null);
+        private static final Encoding PRIMITIVE_ARRAY = new Encoding(Kind.PRIMITIVE_ARRAY, null, null);
+        private static final Encoding BOOLEAN = new Encoding(Kind.BOOLEAN, null, null);
+        private static final Encoding BIG_DECIMAL = new Encoding(Kind.BIG_DECIMAL, null, null);
+        private static final Encoding BIG_INTEGER = new Encoding(Kind.BIG_INTEGER, null, null);
+        private static final Encoding DOUBLE = new Encoding(Kind.DOUBLE, null, null);
+        private static final Encoding INTEGER = new Encoding(Kind.INTEGER, null, null);
+        private static final Encoding LONG = new Encoding(Kind.LONG, null, null);
+        private static final Encoding STRING = new Encoding(Kind.STRING, null, null);
+
+        private final Kind kind;
+
+        // the serializer of a SERIALIZER
+        private final Function<Object, ?> serializer;
+
+        // the properties of a BEAN
+        private final Property[] properties;
+
+        private Encoding(Kind kind, Function<Object, ?> serializer, Property[] properties) {
+            this.kind = kind;
+            this.serializer = serializer;
+            this.properties = properties;
+        }
+    }
+
+    private static final class Property {
+
+        private final String name;
+
+        private final Function<Object, Object> accessor;
+
+        private Property(String name, Function<Object, Object> accessor) {
+            this.name = name;
+            this.accessor = accessor;
+        }
+    }
+
+    /**
+     * JsonNumber of a long or an int, equal to the JsonNumbers of javax.json with the same value
+     */
+    private static final class LongNumber implements JsonNumber {
+
+        private final long value;
+
+        private LongNumber(long value) {
+            this.value = value;
+        }
+
+        public ValueType getValueType() {
+            return ValueType.NUMBER;
+        }
+
+        public boolean isIntegral() {
+            return true;
+        }
+
+        public int intValue() {
+            return (int)this.value;
+        }
+
+        public int intValueExact() {
+            return Math.toIntExact(this.value);
+        }
+
+        public long longValue() {
+            return this.value;
+        }
+
+        public long longValueExact() {
+            return this.value;
+        }
+
+        public BigInteger bigIntegerValue() {
+            return BigInteger.valueOf(this.value);
+        }
+
+        public BigInteger bigIntegerValueExact() {
+            return BigInteger.valueOf(this.value);
+        }
+
+        public double doubleValue() {
+            return this.value;
+        }
+
+        public BigDecimal bigDecimalValue() {
+            return BigDecimal.valueOf(this.value);
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof JsonNumber && bigDecimalValue().equals(((JsonNumber)o).bigDecimalValue());
+        }
+
+        public int hashCode() {
+            return bigDecimalValue().hashCode();
+        }
+
+        public String toString() {
+            return Long.toString(this.value);
+        }
+    }
+
+    /**
+     * JsonNumber of a BigDecimal, equal to the JsonNumbers of javax.json with the same value
+     */
+    private static final class DecimalNumber implements JsonNumber {
+
+        private final BigDecimal value;
+
+        private DecimalNumber(BigDecimal value) {
+            this.value = value;
+        }
+
+        public ValueType getValueType() {
+            return ValueType.NUMBER;
+        }
+
+        public boolean isIntegral() {
+            return this.value.scale() == 0;
+        }
+
+        public int intValue() {
+            return this.value.intValue();
+        }
+
+        public int intValueExact() {
+            return this.value.intValueExact();
+        }
+
+        public long longValue() {
+            return this.value.longValue();
+        }
+
+        public long longValueExact() {
+            return this.value.longValueExact();
+        }
+
+        public BigInteger bigIntegerValue() {
+            return this.value.toBigInteger();
+        }
+
+        public BigInteger bigIntegerValueExact() {
+            return this.value.toBigIntegerExact();
+        }
+
+        public double doubleValue() {
+            return this.value.doubleValue();
+        }
+
+        public BigDecimal bigDecimalValue() {
+            return this.value;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof JsonNumber && this.value.equals(((JsonNumber)o).bigDecimalValue());
+        }
+
+        public int hashCode() {
+            return this.value.hashCode();
+        }
+
+        public String toString() {
+            return this.value.toString();
+        }
+    }
+
+    /**
+     * JsonString, equal to the JsonStrings of javax.json with the same value and escaped like them
+     */
+    private static final class StringValue implements JsonString {
+
+        private final String value;
+
+        private StringValue(String value) {
+            this.value = value;
+        }
+
+        public ValueType getValueType() {
+            return ValueType.STRING;
+        }
+
+        public String getString() {
+            return this.value;
+        }
+
+        public CharSequence getChars() {
+            return this.value;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof JsonString && this.value.equals(((JsonString)o).getString());
+        }
+
+        public int hashCode() {
+            return this.value.hashCode();
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder(this.value.length() + 2);
+            sb.append('"');
+            for (int i = 0; i < this.value.length(); i++) {
+                char c = this.value.charAt(i);
+                if (c >= 0x20 && c != '"' && c != '\\') {
+                    sb.append(c);
+                }
+                else {
+                    switch (c) {
+                        case '"':
+                        case '\\':
+                            sb.append('\\').append(c);
+                            break;
+                        case '\b':
+                            sb.append("\\b");
+                            break;
+                        case '\f':
+                            sb.append("\\f");
+                            break;
+                        case '\n':
+                            sb.append("\\n");
+                            break;
+                        case '\r':
+                            sb.append("\\r");
+                            break;
+                        case '\t':
+                            sb.append("\\t");
+                            break;
+                        default:
+                            String hex = "000" + Integer.toHexString(c);
+                            sb.append("\\u").append(hex.substring(hex.length() - 4));
+                    }
+                }
+            }
+            return sb.append('"').toString();
+        }
     }
 }
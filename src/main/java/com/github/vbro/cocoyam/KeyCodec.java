@@ -0,0 +1,182 @@
+package com.github.vbro.cocoyam;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes the values of an index, i.e. the keys of its values map, independently of the JVM that
+ * writes them. Primitives and their boxes, String, enums and CompositeKeys of these are encoded by
+ * value: two such values are equal exactly when their encodings are. Other values are encoded by
+ * their Java serialization, so equal values of other types may have different encodings.
+ *
+ * An encoding starts with a tag byte, which is followed by the big-endian value of a primitive,
+ * the length and UTF-8 bytes of a String, the class name and constant name of an enum, the number
+ * and encodings of the values of a CompositeKey, or the length and bytes of a Java serialization.
+ */
+final class KeyCodec {
+
+    // tags of encoded keys
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHARACTER = 4;
+    private static final byte INTEGER = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte ENUM = 10;
+    private static final byte COMPOSITE = 11;
+    private static final byte OBJECT = 12;
+
+    private KeyCodec() {}
+
+    /**
+     * @return the encoding of value
+     * @throws IOException if value is neither encoded by value nor serializable
+     */
+    static byte[] encode(Object value) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        write(value, out);
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the encoding of value to out
+     * @throws IOException if value is neither encoded by value nor serializable, or out cannot be written
+     */
+    static void write(Object value, DataOutput out) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL);
+        }
+        else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) value);
+        }
+        else if (value instanceof Byte) {
+            out.writeByte(BYTE);
+            out.writeByte((Byte) value);
+        }
+        else if (value instanceof Short) {
+            out.writeByte(SHORT);
+            out.writeShort((Short) value);
+        }
+        else if (value instanceof Character) {
+            out.writeByte(CHARACTER);
+            out.writeChar((Character) value);
+        }
+        else if (value instanceof Integer) {
+            out.writeByte(INTEGER);
+            out.writeInt((Integer) value);
+        }
+        else if (value instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) value);
+        }
+        else if (value instanceof Float) {
+            // the bits that Float.equals compares
+            out.writeByte(FLOAT);
+            out.writeInt(Float.floatToIntBits((Float) value));
+        }
+        else if (value instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeLong(Double.doubleToLongBits((Double) value));
+        }
+        else if (value instanceof String) {
+            out.writeByte(STRING);
+            writeString((String) value, out);
+        }
+        else if (value instanceof Enum) {
+            out.writeByte(ENUM);
+            writeString(((Enum) value).getDeclaringClass().getName(), out);
+            writeString(((Enum) value).name(), out);
+        }
+        else if (value instanceof CompositeKey) {
+            CompositeKey compositeKey = (CompositeKey) value;
+            out.writeByte(COMPOSITE);
+            out.writeInt(compositeKey.size());
+            for (int i = 0; i < compositeKey.size(); i++) {
+                write(compositeKey.get(i), out);
+            }
+        }
+        else {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                oos.writeObject(value);
+            }
+            out.writeByte(OBJECT);
+            out.writeInt(bytes.size());
+            out.write(bytes.toByteArray());
+        }
+    }
+
+    /**
+     * @return the value whose encoding is read from in
+     * @throws IOException if in cannot be read, or does not start with an encoding
+     * @throws ClassNotFoundException if the class of an enum or of a serialized value cannot be found
+     */
+    static Object read(DataInput in) throws IOException, ClassNotFoundException {
+        byte tag = in.readByte();
+        switch (tag) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return in.readBoolean();
+            case BYTE:
+                return in.readByte();
+            case SHORT:
+                return in.readShort();
+            case CHARACTER:
+                return in.readChar();
+            case INTEGER:
+                return in.readInt();
+            case LONG:
+                return in.readLong();
+            case FLOAT:
+                return Float.intBitsToFloat(in.readInt());
+            case DOUBLE:
+                return Double.longBitsToDouble(in.readLong());
+            case STRING:
+                return readString(in);
+            case ENUM:
+                Class enumClass = Class.forName(readString(in));
+                return Enum.valueOf(enumClass, readString(in));
+            case COMPOSITE:
+                Object[] values = new Object[in.readInt()];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = read(in);
+                }
+                return CompositeKey.wrap(values);
+            case OBJECT:
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                    return ois.readObject();
+                }
+            default:
+                throw new IOException(String.format("Unknown tag (%d) of an encoded key", tag));
+        }
+    }
+
+    private static void writeString(String s, DataOutput out) throws IOException {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,816 @@
+package com.github.vbro.cocoyam;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+/**
+ * An {@link IndexedSerializableSet} that persists itself to a directory as a snapshot and an
+ * append-only log of the changes made since the snapshot, so that a change costs a record in the
+ * log instead of a new snapshot of the whole set.
+ *
+ * The snapshot is written in the binary format of {@link #writeTo(java.io.OutputStream, ElementCodec)}.
+ * Each add, remove, update and re-index of an element is logged as a record of the operation and of
+ * the element, addIndex and dropIndex as a record of the operation and of the name of the index, and
+ * clear, clearIndex and reIndex as a record of the operation. An update is logged as the removal of the
+ * element before the update and its addition after it. An element removed by the iterator is logged
+ * as removed from the inventory. Deferred indexes, see {@link #deferIndexing()},
+ * are not logged, and are built when a snapshot is written. Records are written to a buffer, and from the
+ * buffer to the file by a FileChannel, and forced to the storage device as configured by
+ * {@link ChangeLogOptions}. When the log grows larger than the compaction threshold of the options,
+ * or when {@link #compact()} is called, a new snapshot is written and the log starts over.
+ *
+ * {@link #open(File, Supplier, ElementCodec, ChangeLogOptions)} reads the latest snapshot of a
+ * directory and replays its log. Each record holds a checksum, and the log is truncated before the
+ * first record that is incomplete or damaged, e.g. by a crash while it was written.
+ *
+ * A change is applied to the set before it is logged. If it cannot be logged, the change is not undone,
+ * and an UncheckedIOException is thrown. Like an IndexedSet, a LoggedIndexedSet is not thread-safe.
+ * A LoggedIndexedSet read back by Java serialization is not logged.
+ */
+public class LoggedIndexedSet<ElementType extends Serializable> extends IndexedSerializableSet<ElementType>
+        implements Closeable {
+
+    private static final int MAGIC = 0x4359434c; // "CYCL"
+
+    private static final int VERSION = 1;
+
+    // magic, version and generation
+    private static final int HEADER_SIZE = 16;
+
+    // length and checksum of the operation and element that follow
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private static final Pattern SNAPSHOT_NAME = Pattern.compile("snapshot-(\\d+)");
+
+    private static final Pattern LOG_NAME = Pattern.compile("changes-(\\d+)\\.log");
+
+    // operations of the records
+    private static final byte ADD = 0;
+    private static final byte ADD_UNINDEXED = 1;
+    private static final byte REMOVE = 2;
+    private static final byte REMOVE_FROM_INVENTORY = 3;
+    private static final byte CLEAR = 4;
+    private static final byte CLEAR_INVENTORY = 5;
+    private static final byte CLEAR_INDEX = 6;
+    private static final byte REINDEX = 7;
+    private static final byte DROP_INDEX = 8;
+    private static final byte ADD_INDEX = 9;
+    private static final byte ADD_SORTED_INDEX = 10;
+    private static final byte REINDEX_ELEMENT = 11;
+
+    private transient File directory;
+
+    private transient ElementCodec<ElementType> codec;
+
+    private transient ChangeLogOptions options;
+
+    // number of the latest snapshot, and of the log of the changes since
+    private transient long generation;
+
+    private transient FileChannel log;
+
+    private transient ByteBuffer buffer;
+
+    // size of the log, including the records that are still in the buffer
+    private transient long logSize;
+
+    private transient long lastFsyncNanos;
+
+    private transient boolean isClosed;
+
+    // number of nested changes, of which only the outermost is logged
+    private transient int changeDepth;
+
+    private transient RecordBytes recordBytes;
+
+    private transient DataOutputStream recordOut;
+
+    private transient CRC32 checksum;
+
+    /**
+     * This protected zero-argument constructor is for {@link #open(File, Supplier, ElementCodec, ChangeLogOptions)}
+     * and serialization.
+     */
+    protected LoggedIndexedSet() {
+        super();
+    }
+
+    /**
+     * Opens the set persisted in directory, with its elements written by Java serialization,
+     * see {@link #open(File, Supplier, ElementCodec, ChangeLogOptions)}
+     */
+    public static <E extends Serializable> LoggedIndexedSet<E> open(
+            File directory, Supplier<? extends IndexedSerializableSet<E>> newSet, ChangeLogOptions options)
+            throws IOException, ClassNotFoundException {
+        return open(directory, newSet, null, options);
+    }
+
+    /**
+     * Opens the set persisted in directory: reads its latest snapshot, and replays the changes logged since.
+     * If directory holds no snapshot, it is created if needed, and the set returned by newSet is written
+     * as its first snapshot: newSet defines the element class and the indexes of the set, and may
+     * already hold elements. Snapshots and logged elements are written and read by codec.
+     * The set should be closed when it is no longer changed, see {@link #close()}.
+     * @throws IOException if directory cannot be read or written, or holds a snapshot or log that
+     * cannot be read
+     * @throws ClassNotFoundException if the class of the elements or of a value of the index cannot be found
+     */
+    public static <E extends Serializable> LoggedIndexedSet<E> open(
+            File directory, Supplier<? extends IndexedSerializableSet<E>> newSet, ElementCodec<E> codec,
+            ChangeLogOptions options) throws IOException, ClassNotFoundException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException(String.format("Cannot create directory %s", directory));
+        }
+        long generation = latestGeneration(directory);
+        if (generation < 0) {
+            generation = 0;
+            writeSnapshot(newSet.get(), snapshotFile(directory, generation), codec);
+        }
+        LoggedIndexedSet<E> set = new LoggedIndexedSet<>();
+        try (InputStream in = new BufferedInputStream(
+                new FileInputStream(snapshotFile(directory, generation)), BUFFER_SIZE)) {
+            BinaryFormat.read(in, codec, set);
+        }
+        set.directory = directory;
+        set.codec = codec;
+        set.options = options;
+        set.generation = generation;
+        set.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        set.recordBytes = new RecordBytes();
+        set.recordOut = new DataOutputStream(set.recordBytes);
+        set.checksum = new CRC32();
+        set.lastFsyncNanos = System.nanoTime();
+        set.replayLog();
+        set.deleteOldFiles();
+        return set;
+    }
+
+    /**
+     * @return the highest number of a snapshot in directory, or -1 if there is none
+     */
+    private static long latestGeneration(File directory) throws IOException {
+        String[] names = directory.list();
+        if (names == null) {
+            throw new IOException(String.format("Cannot list directory %s", directory));
+        }
+        long latest = -1;
+        for (String name : names) {
+            Matcher matcher = SNAPSHOT_NAME.matcher(name);
+            if (matcher.matches()) {
+                latest = Math.max(latest, Long.parseLong(matcher.group(1)));
+            }
+        }
+        return latest;
+    }
+
+    private static File snapshotFile(File directory, long generation) {
+        return new File(directory, String.format("snapshot-%d", generation));
+    }
+
+    private static File logFile(File directory, long generation) {
+        return new File(directory, String.format("changes-%d.log", generation));
+    }
+
+    /**
+     * Writes set to a temporary file, forces it to the storage device, and then renames it to file,
+     * so that file is either the whole snapshot or missing, and forces the rename
+     */
+    private static void writeSnapshot(IndexedSerializableSet<?> set, File file, ElementCodec codec)
+            throws IOException {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(temporaryFile)) {
+            BinaryFormat.write((IndexedSet) set, out, codec);
+            out.getFD().sync();
+        }
+        Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE,
+                StandardCopyOption.REPLACE_EXISTING);
+        forceDirectory(file.getAbsoluteFile().getParentFile());
+    }
+
+    /**
+     * Forces the entries of directory to the storage device, so that the files created and renamed
+     * in it survive a power loss before older files are deleted
+     */
+    private static void forceDirectory(File directory) throws IOException {
+        try (FileChannel channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Creates the empty log of generation, and forces its header and its directory entry to the storage device
+     */
+    private static FileChannel createLog(File file, long generation) throws IOException {
+        FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).putInt(VERSION).putLong(generation).flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        channel.force(false);
+        try {
+            forceDirectory(file.getAbsoluteFile().getParentFile());
+        }
+        catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    /**
+     * Opens the log of the current generation, replays its records, and truncates it after the last
+     * record that is complete and intact. A log that is missing, or whose header is incomplete, is created.
+     */
+    private void replayLog() throws IOException, ClassNotFoundException {
+        File file = logFile(this.directory, this.generation);
+        if (!file.exists() || file.length() < HEADER_SIZE) {
+            this.log = createLog(file, this.generation);
+            this.logSize = HEADER_SIZE;
+            return;
+        }
+        this.log = FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long size = this.log.size();
+        // the stream is not closed, as that would close the channel
+        DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(this.log),
+                BUFFER_SIZE));
+        if (in.readInt() != MAGIC) {
+            throw new IOException(String.format("%s is not a change log", file));
+        }
+        int version = in.readInt();
+        if (version != VERSION) {
+            throw new IOException(String.format("Unsupported version (%d) of change log %s", version, file));
+        }
+        if (in.readLong() != this.generation) {
+            throw new IOException(String.format("%s is not the log of snapshot %d", file, this.generation));
+        }
+        long end = HEADER_SIZE;
+        this.changeDepth++;
+        try {
+            while (size - end >= RECORD_HEADER_SIZE) {
+                int length = in.readInt();
+                int recordChecksum = in.readInt();
+                if (length < 1 || length > size - end - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                byte[] record = new byte[length];
+                in.readFully(record);
+                this.checksum.reset();
+                this.checksum.update(record, 0, length);
+                if ((int) this.checksum.getValue() != recordChecksum) {
+                    break;
+                }
+                replay(record);
+                end += RECORD_HEADER_SIZE + length;
+            }
+        }
+        finally {
+            this.changeDepth--;
+        }
+        this.log.truncate(end);
+        this.log.position(end);
+        this.logSize = end;
+    }
+
+    /**
+     * Applies the change of record to this set
+     */
+    private void replay(byte[] record) throws IOException, ClassNotFoundException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+        byte operation = in.readByte();
+        switch (operation) {
+            case ADD:
+            case ADD_UNINDEXED:
+                super.add(readElement(in), operation == ADD);
+                break;
+            case REMOVE:
+            case REMOVE_FROM_INVENTORY:
+                super.remove(readElement(in), operation == REMOVE);
+                break;
+            case CLEAR:
+            case CLEAR_INVENTORY:
+                super.clear(operation == CLEAR);
+                break;
+            case CLEAR_INDEX:
+                super.clearIndex();
+                break;
+            case REINDEX:
+                super.reIndex();
+                break;
+            case DROP_INDEX:
+                super.dropIndex(in.readUTF());
+                break;
+            case ADD_INDEX:
+            case ADD_SORTED_INDEX:
+                super.addIndex(in.readUTF(), operation == ADD_SORTED_INDEX);
+                break;
+            case REINDEX_ELEMENT:
+                // the element read replaces the element with its values before it changed
+                ElementType element = readElement(in);
+                super.remove(element, false);
+                super.add(element, false);
+                super.reIndex(element);
+                break;
+            default:
+                throw new IOException(String.format("Unknown operation (%d) in change log", operation));
+        }
+    }
+
+    private ElementType readElement(DataInputStream in) throws IOException, ClassNotFoundException {
+        if (this.codec != null) {
+            return this.codec.read(in);
+        }
+        return (ElementType) new ObjectInputStream(in).readObject();
+    }
+
+    /**
+     * Deletes the snapshots and logs of older generations, and the temporary files of snapshots
+     * that were not completed
+     */
+    private void deleteOldFiles() throws IOException {
+        File[] files = this.directory.listFiles();
+        if (files == null) {
+            throw new IOException(String.format("Cannot list directory %s", this.directory));
+        }
+        for (File file : files) {
+            Matcher snapshotMatcher = SNAPSHOT_NAME.matcher(file.getName());
+            Matcher logMatcher = LOG_NAME.matcher(file.getName());
+            boolean isOld = snapshotMatcher.matches() && Long.parseLong(snapshotMatcher.group(1)) < this.generation
+                    || logMatcher.matches() && Long.parseLong(logMatcher.group(1)) < this.generation;
+            if (isOld || file.getName().startsWith("snapshot-") && file.getName().endsWith(".tmp")) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * Writes a new snapshot of this set, starts a new empty log, and deletes the previous snapshot and log.
+     * If the process stops while the snapshot is written, the previous snapshot and log are opened.
+     * @throws IllegalStateException if this set is closed
+     */
+    public void compact() throws IOException {
+        checkOpen();
+        long nextGeneration = this.generation + 1;
+        writeSnapshot(this, snapshotFile(this.directory, nextGeneration), this.codec);
+        // the records that are still in the buffer are in the new snapshot
+        FileChannel nextLog = createLog(logFile(this.directory, nextGeneration), nextGeneration);
+        this.log.close();
+        this.log = nextLog;
+        this.buffer.clear();
+        this.logSize = HEADER_SIZE;
+        this.lastFsyncNanos = System.nanoTime();
+        this.generation = nextGeneration;
+        deleteOldFiles();
+    }
+
+    /**
+     * Writes the logged changes that are still buffered to the log, and forces the log to the storage device
+     * @throws IllegalStateException if this set is closed
+     */
+    public void sync() throws IOException {
+        checkOpen();
+        fsync();
+    }
+
+    /**
+     * Writes and forces the logged changes to the storage device, and closes the log.
+     * This set can still be read, but no longer changed. Closing a closed set has no effect.
+     */
+    public void close() throws IOException {
+        if (this.isClosed || this.log == null) {
+            return;
+        }
+        this.isClosed = true;
+        try {
+            fsync();
+        }
+        finally {
+            this.log.close();
+        }
+    }
+
+    /**
+     * @return the size in bytes of the log of the changes since the latest snapshot
+     */
+    public long getLogSize() {
+        return this.logSize;
+    }
+
+    private void checkOpen() {
+        if (this.isClosed) {
+            throw new IllegalStateException("LoggedIndexedSet is closed");
+        }
+    }
+
+    /**
+     * Runs change as a change of this set whose nested changes are not logged
+     */
+    private <T> T change(Supplier<T> change) {
+        checkOpen();
+        this.changeDepth++;
+        try {
+            return change.get();
+        }
+        finally {
+            this.changeDepth--;
+        }
+    }
+
+    /**
+     * Logs operation, with each of elements, which are index names for the operations on indexes,
+     * or without element if elements is empty, and then forces the log or compacts it as configured
+     * by the options of this set
+     */
+    private void logChanges(byte operation, Collection<?> elements) {
+        if (this.changeDepth > 0 || this.log == null) {
+            return;
+        }
+        try {
+            if (elements.isEmpty()) {
+                writeRecord(operation, null);
+            }
+            else {
+                for (Object element : elements) {
+                    writeRecord(operation, element);
+                }
+            }
+            forceOrCompact();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Logs the update of element as the removal of element with its values before the update, encoded in
+     * removal, and the addition of element with its current values, so that the update is replayed
+     * without looking for the old buckets of element
+     */
+    private void logUpdate(byte[] removal, ElementType element) {
+        try {
+            writeRecord(removal, removal.length);
+            writeRecord(ADD, element);
+            forceOrCompact();
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Encodes the record of operation with element into a new array, to be written later
+     */
+    private byte[] encodeRecord(byte operation, Object element) {
+        try {
+            encode(operation, element);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return this.recordBytes.toByteArray();
+    }
+
+    private void forceOrCompact() throws IOException {
+        long fsyncInterval = this.options.getFsyncIntervalMillis();
+        if (fsyncInterval == 0 || fsyncInterval != Long.MAX_VALUE
+                && System.nanoTime() - this.lastFsyncNanos >= fsyncInterval * 1000000) {
+            fsync();
+        }
+        if (this.logSize > this.options.getCompactionThreshold()) {
+            compact();
+        }
+    }
+
+    private void writeRecord(byte operation, Object element) throws IOException {
+        encode(operation, element);
+        writeRecord(this.recordBytes.bytes(), this.recordBytes.size());
+    }
+
+    private void encode(byte operation, Object element) throws IOException {
+        this.recordBytes.reset();
+        this.recordOut.writeByte(operation);
+        if (operation == DROP_INDEX || operation == ADD_INDEX || operation == ADD_SORTED_INDEX) {
+            this.recordOut.writeUTF((String) element);
+        }
+        else if (element != null) {
+            if (this.codec != null) {
+                this.codec.write((ElementType) element, this.recordOut);
+            }
+            else {
+                ObjectOutputStream oos = new ObjectOutputStream(this.recordBytes);
+                oos.writeObject(element);
+                oos.flush();
+            }
+        }
+    }
+
+    private void writeRecord(byte[] bytes, int length) throws IOException {
+        this.checksum.reset();
+        this.checksum.update(bytes, 0, length);
+        if (this.buffer.remaining() < RECORD_HEADER_SIZE + length) {
+            writeBuffer();
+        }
+        if (this.buffer.remaining() < RECORD_HEADER_SIZE + length) {
+            // the record is larger than the buffer, and is written directly
+            ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + length);
+            record.putInt(length).putInt((int) this.checksum.getValue()).put(bytes, 0, length);
+            record.flip();
+            while (record.hasRemaining()) {
+                this.log.write(record);
+            }
+        }
+        else {
+            this.buffer.putInt(length).putInt((int) this.checksum.getValue()).put(bytes, 0, length);
+        }
+        this.logSize += RECORD_HEADER_SIZE + length;
+    }
+
+    private void writeBuffer() throws IOException {
+        this.buffer.flip();
+        while (this.buffer.hasRemaining()) {
+            this.log.write(this.buffer);
+        }
+        this.buffer.clear();
+    }
+
+    private void fsync() throws IOException {
+        writeBuffer();
+        this.log.force(false);
+        this.lastFsyncNanos = System.nanoTime();
+    }
+
+    public boolean add(ElementType element, boolean shouldIndex) {
+        boolean isAdded = change(() -> super.add(element, shouldIndex));
+        if (isAdded) {
+            logChanges(shouldIndex ? ADD : ADD_UNINDEXED, Collections.singletonList(element));
+        }
+        return isAdded;
+    }
+
+    /**
+     * see {@link IndexedSet#addAll(Collection, boolean)}
+     * The elements added are forced to the storage device at once.
+     */
+    public boolean addAll(Collection<? extends ElementType> c, boolean shouldIndex) {
+        List<ElementType> added = new ArrayList<>();
+        try {
+            change(() -> {
+                for (ElementType element : c) {
+                    if (super.add(element, shouldIndex)) {
+                        added.add(element);
+                    }
+                }
+                return null;
+            });
+        }
+        finally {
+            if (!added.isEmpty()) {
+                logChanges(shouldIndex ? ADD : ADD_UNINDEXED, added);
+            }
+        }
+        return !added.isEmpty();
+    }
+
+    /**
+     * see {@link IndexedSet#addAll(Collection, BulkOptions)}
+     * The elements added are forced to the storage device at once.
+     */
+    public boolean addAll(Collection<? extends ElementType> c, BulkOptions options) {
+        if (options.getParallelism() == 1) {
+            return addAll(c, options.shouldIndex());
+        }
+        Set<ElementType> added = new LinkedHashSet<>();
+        for (ElementType element : c) {
+            if (element != null && !contains(element)) {
+                added.add(element);
+            }
+        }
+        boolean isChanged = change(() -> super.addAll(c, options));
+        if (isChanged) {
+            logChanges(options.shouldIndex() ? ADD : ADD_UNINDEXED, added);
+        }
+        return isChanged;
+    }
+
+    /**
+     * see {@link IndexedSet#iterator()}
+     * An element removed by the iterator, e.g. by removeIf, is removed from the inventory only,
+     * as by remove(o, false), and is logged like it.
+     */
+    public Iterator<ElementType> iterator() {
+        Iterator<ElementType> iterator = super.iterator();
+        return new Iterator<ElementType>() {
+
+            private ElementType last;
+
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            public ElementType next() {
+                this.last = iterator.next();
+                return this.last;
+            }
+
+            public void remove() {
+                change(() -> {
+                    iterator.remove();
+                    return null;
+                });
+                logChanges(REMOVE_FROM_INVENTORY, Collections.singletonList(this.last));
+            }
+        };
+    }
+
+    /**
+     * see {@link IndexedSet#remove(Object, boolean)}
+     * If shouldRemoveFromIndex, an element that is not in this set is logged too, as it
+     * may be in the index.
+     */
+    public boolean remove(Object o, boolean shouldRemoveFromIndex) {
+        boolean isRemoved = change(() -> super.remove(o, shouldRemoveFromIndex));
+        if ((isRemoved || shouldRemoveFromIndex) && this.elementClass.isInstance(o)) {
+            logChanges(shouldRemoveFromIndex ? REMOVE : REMOVE_FROM_INVENTORY, Collections.singletonList(o));
+        }
+        return isRemoved;
+    }
+
+    /**
+     * see {@link IndexedSet#removeAll(Collection, boolean)}
+     * The elements removed are forced to the storage device at once.
+     */
+    public boolean removeAll(Collection<?> c, boolean shouldRemoveFromIndex) {
+        List<Object> removed = new ArrayList<>();
+        for (Object o : c) {
+            if (this.elementClass.isInstance(o) && (shouldRemoveFromIndex || contains(o))) {
+                removed.add(o);
+            }
+        }
+        boolean isChanged = change(() -> super.removeAll(c, shouldRemoveFromIndex));
+        if (!removed.isEmpty()) {
+            logChanges(shouldRemoveFromIndex ? REMOVE : REMOVE_FROM_INVENTORY, removed);
+        }
+        return isChanged;
+    }
+
+    public void clear(boolean shouldClearIndex) {
+        change(() -> {
+            super.clear(shouldClearIndex);
+            return null;
+        });
+        logChanges(shouldClearIndex ? CLEAR : CLEAR_INVENTORY, Collections.emptyList());
+    }
+
+    public void clearIndex() {
+        change(() -> {
+            super.clearIndex();
+            return null;
+        });
+        logChanges(CLEAR_INDEX, Collections.emptyList());
+    }
+
+    public void reIndex() {
+        change(() -> {
+            super.reIndex();
+            return null;
+        });
+        logChanges(REINDEX, Collections.emptyList());
+    }
+
+    /**
+     * see {@link IndexedSet#update(Object, Consumer)}
+     * element is logged as removed with its values before change, and as added with its values after
+     * it, so that replaying the update does not scan the index for the old buckets of element.
+     */
+    public boolean update(ElementType element, Consumer<? super ElementType> change) {
+        byte[] removal = this.changeDepth == 0 && this.log != null && contains(element)
+                ? encodeRecord(REMOVE, element) : null;
+        try {
+            return change(() -> super.update(element, change));
+        }
+        finally {
+            if (removal != null) {
+                logUpdate(removal, element);
+            }
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#reIndex(Object)}
+     * element is logged with its current values, and is re-indexed when the log is replayed, which
+     * scans the values of the indexes where element changed as reIndex does.
+     */
+    public void reIndex(ElementType element) {
+        boolean isContained = contains(element);
+        change(() -> {
+            super.reIndex(element);
+            return null;
+        });
+        if (isContained) {
+            logChanges(REINDEX_ELEMENT, Collections.singletonList(element));
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#reIndex(Collection)}
+     * The elements re-indexed are forced to the storage device at once.
+     */
+    public void reIndex(Collection<? extends ElementType> elements) {
+        Set<ElementType> contained = new LinkedHashSet<>();
+        for (ElementType element : elements) {
+            if (contains(element)) {
+                contained.add(element);
+            }
+        }
+        change(() -> {
+            super.reIndex(elements);
+            return null;
+        });
+        if (!contained.isEmpty()) {
+            logChanges(REINDEX_ELEMENT, contained);
+        }
+    }
+
+    public void dropIndex(String indexName) {
+        change(() -> {
+            super.dropIndex(indexName);
+            return null;
+        });
+        logChanges(DROP_INDEX, Collections.singletonList(indexName));
+    }
+
+    public void addIndex(String indexName, boolean isSorted) {
+        change(() -> {
+            super.addIndex(indexName, isSorted);
+            return null;
+        });
+        logChanges(isSorted ? ADD_SORTED_INDEX : ADD_INDEX, Collections.singletonList(indexName));
+    }
+
+    /**
+     * see {@link IndexedSet#deferIndexing()}
+     * Deferring indexes is not logged: a snapshot holds all indexes, built.
+     */
+    public void deferIndexing() {
+        change(() -> {
+            super.deferIndexing();
+            return null;
+        });
+    }
+
+    /**
+     * see {@link IndexedSet#reIndex(int)}
+     * The index is rebuilt with one thread when the log is replayed.
+     */
+    public void reIndex(int parallelism) {
+        change(() -> {
+            super.reIndex(parallelism);
+            return null;
+        });
+        logChanges(REINDEX, Collections.emptyList());
+    }
+
+    /**
+     * A ByteArrayOutputStream whose bytes can be read without copying them
+     */
+    private static final class RecordBytes extends ByteArrayOutputStream {
+
+        private byte[] bytes() {
+            return this.buf;
+        }
+    }
+}
@@ -0,0 +1,375 @@
+package com.github.vbro.cocoyam;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only, memory-mapped file of the elements and the index of an {@link IndexedSerializableSet},
+ * written by {@link IndexedSerializableSet#writeIndexFile(File)}.
+ *
+ * Opening the file reads only its header and the names of its indexes. A lookup by
+ * {@link #get(String, Object)} binary searches the sorted key directory of the index in the mapped
+ * file, and deserializes only the elements in the posting list of the key, so a restarted process
+ * answers lookups right away instead of reading the whole set first. Each element is deserialized
+ * at most once, when it is first returned.
+ *
+ * Keys are compared by their encoding by {@link KeyCodec}: primitives and their boxes, String, enums
+ * and CompositeKeys of these are encoded by value, and other values by their Java serialization, so
+ * such a value is found only if it serializes to the same bytes as the value in the file.
+ *
+ * Layout of the file, with ints in big-endian order and positions as offsets from its start:
+ * <pre>
+ * header:           MAGIC, VERSION, size, element count, position of element offsets,
+ *                   position of index directory
+ * elements:         the Java serialization of each element. The first size elements are the
+ *                   elements of the set, the others are only held by its index
+ * per index:        per key, its encoded key (length, bytes), and its posting list
+ *                   (count, ascending element numbers)
+ * element offsets:  the position of each element, and the end of the last element
+ * per index:        its key directory: per key, in ascending order of encoded keys,
+ *                   the position of the key and the position of its posting list
+ * index directory:  index count, and per index its name (modified UTF-8), key count,
+ *                   and the position of its key directory
+ * </pre>
+ */
+public final class MappedIndexFile<ElementType extends Serializable> {
+
+    static final int MAGIC = 0x43594958; // "CYIX"
+
+    static final int VERSION = 1;
+
+    private static final int HEADER_SIZE = 24;
+
+    // unsigned, lexicographic order of encoded keys
+    private static final Comparator<byte[]> KEY_ORDER = (a, b) -> {
+        int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+            if (a[i] != b[i]) {
+                return Integer.compare(a[i] & 0xff, b[i] & 0xff);
+            }
+        }
+        return Integer.compare(a.length, b.length);
+    };
+
+    private final ByteBuffer buffer;
+
+    private final int size;
+
+    private final int elementOffsets;
+
+    // maps index name to its key count and the position of its key directory
+    private final Map<String, int[]> directories;
+
+    // the deserialized element of each element number, or null if it has not been read yet
+    private final Object[] elements;
+
+    private MappedIndexFile(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("Not an index file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IOException(String.format("Unsupported version (%d) of index file", buffer.getInt(4)));
+        }
+        this.size = buffer.getInt(8);
+        this.elements = new Object[buffer.getInt(12)];
+        this.elementOffsets = buffer.getInt(16);
+
+        // the index directory is at the end of the file
+        byte[] bytes = new byte[buffer.capacity() - buffer.getInt(20)];
+        ByteBuffer source = buffer.duplicate();
+        source.position(buffer.getInt(20));
+        source.get(bytes);
+        DataInputStream directory = new DataInputStream(new ByteArrayInputStream(bytes));
+        int indexCount = directory.readInt();
+        this.directories = new LinkedHashMap<>(indexCount * 4 / 3 + 1);
+        for (int i = 0; i < indexCount; i++) {
+            String name = directory.readUTF();
+            int keyCount = directory.readInt();
+            this.directories.put(name, new int[] {keyCount, directory.readInt()});
+        }
+    }
+
+    /**
+     * Maps file into memory, and reads the names of its indexes
+     * @throws IOException if file cannot be read, or is not an index file of a supported version
+     */
+    public static <ElementType extends Serializable> MappedIndexFile<ElementType> open(File file)
+            throws IOException {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r")) {
+            FileChannel channel = randomAccessFile.getChannel();
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("An index file cannot be larger than 2 GB");
+            }
+            // the mapping remains valid after the channel is closed
+            return new MappedIndexFile<>(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Writes the elements and the index of set to file, see {@link MappedIndexFile}
+     * @throws IOException if file cannot be written, or would be larger than 2 GB
+     */
+    static <ElementType extends Serializable> void write(IndexedSet<ElementType> set, File file) throws IOException {
+        set.completeIndex();
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            randomAccessFile.setLength(0);
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(randomAccessFile.getFD()), 1 << 16));
+            out.write(new byte[HEADER_SIZE]);
+
+            // number the elements of the set, then the elements only held by the index
+            Map<ElementType, Integer> numbers = new HashMap<>(set.inventory.size() * 4 / 3 + 1);
+            List<ElementType> elements = new ArrayList<>(set.inventory);
+            for (ElementType element : elements) {
+                numbers.put(element, numbers.size());
+            }
+            for (Map<Object, Set<ElementType>> valuesMap : set.index.values()) {
+                for (Set<ElementType> elementSet : valuesMap.values()) {
+                    for (ElementType element : elementSet) {
+                        if (numbers.putIfAbsent(element, numbers.size()) == null) {
+                            elements.add(element);
+                        }
+                    }
+                }
+            }
+
+            int[] offsets = new int[elements.size() + 1];
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            for (int i = 0; i < elements.size(); i++) {
+                offsets[i] = position(out);
+                bytes.reset();
+                try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+                    oos.writeObject(elements.get(i));
+                }
+                bytes.writeTo(out);
+            }
+            offsets[elements.size()] = position(out);
+
+            Map<String, int[]> directories = new LinkedHashMap<>();
+            for (Map.Entry<String, Map<Object, Set<ElementType>>> entry : set.index.entrySet()) {
+                directories.put(entry.getKey(), writeKeysAndPostings(out, entry.getValue(), numbers));
+            }
+
+            int elementOffsets = position(out);
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            Map<String, Integer> directoryPositions = new HashMap<>();
+            for (Map.Entry<String, int[]> entry : directories.entrySet()) {
+                directoryPositions.put(entry.getKey(), position(out));
+                for (int position : entry.getValue()) {
+                    out.writeInt(position);
+                }
+            }
+            int indexDirectory = position(out);
+            out.writeInt(directories.size());
+            for (Map.Entry<String, int[]> entry : directories.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length / 2);
+                out.writeInt(directoryPositions.get(entry.getKey()));
+            }
+            // checks the size of the file
+            position(out);
+            out.flush();
+
+            randomAccessFile.seek(0);
+            randomAccessFile.writeInt(MAGIC);
+            randomAccessFile.writeInt(VERSION);
+            randomAccessFile.writeInt(set.inventory.size());
+            randomAccessFile.writeInt(elements.size());
+            randomAccessFile.writeInt(elementOffsets);
+            randomAccessFile.writeInt(indexDirectory);
+        }
+    }
+
+    /**
+     * Writes the keys of valuesMap in ascending order of their encoding, each followed by its posting list
+     * @return the key directory of valuesMap: per key, the position of the key and of its posting list
+     */
+    private static <ElementType> int[] writeKeysAndPostings(DataOutputStream out,
+                                                            Map<Object, Set<ElementType>> valuesMap,
+                                                            Map<ElementType, Integer> numbers) throws IOException {
+        List<byte[]> keys = new ArrayList<>(valuesMap.size());
+        Map<byte[], Set<ElementType>> buckets = new HashMap<>(valuesMap.size() * 4 / 3 + 1);
+        for (Map.Entry<Object, Set<ElementType>> entry : valuesMap.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                byte[] key = KeyCodec.encode(entry.getKey());
+                keys.add(key);
+                buckets.put(key, entry.getValue());
+            }
+        }
+        keys.sort(KEY_ORDER);
+
+        int[] directory = new int[keys.size() * 2];
+        for (int i = 0; i < keys.size(); i++) {
+            byte[] key = keys.get(i);
+            directory[2 * i] = position(out);
+            out.writeInt(key.length);
+            out.write(key);
+
+            Set<ElementType> elementSet = buckets.get(key);
+            int[] posting = new int[elementSet.size()];
+            int count = 0;
+            for (ElementType element : elementSet) {
+                posting[count++] = numbers.get(element);
+            }
+            Arrays.sort(posting, 0, count);
+            directory[2 * i + 1] = position(out);
+            out.writeInt(count);
+            for (int j = 0; j < count; j++) {
+                out.writeInt(posting[j]);
+            }
+        }
+        return directory;
+    }
+
+    /**
+     * @return the number of bytes written to out
+     * @throws IOException if more than 2 GB were written
+     */
+    private static int position(DataOutputStream out) throws IOException {
+        // DataOutputStream stops counting at Integer.MAX_VALUE
+        if (out.size() == Integer.MAX_VALUE) {
+            throw new IOException("An index file cannot be larger than 2 GB");
+        }
+        return out.size();
+    }
+
+    /**
+     * @return the number of elements in the set that was written to this file
+     */
+    public int size() {
+        return this.size;
+    }
+
+    /**
+     * @return the names of the indexes in this file
+     */
+    public Set<String> indexNames() {
+        return Collections.unmodifiableSet(this.directories.keySet());
+    }
+
+    /**
+     * @return a Set of the elements filed under value in the index of method methodName
+     * @throws IllegalArgumentException if method methodName is not in the index
+     */
+    public Set<ElementType> get(String methodName, Object value) {
+        int posting = find(methodName, value);
+        if (posting < 0) {
+            return new HashSet<>();
+        }
+        int count = this.buffer.getInt(posting);
+        Set<ElementType> s = new HashSet<>(count * 4 / 3 + 1);
+        for (int i = 0; i < count; i++) {
+            s.add(element(this.buffer.getInt(posting + 4 + 4 * i)));
+        }
+        return s;
+    }
+
+    /**
+     * @return the number of elements filed under value in the index of method methodName,
+     * which are not deserialized
+     * @throws IllegalArgumentException if method methodName is not in the index
+     */
+    public int count(String methodName, Object value) {
+        int posting = find(methodName, value);
+        return posting < 0 ? 0 : this.buffer.getInt(posting);
+    }
+
+    /**
+     * @return the position of the posting list of value in the index of method methodName,
+     * or -1 if value is not in the index
+     */
+    private int find(String methodName, Object value) {
+        int[] directory = this.directories.get(methodName);
+        if (directory == null) {
+            throw new IllegalArgumentException(String.format("Method \"%s\" is not indexed", methodName));
+        }
+        byte[] key;
+        try {
+            key = KeyCodec.encode(value);
+        }
+        catch (IOException e) {
+            // a value that cannot be serialized is not in the file
+            return -1;
+        }
+        int low = 0;
+        int high = directory[0] - 1;
+        while (low <= high) {
+            int middle = (low + high) >>> 1;
+            int entry = directory[1] + 8 * middle;
+            int comparison = compareKey(this.buffer.getInt(entry), key);
+            if (comparison < 0) {
+                low = middle + 1;
+            }
+            else if (comparison > 0) {
+                high = middle - 1;
+            }
+            else {
+                return this.buffer.getInt(entry + 4);
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return the comparison of the key at position in this file with key, in KEY_ORDER
+     */
+    private int compareKey(int position, byte[] key) {
+        int length = this.buffer.getInt(position);
+        int commonLength = Math.min(length, key.length);
+        for (int i = 0; i < commonLength; i++) {
+            byte b = this.buffer.get(position + 4 + i);
+            if (b != key[i]) {
+                return Integer.compare(b & 0xff, key[i] & 0xff);
+            }
+        }
+        return Integer.compare(length, key.length);
+    }
+
+    /**
+     * @return the element of number n, deserialized on its first use
+     * @throws IllegalStateException if the element cannot be deserialized
+     */
+    private ElementType element(int n) {
+        Object element = this.elements[n];
+        if (element == null) {
+            int offset = this.buffer.getInt(this.elementOffsets + 4 * n);
+            byte[] bytes = new byte[this.buffer.getInt(this.elementOffsets + 4 * n + 4) - offset];
+            ByteBuffer source = this.buffer.duplicate();
+            source.position(offset);
+            source.get(bytes);
+            try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+                element = ois.readObject();
+            }
+            catch (IOException | ClassNotFoundException e) {
+                throw new IllegalStateException(e);
+            }
+            this.elements[n] = element;
+        }
+        return (ElementType) element;
+    }
+}
@@ -0,0 +1,197 @@
+package com.github.vbro.cocoyam;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * An {@link IndexedSet} that keeps its index outside of the Java heap, for sets of millions of
+ * long-lived elements, whose index would otherwise be millions of long-lived map entries and
+ * buckets for the garbage collector to trace and copy.
+ *
+ * Each element is given a dense int id, as in a {@link CompactIndexedSet}, and the inventory keeps
+ * the elements by id in a few arrays on the heap. The values maps of the index keep their values and
+ * the ids of the elements of their buckets in direct ByteBuffers, see {@link OffHeapValuesMap}, so the
+ * index adds no objects per element to the heap. Values are encoded by their type, so only methods that
+ * return primitives, boxes of primitives, Strings or enums can be indexed. Sorted indexes and composite
+ * indexes are not supported.
+ *
+ * Off-heap memory is limited by -XX:MaxDirectMemorySize. The memory of values maps that are replaced,
+ * e.g. by {@link #clearIndex()} or {@link #trimToSize()}, is returned once they are garbage collected.
+ * Like an IndexedSet, an OffHeapIndexedSet is not thread-safe.
+ */
+public class OffHeapIndexedSet<ElementType> extends IndexedSet<ElementType> {
+
+    /**
+     * This protected zero-argument constructor is for {@link #clone()}.
+     */
+    protected OffHeapIndexedSet() {
+        super();
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Collection)}
+     * @throws IllegalArgumentException if a method does not return a primitive,
+     * a box of a primitive, a String or an enum
+     */
+    public OffHeapIndexedSet(Class elementClass, Collection<Method> methods) {
+        super(elementClass, methods);
+        checkReturnTypes();
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, String[])}
+     * @throws IllegalArgumentException if a method does not return a primitive,
+     * a box of a primitive, a String or an enum, or if a name is composite
+     */
+    public OffHeapIndexedSet(Class elementClass, String[] methodNames) {
+        super(elementClass, methodNames);
+        checkReturnTypes();
+    }
+
+    private void checkReturnTypes() {
+        for (String indexName : this.compositeMethods.keySet()) {
+            checkNotComposite(indexName);
+        }
+        for (Method method : this.indexedMethods.values()) {
+            checkReturnType(method);
+        }
+    }
+
+    /**
+     * Composite keys have no off-heap encoding, so their index would stay empty
+     */
+    private static void checkNotComposite(String indexName) {
+        if (indexName.contains(COMPOSITE_SEPARATOR)) {
+            throw new IllegalArgumentException(String.format(
+                    "OffHeapIndexedSet does not index composite keys (%s)", indexName));
+        }
+    }
+
+    private static void checkReturnType(Method method) {
+        if (!OffHeapValuesMap.isSupported(method.getReturnType())) {
+            throw new IllegalArgumentException(String.format(
+                    "Return type (%s) of method (%s) is neither primitive, nor a box of a primitive, " +
+                            "nor String, nor an enum", method.getReturnType().getName(), method.getName()));
+        }
+    }
+
+    /**
+     * see {@link IndexedSet#addIndex(String, boolean)}
+     * @throws IllegalArgumentException if the method does not return a primitive,
+     * a box of a primitive, a String or an enum, or if indexName is composite
+     */
+    public void addIndex(String indexName, boolean isSorted) {
+        checkNotComposite(indexName);
+        for (Method method : getMethods(this.elementClass, Collections.singleton(indexName))) {
+            checkReturnType(method);
+        }
+        super.addIndex(indexName, isSorted);
+    }
+
+    /**
+     * Values are encoded by the return types of methods, so only methods can be indexed.
+     * @throws UnsupportedOperationException always
+     */
+    public void addIndex(String indexName, Function<? super ElementType, ?> keyFunction) {
+        throw new UnsupportedOperationException("OffHeapIndexedSet does not index functions");
+    }
+
+    /**
+     * Clears the contents of the index, and releases the ids of elements that
+     * are no longer in the set or in the index, so they can be reused.
+     * This has no effects on the set of elements in this Set.
+     */
+    public void clearIndex() {
+        for (Map<Object, Set<ElementType>> valuesMap : this.index.values()) {
+            ((OffHeapValuesMap<ElementType>) valuesMap).releaseAll();
+        }
+        super.clearIndex();
+    }
+
+    /**
+     * Drops the index named indexName, see {@link IndexedSet#dropIndex(String)}, and releases the ids
+     * of elements that are no longer in the set or in the index, so they can be reused.
+     */
+    public void dropIndex(String indexName) {
+        Map<Object, Set<ElementType>> valuesMap = this.index.get(indexName);
+        super.dropIndex(indexName);
+        ((OffHeapValuesMap<ElementType>) valuesMap).releaseAll();
+    }
+
+    /**
+     * see {@link IndexedSet#clear(boolean)}
+     * The values maps of a cleared index give ids to the elements of the new inventory.
+     */
+    public void clear(boolean shouldClearIndex) {
+        if (shouldClearIndex) {
+            this.inventory = newInventory(0);
+            super.clearIndex();
+        }
+        else {
+            super.clear(false);
+        }
+    }
+
+    public OffHeapIndexedSet<ElementType> clone() {
+        return (OffHeapIndexedSet<ElementType>) super.clone();
+    }
+
+    protected IndexedSet<ElementType> newEmptySet() {
+        return new OffHeapIndexedSet<>();
+    }
+
+    protected Set<ElementType> newInventory(int expectedSize) {
+        return new ElementIds<>(expectedSize);
+    }
+
+    /**
+     * @throws IllegalArgumentException if isSorted, as sorted indexes are not supported
+     */
+    protected Map<Object, Set<ElementType>> newValuesMap(boolean isSorted, int expectedSize) {
+        if (isSorted) {
+            throw new IllegalArgumentException("OffHeapIndexedSet does not support sorted indexes");
+        }
+        return new OffHeapValuesMap<>((ElementIds<ElementType>) this.inventory, expectedSize);
+    }
+
+    /**
+     * Values of methods that return primitives are encoded off-heap.
+     */
+    protected Map<Object, Set<ElementType>> newPrimitiveValuesMap(Method method, int expectedSize) {
+        return null;
+    }
+
+    /**
+     * Buckets of indexes of few values are kept off-heap.
+     */
+    protected Map<Object, Set<ElementType>> newBitmapValuesMap() {
+        return null;
+    }
+
+    protected void addToBucket(Map<Object, Set<ElementType>> valuesMap, Object value, ElementType element) {
+        ((OffHeapValuesMap<ElementType>) valuesMap).addToBucket(value, element);
+    }
+
+    /**
+     * The parallel bulk load files the elements of different methods at the same time,
+     * so the holds on their ids are taken under the lock of the inventory.
+     */
+    protected void addAllToBucket(Map<Object, Set<ElementType>> valuesMap, Object value,
+                                  Collection<ElementType> elements) {
+        synchronized (this.inventory) {
+            ((OffHeapValuesMap<ElementType>) valuesMap).addAllToBucket(value, elements);
+        }
+    }
+
+    protected boolean removeFromBucket(Map<Object, Set<ElementType>> valuesMap, Object value, Object o) {
+        return ((OffHeapValuesMap<ElementType>) valuesMap).removeFromBucket(value, o);
+    }
+
+    protected void removeFromAllBuckets(Map<Object, Set<ElementType>> valuesMap, Collection<?> c) {
+        ((OffHeapValuesMap<ElementType>) valuesMap).removeFromAllBuckets(c);
+    }
+}
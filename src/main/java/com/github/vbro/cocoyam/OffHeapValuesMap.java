@@ -0,0 +1,817 @@
+package com.github.vbro.cocoyam;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.ConcurrentModificationException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * The values map of an index of an {@link OffHeapIndexedSet}, which keeps its values and the ids of
+ * the elements of its buckets in direct ByteBuffers, outside of the Java heap.
+ *
+ * Values are found by an open-addressing table with linear probing, whose slots hold the hash of a
+ * value, and the offsets of the value and of its bucket in an arena. A value is encoded with a tag of
+ * its type, which is a primitive or its box, a String or an enum. A bucket is an array of the ids of
+ * its elements, and the position of each id in its bucket is kept per id, so an id is removed by moving
+ * the last id of the bucket to its place. An id that is in several buckets of this map, e.g. of an
+ * element that changed before it was reindexed, is searched in its buckets instead. Space of values and
+ * buckets that were removed or outgrown is reclaimed by compacting the arena once it is mostly garbage.
+ *
+ * Elements are filed with the methods of this class. The Map methods decode values, and return
+ * unmodifiable views of buckets that follow later changes to this map.
+ */
+final class OffHeapValuesMap<E> extends AbstractMap<Object, Set<E>> {
+
+    // a slot of the table is the hash of its value, the offset of its value, or 0 if the slot is free,
+    // and the offset of its bucket
+    private static final int SLOT_BYTES = 12;
+
+    private static final int MIN_SLOTS = 16;
+
+    private static final int MIN_ARENA_BYTES = 1024;
+
+    private static final int MIN_BUCKET_CAPACITY = 2;
+
+    // position of an id that is in no bucket, or in several buckets
+    private static final int NO_POSITION = -1;
+    private static final int SEVERAL_POSITIONS = -2;
+
+    // tags of the types of encoded values
+    private static final byte NULL = 0;
+    private static final byte BOOLEAN = 1;
+    private static final byte BYTE = 2;
+    private static final byte SHORT = 3;
+    private static final byte CHARACTER = 4;
+    private static final byte INTEGER = 5;
+    private static final byte LONG = 6;
+    private static final byte FLOAT = 7;
+    private static final byte DOUBLE = 8;
+    private static final byte STRING = 9;
+    private static final byte ENUM = 10;
+
+    private static final List<Class<?>> BOXES = Arrays.asList(Boolean.class, Byte.class, Short.class,
+            Character.class, Integer.class, Long.class, Float.class, Double.class);
+
+    private final ElementIds<E> elementIds;
+
+    // classes of the enum values, by the number they are encoded with
+    private final List<Class<?>> enumClasses = new ArrayList<>();
+
+    private ByteBuffer table;
+
+    private int slotCount;
+
+    private int size;
+
+    // values and buckets; offset 0 is not used, so a slot of value offset 0 is free
+    private ByteBuffer arena;
+
+    private int top = 4;
+
+    private int garbage;
+
+    // position of each id in its bucket, NO_POSITION or SEVERAL_POSITIONS
+    private ByteBuffer positions;
+
+    private int modCount;
+
+    OffHeapValuesMap(ElementIds<E> elementIds, int expectedSize) {
+        this.elementIds = elementIds;
+        int slotCount = MIN_SLOTS;
+        while (slotCount / 4 * 3 < expectedSize) {
+            slotCount <<= 1;
+        }
+        this.slotCount = slotCount;
+        this.table = newBuffer(slotCount * SLOT_BYTES);
+        this.arena = newBuffer(MIN_ARENA_BYTES);
+        this.positions = newBuffer(0);
+    }
+
+    /**
+     * @return true if the values of a method that returns type can be kept in a values map of this class
+     */
+    static boolean isSupported(Class<?> type) {
+        return (type.isPrimitive() && !type.equals(Void.TYPE)) || BOXES.contains(type) ||
+                type.equals(String.class) || Enum.class.isAssignableFrom(type);
+    }
+
+    /**
+     * Adds element to the bucket of value, and creates the bucket if there is none.
+     * @throws IllegalArgumentException if value is not of a supported type
+     */
+    void addToBucket(Object value, E element) {
+        int h = hash(value);
+        int slot = findSlot(value, h);
+        if (slot < 0) {
+            slot = insertSlot(value, h);
+        }
+        int id = this.elementIds.acquire(element);
+        if (!addId(slot, id)) {
+            this.elementIds.release(id);
+        }
+        compactIfMostlyGarbage();
+    }
+
+    /**
+     * Adds elements to the bucket of value, and creates the bucket if there is none.
+     * @throws IllegalArgumentException if value is not of a supported type
+     */
+    void addAllToBucket(Object value, Collection<E> elements) {
+        for (E element : elements) {
+            addToBucket(value, element);
+        }
+    }
+
+    /**
+     * Removes o from the bucket of value, and removes the bucket if it becomes empty.
+     * @return true if o was found in the bucket
+     */
+    boolean removeFromBucket(Object value, Object o) {
+        int slot = findSlot(value, hash(value));
+        int id = this.elementIds.idOf(o);
+        if (slot < 0 || id < 0 || !removeId(bucketAt(slot), id)) {
+            return false;
+        }
+        this.elementIds.release(id);
+        if (bucketSize(bucketAt(slot)) == 0) {
+            removeSlot(slot);
+        }
+        compactIfMostlyGarbage();
+        return true;
+    }
+
+    /**
+     * Removes all objects in c from every bucket, and removes buckets that become empty.
+     */
+    void removeFromAllBuckets(Collection<?> c) {
+        int[] sortedIds = new int[c.size()];
+        int count = 0;
+        for (Object o : c) {
+            int id = this.elementIds.idOf(o);
+            if (id >= 0) {
+                sortedIds[count++] = id;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        // ids are added in ascending order, which appends them to an IdSet
+        Arrays.sort(sortedIds, 0, count);
+        IdSet ids = new IdSet();
+        for (int i = 0; i < count; i++) {
+            ids.add(sortedIds[i]);
+        }
+        // slots are removed after the scan, as removing a slot moves the slots after it
+        List<Object> emptied = new ArrayList<>();
+        for (int slot = 0; slot < this.slotCount; slot++) {
+            if (valueAt(slot) == 0) {
+                continue;
+            }
+            int bucket = bucketAt(slot);
+            int n = bucketSize(bucket);
+            int kept = 0;
+            for (int p = 0; p < n; p++) {
+                int id = idAt(bucket, p);
+                if (ids.contains(id)) {
+                    if (position(id) >= 0) {
+                        setPosition(id, NO_POSITION);
+                    }
+                    this.elementIds.release(id);
+                    continue;
+                }
+                if (kept < p) {
+                    setIdAt(bucket, kept, id);
+                    if (position(id) >= 0) {
+                        setPosition(id, kept);
+                    }
+                }
+                kept++;
+            }
+            this.arena.putInt(bucket + 4, kept);
+            if (kept == 0) {
+                emptied.add(decode(valueAt(slot)));
+            }
+        }
+        for (Object value : emptied) {
+            removeSlot(findSlot(value, hash(value)));
+        }
+        this.modCount++;
+        compactIfMostlyGarbage();
+    }
+
+    /**
+     * Removes all buckets from this map, and releases the ids of their elements
+     */
+    void releaseAll() {
+        for (int slot = 0; slot < this.slotCount; slot++) {
+            if (valueAt(slot) != 0) {
+                int bucket = bucketAt(slot);
+                for (int p = bucketSize(bucket) - 1; p >= 0; p--) {
+                    this.elementIds.release(idAt(bucket, p));
+                }
+            }
+        }
+        this.slotCount = MIN_SLOTS;
+        this.table = newBuffer(MIN_SLOTS * SLOT_BYTES);
+        this.size = 0;
+        this.arena = newBuffer(MIN_ARENA_BYTES);
+        this.top = 4;
+        this.garbage = 0;
+        this.positions = newBuffer(0);
+        this.enumClasses.clear();
+        this.modCount++;
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean containsKey(Object key) {
+        return findSlot(key, hash(key)) >= 0;
+    }
+
+    public Set<E> get(Object key) {
+        return containsKey(key) ? new BucketView(key) : null;
+    }
+
+    /**
+     * Same as {@link #releaseAll()}
+     */
+    public void clear() {
+        releaseAll();
+    }
+
+    public Set<Map.Entry<Object, Set<E>>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Set<E>>>() {
+
+            public int size() {
+                return OffHeapValuesMap.this.size;
+            }
+
+            public Iterator<Map.Entry<Object, Set<E>>> iterator() {
+                return new Iterator<Map.Entry<Object, Set<E>>>() {
+
+                    private final int expectedModCount = OffHeapValuesMap.this.modCount;
+
+                    private int next = advance(0);
+
+                    private int advance(int slot) {
+                        while (slot < OffHeapValuesMap.this.slotCount && valueAt(slot) == 0) {
+                            slot++;
+                        }
+                        return slot;
+                    }
+
+                    public boolean hasNext() {
+                        return this.next < OffHeapValuesMap.this.slotCount;
+                    }
+
+                    public Map.Entry<Object, Set<E>> next() {
+                        if (OffHeapValuesMap.this.modCount != this.expectedModCount) {
+                            throw new ConcurrentModificationException();
+                        }
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        Object value = decode(valueAt(this.next));
+                        this.next = advance(this.next + 1);
+                        return new AbstractMap.SimpleImmutableEntry<>(value, new BucketView(value));
+                    }
+                };
+            }
+        };
+    }
+
+    private static ByteBuffer newBuffer(int bytes) {
+        return ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    }
+
+    private static int hash(Object value) {
+        int h = value == null ? 0 : value.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private int hashAt(int slot) {
+        return this.table.getInt(slot * SLOT_BYTES);
+    }
+
+    private int valueAt(int slot) {
+        return this.table.getInt(slot * SLOT_BYTES + 4);
+    }
+
+    private int bucketAt(int slot) {
+        return this.table.getInt(slot * SLOT_BYTES + 8);
+    }
+
+    private void setSlot(int slot, int h, int value, int bucket) {
+        this.table.putInt(slot * SLOT_BYTES, h);
+        this.table.putInt(slot * SLOT_BYTES + 4, value);
+        this.table.putInt(slot * SLOT_BYTES + 8, bucket);
+    }
+
+    /**
+     * @return the slot of value, or -1 if value has no bucket
+     */
+    private int findSlot(Object value, int h) {
+        int mask = this.slotCount - 1;
+        for (int slot = h & mask; valueAt(slot) != 0; slot = (slot + 1) & mask) {
+            if (hashAt(slot) == h && matches(valueAt(slot), value)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Creates an empty bucket for value, which has none
+     * @return the slot of value
+     */
+    private int insertSlot(Object value, int h) {
+        byte tag = tagOf(value);
+        if (tag < 0) {
+            throw new IllegalArgumentException(String.format(
+                    "Value %s of %s cannot be kept off-heap", value, value.getClass().getName()));
+        }
+        if (this.size + 1 > this.slotCount / 4 * 3) {
+            resize(this.slotCount * 2);
+        }
+        int valueOffset = allocate(valueSize(tag, value));
+        encode(valueOffset, tag, value);
+        int bucket = allocate(8 + 4 * MIN_BUCKET_CAPACITY);
+        this.arena.putInt(bucket, MIN_BUCKET_CAPACITY);
+        this.arena.putInt(bucket + 4, 0);
+        int mask = this.slotCount - 1;
+        int slot = h & mask;
+        while (valueAt(slot) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        setSlot(slot, h, valueOffset, bucket);
+        this.size++;
+        this.modCount++;
+        return slot;
+    }
+
+    /**
+     * Frees slot, and moves the slots after it that would no longer be found from their home slot
+     */
+    private void removeSlot(int slot) {
+        this.garbage += blockSize(valueAt(slot)) + 8 + 4 * bucketCapacity(bucketAt(slot));
+        int mask = this.slotCount - 1;
+        int hole = slot;
+        int j = slot;
+        while (true) {
+            j = (j + 1) & mask;
+            if (valueAt(j) == 0) {
+                break;
+            }
+            int home = hashAt(j) & mask;
+            // the slot can move to the hole unless its home is cyclically in (hole, j]
+            boolean isBetween = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!isBetween) {
+                setSlot(hole, hashAt(j), valueAt(j), bucketAt(j));
+                hole = j;
+            }
+        }
+        setSlot(hole, 0, 0, 0);
+        this.size--;
+        this.modCount++;
+    }
+
+    private void resize(int slotCount) {
+        ByteBuffer oldTable = this.table;
+        int oldSlotCount = this.slotCount;
+        this.table = newBuffer(slotCount * SLOT_BYTES);
+        this.slotCount = slotCount;
+        int mask = slotCount - 1;
+        for (int i = 0; i < oldSlotCount; i++) {
+            int value = oldTable.getInt(i * SLOT_BYTES + 4);
+            if (value != 0) {
+                int h = oldTable.getInt(i * SLOT_BYTES);
+                int slot = h & mask;
+                while (valueAt(slot) != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                setSlot(slot, h, value, oldTable.getInt(i * SLOT_BYTES + 8));
+            }
+        }
+        this.modCount++;
+    }
+
+    /**
+     * @return the offset of a new block of at least bytes bytes in the arena
+     */
+    private int allocate(int bytes) {
+        bytes = (bytes + 3) & ~3;
+        if (this.top + bytes > this.arena.capacity()) {
+            long capacity = Math.max(2L * this.arena.capacity(), (long) this.top + bytes);
+            if (capacity > Integer.MAX_VALUE) {
+                throw new IllegalStateException("An off-heap index cannot hold more than 2 GB");
+            }
+            ByteBuffer arena = newBuffer((int) capacity);
+            copy(this.arena, 0, arena, 0, this.top);
+            this.arena = arena;
+        }
+        int offset = this.top;
+        this.top += bytes;
+        return offset;
+    }
+
+    private static void copy(ByteBuffer from, int fromOffset, ByteBuffer to, int toOffset, int bytes) {
+        ByteBuffer source = from.duplicate();
+        source.limit(fromOffset + bytes).position(fromOffset);
+        ByteBuffer target = to.duplicate();
+        target.position(toOffset);
+        target.put(source);
+    }
+
+    /**
+     * Moves all values and buckets to a new arena, if more than half of the arena is garbage
+     */
+    private void compactIfMostlyGarbage() {
+        if (this.garbage < MIN_ARENA_BYTES || this.garbage * 2 < this.top) {
+            return;
+        }
+        int live = 4;
+        for (int slot = 0; slot < this.slotCount; slot++) {
+            if (valueAt(slot) != 0) {
+                live += blockSize(valueAt(slot)) +
+                        8 + 4 * Math.max(MIN_BUCKET_CAPACITY, bucketSize(bucketAt(slot)));
+            }
+        }
+        ByteBuffer arena = newBuffer(Math.max(MIN_ARENA_BYTES, live + live / 2));
+        int top = 4;
+        for (int slot = 0; slot < this.slotCount; slot++) {
+            int value = valueAt(slot);
+            if (value == 0) {
+                continue;
+            }
+            int valueBytes = blockSize(value);
+            copy(this.arena, value, arena, top, valueBytes);
+            int valueOffset = top;
+            top += valueBytes;
+            int bucket = bucketAt(slot);
+            int n = bucketSize(bucket);
+            int capacity = Math.max(MIN_BUCKET_CAPACITY, n);
+            copy(this.arena, bucket + 8, arena, top + 8, 4 * n);
+            arena.putInt(top, capacity);
+            arena.putInt(top + 4, n);
+            setSlot(slot, hashAt(slot), valueOffset, top);
+            top += 8 + 4 * capacity;
+        }
+        this.arena = arena;
+        this.top = top;
+        this.garbage = 0;
+        this.modCount++;
+    }
+
+    private int bucketCapacity(int bucket) {
+        return this.arena.getInt(bucket);
+    }
+
+    private int bucketSize(int bucket) {
+        return this.arena.getInt(bucket + 4);
+    }
+
+    private int idAt(int bucket, int p) {
+        return this.arena.getInt(bucket + 8 + 4 * p);
+    }
+
+    private void setIdAt(int bucket, int p, int id) {
+        this.arena.putInt(bucket + 8 + 4 * p, id);
+    }
+
+    /**
+     * @return the position of id in bucket, or -1 if id is not in bucket
+     */
+    private int positionIn(int bucket, int id) {
+        int n = bucketSize(bucket);
+        int p = position(id);
+        if (p >= 0) {
+            return p < n && idAt(bucket, p) == id ? p : -1;
+        }
+        if (p == SEVERAL_POSITIONS) {
+            for (int i = 0; i < n; i++) {
+                if (idAt(bucket, i) == id) {
+                    return i;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Adds id to the bucket of slot
+     * @return true if id was not in the bucket
+     */
+    private boolean addId(int slot, int id) {
+        int bucket = bucketAt(slot);
+        if (positionIn(bucket, id) >= 0) {
+            return false;
+        }
+        int n = bucketSize(bucket);
+        if (n == bucketCapacity(bucket)) {
+            int grown = allocate(8 + 8 * n);
+            copy(this.arena, bucket, this.arena, grown, 8 + 4 * n);
+            this.arena.putInt(grown, 2 * n);
+            this.garbage += 8 + 4 * n;
+            bucket = grown;
+            setSlot(slot, hashAt(slot), valueAt(slot), bucket);
+        }
+        setIdAt(bucket, n, id);
+        this.arena.putInt(bucket + 4, n + 1);
+        setPosition(id, position(id) == NO_POSITION ? n : SEVERAL_POSITIONS);
+        this.modCount++;
+        return true;
+    }
+
+    /**
+     * Removes id from bucket, and moves the last id of bucket to its place
+     * @return true if id was in bucket
+     */
+    private boolean removeId(int bucket, int id) {
+        int p = positionIn(bucket, id);
+        if (p < 0) {
+            return false;
+        }
+        int n = bucketSize(bucket);
+        int last = idAt(bucket, n - 1);
+        setIdAt(bucket, p, last);
+        this.arena.putInt(bucket + 4, n - 1);
+        if (position(last) >= 0) {
+            setPosition(last, p);
+        }
+        if (position(id) >= 0) {
+            setPosition(id, NO_POSITION);
+        }
+        this.modCount++;
+        return true;
+    }
+
+    private int position(int id) {
+        return 4 * id < this.positions.capacity() ? this.positions.getInt(4 * id) : NO_POSITION;
+    }
+
+    private void setPosition(int id, int position) {
+        if (4 * id >= this.positions.capacity()) {
+            int capacity = Math.max(4 * (id + 1), 2 * this.positions.capacity());
+            ByteBuffer positions = newBuffer(capacity);
+            copy(this.positions, 0, positions, 0, this.positions.capacity());
+            for (int i = this.positions.capacity(); i < capacity; i += 4) {
+                positions.putInt(i, NO_POSITION);
+            }
+            this.positions = positions;
+        }
+        this.positions.putInt(4 * id, position);
+    }
+
+    /**
+     * @return the tag of the type of value, or -1 if values of that type are not supported
+     */
+    private static byte tagOf(Object value) {
+        if (value == null) {
+            return NULL;
+        }
+        if (value instanceof String) {
+            return STRING;
+        }
+        if (value instanceof Enum) {
+            return ENUM;
+        }
+        int box = BOXES.indexOf(value.getClass());
+        return box < 0 ? -1 : (byte) (BOOLEAN + box);
+    }
+
+    private static int valueSize(byte tag, Object value) {
+        switch (tag) {
+            case NULL:
+                return 1;
+            case BOOLEAN:
+            case BYTE:
+                return 2;
+            case SHORT:
+            case CHARACTER:
+                return 3;
+            case INTEGER:
+            case FLOAT:
+                return 5;
+            case STRING:
+                return 5 + 2 * ((String) value).length();
+            default:
+                return 9;
+        }
+    }
+
+    /**
+     * @return the number of bytes of the block of the value at offset
+     */
+    private int blockSize(int offset) {
+        byte tag = this.arena.get(offset);
+        int bytes = tag == STRING ? 5 + 2 * this.arena.getInt(offset + 1) : valueSize(tag, null);
+        return (bytes + 3) & ~3;
+    }
+
+    private void encode(int offset, byte tag, Object value) {
+        this.arena.put(offset, tag);
+        switch (tag) {
+            case BOOLEAN:
+                this.arena.put(offset + 1, (byte) ((Boolean) value ? 1 : 0));
+                break;
+            case BYTE:
+                this.arena.put(offset + 1, (Byte) value);
+                break;
+            case SHORT:
+                this.arena.putShort(offset + 1, (Short) value);
+                break;
+            case CHARACTER:
+                this.arena.putChar(offset + 1, (Character) value);
+                break;
+            case INTEGER:
+                this.arena.putInt(offset + 1, (Integer) value);
+                break;
+            case LONG:
+                this.arena.putLong(offset + 1, (Long) value);
+                break;
+            case FLOAT:
+                this.arena.putInt(offset + 1, Float.floatToIntBits((Float) value));
+                break;
+            case DOUBLE:
+                this.arena.putLong(offset + 1, Double.doubleToLongBits((Double) value));
+                break;
+            case STRING:
+                String s = (String) value;
+                this.arena.putInt(offset + 1, s.length());
+                for (int i = 0; i < s.length(); i++) {
+                    this.arena.putChar(offset + 5 + 2 * i, s.charAt(i));
+                }
+                break;
+            case ENUM:
+                Enum<?> e = (Enum<?>) value;
+                int enumClass = this.enumClasses.indexOf(e.getDeclaringClass());
+                if (enumClass < 0) {
+                    enumClass = this.enumClasses.size();
+                    this.enumClasses.add(e.getDeclaringClass());
+                }
+                this.arena.putInt(offset + 1, enumClass);
+                this.arena.putInt(offset + 5, e.ordinal());
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * @return true if the value at offset is equal to value, without decoding it
+     */
+    private boolean matches(int offset, Object value) {
+        byte tag = tagOf(value);
+        if (this.arena.get(offset) != tag) {
+            return false;
+        }
+        switch (tag) {
+            case NULL:
+                return true;
+            case BOOLEAN:
+                return (this.arena.get(offset + 1) != 0) == (Boolean) value;
+            case BYTE:
+                return this.arena.get(offset + 1) == (Byte) value;
+            case SHORT:
+                return this.arena.getShort(offset + 1) == (Short) value;
+            case CHARACTER:
+                return this.arena.getChar(offset + 1) == (Character) value;
+            case INTEGER:
+                return this.arena.getInt(offset + 1) == (Integer) value;
+            case LONG:
+                return this.arena.getLong(offset + 1) == (Long) value;
+            case FLOAT:
+                return this.arena.getInt(offset + 1) == Float.floatToIntBits((Float) value);
+            case DOUBLE:
+                return this.arena.getLong(offset + 1) == Double.doubleToLongBits((Double) value);
+            case STRING:
+                String s = (String) value;
+                if (this.arena.getInt(offset + 1) != s.length()) {
+                    return false;
+                }
+                for (int i = 0; i < s.length(); i++) {
+                    if (this.arena.getChar(offset + 5 + 2 * i) != s.charAt(i)) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                Enum<?> e = (Enum<?>) value;
+                return this.enumClasses.get(this.arena.getInt(offset + 1)).equals(e.getDeclaringClass()) &&
+                        this.arena.getInt(offset + 5) == e.ordinal();
+        }
+    }
+
+    /**
+     * @return the value at offset
+     */
+    private Object decode(int offset) {
+        switch (this.arena.get(offset)) {
+            case NULL:
+                return null;
+            case BOOLEAN:
+                return this.arena.get(offset + 1) != 0;
+            case BYTE:
+                return this.arena.get(offset + 1);
+            case SHORT:
+                return this.arena.getShort(offset + 1);
+            case CHARACTER:
+                return this.arena.getChar(offset + 1);
+            case INTEGER:
+                return this.arena.getInt(offset + 1);
+            case LONG:
+                return this.arena.getLong(offset + 1);
+            case FLOAT:
+                return Float.intBitsToFloat(this.arena.getInt(offset + 1));
+            case DOUBLE:
+                return Double.longBitsToDouble(this.arena.getLong(offset + 1));
+            case STRING:
+                char[] chars = new char[this.arena.getInt(offset + 1)];
+                for (int i = 0; i < chars.length; i++) {
+                    chars[i] = this.arena.getChar(offset + 5 + 2 * i);
+                }
+                return new String(chars);
+            default:
+                Class<?> enumClass = this.enumClasses.get(this.arena.getInt(offset + 1));
+                return enumClass.getEnumConstants()[this.arena.getInt(offset + 5)];
+        }
+    }
+
+    /**
+     * Unmodifiable view of the bucket of one value. The bucket is looked up again
+     * whenever this map changed, as buckets move when they grow or are compacted.
+     */
+    private final class BucketView extends AbstractSet<E> {
+
+        private final Object value;
+
+        private int bucket;
+
+        private int expectedModCount = -1;
+
+        private BucketView(Object value) {
+            this.value = value;
+        }
+
+        /**
+         * @return the offset of the bucket of value, or -1 if there is none
+         */
+        private int bucket() {
+            if (this.expectedModCount != OffHeapValuesMap.this.modCount) {
+                int slot = findSlot(this.value, hash(this.value));
+                this.bucket = slot < 0 ? -1 : bucketAt(slot);
+                this.expectedModCount = OffHeapValuesMap.this.modCount;
+            }
+            return this.bucket;
+        }
+
+        public int size() {
+            int bucket = bucket();
+            return bucket < 0 ? 0 : bucketSize(bucket);
+        }
+
+        public boolean contains(Object o) {
+            int bucket = bucket();
+            int id = OffHeapValuesMap.this.elementIds.idOf(o);
+            return bucket >= 0 && id >= 0 && positionIn(bucket, id) >= 0;
+        }
+
+        public Iterator<E> iterator() {
+            int bucket = bucket();
+            int expectedModCount = OffHeapValuesMap.this.modCount;
+            int n = bucket < 0 ? 0 : bucketSize(bucket);
+            return new Iterator<E>() {
+
+                private int next;
+
+                public boolean hasNext() {
+                    return this.next < n;
+                }
+
+                public E next() {
+                    if (OffHeapValuesMap.this.modCount != expectedModCount) {
+                        throw new ConcurrentModificationException();
+                    }
+                    if (!hasNext()) {
+                        throw new NoSuchElementException();
+                    }
+                    return OffHeapValuesMap.this.elementIds.element(idAt(bucket, this.next++));
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,492 @@
+package com.github.vbro.cocoyam;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A hash array mapped trie, used for the versions of a {@link SnapshotIndexedSet}.
+ *
+ * Maps that share a trie are created with {@link #fork(Edit)}. A map can only be changed while
+ * its {@link Edit} is open, and a change copies the path from the root to the changed entry,
+ * so the other maps that share the trie are not affected. Nodes that were created during
+ * the same edit are not shared yet, and are changed in place instead of being copied.
+ * Once its edit is closed, a map and the nodes it shares are never changed again.
+ *
+ * The trie has up to 32 children per node, indexed by 5 bits of the hash code of the key.
+ * Keys with equal hash codes are kept in a collision node. The null key is kept outside the trie.
+ */
+final class PersistentHashMap<K, V> extends AbstractMap<K, V> {
+
+    /**
+     * The token of a batch of changes. Nodes created during the batch belong to its token.
+     */
+    static final class Edit {
+
+        private boolean isOpen = true;
+
+        /**
+         * Ends the batch. Maps of this edit cannot be changed anymore.
+         */
+        void close() {
+            this.isOpen = false;
+        }
+    }
+
+    private static final int BITS = 5;
+
+    private static final int MASK = (1 << BITS) - 1;
+
+    private static final Object NOT_FOUND = new Object();
+
+    private final Edit edit;
+
+    private Node root;
+
+    private int size;
+
+    private boolean hasNullKey;
+
+    private V nullKeyValue;
+
+    /**
+     * Creates an empty map that can be changed while edit is open.
+     */
+    PersistentHashMap(Edit edit) {
+        this.edit = edit;
+    }
+
+    private PersistentHashMap(Edit edit, Node root, int size, boolean hasNullKey, V nullKeyValue) {
+        this.edit = edit;
+        this.root = root;
+        this.size = size;
+        this.hasNullKey = hasNullKey;
+        this.nullKeyValue = nullKeyValue;
+    }
+
+    /**
+     * @return a map with the same entries as this map, which shares its trie with this map,
+     * and can be changed while edit is open
+     */
+    PersistentHashMap<K, V> fork(Edit edit) {
+        return new PersistentHashMap<>(edit, this.root, this.size, this.hasNullKey, this.nullKeyValue);
+    }
+
+    /**
+     * @return true if this map can be changed in edit
+     */
+    boolean isWritable(Edit edit) {
+        return this.edit == edit && edit != null && edit.isOpen;
+    }
+
+    private void checkWritable() {
+        if (this.edit == null || !this.edit.isOpen) {
+            throw new UnsupportedOperationException("This version is read-only");
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean containsKey(Object key) {
+        if (key == null) {
+            return this.hasNullKey;
+        }
+        return this.root != null && this.root.find(0, key.hashCode(), key) != NOT_FOUND;
+    }
+
+    public V get(Object key) {
+        if (key == null) {
+            return this.nullKeyValue;
+        }
+        if (this.root == null) {
+            return null;
+        }
+        Object value = this.root.find(0, key.hashCode(), key);
+        return value == NOT_FOUND ? null : (V) value;
+    }
+
+    public V put(K key, V value) {
+        checkWritable();
+        if (key == null) {
+            V oldValue = this.nullKeyValue;
+            if (!this.hasNullKey) {
+                this.hasNullKey = true;
+                this.size++;
+            }
+            this.nullKeyValue = value;
+            return oldValue;
+        }
+        Change change = new Change();
+        Node node = this.root == null ? BitmapNode.EMPTY : this.root;
+        this.root = node.assoc(this.edit, 0, key.hashCode(), key, value, change);
+        if (change.isAdded) {
+            this.size++;
+        }
+        return (V) change.oldValue;
+    }
+
+    public V remove(Object key) {
+        checkWritable();
+        if (key == null) {
+            V oldValue = this.nullKeyValue;
+            if (this.hasNullKey) {
+                this.hasNullKey = false;
+                this.nullKeyValue = null;
+                this.size--;
+            }
+            return oldValue;
+        }
+        if (this.root == null) {
+            return null;
+        }
+        Change change = new Change();
+        this.root = this.root.without(this.edit, 0, key.hashCode(), key, change);
+        if (change.isRemoved) {
+            this.size--;
+        }
+        return (V) change.oldValue;
+    }
+
+    public void clear() {
+        checkWritable();
+        this.root = null;
+        this.size = 0;
+        this.hasNullKey = false;
+        this.nullKeyValue = null;
+    }
+
+    public Set<Map.Entry<K, V>> entrySet() {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            public int size() {
+                return PersistentHashMap.this.size;
+            }
+
+            public Iterator<Map.Entry<K, V>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    /**
+     * The outcome of a change of a node
+     */
+    private static final class Change {
+        boolean isAdded;
+        boolean isRemoved;
+        Object oldValue;
+    }
+
+    private static int bitpos(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    private abstract static class Node {
+
+        // the edit this node was created in
+        final Edit edit;
+
+        // pairs of key and value. A null key marks a child node in the value slot.
+        Object[] array;
+
+        Node(Edit edit, Object[] array) {
+            this.edit = edit;
+            this.array = array;
+        }
+
+        /**
+         * @return true if this node was created in edit, and can be changed in place
+         */
+        boolean isOwned(Edit edit) {
+            return edit != null && this.edit == edit;
+        }
+
+        /**
+         * @return the value of key, or NOT_FOUND
+         */
+        abstract Object find(int shift, int hash, Object key);
+
+        /**
+         * @return this node, or a copy of it, with value mapped to key
+         */
+        abstract Node assoc(Edit edit, int shift, int hash, Object key, Object value, Change change);
+
+        /**
+         * @return this node, or a copy of it, without key, or null if the node becomes empty
+         */
+        abstract Node without(Edit edit, int shift, int hash, Object key, Change change);
+
+        static Object[] removePair(Object[] array, int i) {
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i + 2, newArray, i, array.length - i - 2);
+            return newArray;
+        }
+    }
+
+    private static final class BitmapNode extends Node {
+
+        static final BitmapNode EMPTY = new BitmapNode(null, 0, new Object[0]);
+
+        // bit i is set if the node has a pair for the 5 bits of hash i
+        int bitmap;
+
+        BitmapNode(Edit edit, int bitmap, Object[] array) {
+            super(edit, array);
+            this.bitmap = bitmap;
+        }
+
+        private int index(int bit) {
+            return 2 * Integer.bitCount(this.bitmap & (bit - 1));
+        }
+
+        private BitmapNode editable(Edit edit) {
+            return isOwned(edit) ? this : new BitmapNode(edit, this.bitmap, this.array.clone());
+        }
+
+        private BitmapNode withArray(Edit edit, int bitmap, Object[] array) {
+            if (isOwned(edit)) {
+                this.bitmap = bitmap;
+                this.array = array;
+                return this;
+            }
+            return new BitmapNode(edit, bitmap, array);
+        }
+
+        Object find(int shift, int hash, Object key) {
+            int bit = bitpos(hash, shift);
+            if ((this.bitmap & bit) == 0) {
+                return NOT_FOUND;
+            }
+            int i = index(bit);
+            Object k = this.array[i];
+            if (k == null) {
+                return ((Node) this.array[i + 1]).find(shift + BITS, hash, key);
+            }
+            return key.equals(k) ? this.array[i + 1] : NOT_FOUND;
+        }
+
+        Node assoc(Edit edit, int shift, int hash, Object key, Object value, Change change) {
+            int bit = bitpos(hash, shift);
+            int i = index(bit);
+            if ((this.bitmap & bit) == 0) {
+                Object[] newArray = new Object[this.array.length + 2];
+                System.arraycopy(this.array, 0, newArray, 0, i);
+                newArray[i] = key;
+                newArray[i + 1] = value;
+                System.arraycopy(this.array, i, newArray, i + 2, this.array.length - i);
+                change.isAdded = true;
+                return withArray(edit, this.bitmap | bit, newArray);
+            }
+            Object k = this.array[i];
+            Object v = this.array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).assoc(edit, shift + BITS, hash, key, value, change);
+                if (child == v) {
+                    return this;
+                }
+                BitmapNode node = editable(edit);
+                node.array[i + 1] = child;
+                return node;
+            }
+            if (key.equals(k)) {
+                change.oldValue = v;
+                if (v == value) {
+                    return this;
+                }
+                BitmapNode node = editable(edit);
+                node.array[i + 1] = value;
+                return node;
+            }
+            change.isAdded = true;
+            BitmapNode node = editable(edit);
+            node.array[i] = null;
+            node.array[i + 1] = createNode(edit, shift + BITS, k, v, hash, key, value);
+            return node;
+        }
+
+        Node without(Edit edit, int shift, int hash, Object key, Change change) {
+            int bit = bitpos(hash, shift);
+            if ((this.bitmap & bit) == 0) {
+                return this;
+            }
+            int i = index(bit);
+            Object k = this.array[i];
+            Object v = this.array[i + 1];
+            if (k == null) {
+                Node child = ((Node) v).without(edit, shift + BITS, hash, key, change);
+                if (child == v) {
+                    return this;
+                }
+                if (child != null) {
+                    BitmapNode node = editable(edit);
+                    node.array[i + 1] = child;
+                    return node;
+                }
+            }
+            else if (key.equals(k)) {
+                change.isRemoved = true;
+                change.oldValue = v;
+            }
+            else {
+                return this;
+            }
+            if (this.bitmap == bit) {
+                return null;
+            }
+            return withArray(edit, this.bitmap ^ bit, removePair(this.array, i));
+        }
+
+        /**
+         * @return a node with both pairs, for keys whose hashes are equal up to shift
+         */
+        private static Node createNode(Edit edit, int shift, Object key1, Object value1,
+                                       int hash2, Object key2, Object value2) {
+            int hash1 = key1.hashCode();
+            if (hash1 == hash2) {
+                return new CollisionNode(edit, hash1, new Object[] {key1, value1, key2, value2});
+            }
+            Change change = new Change();
+            return EMPTY.assoc(edit, shift, hash1, key1, value1, change)
+                    .assoc(edit, shift, hash2, key2, value2, change);
+        }
+    }
+
+    private static final class CollisionNode extends Node {
+
+        // the hash code of all keys of this node
+        final int hash;
+
+        CollisionNode(Edit edit, int hash, Object[] array) {
+            super(edit, array);
+            this.hash = hash;
+        }
+
+        private int indexOf(Object key) {
+            for (int i = 0; i < this.array.length; i += 2) {
+                if (key.equals(this.array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        private CollisionNode withArray(Edit edit, Object[] array) {
+            if (isOwned(edit)) {
+                this.array = array;
+                return this;
+            }
+            return new CollisionNode(edit, this.hash, array);
+        }
+
+        Object find(int shift, int hash, Object key) {
+            if (hash != this.hash) {
+                return NOT_FOUND;
+            }
+            int i = indexOf(key);
+            return i < 0 ? NOT_FOUND : this.array[i + 1];
+        }
+
+        Node assoc(Edit edit, int shift, int hash, Object key, Object value, Change change) {
+            if (hash != this.hash) {
+                // nest this node in a bitmap node that tells the two hashes apart
+                return new BitmapNode(edit, bitpos(this.hash, shift), new Object[] {null, this})
+                        .assoc(edit, shift, hash, key, value, change);
+            }
+            int i = indexOf(key);
+            if (i >= 0) {
+                change.oldValue = this.array[i + 1];
+                if (this.array[i + 1] == value) {
+                    return this;
+                }
+                Object[] newArray = isOwned(edit) ? this.array : this.array.clone();
+                newArray[i + 1] = value;
+                return withArray(edit, newArray);
+            }
+            Object[] newArray = Arrays.copyOf(this.array, this.array.length + 2);
+            newArray[this.array.length] = key;
+            newArray[this.array.length + 1] = value;
+            change.isAdded = true;
+            return withArray(edit, newArray);
+        }
+
+        Node without(Edit edit, int shift, int hash, Object key, Change change) {
+            int i = hash == this.hash ? indexOf(key) : -1;
+            if (i < 0) {
+                return this;
+            }
+            change.isRemoved = true;
+            change.oldValue = this.array[i + 1];
+            if (this.array.length == 2) {
+                return null;
+            }
+            return withArray(edit, removePair(this.array, i));
+        }
+    }
+
+    /**
+     * Iterates the entry of the null key, then the pairs of the trie, depth first
+     */
+    private final class EntryIterator implements Iterator<Map.Entry<K, V>> {
+
+        // 7 levels of bitmap nodes for 32 bits of hash, and a collision node
+        private final Object[][] arrays = new Object[8][];
+
+        private final int[] positions = new int[8];
+
+        private int depth = -1;
+
+        private Map.Entry<K, V> next;
+
+        private EntryIterator() {
+            if (PersistentHashMap.this.root != null) {
+                push(PersistentHashMap.this.root.array);
+            }
+            this.next = PersistentHashMap.this.hasNullKey ?
+                    new SimpleImmutableEntry<>(null, PersistentHashMap.this.nullKeyValue) : advance();
+        }
+
+        private void push(Object[] array) {
+            this.depth++;
+            this.arrays[this.depth] = array;
+            this.positions[this.depth] = 0;
+        }
+
+        private Map.Entry<K, V> advance() {
+            while (this.depth >= 0) {
+                Object[] array = this.arrays[this.depth];
+                int i = this.positions[this.depth];
+                if (i >= array.length) {
+                    this.arrays[this.depth--] = null;
+                    continue;
+                }
+                this.positions[this.depth] = i + 2;
+                if (array[i] == null) {
+                    push(((Node) array[i + 1]).array);
+                }
+                else {
+                    return new SimpleImmutableEntry<>((K) array[i], (V) array[i + 1]);
+                }
+            }
+            return null;
+        }
+
+        public boolean hasNext() {
+            return this.next != null;
+        }
+
+        public Map.Entry<K, V> next() {
+            if (this.next == null) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<K, V> entry = this.next;
+            this.next = advance();
+            return entry;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package com.github.vbro.cocoyam;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+
+/**
+ * A Set backed by a {@link PersistentHashMap}, used for the inventory and the buckets
+ * of the versions of a {@link SnapshotIndexedSet}.
+ * Like the map, a set can only be changed while its edit is open.
+ */
+final class PersistentHashSet<E> extends AbstractSet<E> {
+
+    private final PersistentHashMap<E, Boolean> map;
+
+    /**
+     * Creates an empty set that can be changed while edit is open.
+     */
+    PersistentHashSet(PersistentHashMap.Edit edit) {
+        this(new PersistentHashMap<>(edit));
+    }
+
+    private PersistentHashSet(PersistentHashMap<E, Boolean> map) {
+        this.map = map;
+    }
+
+    /**
+     * @return a set with the same elements as this set, which shares its trie with this set,
+     * and can be changed while edit is open
+     */
+    PersistentHashSet<E> fork(PersistentHashMap.Edit edit) {
+        return new PersistentHashSet<>(this.map.fork(edit));
+    }
+
+    /**
+     * @return true if this set can be changed in edit
+     */
+    boolean isWritable(PersistentHashMap.Edit edit) {
+        return this.map.isWritable(edit);
+    }
+
+    public int size() {
+        return this.map.size();
+    }
+
+    public boolean contains(Object o) {
+        return this.map.containsKey(o);
+    }
+
+    public boolean add(E e) {
+        return this.map.put(e, Boolean.TRUE) == null;
+    }
+
+    public boolean remove(Object o) {
+        return this.map.remove(o) != null;
+    }
+
+    public void clear() {
+        this.map.clear();
+    }
+
+    public Iterator<E> iterator() {
+        return this.map.keySet().iterator();
+    }
+}
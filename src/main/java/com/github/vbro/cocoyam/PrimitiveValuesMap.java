@@ -0,0 +1,432 @@
+package com.github.vbro.cocoyam;
+
+import java.io.Serializable;
+import java.lang.reflect.Method;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.Set;
+import java.util.function.ToDoubleFunction;
+import java.util.function.ToIntFunction;
+import java.util.function.ToLongFunction;
+
+/**
+ * The values map of the unsorted index of a method that returns int, long or double.
+ *
+ * Values are kept unboxed as long keys of an open-addressing table with linear probing: an int is
+ * widened, and a double is kept as its {@link Double#doubleToLongBits(double)}, so two values have
+ * the same key exactly when their boxes are equal. A value of a single element keeps the element
+ * itself instead of a bucket; the bucket of a value of several elements is a HashSet.
+ *
+ * Elements are filed with the methods of this class, which compute the key of an element through
+ * an accessor that does not box it. The Map methods box values and return unmodifiable buckets,
+ * which are copied by {@link #put(Object, Set)}.
+ *
+ * Keys that are smaller than the capacity of the table are kept at their own slot, so small
+ * values iterate in ascending order, as they do in a HashMap. This map is serialized as a HashMap.
+ */
+final class PrimitiveValuesMap<E> extends AbstractMap<Object, Set<E>> implements Serializable {
+
+    private static final int MIN_CAPACITY = 16;
+
+    // class of the boxed values: Integer, Long or Double
+    private final Class<?> valueClass;
+
+    // computes the key of an element without boxing its value
+    private final ToLongFunction<E> keyFunction;
+
+    private long[] keys;
+
+    // per slot: null if the slot is free, a Bucket, or else the single element of the value of the slot
+    private Object[] slots;
+
+    private int size;
+
+    // no slot is further than maxDistance slots from the home slot of its key, see home(long)
+    private int maxDistance;
+
+    // number of bits of a slot index
+    private int bits;
+
+    /**
+     * @return a new, empty values map for the index of method, with room for expectedSize values,
+     * or null if method does not return int, long or double
+     */
+    static <E> PrimitiveValuesMap<E> of(Method method, int expectedSize) {
+        Class<?> returnType = method.getReturnType();
+        if (returnType.equals(Integer.TYPE)) {
+            ToIntFunction<E> accessor = Accessors.ofInt(method);
+            return new PrimitiveValuesMap<>(Integer.class, element -> accessor.applyAsInt(element), expectedSize);
+        }
+        if (returnType.equals(Long.TYPE)) {
+            return new PrimitiveValuesMap<>(Long.class, Accessors.ofLong(method), expectedSize);
+        }
+        if (returnType.equals(Double.TYPE)) {
+            ToDoubleFunction<E> accessor = Accessors.ofDouble(method);
+            return new PrimitiveValuesMap<>(Double.class,
+                    element -> Double.doubleToLongBits(accessor.applyAsDouble(element)), expectedSize);
+        }
+        return null;
+    }
+
+    private PrimitiveValuesMap(Class<?> valueClass, ToLongFunction<E> keyFunction, int expectedSize) {
+        this.valueClass = valueClass;
+        this.keyFunction = keyFunction;
+        int capacity = MIN_CAPACITY;
+        while (capacity / 4 * 3 < expectedSize && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        allocate(capacity);
+    }
+
+    /**
+     * @return a new, empty values map for the same method as this map, with room for expectedSize values
+     */
+    PrimitiveValuesMap<E> newEmptyMap(int expectedSize) {
+        return new PrimitiveValuesMap<>(this.valueClass, this.keyFunction, expectedSize);
+    }
+
+    /**
+     * Adds element to the bucket of its value
+     */
+    void addElement(E element) {
+        addToBucket(this.keyFunction.applyAsLong(element), element);
+    }
+
+    /**
+     * Removes o from the bucket of its value, and removes the bucket if it becomes empty.
+     * @return true if o was found in the bucket
+     * @throws ClassCastException if o is not an element of the indexed class
+     */
+    boolean removeElement(Object o) {
+        return removeFromBucket(this.keyFunction.applyAsLong((E) o), o);
+    }
+
+    /**
+     * Adds element to the bucket of value
+     * @throws ClassCastException if value is not a value of the indexed method
+     * @throws NullPointerException if value is null
+     */
+    void addToBucket(Object value, E element) {
+        addToBucket(toKey(value), element);
+    }
+
+    /**
+     * Adds elements to the bucket of value
+     * @throws ClassCastException if value is not a value of the indexed method
+     * @throws NullPointerException if value is null
+     */
+    void addAllToBucket(Object value, Collection<? extends E> elements) {
+        long key = toKey(value);
+        for (E element : elements) {
+            addToBucket(key, element);
+        }
+    }
+
+    /**
+     * Removes o from the bucket of value, and removes the bucket if it becomes empty.
+     * @return true if o was found in the bucket
+     */
+    boolean removeFromBucket(Object value, Object o) {
+        return this.valueClass.isInstance(value) && removeFromBucket(toKey(value), o);
+    }
+
+    /**
+     * Removes all objects in c from every bucket, and removes buckets that become empty.
+     */
+    void removeFromAllBuckets(Collection<?> c) {
+        // slots are freed after the scan, as freeing a slot may move the slots after it
+        long[] emptied = new long[8];
+        int emptiedCount = 0;
+        for (int i = 0; i < this.slots.length; i++) {
+            Object slot = this.slots[i];
+            boolean isEmptied;
+            if (slot instanceof Bucket) {
+                Bucket<E> bucket = (Bucket<E>) slot;
+                bucket.removeAll(c);
+                isEmptied = bucket.isEmpty();
+                if (bucket.size() == 1) {
+                    this.slots[i] = bucket.iterator().next();
+                }
+            }
+            else {
+                isEmptied = slot != null && c.contains(slot);
+            }
+            if (isEmptied) {
+                if (emptiedCount == emptied.length) {
+                    emptied = Arrays.copyOf(emptied, emptiedCount * 2);
+                }
+                emptied[emptiedCount++] = this.keys[i];
+            }
+        }
+        for (int i = 0; i < emptiedCount; i++) {
+            free(indexOf(emptied[i]));
+        }
+    }
+
+    public int size() {
+        return this.size;
+    }
+
+    public boolean containsKey(Object value) {
+        return this.valueClass.isInstance(value) && this.slots[indexOf(toKey(value))] != null;
+    }
+
+    public Set<E> get(Object value) {
+        if (!this.valueClass.isInstance(value)) {
+            return null;
+        }
+        Object slot = this.slots[indexOf(toKey(value))];
+        return slot == null ? null : bucket(slot);
+    }
+
+    /**
+     * Replaces the bucket of value by a copy of elements, or removes it if elements is empty
+     * @throws ClassCastException if value is not a value of the indexed method
+     * @throws NullPointerException if value is null
+     */
+    public Set<E> put(Object value, Set<E> elements) {
+        long key = toKey(value);
+        Set<E> previous = remove(value);
+        for (E element : elements) {
+            addToBucket(key, element);
+        }
+        return previous;
+    }
+
+    public Set<E> remove(Object value) {
+        if (!this.valueClass.isInstance(value)) {
+            return null;
+        }
+        int i = indexOf(toKey(value));
+        Object slot = this.slots[i];
+        if (slot == null) {
+            return null;
+        }
+        free(i);
+        return bucket(slot);
+    }
+
+    public void clear() {
+        Arrays.fill(this.keys, 0L);
+        Arrays.fill(this.slots, null);
+        this.size = 0;
+        this.maxDistance = 0;
+    }
+
+    public Set<Map.Entry<Object, Set<E>>> entrySet() {
+        return new AbstractSet<Map.Entry<Object, Set<E>>>() {
+            public int size() {
+                return PrimitiveValuesMap.this.size;
+            }
+
+            public Iterator<Map.Entry<Object, Set<E>>> iterator() {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private Object writeReplace() {
+        return new HashMap<>(this);
+    }
+
+    private void addToBucket(long key, E element) {
+        int i = indexOf(key);
+        Object slot = this.slots[i];
+        if (slot == null) {
+            this.keys[i] = key;
+            this.slots[i] = element;
+            this.maxDistance = Math.max(this.maxDistance, distance(i, key));
+            this.size++;
+            if (this.size > this.slots.length / 4 * 3) {
+                resize(this.slots.length * 2);
+            }
+        }
+        else if (slot instanceof Bucket) {
+            ((Bucket<E>) slot).add(element);
+        }
+        else if (!slot.equals(element)) {
+            Bucket<E> bucket = new Bucket<>();
+            bucket.add((E) slot);
+            bucket.add(element);
+            this.slots[i] = bucket;
+        }
+    }
+
+    private boolean removeFromBucket(long key, Object o) {
+        int i = indexOf(key);
+        Object slot = this.slots[i];
+        if (slot instanceof Bucket) {
+            Bucket<E> bucket = (Bucket<E>) slot;
+            if (!bucket.remove(o)) {
+                return false;
+            }
+            if (bucket.size() == 1) {
+                this.slots[i] = bucket.iterator().next();
+            }
+            return true;
+        }
+        if (slot == null || !Objects.equals(o, slot)) {
+            return false;
+        }
+        free(i);
+        return true;
+    }
+
+    /**
+     * @return an unmodifiable Set of the elements in slot
+     */
+    private Set<E> bucket(Object slot) {
+        return slot instanceof Bucket ? Collections.unmodifiableSet((Bucket<E>) slot) : Collections.singleton((E) slot);
+    }
+
+    /**
+     * @throws ClassCastException if value is not a value of the indexed method
+     * @throws NullPointerException if value is null
+     */
+    private long toKey(Object value) {
+        if (this.valueClass.equals(Double.class)) {
+            return Double.doubleToLongBits((Double) value);
+        }
+        return ((Number) this.valueClass.cast(value)).longValue();
+    }
+
+    private Object toValue(long key) {
+        if (this.valueClass.equals(Integer.class)) {
+            return (int) key;
+        }
+        if (this.valueClass.equals(Long.class)) {
+            return key;
+        }
+        return Double.longBitsToDouble(key);
+    }
+
+    /**
+     * @return the slot of key, or the free slot where key would be added
+     */
+    private int indexOf(long key) {
+        int mask = this.slots.length - 1;
+        int i = home(key);
+        while (this.slots[i] != null && this.keys[i] != key) {
+            i = (i + 1) & mask;
+        }
+        return i;
+    }
+
+    /**
+     * @return the first slot to probe for key. The bits of key that do not fit in a slot
+     * index are mixed into the index, and the other bits are kept as they are.
+     */
+    private int home(long key) {
+        int h = (int) key ^ mix((int) (key >>> 32));
+        return (h ^ mix(h >>> this.bits)) & (this.slots.length - 1);
+    }
+
+    /**
+     * @return the finalizer of MurmurHash3 applied to h; mix(0) is 0
+     */
+    private static int mix(int h) {
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return the number of slots from the home slot of key to slot i
+     */
+    private int distance(int i, long key) {
+        return (i - home(key)) & (this.slots.length - 1);
+    }
+
+    /**
+     * Frees slot i, and moves the slots after it that would no longer be found from their home slot.
+     * Only the slots within maxDistance of the freed slot can move to it, which keeps this short when
+     * keys fill a long run of slots, as consecutive ids do.
+     */
+    private void free(int i) {
+        int mask = this.slots.length - 1;
+        int hole = i;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (this.slots[j] == null || ((j - hole) & mask) > this.maxDistance) {
+                break;
+            }
+            int home = home(this.keys[j]);
+            // the slot can move to the hole unless its home is cyclically in (hole, j]
+            boolean isBetween = hole <= j ? (hole < home && home <= j) : (hole < home || home <= j);
+            if (!isBetween) {
+                this.keys[hole] = this.keys[j];
+                this.slots[hole] = this.slots[j];
+                hole = j;
+            }
+        }
+        this.keys[hole] = 0L;
+        this.slots[hole] = null;
+        this.size--;
+    }
+
+    private void allocate(int capacity) {
+        this.keys = new long[capacity];
+        this.slots = new Object[capacity];
+        this.bits = Integer.numberOfTrailingZeros(capacity);
+        this.maxDistance = 0;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = this.keys;
+        Object[] oldSlots = this.slots;
+        allocate(capacity);
+        for (int i = 0; i < oldSlots.length; i++) {
+            if (oldSlots[i] != null) {
+                int j = indexOf(oldKeys[i]);
+                this.keys[j] = oldKeys[i];
+                this.slots[j] = oldSlots[i];
+                this.maxDistance = Math.max(this.maxDistance, distance(j, oldKeys[i]));
+            }
+        }
+    }
+
+    /**
+     * The bucket of a value of several elements. No element of an index is a Bucket, so a slot
+     * that is a Bucket is never a single element.
+     */
+    private static final class Bucket<E> extends HashSet<E> {}
+
+    private final class EntryIterator implements Iterator<Map.Entry<Object, Set<E>>> {
+
+        private int next = advance(0);
+
+        private int advance(int i) {
+            while (i < PrimitiveValuesMap.this.slots.length && PrimitiveValuesMap.this.slots[i] == null) {
+                i++;
+            }
+            return i;
+        }
+
+        public boolean hasNext() {
+            return this.next < PrimitiveValuesMap.this.slots.length;
+        }
+
+        public Map.Entry<Object, Set<E>> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            int i = this.next;
+            this.next = advance(i + 1);
+            return new AbstractMap.SimpleImmutableEntry<>(toValue(PrimitiveValuesMap.this.keys[i]),
+                    bucket(PrimitiveValuesMap.this.slots[i]));
+        }
+    }
+}
@@ -0,0 +1,500 @@
+package com.github.vbro.cocoyam;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+/**
+ * A query on the elements of an {@link IndexedSet}, evaluated with {@link IndexedSet#query(Query)}.
+ * Queries are built from conditions on indexed methods, e.g.
+ * {@code Query.and(Query.eq("getCity", "Berlin"), Query.in("getStatus", ACTIVE, PENDING))},
+ * and from predicates on elements, {@link #where(Predicate)}, for conditions that are not indexed.
+ *
+ * Conditions on indexed methods are answered from the index, based on its current state.
+ * An and-query is driven by the condition with the smallest number of matching elements,
+ * taken from the sizes of the buckets in the index, and the other conditions are checked
+ * on those elements only. No intermediate sets are created. A scan of the whole set is
+ * only needed if a query cannot be driven by any indexed condition.
+ *
+ * The buckets of a {@link CompactIndexedSet}, and of the indexes of few values of an IndexedSet,
+ * are sets of element ids, so and-queries and or-queries of their conditions intersect and unite
+ * the ids of their buckets instead, and are counted without visiting their elements.
+ */
+public abstract class Query<ElementType> {
+
+    Query() {}
+
+    /**
+     * @return a query for the elements that return value when method methodName is invoked
+     */
+    public static <ElementType> Query<ElementType> eq(String methodName, Object value) {
+        return new In<>(methodName, Arrays.asList(value));
+    }
+
+    /**
+     * @return a query for the elements that return any of values when method methodName is invoked
+     */
+    public static <ElementType> Query<ElementType> in(String methodName, Object... values) {
+        return new In<>(methodName, Arrays.asList(values));
+    }
+
+    /**
+     * @return a query for the elements that return any of values when method methodName is invoked
+     */
+    public static <ElementType> Query<ElementType> in(String methodName, Collection<?> values) {
+        return new In<>(methodName, values);
+    }
+
+    /**
+     * @return a query for the elements that return a value between fromValue and toValue
+     * when method methodName is invoked. Method methodName must be indexed in sorted order.
+     */
+    public static <ElementType> Query<ElementType> range(String methodName, Object fromValue, boolean fromInclusive,
+                                                         Object toValue, boolean toInclusive) {
+        return new Range<>(methodName, fromValue, fromInclusive, toValue, toInclusive);
+    }
+
+    /**
+     * @return a query for the elements that match predicate. This condition is
+     * not indexed, and is evaluated on every element it is checked for.
+     */
+    public static <ElementType> Query<ElementType> where(Predicate<? super ElementType> predicate) {
+        return new Where<>(predicate);
+    }
+
+    /**
+     * @return a query for the elements that match all of queries
+     */
+    @SafeVarargs
+    public static <ElementType> Query<ElementType> and(Query<ElementType>... queries) {
+        return new And<>(Arrays.asList(queries));
+    }
+
+    /**
+     * @return a query for the elements that match any of queries
+     */
+    @SafeVarargs
+    public static <ElementType> Query<ElementType> or(Query<ElementType>... queries) {
+        return new Or<>(Arrays.asList(queries));
+    }
+
+    /**
+     * @return a query for the elements that do not match query
+     */
+    public static <ElementType> Query<ElementType> not(Query<ElementType> query) {
+        return new Not<>(query);
+    }
+
+    /**
+     * @return the elements of set that match this query
+     */
+    Stream<ElementType> evaluate(IndexedSet<ElementType> set) {
+        if (isIndexed(set)) {
+            return candidates(set);
+        }
+        return set.inventory.stream().filter(element -> matches(set, element));
+    }
+
+    /**
+     * @return the number of elements of set that match this query
+     */
+    int count(IndexedSet<ElementType> set) {
+        IdSet ids = isIndexed(set) ? ids(set) : null;
+        if (ids != null) {
+            return ids.size();
+        }
+        return (int) evaluate(set).count();
+    }
+
+    /**
+     * @return true if the elements matching this query can be found from the index of set
+     */
+    abstract boolean isIndexed(IndexedSet<ElementType> set);
+
+    /**
+     * @return an upper bound of the number of elements of set that match this query
+     */
+    abstract int estimate(IndexedSet<ElementType> set);
+
+    /**
+     * Only called if {@link #isIndexed(IndexedSet)}.
+     * @return the elements of set that match this query, found from the index of set, without duplicates
+     */
+    abstract Stream<ElementType> candidates(IndexedSet<ElementType> set);
+
+    /**
+     * @return true if element of set matches this query
+     */
+    abstract boolean matches(IndexedSet<ElementType> set, ElementType element);
+
+    /**
+     * Only called if {@link #isIndexed(IndexedSet)}.
+     * @return the ids of the elements of set that match this query, found from the buckets of set
+     * if they are {@link IdBucket}s of {@link IndexedSet#elementIds()}, or null if they are not.
+     * The returned IdSet should not be modified.
+     */
+    IdSet ids(IndexedSet<ElementType> set) {
+        return null;
+    }
+
+    /**
+     * @return the elements of set of ids
+     */
+    private static <ElementType> Stream<ElementType> elements(IndexedSet<ElementType> set, IdSet ids) {
+        ElementIds<ElementType> elementIds = set.elementIds();
+        return ids.stream().mapToObj(elementIds::element);
+    }
+
+    private static class In<ElementType> extends Query<ElementType> {
+
+        private final String methodName;
+        private final Set<Object> values;
+
+        private In(String methodName, Collection<?> values) {
+            this.methodName = methodName;
+            this.values = new LinkedHashSet<>(values);
+        }
+
+        boolean isIndexed(IndexedSet<ElementType> set) {
+            return true;
+        }
+
+        int estimate(IndexedSet<ElementType> set) {
+            int estimate = 0;
+            for (Object value : this.values) {
+                estimate += set.bucket(this.methodName, value).size();
+            }
+            return estimate;
+        }
+
+        Stream<ElementType> candidates(IndexedSet<ElementType> set) {
+            // an element is filed under one value per method, so the buckets are disjoint
+            return this.values.stream().flatMap(value -> set.bucket(this.methodName, value).stream());
+        }
+
+        boolean matches(IndexedSet<ElementType> set, ElementType element) {
+            for (Object value : this.values) {
+                if (set.bucket(this.methodName, value).contains(element)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        IdSet ids(IndexedSet<ElementType> set) {
+            ElementIds<ElementType> elementIds = set.elementIds();
+            if (elementIds == null) {
+                return null;
+            }
+            IdSet ids = new IdSet();
+            for (Object value : this.values) {
+                Set<ElementType> elementSet = set.bucket(this.methodName, value);
+                if (elementSet.isEmpty()) {
+                    continue;
+                }
+                // buckets that were created before the ids were replaced have other ids
+                if (!(elementSet instanceof IdBucket) ||
+                        ((IdBucket<ElementType>) elementSet).elementIds() != elementIds) {
+                    return null;
+                }
+                IdSet bucketIds = ((IdBucket<ElementType>) elementSet).ids();
+                ids = ids.isEmpty() ? bucketIds : IdSet.or(ids, bucketIds);
+            }
+            return ids;
+        }
+    }
+
+    private static class Range<ElementType> extends Query<ElementType> {
+
+        private final String methodName;
+        private final Object fromValue;
+        private final boolean fromInclusive;
+        private final Object toValue;
+        private final boolean toInclusive;
+
+        private Range(String methodName, Object fromValue, boolean fromInclusive, Object toValue, boolean toInclusive) {
+            this.methodName = methodName;
+            this.fromValue = fromValue;
+            this.fromInclusive = fromInclusive;
+            this.toValue = toValue;
+            this.toInclusive = toInclusive;
+        }
+
+        private NavigableMap<Object, Set<ElementType>> subMap(IndexedSet<ElementType> set) {
+            return set.getSortedValuesMap(this.methodName).subMap(
+                    this.fromValue, this.fromInclusive, this.toValue, this.toInclusive);
+        }
+
+        boolean isIndexed(IndexedSet<ElementType> set) {
+            return true;
+        }
+
+        int estimate(IndexedSet<ElementType> set) {
+            long estimate = 0;
+            for (Set<ElementType> elementSet : subMap(set).values()) {
+                estimate += elementSet.size();
+            }
+            return (int) Math.min(estimate, Integer.MAX_VALUE);
+        }
+
+        Stream<ElementType> candidates(IndexedSet<ElementType> set) {
+            return subMap(set).values().stream().flatMap(Set::stream);
+        }
+
+        boolean matches(IndexedSet<ElementType> set, ElementType element) {
+            NavigableMap<Object, Set<ElementType>> valuesMap = set.getSortedValuesMap(this.methodName);
+            Function<ElementType, Object> accessor = set.accessors.get(this.methodName);
+            if (accessor == null) {
+                // the index was dropped since its values map was looked up
+                throw new IllegalArgumentException(String.format("Method \"%s\" is not indexed", this.methodName));
+            }
+            Object value;
+            try {
+                value = accessor.apply(element);
+            }
+            catch (Exception e) {
+                return false;
+            }
+            Comparator<Object> comparator = (Comparator<Object>) valuesMap.comparator();
+            int fromComparison = comparator.compare(value, this.fromValue);
+            int toComparison = comparator.compare(value, this.toValue);
+            if (fromComparison < 0 || (fromComparison == 0 && !this.fromInclusive) ||
+                    toComparison > 0 || (toComparison == 0 && !this.toInclusive)) {
+                return false;
+            }
+            Set<ElementType> elementSet = set.getBucket(valuesMap, value);
+            return elementSet != null && elementSet.contains(element);
+        }
+    }
+
+    private static class Where<ElementType> extends Query<ElementType> {
+
+        private final Predicate<? super ElementType> predicate;
+
+        private Where(Predicate<? super ElementType> predicate) {
+            this.predicate = predicate;
+        }
+
+        boolean isIndexed(IndexedSet<ElementType> set) {
+            return false;
+        }
+
+        int estimate(IndexedSet<ElementType> set) {
+            return set.size();
+        }
+
+        Stream<ElementType> candidates(IndexedSet<ElementType> set) {
+            throw new UnsupportedOperationException("Predicates are not indexed");
+        }
+
+        boolean matches(IndexedSet<ElementType> set, ElementType element) {
+            return this.predicate.test(element);
+        }
+    }
+
+    private static class Not<ElementType> extends Query<ElementType> {
+
+        private final Query<ElementType> query;
+
+        private Not(Query<ElementType> query) {
+            this.query = query;
+        }
+
+        boolean isIndexed(IndexedSet<ElementType> set) {
+            return false;
+        }
+
+        int estimate(IndexedSet<ElementType> set) {
+            return set.size();
+        }
+
+        Stream<ElementType> candidates(IndexedSet<ElementType> set) {
+            throw new UnsupportedOperationException("Negations are not indexed");
+        }
+
+        boolean matches(IndexedSet<ElementType> set, ElementType element) {
+            return !this.query.matches(set, element);
+        }
+    }
+
+    private static class And<ElementType> extends Query<ElementType> {
+
+        private final List<Query<ElementType>> queries;
+
+        private And(List<Query<ElementType>> queries) {
+            if (queries.isEmpty()) {
+                throw new IllegalArgumentException("and() needs at least one query");
+            }
+            this.queries = queries;
+        }
+
+        boolean isIndexed(IndexedSet<ElementType> set) {
+            for (Query<ElementType> query : this.queries) {
+                if (query.isIndexed(set)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        int estimate(IndexedSet<ElementType> set) {
+            int estimate = set.size();
+            for (Query<ElementType> query : this.queries) {
+                if (query.isIndexed(set)) {
+                    estimate = Math.min(estimate, query.estimate(set));
+                }
+            }
+            return estimate;
+        }
+
+        Stream<ElementType> candidates(IndexedSet<ElementType> set) {
+            // intersect the ids of the queries that have them, and check the others on their elements
+            IdSet ids = null;
+            List<Query<ElementType>> others = new ArrayList<>();
+            for (Query<ElementType> query : this.queries) {
+                IdSet queryIds = query.isIndexed(set) ? query.ids(set) : null;
+                if (queryIds == null) {
+                    others.add(query);
+                }
+                else {
+                    ids = ids == null ? queryIds : IdSet.and(ids, queryIds);
+                }
+            }
+            // the intersected ids drive unless another indexed query has fewer matches
+            int size = ids == null ? 0 : ids.size();
+            if (ids != null && others.stream().noneMatch(other ->
+                    other.isIndexed(set) && other.estimate(set) < size)) {
+                return elements(set, ids).filter(element -> {
+                    for (Query<ElementType> other : others) {
+                        if (!other.matches(set, element)) {
+                            return false;
+                        }
+                    }
+                    return true;
+                });
+            }
+
+            // drive with the indexed query that has the fewest matches, and check the others
+            // on its elements, most selective first
+            Map<Query<ElementType>, Integer> estimates = new IdentityHashMap<>();
+            Query<ElementType> driver = null;
+            for (Query<ElementType> query : this.queries) {
+                int estimate = query.estimate(set);
+                estimates.put(query, estimate);
+                if (query.isIndexed(set) && (driver == null || estimate < estimates.get(driver))) {
+                    driver = query;
+                }
+            }
+            List<Query<ElementType>> filters = new ArrayList<>(this.queries);
+            filters.remove(driver);
+            filters.sort(Comparator.comparing(estimates::get));
+            return driver.candidates(set).filter(element -> {
+                for (Query<ElementType> filter : filters) {
+                    if (!filter.matches(set, element)) {
+                        return false;
+                    }
+                }
+                return true;
+            });
+        }
+
+        boolean matches(IndexedSet<ElementType> set, ElementType element) {
+            for (Query<ElementType> query : this.queries) {
+                if (!query.matches(set, element)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        IdSet ids(IndexedSet<ElementType> set) {
+            IdSet ids = null;
+            for (Query<ElementType> query : this.queries) {
+                IdSet queryIds = query.isIndexed(set) ? query.ids(set) : null;
+                if (queryIds == null) {
+                    return null;
+                }
+                ids = ids == null ? queryIds : IdSet.and(ids, queryIds);
+            }
+            return ids;
+        }
+    }
+
+    private static class Or<ElementType> extends Query<ElementType> {
+
+        private final List<Query<ElementType>> queries;
+
+        private Or(List<Query<ElementType>> queries) {
+            if (queries.isEmpty()) {
+                throw new IllegalArgumentException("or() needs at least one query");
+            }
+            this.queries = queries;
+        }
+
+        boolean isIndexed(IndexedSet<ElementType> set) {
+            for (Query<ElementType> query : this.queries) {
+                if (!query.isIndexed(set)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int estimate(IndexedSet<ElementType> set) {
+            long estimate = 0;
+            for (Query<ElementType> query : this.queries) {
+                estimate += query.estimate(set);
+            }
+            return (int) Math.min(estimate, set.size());
+        }
+
+        Stream<ElementType> candidates(IndexedSet<ElementType> set) {
+            IdSet ids = ids(set);
+            if (ids != null) {
+                return elements(set, ids);
+            }
+            // an element is only taken from the first query it matches
+            return IntStream.range(0, this.queries.size()).boxed().flatMap(i ->
+                    this.queries.get(i).candidates(set).filter(element -> {
+                        for (Query<ElementType> query : this.queries.subList(0, i)) {
+                            if (query.matches(set, element)) {
+                                return false;
+                            }
+                        }
+                        return true;
+                    }));
+        }
+
+        boolean matches(IndexedSet<ElementType> set, ElementType element) {
+            for (Query<ElementType> query : this.queries) {
+                if (query.matches(set, element)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        IdSet ids(IndexedSet<ElementType> set) {
+            IdSet ids = null;
+            for (Query<ElementType> query : this.queries) {
+                IdSet queryIds = query.ids(set);
+                if (queryIds == null) {
+                    return null;
+                }
+                ids = ids == null ? queryIds : IdSet.or(ids, queryIds);
+            }
+            return ids;
+        }
+    }
+}
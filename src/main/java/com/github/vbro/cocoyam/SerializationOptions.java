@@ -0,0 +1,81 @@
+package com.github.vbro.cocoyam;
+
+/**
+ * Options of the serialization of an {@link IndexedSerializableSet},
+ * see {@link IndexedSerializableSet#setSerializationOptions(SerializationOptions)}.
+ * SerializationOptions are immutable.
+ */
+public final class SerializationOptions {
+
+    private static final SerializationOptions WRITE_INDEX = new SerializationOptions(true, 1, false);
+
+    private final boolean shouldWriteIndex;
+
+    private final int parallelism;
+
+    private final boolean isLazy;
+
+    private SerializationOptions(boolean shouldWriteIndex, int parallelism, boolean isLazy) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException(String.format(
+                    "Parallelism should be at least 1, but is %d", parallelism));
+        }
+        this.shouldWriteIndex = shouldWriteIndex;
+        this.parallelism = parallelism;
+        this.isLazy = isLazy;
+    }
+
+    /**
+     * @return options to write the index with the elements, and to read it back as it was written.
+     * These are the default options.
+     */
+    public static SerializationOptions writeIndex() {
+        return WRITE_INDEX;
+    }
+
+    /**
+     * @return options to write only the elements and the names of the indexes, and to rebuild
+     * the index from the elements with one thread when the set is read
+     */
+    public static SerializationOptions rebuildIndex() {
+        return new SerializationOptions(false, 1, false);
+    }
+
+    /**
+     * @return options like these, which rebuild the index with parallelism threads,
+     * see {@link IndexedSet#reIndex(int)}
+     * @throws IllegalArgumentException if parallelism is less than 1
+     */
+    public SerializationOptions withParallelism(int parallelism) {
+        return new SerializationOptions(this.shouldWriteIndex, parallelism, this.isLazy);
+    }
+
+    /**
+     * @return options like these, which rebuild the index of each method the first time it is used
+     * if isLazy, instead of when the set is read
+     */
+    public SerializationOptions withLazyIndexes(boolean isLazy) {
+        return new SerializationOptions(this.shouldWriteIndex, this.parallelism, isLazy);
+    }
+
+    /**
+     * @return true if the index is written with the elements
+     */
+    public boolean shouldWriteIndex() {
+        return this.shouldWriteIndex;
+    }
+
+    /**
+     * @return the number of threads that rebuild the index
+     */
+    public int getParallelism() {
+        return this.parallelism;
+    }
+
+    /**
+     * @return true if the index of each method is rebuilt the first time it is used
+     */
+    public boolean isLazy() {
+        return this.isLazy;
+    }
+}
@@ -0,0 +1,501 @@
+package com.github.vbro.cocoyam;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * An {@link IndexedSet} for data that is read much more often than it is changed, e.g. by many threads.
+ *
+ * Every change publishes a new immutable version of the inventory and index, which readers get from
+ * {@link #snapshot()} without taking a lock. A snapshot is consistent: its index always matches its
+ * inventory, and it never changes, however this set is changed afterwards.
+ *
+ * The inventory, values maps and buckets are persistent hash tries. A new version shares all of its
+ * tries with the previous version, except for the paths to the entries that changed, so publishing
+ * a version costs in proportion to the changes instead of the size of the set, unlike {@link #clone()}
+ * of an IndexedSet. Use {@link #update(Consumer)} to publish a batch of changes as one version.
+ *
+ * Changes are serialized by a lock. Reading this set itself is only safe for the thread that
+ * changes it; other threads should read snapshots. Sorted indexes are not supported.
+ */
+public class SnapshotIndexedSet<ElementType> extends IndexedSet<ElementType> {
+
+    private final Object writeLock = new Object();
+
+    // the latest published version
+    private volatile IndexedSet<ElementType> current;
+
+    // the edit of the version that is being written, or null if this set has not changed since it was published
+    private PersistentHashMap.Edit edit;
+
+    // number of nested changes of the version that is being written
+    private int writeDepth;
+
+    /**
+     * This protected zero-argument constructor is for {@link #clone()}.
+     */
+    protected SnapshotIndexedSet() {
+        super();
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Collection)}
+     */
+    public SnapshotIndexedSet(Class elementClass, Collection<Method> methods) {
+        super(elementClass, methods);
+        this.current = new Snapshot<>(this);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, String[])}
+     */
+    public SnapshotIndexedSet(Class elementClass, String[] methodNames) {
+        super(elementClass, methodNames);
+        this.current = new Snapshot<>(this);
+    }
+
+    /**
+     * see {@link IndexedSet#IndexedSet(Class, Map)}
+     */
+    public SnapshotIndexedSet(Class elementClass, Map<String, Function<? super ElementType, ?>> keyFunctions) {
+        super(elementClass, keyFunctions);
+        this.current = new Snapshot<>(this);
+    }
+
+    /**
+     * @return the latest published version of this set. The snapshot is read-only; its
+     * methods that change a set throw UnsupportedOperationException.
+     */
+    public IndexedSet<ElementType> snapshot() {
+        return this.current;
+    }
+
+    /**
+     * Applies changes to this set, and publishes them as a single version.
+     * Snapshots taken while changes runs do not see any of them.
+     * If changes throws, none of its changes are published, and this set is
+     * restored to the latest published version.
+     * @return the snapshot of the new version
+     */
+    public IndexedSet<ElementType> update(Consumer<? super SnapshotIndexedSet<ElementType>> changes) {
+        write(() -> {
+            changes.accept(this);
+            return null;
+        });
+        return this.current;
+    }
+
+    /**
+     * Runs change on the version that is being written, and publishes the version
+     * when the outermost change completes.
+     */
+    private <T> T write(Supplier<T> change) {
+        synchronized (this.writeLock) {
+            this.writeDepth++;
+            boolean isCompleted = false;
+            try {
+                beginWrite();
+                T result = change.get();
+                isCompleted = true;
+                return result;
+            }
+            finally {
+                this.writeDepth--;
+                if (this.writeDepth == 0) {
+                    if (isCompleted) {
+                        publish();
+                    }
+                    else {
+                        rollBack();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Forks the collections of the latest version into collections that can be changed
+     * without affecting the versions that share them.
+     */
+    private void beginWrite() {
+        if (this.edit != null) {
+            return;
+        }
+        this.edit = new PersistentHashMap.Edit();
+        this.inventory = ((PersistentHashSet<ElementType>) this.inventory).fork(this.edit);
+        Map<String, Map<Object, Set<ElementType>>> forkedIndex = new HashMap<>();
+        for (Map.Entry<String, Map<Object, Set<ElementType>>> entry : this.index.entrySet()) {
+            forkedIndex.put(entry.getKey(),
+                    ((PersistentHashMap<Object, Set<ElementType>>) entry.getValue()).fork(this.edit));
+        }
+        this.index = forkedIndex;
+    }
+
+    private void endWrite() {
+        if (this.edit != null) {
+            this.edit.close();
+            this.edit = null;
+        }
+    }
+
+    private void publish() {
+        endWrite();
+        this.current = new Snapshot<>(this);
+    }
+
+    private void rollBack() {
+        endWrite();
+        IndexedSet<ElementType> latest = this.current;
+        this.inventory = latest.inventory;
+        this.index = new HashMap<>(latest.index);
+        this.indexedMethods = new HashMap<>(latest.indexedMethods);
+        this.compositeMethods = new HashMap<>(latest.compositeMethods);
+        this.accessors = new HashMap<>(latest.accessors);
+    }
+
+    public boolean add(ElementType element, boolean shouldIndex) {
+        return write(() -> super.add(element, shouldIndex));
+    }
+
+    /**
+     * see {@link IndexedSet#addAll(Collection, boolean)}
+     * All elements are published as one version.
+     */
+    public boolean addAll(Collection<? extends ElementType> c, boolean shouldIndex) {
+        return write(() -> super.addAll(c, shouldIndex));
+    }
+
+    /**
+     * see {@link IndexedSet#addAll(Collection, BulkOptions)}
+     * All elements are published as one version.
+     */
+    public boolean addAll(Collection<? extends ElementType> c, BulkOptions options) {
+        return write(() -> super.addAll(c, options));
+    }
+
+    public boolean remove(Object o, boolean shouldRemoveFromIndex) {
+        return write(() -> super.remove(o, shouldRemoveFromIndex));
+    }
+
+    public boolean removeAll(Collection<?> c, boolean shouldRemoveFromIndex) {
+        return write(() -> super.removeAll(c, shouldRemoveFromIndex));
+    }
+
+    public boolean retainAll(Collection<?> c, boolean shouldRemoveFromIndex) {
+        return write(() -> super.retainAll(c, shouldRemoveFromIndex));
+    }
+
+    /**
+     * see {@link IndexedSet#update(Object, Consumer)}
+     * The new buckets of element are published as a new version, but element itself is
+     * shared with the published versions: their readers see it change, in its old buckets.
+     */
+    public boolean update(ElementType element, Consumer<? super ElementType> change) {
+        return write(() -> super.update(element, change));
+    }
+
+    public void reIndex(ElementType element) {
+        write(() -> {
+            super.reIndex(element);
+            return null;
+        });
+    }
+
+    /**
+     * see {@link IndexedSet#reIndex(Collection)}
+     * All elements are published as one version.
+     */
+    public void reIndex(Collection<? extends ElementType> elements) {
+        write(() -> {
+            super.reIndex(elements);
+            return null;
+        });
+    }
+
+    public void clear(boolean shouldClearIndex) {
+        write(() -> {
+            super.clear(shouldClearIndex);
+            return null;
+        });
+    }
+
+    public void clearIndex() {
+        write(() -> {
+            super.clearIndex();
+            return null;
+        });
+    }
+
+    public void reIndex() {
+        write(() -> {
+            super.reIndex();
+            return null;
+        });
+    }
+
+    /**
+     * see {@link IndexedSet#addIndex(String, boolean)}
+     * The index is built while readers keep reading the latest published version,
+     * and is published with the next version.
+     */
+    public void addIndex(String indexName, boolean isSorted) {
+        write(() -> {
+            super.addIndex(indexName, isSorted);
+            return null;
+        });
+    }
+
+    /**
+     * see {@link IndexedSet#addIndex(String, Function)}
+     * The index is published with the next version.
+     */
+    public void addIndex(String indexName, Function<? super ElementType, ?> keyFunction) {
+        write(() -> {
+            super.addIndex(indexName, keyFunction);
+            return null;
+        });
+    }
+
+    public void dropIndex(String indexName) {
+        write(() -> {
+            super.dropIndex(indexName);
+            return null;
+        });
+    }
+
+    /**
+     * Indexes are built eagerly, as building a deferred index on first use would change
+     * the published versions, which never change.
+     * @throws UnsupportedOperationException always
+     */
+    public void deferIndexing() {
+        throw new UnsupportedOperationException("SnapshotIndexedSet does not defer indexing");
+    }
+
+    /**
+     * The index is changed at once, as every published version has a complete index.
+     * @throws UnsupportedOperationException always
+     */
+    public void bufferIndexing(int bufferSize) {
+        throw new UnsupportedOperationException("SnapshotIndexedSet does not buffer indexing");
+    }
+
+    public void reIndex(int parallelism) {
+        write(() -> {
+            super.reIndex(parallelism);
+            return null;
+        });
+    }
+
+    /**
+     * Persistent hash tries have no spare capacity, so there is nothing to trim.
+     */
+    public void trimToSize() {}
+
+    /**
+     * @return a SnapshotIndexedSet with the same elements and index as this set.
+     * The clone shares all collections with this set, so this takes time in
+     * proportion to the number of indexes, not to the number of elements.
+     */
+    public SnapshotIndexedSet<ElementType> clone() {
+        synchronized (this.writeLock) {
+            // the collections are shared from now on, so neither set may change them in place
+            endWrite();
+            SnapshotIndexedSet<ElementType> cloneSet = new SnapshotIndexedSet<>();
+            cloneSet.elementClass = this.elementClass;
+            cloneSet.indexedMethods = new HashMap<>(this.indexedMethods);
+            cloneSet.compositeMethods = new HashMap<>(this.compositeMethods);
+            cloneSet.accessors = new HashMap<>(this.accessors);
+            cloneSet.inventory = this.inventory;
+            cloneSet.index = new HashMap<>(this.index);
+            cloneSet.current = new Snapshot<>(cloneSet);
+            return cloneSet;
+        }
+    }
+
+    protected Set<ElementType> newInventory(int expectedSize) {
+        return new PersistentHashSet<>(this.edit);
+    }
+
+    /**
+     * @throws IllegalArgumentException if isSorted, as sorted indexes are not supported
+     */
+    protected Map<Object, Set<ElementType>> newValuesMap(boolean isSorted, int expectedSize) {
+        if (isSorted) {
+            throw new IllegalArgumentException("SnapshotIndexedSet does not support sorted indexes");
+        }
+        return new PersistentHashMap<>(this.edit);
+    }
+
+    /**
+     * Values of methods that return primitives are boxed, as the values maps are persistent hash tries.
+     */
+    protected Map<Object, Set<ElementType>> newPrimitiveValuesMap(Method method, int expectedSize) {
+        return null;
+    }
+
+    /**
+     * Indexes of few values keep their buckets, as the values maps are persistent hash tries.
+     */
+    protected Map<Object, Set<ElementType>> newBitmapValuesMap() {
+        return null;
+    }
+
+    protected Set<ElementType> newBucket() {
+        return new PersistentHashSet<>(this.edit);
+    }
+
+    protected void addToBucket(Map<Object, Set<ElementType>> valuesMap, Object value, ElementType element) {
+        PersistentHashSet<ElementType> elementSet = (PersistentHashSet<ElementType>) valuesMap.get(value);
+        if (elementSet == null) {
+            elementSet = (PersistentHashSet<ElementType>) newBucket();
+        }
+        else if (!elementSet.isWritable(this.edit)) {
+            if (elementSet.contains(element)) {
+                return;
+            }
+            elementSet = elementSet.fork(this.edit);
+        }
+        elementSet.add(element);
+        valuesMap.put(value, elementSet);
+    }
+
+    protected void addAllToBucket(Map<Object, Set<ElementType>> valuesMap, Object value,
+                                  Collection<ElementType> elements) {
+        for (ElementType element : elements) {
+            addToBucket(valuesMap, value, element);
+        }
+    }
+
+    protected boolean removeFromBucket(Map<Object, Set<ElementType>> valuesMap, Object value, Object o) {
+        PersistentHashSet<ElementType> elementSet = (PersistentHashSet<ElementType>) valuesMap.get(value);
+        if (elementSet == null || !elementSet.contains(o)) {
+            return false;
+        }
+        if (elementSet.size() == 1) {
+            valuesMap.remove(value);
+            return true;
+        }
+        if (!elementSet.isWritable(this.edit)) {
+            elementSet = elementSet.fork(this.edit);
+            valuesMap.put(value, elementSet);
+        }
+        elementSet.remove(o);
+        return true;
+    }
+
+    protected void removeFromAllBuckets(Map<Object, Set<ElementType>> valuesMap, Collection<?> c) {
+        // the trie is not iterated while it changes
+        List<Object> values = new ArrayList<>();
+        for (Map.Entry<Object, Set<ElementType>> entry : valuesMap.entrySet()) {
+            if (!Collections.disjoint(entry.getValue(), c)) {
+                values.add(entry.getKey());
+            }
+        }
+        for (Object value : values) {
+            for (Object o : c) {
+                removeFromBucket(valuesMap, value, o);
+            }
+        }
+    }
+
+    /**
+     * A published version of a SnapshotIndexedSet
+     */
+    private static final class Snapshot<ElementType> extends IndexedSet<ElementType> {
+
+        private Snapshot(IndexedSet<ElementType> set) {
+            this.elementClass = set.elementClass;
+            this.inventory = set.inventory;
+            this.index = Collections.unmodifiableMap(new HashMap<>(set.index));
+            this.indexedMethods = Collections.unmodifiableMap(new HashMap<>(set.indexedMethods));
+            this.compositeMethods = Collections.unmodifiableMap(new HashMap<>(set.compositeMethods));
+            this.accessors = Collections.unmodifiableMap(new HashMap<>(set.accessors));
+        }
+
+        private static UnsupportedOperationException readOnly() {
+            return new UnsupportedOperationException("Snapshots of a SnapshotIndexedSet are read-only");
+        }
+
+        public boolean add(ElementType element, boolean shouldIndex) {
+            throw readOnly();
+        }
+
+        public boolean addAll(Collection<? extends ElementType> c, BulkOptions options) {
+            throw readOnly();
+        }
+
+        public boolean remove(Object o, boolean shouldRemoveFromIndex) {
+            throw readOnly();
+        }
+
+        public boolean removeAll(Collection<?> c, boolean shouldRemoveFromIndex) {
+            throw readOnly();
+        }
+
+        public boolean retainAll(Collection<?> c, boolean shouldRemoveFromIndex) {
+            throw readOnly();
+        }
+
+        public void clear(boolean shouldClearIndex) {
+            throw readOnly();
+        }
+
+        public void clearIndex() {
+            throw readOnly();
+        }
+
+        public void reIndex() {
+            throw readOnly();
+        }
+
+        public void addIndex(String indexName, boolean isSorted) {
+            throw readOnly();
+        }
+
+        public void addIndex(String indexName, Function<? super ElementType, ?> keyFunction) {
+            throw readOnly();
+        }
+
+        public void dropIndex(String indexName) {
+            throw readOnly();
+        }
+
+        public void deferIndexing() {
+            throw readOnly();
+        }
+
+        public void bufferIndexing(int bufferSize) {
+            throw readOnly();
+        }
+
+        public void reIndex(int parallelism) {
+            throw readOnly();
+        }
+
+        public boolean update(ElementType element, Consumer<? super ElementType> change) {
+            throw readOnly();
+        }
+
+        public void reIndex(ElementType element) {
+            throw readOnly();
+        }
+
+        public void reIndex(Collection<? extends ElementType> elements) {
+            throw readOnly();
+        }
+
+        public void trimToSize() {
+            throw readOnly();
+        }
+    }
+}
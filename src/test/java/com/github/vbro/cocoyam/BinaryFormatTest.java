@@ -0,0 +1,207 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of {@link BinaryFormat}, through {@link IndexedSerializableSet#writeTo(java.io.OutputStream, ElementCodec)}
+ * and {@link IndexedSerializableSet#readFrom(InputStream, ElementCodec)}, and of {@link KeyCodec}.
+ */
+public class BinaryFormatTest {
+
+    private static final String[] METHOD_NAMES = {"getName", "getUnit", "getCount", "isFlag", "getScore",
+            "getUnit+isFlag"};
+
+    private static final String[] SORTED_METHOD_NAMES = {"getId"};
+
+    public static final class Item implements Serializable {
+
+        private final int id;
+        private String name;
+
+        public Item(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public int getId() {
+            return this.id;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public TimeUnit getUnit() {
+            return this.id % 9 == 0 ? null : TimeUnit.values()[this.id % TimeUnit.values().length];
+        }
+
+        public int getCount() {
+            return this.id % 100 - 50;
+        }
+
+        public boolean isFlag() {
+            return this.id % 3 == 0;
+        }
+
+        public double getScore() {
+            return this.id % 10 == 0 ? -0.0 : this.id % 1000 / 4.0;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Item && ((Item) o).id == this.id;
+        }
+
+        public int hashCode() {
+            return this.id;
+        }
+
+        public String toString() {
+            return this.id + ":" + this.name;
+        }
+    }
+
+    static final ElementCodec<Item> ITEM_CODEC = new ElementCodec<Item>() {
+        public void write(Item item, DataOutput out) throws IOException {
+            out.writeInt(item.id);
+            out.writeBoolean(item.name != null);
+            if (item.name != null) {
+                out.writeUTF(item.name);
+            }
+        }
+
+        public Item read(DataInput in) throws IOException {
+            int id = in.readInt();
+            return new Item(id, in.readBoolean() ? in.readUTF() : null);
+        }
+    };
+
+    private static IndexedSerializableSet<Item> randomSet(Random random, int size) {
+        IndexedSerializableSet<Item> set = new IndexedSerializableSet<>(Item.class, METHOD_NAMES, SORTED_METHOD_NAMES);
+        for (int i = 0; i < size; i++) {
+            int id = random.nextInt(size * 4);
+            set.add(new Item(id, id % 7 == 0 ? null : "name" + id % 400));
+        }
+        return set;
+    }
+
+    @Test
+    public void testWriteTo_ReadFrom() throws Exception {
+        IndexedSerializableSet<Item> set = randomSet(new Random(19), 5000);
+        // an element that was only removed from the set is still in the index
+        Item removed = set.iterator().next();
+        set.remove(removed, false);
+
+        for (ElementCodec<Item> codec : Arrays.asList(null, ITEM_CODEC)) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (codec == null) {
+                set.writeTo(bytes);
+            }
+            else {
+                set.writeTo(bytes, codec);
+            }
+            IndexedSerializableSet<Item> read = codec == null ?
+                    IndexedSerializableSet.readFrom(new ByteArrayInputStream(bytes.toByteArray())) :
+                    IndexedSerializableSet.readFrom(new ByteArrayInputStream(bytes.toByteArray()), codec);
+            Assert.assertTrue(read.equalsComparingIndexes(set));
+            Assert.assertTrue(read.get("getName", removed.getName()).contains(removed));
+            Assert.assertTrue(read.index.get("getCount") instanceof PrimitiveValuesMap);
+            Assert.assertTrue(read.index.get("isFlag") instanceof BitmapValuesMap);
+            Assert.assertTrue(read.isSorted("getId"));
+            Assert.assertEquals(set.getRange("getId", 100, 200), read.getRange("getId", 100, 200));
+
+            // the set read back is maintained like any other
+            read.add(new Item(-1, "new"));
+            read.reIndex();
+            set.add(new Item(-1, "new"));
+            Assert.assertEquals(set.get("getName", "new"), read.get("getName", "new"));
+            set.remove(new Item(-1, "new"));
+        }
+
+        // the codec encodes elements more compactly than Java serialization
+        ByteArrayOutputStream javaSerialization = new ByteArrayOutputStream();
+        set.writeTo(javaSerialization);
+        ByteArrayOutputStream codec = new ByteArrayOutputStream();
+        set.writeTo(codec, ITEM_CODEC);
+        Assert.assertTrue(codec.size() < javaSerialization.size());
+    }
+
+    @Test
+    public void testSeveralSetsInAStream() throws Exception {
+        Random random = new Random(23);
+        IndexedSerializableSet<Item> set1 = randomSet(random, 100);
+        IndexedSerializableSet<Item> set2 = new IndexedSerializableSet<>(Item.class, METHOD_NAMES);
+        IndexedSerializableSet<Item> set3 = randomSet(random, 2000);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        set1.writeTo(bytes, ITEM_CODEC);
+        set2.writeTo(bytes, ITEM_CODEC);
+        set3.writeTo(bytes, ITEM_CODEC);
+        InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        Assert.assertTrue(IndexedSerializableSet.readFrom(in, ITEM_CODEC).equalsComparingIndexes(set1));
+        Assert.assertTrue(IndexedSerializableSet.readFrom(in, ITEM_CODEC).equalsComparingIndexes(set2));
+        Assert.assertTrue(IndexedSerializableSet.readFrom(in, ITEM_CODEC).equalsComparingIndexes(set3));
+        Assert.assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testUnreadableStreams() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        randomSet(new Random(29), 10).writeTo(bytes);
+        try {
+            IndexedSerializableSet.readFrom(new ByteArrayInputStream(bytes.toByteArray()), ITEM_CODEC);
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertEquals("Elements were written by Java serialization", e.getMessage());
+        }
+
+        byte[] otherVersion = bytes.toByteArray();
+        otherVersion[4] = 2;
+        try {
+            IndexedSerializableSet.readFrom(new ByteArrayInputStream(otherVersion));
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertEquals("Unsupported version (2) of binary format", e.getMessage());
+        }
+
+        try {
+            IndexedSerializableSet.readFrom(new ByteArrayInputStream("not a set".getBytes("UTF-8")));
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertEquals("Not an IndexedSerializableSet in binary format", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testKeyCodec() throws Exception {
+        Object[] values = {null, true, (byte) -3, (short) 300, 'x', -5, 1L << 40, 1.5f, -0.0, 0.0, "", "n\u00e4me",
+                TimeUnit.DAYS, CompositeKey.of("a", 1, null, TimeUnit.SECONDS), new ArrayList<>(Arrays.asList(1, 2))};
+        for (Object value : values) {
+            byte[] encoding = KeyCodec.encode(value);
+            Assert.assertEquals(value, KeyCodec.read(new DataInputStream(new ByteArrayInputStream(encoding))));
+        }
+        Assert.assertFalse(Arrays.equals(KeyCodec.encode(-0.0), KeyCodec.encode(0.0)));
+        Assert.assertFalse(Arrays.equals(KeyCodec.encode(1), KeyCodec.encode(1L)));
+        Assert.assertArrayEquals(KeyCodec.encode(CompositeKey.of("a", TimeUnit.DAYS)),
+                KeyCodec.encode(CompositeKey.of("a", TimeUnit.DAYS)));
+    }
+}
@@ -0,0 +1,159 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of {@link CompactIndexedSet}, compared with an {@link IndexedSet} of the same elements.
+ */
+public class CompactIndexedSetTest {
+
+    private static final String[] METHOD_NAMES = {"trim", "length", "isEmpty"};
+
+    private static final String[] SORTED_METHOD_NAMES = {"hashCode"};
+
+    private static String randomString(Random random) {
+        return "   ".substring(random.nextInt(3)) + random.nextInt(500);
+    }
+
+    @Test
+    public void testRandomChanges() {
+        Random random = new Random(3);
+        CompactIndexedSet<String> cis = new CompactIndexedSet<>(String.class, METHOD_NAMES, SORTED_METHOD_NAMES);
+        IndexedSet<String> is = new IndexedSet<>(String.class, METHOD_NAMES, SORTED_METHOD_NAMES);
+        for (int i = 0; i < 20000; i++) {
+            String s = randomString(random);
+            switch (random.nextInt(12)) {
+                case 0:
+                    List<String> strings = Arrays.asList(s, randomString(random), randomString(random));
+                    Assert.assertEquals(is.removeAll(strings), cis.removeAll(strings));
+                    break;
+                case 1:
+                    Assert.assertEquals(is.add(s, false), cis.add(s, false));
+                    break;
+                case 2:
+                    Assert.assertEquals(is.remove(s, false), cis.remove(s, false));
+                    break;
+                case 3:
+                    if (random.nextInt(50) == 0) {
+                        is.reIndex();
+                        cis.reIndex();
+                    }
+                    break;
+                case 4:
+                case 5:
+                case 6:
+                    Assert.assertEquals(is.remove(s), cis.remove(s));
+                    break;
+                default:
+                    Assert.assertEquals(is.add(s), cis.add(s));
+            }
+        }
+        Assert.assertEquals(is, cis);
+        Assert.assertTrue(cis.equalsComparingIndexes(is));
+        Assert.assertTrue(is.equalsComparingIndexes(cis));
+        Assert.assertEquals(is.getRange("hashCode", 0, Integer.MAX_VALUE), cis.getRange("hashCode", 0, Integer.MAX_VALUE));
+
+        IndexedSet<String> clone = cis.clone();
+        Assert.assertTrue(clone instanceof CompactIndexedSet);
+        Assert.assertTrue(clone.equalsComparingIndexes(is));
+        cis.trimToSize();
+        Assert.assertTrue(cis.equalsComparingIndexes(is));
+        cis.retainAll(new HashSet<>(new ArrayList<>(cis).subList(0, 100)));
+        is.retainAll(new HashSet<>(cis));
+        Assert.assertTrue(cis.equalsComparingIndexes(is));
+        Assert.assertTrue(clone.equalsComparingIndexes(clone.clone()));
+    }
+
+    @Test
+    public void testQueries() {
+        Random random = new Random(4);
+        CompactIndexedSet<String> cis = new CompactIndexedSet<>(String.class, METHOD_NAMES, SORTED_METHOD_NAMES);
+        IndexedSet<String> is = new IndexedSet<>(String.class, METHOD_NAMES, SORTED_METHOD_NAMES);
+        for (int i = 0; i < 5000; i++) {
+            String s = randomString(random);
+            is.add(s);
+            cis.add(s);
+        }
+        List<Query<String>> queries = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            String s = randomString(random);
+            Query<String> trim = Query.in("trim", s.trim(), randomString(random).trim());
+            Query<String> length = Query.eq("length", s.length());
+            Query<String> isEmpty = Query.eq("isEmpty", false);
+            Query<String> hashCode = Query.range("hashCode", 0, true, s.hashCode(), true);
+            Query<String> where = Query.where(e -> e.endsWith("7"));
+            queries.add(Query.and(trim, length));
+            queries.add(Query.and(length, isEmpty, Query.not(trim)));
+            queries.add(Query.or(trim, length));
+            queries.add(Query.or(Query.and(trim, isEmpty), Query.and(length, where)));
+            queries.add(Query.and(Query.or(trim, length), hashCode));
+            queries.add(Query.or(where, trim));
+        }
+        for (Query<String> query : queries) {
+            Assert.assertEquals(is.query(query), cis.query(query));
+            Assert.assertEquals(is.count(query), cis.count(query));
+        }
+
+        CompactIndexedSet<String> bulkLoaded = new CompactIndexedSet<>(String.class, METHOD_NAMES, SORTED_METHOD_NAMES);
+        bulkLoaded.addAll(new ArrayList<>(is), BulkOptions.parallel(4));
+        Assert.assertTrue(bulkLoaded.equalsComparingIndexes(is));
+    }
+
+    @Test
+    public void testIndexState() {
+        CompactIndexedSet<String> cis = new CompactIndexedSet<>(String.class, METHOD_NAMES);
+        cis.addAll(Arrays.asList("a", "b", "cc"));
+
+        // an element removed only from the set is still found through the index
+        cis.remove("a", false);
+        Assert.assertFalse(cis.contains("a"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")), cis.get("length", 1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b")),
+                cis.query(Query.and(Query.eq("length", 1), Query.eq("isEmpty", false))));
+        cis.add("dd", false);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc")), cis.get("length", 2));
+        cis.reIndex();
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b")), cis.get("length", 1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd")), cis.get("length", 2));
+
+        // the index of a cleared set still has the old elements, and new elements are added to it
+        cis.clear(false);
+        cis.add("e");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b", "e")), cis.get("length", 1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b", "e")),
+                cis.query(Query.and(Query.eq("length", 1), Query.eq("isEmpty", false))));
+        cis.reIndex();
+        Assert.assertEquals(new HashSet<>(Arrays.asList("e")), cis.get("length", 1));
+    }
+
+    @Test
+    public void testIdsReused() {
+        CompactIndexedSet<String> cis = new CompactIndexedSet<>(String.class, METHOD_NAMES);
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            strings.add("element" + i);
+        }
+        cis.addAll(strings);
+        cis.removeAll(strings.subList(0, 500));
+        cis.add("new");
+        Assert.assertTrue(((ElementIds<String>) cis.inventory).idOf("new") < 1000);
+
+        // ids of elements that are only held by the index are released by clearIndex
+        cis.removeAll(strings.subList(500, 1000), false);
+        cis.clearIndex();
+        for (int i = 0; i < 999; i++) {
+            cis.add("other" + i);
+        }
+        for (int i = 0; i < 999; i++) {
+            Assert.assertTrue(((ElementIds<String>) cis.inventory).idOf("other" + i) < 1000);
+        }
+        Assert.assertEquals(1000, cis.size());
+    }
+}
@@ -0,0 +1,293 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Function;
+
+/**
+ * Tests of {@link ConcurrentIndexedSet}.
+ */
+public class ConcurrentIndexedSetTest {
+
+    @Test
+    public void testSingleThreaded() {
+        ConcurrentIndexedSet<String> cis = new ConcurrentIndexedSet<>(String.class,
+                new String[] {"trim"}, new String[] {"length"});
+        IndexedSet<String> is = new IndexedSet<>(String.class, new String[] {"trim"}, new String[] {"length"});
+        List<String> elements = Arrays.asList("", "a", "b", " b ", "cc", "dd", "eee");
+        Assert.assertTrue(cis.addAll(elements));
+        is.addAll(elements);
+        Assert.assertFalse(cis.add("a"));
+
+        Assert.assertEquals(is, cis);
+        Assert.assertEquals(is.get("trim", "b"), cis.get("trim", "b"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd", "eee", " b ")), cis.getRange("length", 2, true, 3, true));
+        Assert.assertEquals(2, cis.count(Query.eq("trim", "b")));
+
+        Assert.assertTrue(cis.remove(" b "));
+        Assert.assertFalse(cis.remove(" b "));
+        Assert.assertFalse(cis.remove(null));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b")), cis.getView("trim", "b"));
+        Assert.assertFalse(cis.containsAny("length", 3) && cis.get("length", 3).contains(" b "));
+
+        Assert.assertTrue(cis.removeAll(Arrays.asList("a", "b", "zz")));
+        Assert.assertFalse(cis.containsAny("length", 1));
+        Assert.assertTrue(cis.retainAll(Arrays.asList("cc", "eee")));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "eee")), cis);
+
+        ConcurrentIndexedSet<String> cloneSet = cis.clone();
+        Assert.assertTrue(cloneSet.equalsComparingIndexes(cis));
+        cloneSet.add("ffff");
+        Assert.assertFalse(cis.contains("ffff"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("ffff")), cloneSet.getTail("length", 4, true));
+
+        cis.clear();
+        Assert.assertTrue(cis.isEmpty());
+        Assert.assertEquals(0, cis.count("trim", "cc"));
+    }
+
+    @Test
+    public void testAddIndexWhileReading() throws InterruptedException {
+        ConcurrentIndexedSet<String> cis = new ConcurrentIndexedSet<>(String.class, new String[] {"trim"});
+        for (int i = 0; i < 20000; i++) {
+            cis.add(Integer.toString(i));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicBoolean failed = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            while (!done.get()) {
+                if (cis.count("trim", "42") != 1) {
+                    failed.set(true);
+                }
+                // the new index is found complete, or not at all
+                if (cis.isIndexed("length") && cis.count("length", 5) != 10000) {
+                    failed.set(true);
+                }
+            }
+        });
+        reader.start();
+        cis.addIndex("length");
+        cis.addIndex("firstChar", s -> s.charAt(0));
+        done.set(true);
+        reader.join();
+        Assert.assertFalse(failed.get());
+        Assert.assertEquals(1111, cis.count("firstChar", '9'));
+        cis.add("99999");
+        Assert.assertEquals(10001, cis.count("length", 5));
+    }
+
+    @Test
+    public void testQueryWhileAddingAndDroppingIndex() throws InterruptedException {
+        ConcurrentIndexedSet<String> cis = new ConcurrentIndexedSet<>(String.class, new String[] {"trim"});
+        for (int i = 0; i < 100; i++) {
+            cis.add(Integer.toString(i));
+        }
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicBoolean failed = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            Query<String> query = Query.and(Query.eq("trim", "42"), Query.range("length", 2, true, 2, true));
+            while (!done.get()) {
+                // the range is matched against the index, or the index is not found
+                try {
+                    if (cis.query(query).size() != 1) {
+                        failed.set(true);
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    // the index is dropped
+                }
+            }
+        });
+        reader.start();
+        for (int i = 0; i < 20000; i++) {
+            cis.addIndex("length", true);
+            cis.dropIndex("length");
+        }
+        done.set(true);
+        reader.join();
+        Assert.assertFalse(failed.get());
+    }
+
+    @Test
+    public void testNullValues() {
+        Map<String, Function<? super String, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("firstLetter", s -> s.isEmpty() ? null : s.charAt(0));
+        ConcurrentIndexedSet<String> cis = new ConcurrentIndexedSet<>(String.class, keyFunctions);
+        cis.addAll(Arrays.asList("", "a", "ab", "b"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("")), cis.get("firstLetter", null));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "ab")), cis.get("firstLetter", 'a'));
+        Assert.assertTrue(cis.toStringJson().contains("\"null\":[\"\"]"));
+        Assert.assertTrue(cis.remove(""));
+        Assert.assertFalse(cis.containsAny("firstLetter", null));
+
+        ConcurrentIndexedSet<String> sorted = new ConcurrentIndexedSet<>(String.class,
+                new String[] {}, new String[] {"length"});
+        sorted.addAll(Arrays.asList("", "a", "bb"));
+        Assert.assertEquals(Arrays.asList("", "a", "bb"), toList(sorted.orderedBy("length", false)));
+        Assert.assertEquals(Arrays.asList("bb", "a", ""), toList(sorted.orderedBy("length", true)));
+    }
+
+    @Test
+    public void testBulkLoad() {
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            strings.add("  ".substring(i % 3) + i);
+        }
+        ConcurrentIndexedSet<String> cis = new ConcurrentIndexedSet<>(String.class,
+                new String[] {"trim"}, new String[] {"length"});
+        IndexedSet<String> is = new IndexedSet<>(String.class, new String[] {"trim"}, new String[] {"length"});
+        Assert.assertTrue(cis.addAll(strings, BulkOptions.parallel(4)));
+        Assert.assertFalse(cis.addAll(strings, BulkOptions.parallel(4)));
+        is.addAll(strings);
+        Assert.assertEquals(is, cis);
+        Assert.assertEquals(is.get("length", 4), cis.get("length", 4));
+        cis.reIndex(4);
+        Assert.assertEquals(is.getRange("length", 2, 4), cis.getRange("length", 2, 4));
+        Assert.assertEquals(is.get("trim", "123"), cis.get("trim", "123"));
+    }
+
+    private static List<String> toList(Iterable<String> iterable) {
+        List<String> list = new ArrayList<>();
+        iterable.forEach(list::add);
+        return list;
+    }
+
+    /**
+     * Writers add and remove random elements of a small pool, so the same elements and buckets
+     * are contended, while readers look up the index. Every successful add and remove is counted
+     * per element: in a linearizable set they alternate, so their difference is the final
+     * membership of the element. At the end, the index must match the inventory exactly.
+     */
+    @Test
+    public void testConcurrentAddRemove() throws InterruptedException {
+        final int poolSize = 200;
+        final int writers = 8;
+        final int readers = 2;
+        final int operations = 20000;
+        final List<String> pool = new ArrayList<>();
+        for (int i = 0; i < poolSize; i++) {
+            pool.add("        ".substring(i % 8) + i);
+        }
+        Map<String, Function<? super String, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("mod", s -> s.trim().hashCode() % 4);
+        keyFunctions.put("nullable", s -> s.startsWith(" ") ? null : s.length());
+        final ConcurrentIndexedSet<String> cis = new ConcurrentIndexedSet<>(String.class, keyFunctions);
+        final ConcurrentIndexedSet<String> sorted = new ConcurrentIndexedSet<>(String.class,
+                new String[] {"trim"}, new String[] {"length"});
+
+        final AtomicIntegerArray balance = new AtomicIntegerArray(poolSize);
+        final AtomicIntegerArray sortedBalance = new AtomicIntegerArray(poolSize);
+        final AtomicBoolean isWriting = new AtomicBoolean(true);
+        final ConcurrentLinkedQueue<Throwable> errors = new ConcurrentLinkedQueue<>();
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> writerThreads = new ArrayList<>();
+        List<Thread> readerThreads = new ArrayList<>();
+
+        for (int t = 0; t < writers; t++) {
+            final Random random = new Random(t);
+            writerThreads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    for (int i = 0; i < operations; i++) {
+                        int j = random.nextInt(poolSize);
+                        String element = pool.get(j);
+                        if (random.nextBoolean()) {
+                            if (cis.add(element)) {
+                                balance.incrementAndGet(j);
+                            }
+                            if (sorted.add(element)) {
+                                sortedBalance.incrementAndGet(j);
+                            }
+                        }
+                        else {
+                            if (cis.remove(element)) {
+                                balance.decrementAndGet(j);
+                            }
+                            if (sorted.remove(element)) {
+                                sortedBalance.decrementAndGet(j);
+                            }
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (int t = 0; t < readers; t++) {
+            readerThreads.add(new Thread(() -> {
+                try {
+                    start.await();
+                    while (isWriting.get()) {
+                        for (int m = -3; m < 4; m++) {
+                            for (String element : cis.getView("mod", m)) {
+                                Assert.assertEquals(m, element.trim().hashCode() % 4);
+                            }
+                            cis.count("nullable", null);
+                        }
+                        for (String element : sorted.getRange("length", 2, 4)) {
+                            Assert.assertTrue(element.length() >= 2 && element.length() <= 4);
+                        }
+                        sorted.query(Query.and(Query.range("length", 3, true, 5, false), Query.eq("trim", "42")));
+                    }
+                }
+                catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+
+        writerThreads.forEach(Thread::start);
+        readerThreads.forEach(Thread::start);
+        start.countDown();
+        for (Thread thread : writerThreads) {
+            thread.join();
+        }
+        isWriting.set(false);
+        for (Thread thread : readerThreads) {
+            thread.join();
+        }
+
+        Assert.assertTrue(errors.toString(), errors.isEmpty());
+        for (int j = 0; j < poolSize; j++) {
+            Assert.assertEquals(cis.contains(pool.get(j)) ? 1 : 0, balance.get(j));
+            Assert.assertEquals(sorted.contains(pool.get(j)) ? 1 : 0, sortedBalance.get(j));
+        }
+        assertIndexConsistent(cis);
+        assertIndexConsistent(sorted);
+    }
+
+    /**
+     * Asserts that every element of set is in exactly the bucket of its current value for each index,
+     * and that the index contains no other elements and no empty buckets.
+     */
+    private static void assertIndexConsistent(IndexedSet<String> set) {
+        for (Map.Entry<String, Map<Object, Set<String>>> entry : set.index.entrySet()) {
+            Function<String, Object> accessor = set.accessors.get(entry.getKey());
+            Set<String> indexed = new HashSet<>();
+            for (Set<String> elementSet : entry.getValue().values()) {
+                Assert.assertFalse(elementSet.isEmpty());
+                for (String element : elementSet) {
+                    Assert.assertTrue(indexed.add(element));
+                }
+            }
+            Assert.assertEquals(set, indexed);
+            for (String element : set) {
+                Assert.assertTrue(set.get(entry.getKey(), accessor.apply(element)).contains(element));
+            }
+        }
+    }
+}
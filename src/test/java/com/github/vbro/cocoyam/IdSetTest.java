@@ -0,0 +1,99 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+/**
+ * Tests of {@link IdSet}.
+ */
+public class IdSetTest {
+
+    private static List<Integer> toList(IdSet ids) {
+        return ids.stream().boxed().collect(Collectors.toList());
+    }
+
+    /**
+     * @return a set of size random ints below bound, and the same ints in expected
+     */
+    private static IdSet randomSet(Random random, int size, int bound, TreeSet<Integer> expected) {
+        IdSet ids = new IdSet();
+        for (int i = 0; i < size; i++) {
+            int id = random.nextInt(bound);
+            Assert.assertEquals(expected.add(id), ids.add(id));
+        }
+        return ids;
+    }
+
+    @Test
+    public void testRandomChanges() {
+        Random random = new Random(5);
+        for (int bound : new int[] {100, 10000, 1000000}) {
+            IdSet ids = new IdSet();
+            TreeSet<Integer> expected = new TreeSet<>();
+            for (int i = 0; i < 20000; i++) {
+                int id = random.nextInt(bound);
+                if (random.nextInt(3) == 0) {
+                    Assert.assertEquals(expected.remove(id), ids.remove(id));
+                }
+                else {
+                    Assert.assertEquals(expected.add(id), ids.add(id));
+                }
+                Assert.assertEquals(expected.size(), ids.size());
+            }
+            Assert.assertEquals(new ArrayList<>(expected), toList(ids));
+            for (int id = 0; id < Math.min(bound, 20000); id++) {
+                Assert.assertEquals(expected.contains(id), ids.contains(id));
+            }
+            // sparse sets are arrays, and dense sets are bitmaps
+            Assert.assertEquals(bound < 1000000, ids.isBitmap());
+
+            // remove every other id through the iterator
+            PrimitiveIterator.OfInt iterator = ids.iterator();
+            while (iterator.hasNext()) {
+                expected.remove(iterator.nextInt());
+                iterator.remove();
+                if (iterator.hasNext()) {
+                    iterator.nextInt();
+                }
+            }
+            Assert.assertEquals(new ArrayList<>(expected), toList(ids));
+        }
+    }
+
+    @Test
+    public void testAnd_Or() {
+        Random random = new Random(9);
+        int[][] shapes = {{10, 1000}, {50, 100000}, {5000, 10000}, {20000, 100000}, {0, 10}};
+        for (int[] shapeA : shapes) {
+            for (int[] shapeB : shapes) {
+                TreeSet<Integer> expectedA = new TreeSet<>();
+                TreeSet<Integer> expectedB = new TreeSet<>();
+                IdSet a = randomSet(random, shapeA[0], shapeA[1], expectedA);
+                IdSet b = randomSet(random, shapeB[0], shapeB[1], expectedB);
+
+                TreeSet<Integer> expectedAnd = new TreeSet<>(expectedA);
+                expectedAnd.retainAll(expectedB);
+                IdSet and = IdSet.and(a, b);
+                Assert.assertEquals(new ArrayList<>(expectedAnd), toList(and));
+                Assert.assertEquals(expectedAnd.size(), and.size());
+
+                TreeSet<Integer> expectedOr = new TreeSet<>(expectedA);
+                expectedOr.addAll(expectedB);
+                IdSet or = IdSet.or(a, b);
+                Assert.assertEquals(new ArrayList<>(expectedOr), toList(or));
+                Assert.assertEquals(expectedOr.size(), or.size());
+
+                // the operands are not changed
+                Assert.assertEquals(new ArrayList<>(expectedA), toList(a));
+                Assert.assertEquals(new ArrayList<>(expectedB), toList(b));
+            }
+        }
+    }
+}
@@ -3,11 +3,23 @@ package com.github.vbro.cocoyam;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.io.StringWriter;
 import java.lang.reflect.Method;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 
 /**
  * Created by vbro on 17 September 2016.
@@ -89,6 +101,65 @@ public class IndexedSetTest {
         Assert.assertEquals(is4Json, is4.toStringJson());
     }
 
+    @Test
+    public void testWriteJson() throws Exception {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"trim", "length", "isEmpty"},
+                new String[] {"length"});
+        is1.deferIndexing();
+        is1.addAll(Arrays.asList("Hello World  ", "Hello World", "abc123", "", "\"quoted\""));
+        StringWriter writer = new StringWriter();
+        is1.writeJson(writer);
+        Map<String, Object> jsonObject = new HashMap<>();
+        jsonObject.put("elements", is1);
+        jsonObject.put("index", is1.index);
+        Assert.assertEquals(JsonUtil.toJson(jsonObject).toString(), writer.toString());
+        Assert.assertEquals(writer.toString(), is1.toStringJson());
+
+        writer = new StringWriter();
+        is1.writeJsonPrettyPrint(writer);
+        Assert.assertEquals(JsonUtil.toJsonStringPrettyPrint(JsonUtil.toJson(jsonObject)), writer.toString());
+        Assert.assertEquals(writer.toString(), is1.toStringJsonPrettyPrint());
+    }
+
+    @Test
+    public void testKeyFunctions() {
+        Map<String, Function<? super String, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("trim", String::trim);
+        keyFunctions.put("length", String::length);
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, keyFunctions);
+        is1.add("Hello World  ");
+        is1.add("Hello World");
+        is1.add("abc123");
+
+        // indexes built from functions should match indexes built from methods
+        IndexedSet<String> is2 = new IndexedSet<>(String.class, new String[] {"trim", "length"});
+        is2.addAll(is1);
+        Assert.assertEquals(is2.toStringJson(), is1.toStringJson());
+
+        Assert.assertTrue(is1.isIndexed("trim"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                new String[] {"Hello World  ", "Hello World"})),
+                is1.get("trim", "Hello World"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                new String[] {"abc123"})),
+                is1.get("length", 6));
+
+        is1.remove("Hello World  ");
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                new String[] {"Hello World"})),
+                is1.get("trim", "Hello World"));
+
+        IndexedSet<String> is3 = is1.clone();
+        Assert.assertTrue(is1.equalsComparingIndexes(is3));
+        is3.add("xyz");
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                new String[] {"xyz"})),
+                is3.get("length", 3));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(
+                new String[] {})),
+                is1.get("length", 3));
+    }
+
     @Test
     public void testClone() {
         IndexedSet<String> is1 = new IndexedSet<>(String.class);
@@ -274,6 +345,199 @@ public class IndexedSetTest {
 
     }
 
+    @Test
+    public void testRemoveChangedElements() {
+        IndexedSet<StringBuilder> is1 = new IndexedSet<>(StringBuilder.class, new String[] {"toString"});
+        StringBuilder sb1 = new StringBuilder("abc");
+        StringBuilder sb2 = new StringBuilder("xyz");
+        StringBuilder sb3 = new StringBuilder("abc");
+        is1.addAll(Arrays.asList(sb1, sb2, sb3));
+
+        // sb1 is filed under "abc" but now returns "abcd"
+        sb1.append("d");
+        is1.remove(sb1);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(sb3)), is1.get("toString", "abc"));
+        Assert.assertEquals(new HashSet<>(), is1.get("toString", "abcd"));
+
+        sb2.append("!");
+        is1.add(sb1);
+        is1.removeAll(Arrays.asList(sb1, sb2));
+        Assert.assertEquals(new HashSet<>(), is1.get("toString", "xyz"));
+        Assert.assertEquals(new HashSet<>(), is1.get("toString", "abcd"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(sb3)), is1.get("toString", "abc"));
+
+        is1.addAll(Arrays.asList(sb1, sb2));
+        sb3.append("?");
+        is1.retainAll(Arrays.asList(sb1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(sb1)), is1);
+        Assert.assertEquals(new HashSet<>(), is1.get("toString", "abc"));
+        Assert.assertEquals(new HashSet<>(), is1.get("toString", "xyz!"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(sb1)), is1.get("toString", "abcd"));
+    }
+
+    @Test
+    public void testGetView_Count_ContainsAny() {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"trim", "length"});
+        is1.addAll(Arrays.asList("Hello World  ", "Hello World", "abc123"));
+
+        Set<String> view = is1.getView("trim", "Hello World");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("Hello World  ", "Hello World")), view);
+        Assert.assertEquals(2, is1.count("trim", "Hello World"));
+        Assert.assertTrue(is1.containsAny("trim", "Hello World"));
+        Assert.assertEquals(0, is1.count("length", 100));
+        Assert.assertFalse(is1.containsAny("length", 100));
+        Assert.assertTrue(is1.getView("length", 100).isEmpty());
+
+        // views follow changes to the index, including buckets that are emptied and refilled
+        is1.remove("Hello World");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("Hello World  ")), view);
+        is1.remove("Hello World  ");
+        Assert.assertTrue(view.isEmpty());
+        Assert.assertFalse(is1.containsAny("trim", "Hello World"));
+        is1.add(" Hello World");
+        Assert.assertEquals(new HashSet<>(Arrays.asList(" Hello World")), view);
+        is1.clearIndex();
+        Assert.assertTrue(view.isEmpty());
+        is1.reIndex();
+        Assert.assertEquals(1, view.size());
+
+        boolean isExceptionThrown = false;
+        try {
+            view.add("Hello World");
+        }
+        catch (UnsupportedOperationException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("UnsupportedOperationException should be thrown", isExceptionThrown);
+        isExceptionThrown = false;
+
+        try {
+            is1.count("toUpperCase", "HELLO");
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+    }
+
+    @Test
+    public void testSortedIndex() {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"trim"}, new String[] {"length", "toString"});
+        is1.addAll(Arrays.asList("a", "bb", "cc", "ddd", "eeee", "fffff", "gggggg"));
+
+        Assert.assertTrue(is1.isSorted("length"));
+        Assert.assertFalse(is1.isSorted("trim"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("bb", "cc")), is1.get("length", 2));
+        Assert.assertEquals(new HashSet<>(), is1.get("length", "not an int"));
+
+        Assert.assertEquals(Arrays.asList("bb", "cc", "ddd"), new ArrayList<>(is1.getRange("toString", "b", "e")));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("bb", "cc", "ddd", "eeee")), is1.getRange("length", 2, 5));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("ddd", "eeee", "fffff")),
+                is1.getRange("length", 2, false, 5, true));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "bb", "cc")), is1.getHead("length", 2, true));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a")), is1.getHead("length", 2, false));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("fffff", "gggggg")), is1.getTail("length", 5, true));
+        Assert.assertEquals(new HashSet<>(), is1.getTail("length", 6, false));
+
+        List<String> ordered = new ArrayList<>();
+        is1.orderedBy("toString", true).forEach(ordered::add);
+        Assert.assertEquals(Arrays.asList("gggggg", "fffff", "eeee", "ddd", "cc", "bb", "a"), ordered);
+
+        // sorted indexes are maintained on removal and survive clone, clearIndex and reIndex
+        is1.removeAll(Arrays.asList("bb", "ddd"));
+        Assert.assertEquals(Arrays.asList("cc", "eeee"), new ArrayList<>(is1.getRange("toString", "b", "f")));
+        IndexedSet<String> is2 = is1.clone();
+        Assert.assertTrue(is2.isSorted("length"));
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        is1.clearIndex();
+        Assert.assertTrue(is1.getRange("length", 0, 10).isEmpty());
+        is1.reIndex();
+        Assert.assertEquals(is2.toStringJson(), is1.toStringJson());
+
+        boolean isExceptionThrown = false;
+        try {
+            is1.getRange("trim", "a", "b");
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+        isExceptionThrown = false;
+
+        try {
+            new IndexedSet<>(String.class, new String[] {}, new String[] {"getBytes"});
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+    }
+
+    @Test
+    public void testCompositeIndex() throws Exception {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class,
+                new String[] {"trim", "isEmpty+length"}, new String[] {"length+trim"});
+        is1.addAll(Arrays.asList("", "a", "b", " b ", "cc", "dd", "eee"));
+
+        Assert.assertTrue(is1.isIndexed("isEmpty+length"));
+        Assert.assertTrue(is1.isSorted("length+trim"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd")), is1.get("isEmpty+length", CompositeKey.of(false, 2)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(" b ")), is1.get("length+trim", CompositeKey.of(3, "b")));
+        Assert.assertEquals(2, is1.count("isEmpty+length", CompositeKey.of(false, 1)));
+        Assert.assertEquals(new HashSet<>(), is1.get("isEmpty+length", CompositeKey.of(true, 2)));
+
+        // prefix lookups on sorted composite indexes
+        Assert.assertEquals(Arrays.asList("cc", "dd"), new ArrayList<>(is1.getByPrefix("length+trim", 2)));
+        Assert.assertEquals(Arrays.asList("b"), new ArrayList<>(is1.getByPrefix("length+trim", 1, "b")));
+        Assert.assertEquals(Arrays.asList("", "a", "b", "cc", "dd", " b ", "eee"),
+                new ArrayList<>(is1.getByPrefix("length+trim")));
+        Assert.assertEquals(new HashSet<>(), is1.getByPrefix("length+trim", 4));
+
+        is1.remove("cc");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("dd")), is1.get("isEmpty+length", CompositeKey.of(false, 2)));
+        Assert.assertEquals(Arrays.asList("dd"), new ArrayList<>(is1.getByPrefix("length+trim", 2)));
+
+        // composite indexes with Methods, and after serialization
+        List<Method> composite = Arrays.asList(String.class.getMethod("isEmpty"), String.class.getMethod("length"));
+        IndexedSerializableSet<String> is2 = new IndexedSerializableSet<>(String.class,
+                Arrays.asList(String.class.getMethod("trim")), new ArrayList<>(),
+                Arrays.asList(composite), new ArrayList<>());
+        is2.addAll(is1);
+        Assert.assertEquals(is1.get("isEmpty+length", CompositeKey.of(false, 1)),
+                is2.get("isEmpty+length", CompositeKey.of(false, 1)));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(is2);
+        }
+        IndexedSerializableSet<String> is3;
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            is3 = (IndexedSerializableSet<String>) ois.readObject();
+        }
+        Assert.assertTrue(is2.equalsComparingIndexes(is3));
+        is3.add("ff");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("dd", "ff")), is3.get("isEmpty+length", CompositeKey.of(false, 2)));
+
+        boolean isExceptionThrown = false;
+        try {
+            is1.getByPrefix("isEmpty+length", false);
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+        isExceptionThrown = false;
+
+        try {
+            new IndexedSet<>(String.class, new String[] {"length+imaginaryMethod"});
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+    }
+
     @Test
     public void testIndex() {
         // setup IndexedSet
@@ -317,13 +581,13 @@ public class IndexedSetTest {
         Assert.assertEquals(expectedJsonStep07, is1.toStringJson());
 
         is1.remove("aa");
-        // {"elements":["bb","cc","zz"],"index":{"length":{"2":["bb","cc"]},"toUpperCase":{"AA":[],"BB":["bb"],"CC":["cc"]}}}
-        String expectedJsonStep08 = "{\"elements\":[\"bb\",\"cc\",\"zz\"],\"index\":{\"length\":{\"2\":[\"bb\",\"cc\"]},\"toUpperCase\":{\"AA\":[],\"BB\":[\"bb\"],\"CC\":[\"cc\"]}}}";
+        // {"elements":["bb","cc","zz"],"index":{"length":{"2":["bb","cc"]},"toUpperCase":{"BB":["bb"],"CC":["cc"]}}}
+        String expectedJsonStep08 = "{\"elements\":[\"bb\",\"cc\",\"zz\"],\"index\":{\"length\":{\"2\":[\"bb\",\"cc\"]},\"toUpperCase\":{\"BB\":[\"bb\"],\"CC\":[\"cc\"]}}}";
         Assert.assertEquals(expectedJsonStep08, is1.toStringJson());
 
         is1.remove("bb");
-        // {"elements":["cc","zz"],"index":{"length":{"2":["cc"]},"toUpperCase":{"AA":[],"BB":[],"CC":["cc"]}}}
-        String expectedJsonStep09 = "{\"elements\":[\"cc\",\"zz\"],\"index\":{\"length\":{\"2\":[\"cc\"]},\"toUpperCase\":{\"AA\":[],\"BB\":[],\"CC\":[\"cc\"]}}}";
+        // {"elements":["cc","zz"],"index":{"length":{"2":["cc"]},"toUpperCase":{"CC":["cc"]}}}
+        String expectedJsonStep09 = "{\"elements\":[\"cc\",\"zz\"],\"index\":{\"length\":{\"2\":[\"cc\"]},\"toUpperCase\":{\"CC\":[\"cc\"]}}}";
         Assert.assertEquals(expectedJsonStep09, is1.toStringJson());
 
         is1.remove("bb");
@@ -335,6 +599,327 @@ public class IndexedSetTest {
         Assert.assertEquals(expectedJsonStep11, is1.toStringJson());
     }
 
+    @Test
+    public void testBulkLoad() {
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 20000; i++) {
+            strings.add("     ".substring(i % 5) + (i % 15001));
+        }
+        strings.add("");
+        String[] methodNames = {"trim", "isEmpty+length"};
+        String[] sortedMethodNames = {"length", "length+trim"};
+        IndexedSet<String> sequential = new IndexedSet<>(String.class, methodNames, sortedMethodNames);
+        IndexedSet<String> parallel = new IndexedSet<>(String.class, methodNames, sortedMethodNames);
+        Assert.assertTrue(sequential.addAll(strings));
+        Assert.assertTrue(parallel.addAll(strings, BulkOptions.parallel(4)));
+        Assert.assertFalse(parallel.addAll(strings.subList(0, 100), BulkOptions.parallel(4)));
+        Assert.assertTrue(parallel.equalsComparingIndexes(sequential));
+
+        // adding to a set that is already indexed, and reIndex
+        parallel.addAll(Arrays.asList("abc", " abc", "x"), BulkOptions.parallel(2));
+        sequential.addAll(Arrays.asList("abc", " abc", "x"));
+        Assert.assertTrue(parallel.equalsComparingIndexes(sequential));
+        parallel.reIndex(3);
+        Assert.assertTrue(parallel.equalsComparingIndexes(sequential));
+
+        // values that are null, and methods that throw
+        Map<String, Function<? super String, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("firstChar", s -> s.charAt(0));
+        keyFunctions.put("digit", s -> s.matches("\\d+") ? null : s.trim());
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, keyFunctions);
+        IndexedSet<String> is2 = new IndexedSet<>(String.class, keyFunctions);
+        is1.addAll(strings);
+        is2.addAll(strings, BulkOptions.parallel());
+        Assert.assertTrue(is2.equalsComparingIndexes(is1));
+        Assert.assertEquals(0, is2.count("firstChar", null));
+        Assert.assertEquals(is1.get("digit", null), is2.get("digit", null));
+
+        // unindexed bulk load
+        IndexedSet<String> is3 = new IndexedSet<>(String.class, methodNames);
+        is3.addAll(strings, BulkOptions.parallel(2).withShouldIndex(false));
+        Assert.assertEquals(new HashSet<>(strings), is3);
+        Assert.assertEquals(0, is3.count("trim", "1"));
+        is3.reIndex(2);
+        Assert.assertEquals(2, is3.count("trim", "1"));
+
+        boolean isExceptionThrown = false;
+        try {
+            is3.addAll(Arrays.asList("new", null), BulkOptions.parallel(2));
+        }
+        catch (NullPointerException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("NullPointerException should be thrown", isExceptionThrown);
+        Assert.assertFalse("no element should be added", is3.contains("new"));
+        isExceptionThrown = false;
+
+        try {
+            BulkOptions.parallel(0);
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+        isExceptionThrown = false;
+
+        try {
+            is3.reIndex(-1);
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+    }
+
+    @Test
+    public void testTrimToSize() {
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            strings.add("element" + i);
+        }
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"toString", "hashCode", "length"});
+        is1.addAll(strings);
+        is1.removeAll(strings.subList(10, strings.size()));
+
+        // buckets of removed elements are pruned from the index
+        Assert.assertEquals(10, is1.size());
+        Assert.assertEquals(10, is1.index.get("toString").size());
+        Assert.assertEquals(10, is1.index.get("hashCode").size());
+        Assert.assertEquals(1, is1.index.get("length").size());
+        Assert.assertEquals(new HashSet<>(strings.subList(0, 10)), is1.get("length", 8));
+
+        String beforeTrim = is1.toStringJson();
+        long usedBeforeTrim = usedHeap();
+        is1.trimToSize();
+        long usedAfterTrim = usedHeap();
+        Assert.assertEquals("trimToSize should not change the set or its index", beforeTrim, is1.toStringJson());
+
+        // the inventory and the toString and hashCode value maps each had a table for 200000 entries
+        Assert.assertTrue(String.format("heap should shrink after trimToSize (before: %d, after: %d)",
+                usedBeforeTrim, usedAfterTrim), usedBeforeTrim - usedAfterTrim > 1024 * 1024);
+    }
+
+    @Test
+    public void testPrimitiveIndexes() throws Exception {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"length", "hashCode", "trim"});
+        Assert.assertTrue(is1.index.get("length") instanceof PrimitiveValuesMap);
+        Assert.assertTrue(is1.index.get("hashCode") instanceof PrimitiveValuesMap);
+        Assert.assertFalse(is1.index.get("trim") instanceof PrimitiveValuesMap);
+
+        is1.addAll(Arrays.asList("a", "bb", "cc", " dd ", ""));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("bb", "cc")), is1.get("length", 2));
+        Assert.assertEquals(new HashSet<>(), is1.get("length", 2L));
+        Assert.assertEquals(new HashSet<>(), is1.get("length", null));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a")), is1.get("hashCode", "a".hashCode()));
+        Set<String> view = is1.getView("length", 2);
+        is1.remove("bb");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc")), view);
+        Assert.assertEquals(1, is1.count("length", 2));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc")),
+                is1.query(Query.and(Query.in("length", 2, 3), Query.not(Query.eq("trim", "")))));
+
+        // indexes of functions box their values, and are equal to the indexes of methods
+        Map<String, Function<? super String, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("length", String::length);
+        keyFunctions.put("hashCode", String::hashCode);
+        keyFunctions.put("trim", String::trim);
+        IndexedSet<String> is2 = new IndexedSet<>(String.class, keyFunctions);
+        is2.addAll(is1);
+        Assert.assertFalse(is2.index.get("length") instanceof PrimitiveValuesMap);
+        Assert.assertEquals(is2.index, is1.index);
+
+        // the values of sorted indexes are boxed
+        IndexedSet<String> is3 = new IndexedSet<>(String.class, new String[0], new String[] {"length"});
+        Assert.assertFalse(is3.index.get("length") instanceof PrimitiveValuesMap);
+
+        IndexedSet<String> is4 = is1.clone();
+        is4.trimToSize();
+        Assert.assertTrue(is4.index.get("length") instanceof PrimitiveValuesMap);
+        Assert.assertTrue(is1.equalsComparingIndexes(is4));
+        is4.clearIndex();
+        Assert.assertTrue(is4.index.get("length") instanceof PrimitiveValuesMap);
+        is4.reIndex(2);
+        Assert.assertTrue(is1.equalsComparingIndexes(is4));
+
+        IndexedSerializableSet<String> is5 = new IndexedSerializableSet<>(String.class,
+                new String[] {"length", "hashCode", "trim"});
+        is5.addAll(is1);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(is5);
+        }
+        IndexedSerializableSet<String> is6;
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            is6 = (IndexedSerializableSet<String>) ois.readObject();
+        }
+        Assert.assertTrue(is6.index.get("length") instanceof PrimitiveValuesMap);
+        Assert.assertTrue(is5.equalsComparingIndexes(is6));
+        is6.add("ee");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "ee")), is6.get("length", 2));
+    }
+
+    @Test
+    public void testPrimitiveIndexMemory() {
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 200000; i++) {
+            strings.add("element" + i);
+        }
+        Map<String, Function<? super String, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("hashCode", String::hashCode);
+
+        long usedBefore = usedHeap();
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"hashCode"});
+        is1.addAll(strings);
+        long usedPrimitive = usedHeap() - usedBefore;
+        IndexedSet<String> is2 = new IndexedSet<>(String.class, keyFunctions);
+        is2.addAll(strings);
+        long usedBoxed = usedHeap() - usedBefore - usedPrimitive;
+        Assert.assertEquals(is2.index, is1.index);
+
+        // a boxed index has an Integer, a map entry and a HashSet per value, unlike a primitive index
+        Assert.assertTrue(String.format("primitive index should use less than half the heap of a boxed index" +
+                " (primitive: %d, boxed: %d)", usedPrimitive, usedBoxed), usedPrimitive * 2 < usedBoxed);
+    }
+
+    @Test
+    public void testBitmapIndexes() throws Exception {
+        String[] methodNames = {"isEmpty", "length", "trim"};
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, methodNames);
+        IndexedSet<String> is2 = newIndexedSetWithoutBitmaps(methodNames);
+        Random random = new Random(11);
+        for (int i = 0; i < 3000; i++) {
+            String s = "   ".substring(random.nextInt(3)) + random.nextInt(2000);
+            Assert.assertEquals(is2.add(s), is1.add(s));
+        }
+        // indexes of few values are replaced once the set has MIN_SIZE elements
+        Assert.assertTrue(is1.index.get("isEmpty") instanceof BitmapValuesMap);
+        Assert.assertTrue(is1.index.get("length") instanceof BitmapValuesMap);
+        Assert.assertFalse(is1.index.get("trim") instanceof BitmapValuesMap);
+        Assert.assertFalse(is2.index.get("length") instanceof BitmapValuesMap);
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        Assert.assertTrue(is2.equalsComparingIndexes(is1));
+        Assert.assertEquals(is2.get("length", 3), is1.get("length", 3));
+        Assert.assertEquals(is2.count("isEmpty", false), is1.count("isEmpty", false));
+
+        for (int i = 0; i < 2000; i++) {
+            String s = "   ".substring(random.nextInt(3)) + random.nextInt(2000);
+            switch (random.nextInt(4)) {
+                case 0:
+                    Assert.assertEquals(is2.remove(s), is1.remove(s));
+                    break;
+                case 1:
+                    Assert.assertEquals(is2.remove(s, false), is1.remove(s, false));
+                    break;
+                case 2:
+                    Assert.assertEquals(is2.add(s, false), is1.add(s, false));
+                    break;
+                default:
+                    Assert.assertEquals(is2.add(s), is1.add(s));
+            }
+        }
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        List<Query<String>> queries = Arrays.asList(
+                Query.and(Query.eq("length", 3), Query.eq("isEmpty", false)),
+                Query.and(Query.in("length", 2, 4), Query.eq("trim", "123")),
+                Query.and(Query.eq("length", 5), Query.not(Query.eq("trim", "1234"))),
+                Query.or(Query.in("length", 2, 3), Query.eq("trim", "5")),
+                Query.or(Query.eq("length", 1), Query.eq("length", 7), Query.eq("isEmpty", true)),
+                Query.and(Query.or(Query.eq("length", 2), Query.eq("length", 6)), Query.where(s -> s.endsWith("1"))));
+        for (Query<String> query : queries) {
+            Assert.assertEquals(is2.query(query), is1.query(query));
+            Assert.assertEquals(is2.count(query), is1.count(query));
+        }
+
+        is1.reIndex();
+        is2.reIndex();
+        Assert.assertTrue(is1.index.get("length") instanceof BitmapValuesMap);
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        IndexedSet<String> is3 = is1.clone();
+        Assert.assertTrue(is3.index.get("length") instanceof BitmapValuesMap);
+        Assert.assertTrue(is3.equalsComparingIndexes(is2));
+        is3.trimToSize();
+        Assert.assertTrue(is3.equalsComparingIndexes(is2));
+        is3.clearIndex();
+        Assert.assertTrue(is3.index.get("length") instanceof BitmapValuesMap);
+        is3.reIndex(2);
+        Assert.assertTrue(is3.equalsComparingIndexes(is2));
+        IndexedSet<String> is4 = new IndexedSet<>(String.class, methodNames);
+        is4.addAll(is2, BulkOptions.parallel(2));
+        Assert.assertTrue(is4.index.get("length") instanceof BitmapValuesMap);
+        Assert.assertTrue(is4.equalsComparingIndexes(is2));
+        for (Query<String> query : queries) {
+            Assert.assertEquals(is2.query(query), is4.query(query));
+        }
+
+        IndexedSerializableSet<String> is5 = new IndexedSerializableSet<>(String.class, methodNames);
+        is5.addAll(is2);
+        Assert.assertTrue(is5.index.get("length") instanceof BitmapValuesMap);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(is5);
+        }
+        IndexedSerializableSet<String> is6;
+        try (ObjectInputStream ois = new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray()))) {
+            is6 = (IndexedSerializableSet<String>) ois.readObject();
+        }
+        Assert.assertTrue(is6.index.get("length") instanceof BitmapValuesMap);
+        Assert.assertTrue(is6.equalsComparingIndexes(is2));
+
+        // the ids of elements that are removed from the index are released
+        String removed = is1.iterator().next();
+        is1.removeAll(new ArrayList<>(is1));
+        Assert.assertEquals(-1, is1.elementIds().idOf(removed));
+    }
+
+    @Test
+    public void testBitmapIndexReplacedBack() {
+        // the first half of the elements have few values, and the second half have as many as elements
+        Map<String, Function<? super Integer, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("value", i -> i < 2048 ? i % 4 : i);
+        IndexedSet<Integer> is1 = new IndexedSet<>(Integer.class, keyFunctions);
+        IndexedSet<Integer> is2 = new IndexedSet<Integer>(Integer.class, keyFunctions) {
+            protected Map<Object, Set<Integer>> newBitmapValuesMap() {
+                return null;
+            }
+        };
+        for (int i = 0; i < 2048; i++) {
+            is1.add(i);
+            is2.add(i);
+        }
+        Assert.assertTrue(is1.index.get("value") instanceof BitmapValuesMap);
+        Assert.assertEquals(512, is1.count(Query.eq("value", 3)));
+        for (int i = 2048; i < 4096; i++) {
+            is1.add(i);
+            is2.add(i);
+        }
+        Assert.assertFalse(is1.index.get("value") instanceof BitmapValuesMap);
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        Assert.assertEquals(-1, is1.elementIds().idOf(0));
+    }
+
+    private static IndexedSet<String> newIndexedSetWithoutBitmaps(String[] methodNames) {
+        return new IndexedSet<String>(String.class, methodNames) {
+            protected Map<Object, Set<String>> newBitmapValuesMap() {
+                return null;
+            }
+        };
+    }
+
+    /**
+     * @return bytes of heap in use after garbage collection
+     */
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
     @Test
     public void testExceptions() {
         boolean isExceptionThrown = false;
@@ -431,4 +1016,398 @@ public class IndexedSetTest {
         Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
         isExceptionThrown = false;
     }
+
+    /**
+     * @return the serialization of set
+     */
+    private static byte[] serialize(Object set) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(set);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static <E extends Serializable> IndexedSerializableSet<E> deserialize(byte[] bytes) throws Exception {
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (IndexedSerializableSet<E>) ois.readObject();
+        }
+    }
+
+    @Test
+    public void testSerializationOptions() throws Exception {
+        Random random = new Random(17);
+        IndexedSerializableSet<String> is1 = new IndexedSerializableSet<>(String.class,
+                new String[] {"trim", "length", "isEmpty", "length+trim"}, new String[] {"hashCode"});
+        for (int i = 0; i < 3000; i++) {
+            is1.add("   ".substring(random.nextInt(3)) + random.nextInt(1000));
+        }
+        byte[] withIndex = serialize(is1);
+
+        for (SerializationOptions options : Arrays.asList(SerializationOptions.rebuildIndex(),
+                SerializationOptions.rebuildIndex().withParallelism(2),
+                SerializationOptions.rebuildIndex().withLazyIndexes(true))) {
+            is1.setSerializationOptions(options);
+            byte[] bytes = serialize(is1);
+            Assert.assertTrue(bytes.length < withIndex.length / 2);
+            IndexedSerializableSet<String> is2 = deserialize(bytes);
+            Assert.assertSame(options.isLazy(), is2.isDeferred("length"));
+            Assert.assertEquals(options.getParallelism(), is2.getSerializationOptions().getParallelism());
+            Assert.assertTrue(is2.isSorted("hashCode"));
+            Assert.assertEquals(is1.get("length", 4), is2.get("length", 4));
+            Assert.assertFalse(is2.isDeferred("length"));
+            Assert.assertEquals(is1.getRange("hashCode", 0, Integer.MAX_VALUE),
+                    is2.getRange("hashCode", 0, Integer.MAX_VALUE));
+
+            // elements added or removed before an index is built are found through it
+            String removed = is1.iterator().next();
+            is2.add("new");
+            is2.remove(removed);
+            Assert.assertEquals(new HashSet<>(Arrays.asList("new")), is2.get("trim", "new"));
+            Assert.assertFalse(is2.get("trim", removed.trim()).contains(removed));
+            is2.add(removed);
+            is2.remove("new");
+            Assert.assertTrue(is2.equalsComparingIndexes(is1));
+
+            // a set read back is written with the same options
+            Assert.assertTrue(deserialize(serialize(is2)).equalsComparingIndexes(is1));
+        }
+
+        // the deferred indexes of a lazily read set are written with the set
+        IndexedSerializableSet<String> is3 = deserialize(serialize(is1));
+        Assert.assertTrue(is3.isDeferred("isEmpty"));
+        is3.setSerializationOptions(SerializationOptions.writeIndex());
+        Assert.assertTrue(deserialize(serialize(is3)).equalsComparingIndexes(is1));
+
+        // a lazily read set whose index is cleared indexes the elements added after
+        IndexedSerializableSet<String> is4 = deserialize(serialize(is1));
+        is4.clearIndex();
+        is4.add("new");
+        Assert.assertFalse(is4.isDeferred("trim"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("new")), is4.get("trim", "new"));
+        Assert.assertEquals(1, is4.count("isEmpty", false));
+    }
+
+    @Test
+    public void testDeferIndexing() {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class);
+        is1.deferIndexing();
+        Assert.assertTrue(is1.isIndexed("hashCode"));
+        Assert.assertTrue(is1.isDeferred("hashCode"));
+        for (int i = 0; i < 1000; i++) {
+            is1.add(" " + i);
+        }
+        is1.remove(" 7");
+
+        // an index is built the first time it is used, and is then maintained
+        Assert.assertEquals(new HashSet<>(Arrays.asList(" 42")), is1.get("trim", "42"));
+        Assert.assertFalse(is1.isDeferred("trim"));
+        Assert.assertTrue(is1.isDeferred("length"));
+        is1.add("42");
+        is1.remove(" 42");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("42")), is1.get("trim", "42"));
+        Assert.assertEquals(0, is1.count("trim", "7"));
+        Assert.assertEquals(900, is1.getView("length", 4).size());
+        Assert.assertFalse(is1.isDeferred("length"));
+
+        // operations on the whole index build the deferred indexes
+        IndexedSet<String> is2 = is1.clone();
+        Assert.assertFalse(is1.isDeferred("isEmpty"));
+        Assert.assertFalse(is2.isDeferred("isEmpty"));
+        Assert.assertEquals(is1.size(), is2.count("isEmpty", false));
+    }
+
+    @Test
+    public void testIndexUsage() {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"trim", "length", "isEmpty"});
+        is1.addAll(Arrays.asList(" a", "b ", "cc"));
+        Map<String, Long> usage = new HashMap<>();
+        usage.put("trim", 0L);
+        usage.put("length", 0L);
+        usage.put("isEmpty", 0L);
+        Assert.assertEquals(usage, is1.getIndexUsage());
+
+        is1.get("trim", "a");
+        is1.count("trim", "b");
+        Set<String> view = is1.getView("length", 2);
+        view.size();
+        view.contains("cc");
+        try {
+            is1.get("hashCode", 1);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            // hashCode is not indexed
+        }
+        usage.put("trim", 2L);
+        usage.put("length", 3L);
+        Assert.assertEquals(usage, is1.getIndexUsage());
+        Assert.assertEquals(usage.keySet(), is1.clone().getIndexUsage().keySet());
+        Assert.assertEquals(0L, (long) is1.clone().getIndexUsage().get("trim"));
+    }
+
+    @Test
+    public void testDropIndex() {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"trim", "length", "isEmpty",
+                "length+isEmpty"}, new String[] {"hashCode"});
+        for (int i = 0; i < 100; i++) {
+            is1.add(" " + i);
+        }
+        is1.dropIndex("isEmpty");
+        is1.dropIndex("hashCode");
+        is1.dropIndex("length+isEmpty");
+        Assert.assertFalse(is1.isIndexed("isEmpty"));
+        Assert.assertFalse(is1.getIndexUsage().containsKey("isEmpty"));
+        for (String indexName : Arrays.asList("isEmpty", "hashCode", "length+isEmpty")) {
+            try {
+                is1.count(indexName, 1);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertEquals(String.format("Method \"%s\" is not indexed", indexName), e.getMessage());
+            }
+            try {
+                is1.dropIndex(indexName);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+                // already dropped
+            }
+        }
+
+        // the other indexes are maintained, and the dropped indexes are no longer computed
+        IndexedSet<String> clone = is1.clone();
+        is1.add("new");
+        is1.removeAll(Arrays.asList(" 1", " 2"));
+        is1.reIndex();
+        Assert.assertEquals(new HashSet<>(Arrays.asList("new")), is1.get("trim", "new"));
+        Assert.assertEquals(91, is1.count("length", 3));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("trim", "length")), is1.getIndexUsage().keySet());
+        Assert.assertFalse(clone.isIndexed("hashCode"));
+
+        // an index that is deferred can be dropped before it is built
+        IndexedSet<String> is2 = new IndexedSet<>(String.class);
+        is2.deferIndexing();
+        is2.add("a");
+        is2.dropIndex("toUpperCase");
+        is2.clearIndex();
+        is2.add("b");
+        Assert.assertFalse(is2.isIndexed("toUpperCase"));
+        Assert.assertEquals(1, is2.count("toLowerCase", "b"));
+    }
+
+    @Test
+    public void testAddIndex() throws NoSuchMethodException {
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, new String[] {"trim"});
+        IndexedSet<String> is2 = new IndexedSet<>(String.class, new String[] {"trim", "length", "isEmpty",
+                "trim+length"}, new String[] {"hashCode"});
+        for (int i = 0; i < 200; i++) {
+            is1.add(" " + i % 150);
+            is2.add(" " + i % 150);
+        }
+        is1.addIndex("length");
+        is1.addIndex(String.class.getMethod("isEmpty"));
+        is1.addIndex("hashCode", true);
+        is1.addIndex("trim+length");
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        Assert.assertTrue(is1.isSorted("hashCode"));
+        Assert.assertEquals(is2.getRange("hashCode", 0, 1 << 20), is1.getRange("hashCode", 0, 1 << 20));
+        Assert.assertEquals(1, is1.count("trim+length", CompositeKey.of("7", 2)));
+
+        // the new indexes are maintained like the others
+        is1.add("new");
+        is2.add("new");
+        is1.removeAll(Arrays.asList(" 1", " 2"));
+        is2.removeAll(Arrays.asList(" 1", " 2"));
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        Assert.assertTrue(is1.clone().equalsComparingIndexes(is2));
+
+        // an index of a function
+        is1.addIndex("firstChar", s -> s.charAt(0));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("new")), is1.get("firstChar", 'n'));
+        is1.dropIndex(String.class.getMethod("isEmpty"));
+        Assert.assertFalse(is1.isIndexed("isEmpty"));
+
+        for (String indexName : Arrays.asList("trim", "firstChar")) {
+            try {
+                is1.addIndex(indexName);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertEquals(String.format("Method \"%s\" is already indexed", indexName), e.getMessage());
+            }
+        }
+        for (String indexName : Arrays.asList("noSuchMethod", "length+noSuchMethod")) {
+            try {
+                is1.addIndex(indexName);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+                // not a method of String
+            }
+            Assert.assertFalse(is1.isIndexed(indexName));
+        }
+        try {
+            is1.addIndex("getClass", true);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            // Class is not Comparable
+        }
+
+        // elements removed from the set only are not in a new index
+        IndexedSet<String> is3 = new IndexedSet<>(String.class, new String[] {"trim"});
+        is3.addAll(Arrays.asList("a", "b"));
+        is3.remove("a", false);
+        is3.addIndex("length");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a")), is3.get("trim", "a"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b")), is3.get("length", 1));
+
+        // an index added while indexes are deferred is deferred too
+        is3.deferIndexing();
+        is3.addIndex("toUpperCase");
+        Assert.assertTrue(is3.isDeferred("toUpperCase"));
+        is3.add("c");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("c")), is3.get("toUpperCase", "C"));
+        Assert.assertFalse(is3.isDeferred("toUpperCase"));
+    }
+
+    @Test
+    public void testUpdate() {
+        String[] methodNames = {"get", "toString", "get+toString"};
+        String[] sortedMethodNames = {"longValue"};
+        IndexedSet<AtomicInteger> is1 = new IndexedSet<>(AtomicInteger.class, methodNames, sortedMethodNames);
+        is1.addIndex("isEven", i -> i.get() % 2 == 0);
+        List<AtomicInteger> elements = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            elements.add(new AtomicInteger(i));
+        }
+        is1.addAll(elements);
+        Assert.assertTrue(is1.index.get("isEven") instanceof BitmapValuesMap);
+        Assert.assertTrue(is1.index.get("get") instanceof PrimitiveValuesMap);
+
+        // elements are moved to the buckets of their new values
+        for (int i = 0; i < 3000; i += 7) {
+            Assert.assertTrue(is1.update(elements.get(i), element -> element.addAndGet(5001)));
+        }
+        Assert.assertFalse(is1.update(new AtomicInteger(1), element -> element.set(-1)));
+        Assert.assertEquals(1, is1.count("get", 5001));
+        Assert.assertEquals(0, is1.count("longValue", 0));
+        try {
+            is1.update(elements.get(1), element -> {
+                element.set(-1);
+                throw new IllegalStateException();
+            });
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // the element is indexed by its values as they are
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList(elements.get(1))), is1.get("toString", "-1"));
+
+        // elements that changed are moved when they are re-indexed
+        elements.get(2).set(-2);
+        elements.get(3).set(-3);
+        elements.get(4).set(-4);
+        is1.reIndex(elements.get(2));
+        is1.reIndex(Arrays.asList(elements.get(3), elements.get(4), new AtomicInteger(5)));
+        Assert.assertEquals(1, is1.count("get+toString", CompositeKey.of(-3, "-3")));
+        Assert.assertEquals(3000, is1.size());
+
+        IndexedSet<AtomicInteger> is2 = new IndexedSet<>(AtomicInteger.class, methodNames, sortedMethodNames);
+        is2.addIndex("isEven", i -> i.get() % 2 == 0);
+        is2.addAll(elements);
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        Assert.assertEquals(is2.getRange("longValue", -10L, 10L), is1.getRange("longValue", -10L, 10L));
+    }
+
+    @Test
+    public void testBufferIndexing() {
+        String[] methodNames = {"trim", "length", "isEmpty", "hashCode", "trim+isEmpty"};
+        String[] sortedMethodNames = {"toLowerCase"};
+        IndexedSet<String> is1 = new IndexedSet<>(String.class, methodNames, sortedMethodNames);
+        IndexedSet<String> is2 = new IndexedSet<>(String.class, methodNames, sortedMethodNames);
+        is1.bufferIndexing(100);
+
+        // changes are applied when the buffer is full
+        for (int i = 0; i < 99; i++) {
+            is1.add(" " + i);
+            is2.add(" " + i);
+        }
+        Assert.assertTrue(is1.index.get("trim").isEmpty());
+        Assert.assertEquals(is2, is1);
+        // an element added and removed before the buffer is full is never indexed
+        is1.remove(" 98");
+        is2.remove(" 98");
+        is1.add(" 99");
+        is2.add(" 99");
+        Assert.assertTrue(is1.index.get("trim").isEmpty());
+        is1.add(" 100");
+        is2.add(" 100");
+        Assert.assertEquals(100, is1.index.get("trim").size());
+        Assert.assertFalse(is1.index.get("trim").containsKey("98"));
+
+        // and when the index is read
+        is1.add("new");
+        is2.add("new");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("new")), is1.get("trim", "new"));
+
+        Random random = new Random(17);
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 500; i++) {
+                String element = " " + random.nextInt(3000);
+                int operation = random.nextInt(10);
+                for (IndexedSet<String> set : Arrays.asList(is1, is2)) {
+                    if (operation < 6) {
+                        set.add(element);
+                    }
+                    else if (operation < 8) {
+                        set.remove(element);
+                    }
+                    else if (operation < 9) {
+                        set.removeAll(Arrays.asList(element, element.trim()));
+                    }
+                    else {
+                        set.remove(element, false);
+                    }
+                }
+            }
+            Assert.assertEquals(is2.count("length", 4), is1.count("length", 4));
+            Assert.assertTrue(is1.equalsComparingIndexes(is2));
+        }
+
+        // cleared changes are not applied
+        is1.add("cleared");
+        is1.clearIndex();
+        is1.flushIndex();
+        Assert.assertFalse(is1.containsAny("trim", "cleared"));
+        is1.reIndex();
+        is1.remove("cleared");
+        is2.reIndex();
+
+        // the buffer is flushed when the index is changed at once again
+        is1.add("unbuffered");
+        is2.add("unbuffered");
+        is1.bufferIndexing(0);
+        Assert.assertTrue(is1.index.get("trim").containsKey("unbuffered"));
+        is1.add("after");
+        is2.add("after");
+        Assert.assertTrue(is1.index.get("trim").containsKey("after"));
+        Assert.assertTrue(is1.equalsComparingIndexes(is2));
+
+        try {
+            is1.bufferIndexing(-1);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            Assert.assertEquals("Buffer size should be at least 0, but is -1", e.getMessage());
+        }
+        try {
+            new ConcurrentIndexedSet<String>(String.class, methodNames).bufferIndexing(10);
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // lookups do not change a concurrent set
+        }
+    }
 }
@@ -3,13 +3,27 @@ package com.github.vbro.cocoyam;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+import javax.json.Json;
+import javax.json.JsonArray;
 import javax.json.JsonValue;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
 
 /**
  * Created by vbro on 20 Septermber 2016.
@@ -18,6 +32,55 @@ public class JsonUtilTest {
 
     JsonValue jv = null;
 
+    public static class Point {
+
+        private final int x;
+        private final int y;
+
+        public Point(int x, int y) {
+            this.x = x;
+            this.y = y;
+        }
+
+        public int getX() {
+            return this.x;
+        }
+
+        public int getY() {
+            return this.y;
+        }
+
+        public boolean isOrigin() {
+            return this.x == 0 && this.y == 0;
+        }
+
+        public static Point getOrigin() {
+            return new Point(0, 0);
+        }
+
+        public String toString() {
+            return this.x + "," + this.y;
+        }
+    }
+
+    public static class NamedPoint extends Point {
+
+        private final Object name;
+
+        public NamedPoint(int x, int y, Object name) {
+            super(x, y);
+            this.name = name;
+        }
+
+        public Object getName() {
+            return this.name;
+        }
+
+        public Object getAt(int index) {
+            return this.name;
+        }
+    }
+
     @Test
     public void testLiterals() {
         jv = JsonUtil.toJson(3);
@@ -169,4 +232,198 @@ public class JsonUtilTest {
                         "false,\"3\":null},\"true\":true}",
                 jv.toString());
     }
+
+    @Test
+    public void testWriteJson() throws IOException {
+        Map<Object, Object> objectMap = new HashMap();
+        objectMap.put(null, null);
+        objectMap.put(1, new int[]{1, 2});
+        objectMap.put(2, new char[]{'a', '"'});
+        objectMap.put(3, new HashMap());
+        objectMap.put("floats", new float[]{1.5f});
+        objectMap.put("list", Arrays.asList(new BigDecimal("1.20"), null, 6022141410704090840L, -2.718, "\u00fc"));
+        objectMap.put("nested", Arrays.asList(new ArrayList(), Arrays.asList(true, 'c', (short) 3)));
+        objectMap.put("json", JsonUtil.toJson(Arrays.asList(1, "x")));
+        Object[] values = {objectMap, Arrays.asList(1, 2), new String[]{}, new long[]{-1L}, 3, "HelloWorld", null,
+                JsonUtil.toJson(objectMap)};
+        for (Object value : values) {
+            StringWriter writer = new StringWriter();
+            JsonUtil.writeJson(value, writer);
+            assertEquals(JsonUtil.toJson(value).toString(), writer.toString());
+            assertEquals(JsonUtil.toJson(value).toString(), JsonUtil.toJsonString(value));
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            JsonUtil.writeJson(value, out);
+            assertEquals(JsonUtil.toJson(value).toString(), out.toString("UTF-8"));
+
+            writer = new StringWriter();
+            JsonUtil.writeJsonPrettyPrint(value, writer);
+            assertEquals(JsonUtil.toJsonStringPrettyPrint(JsonUtil.toJson(value)), writer.toString());
+            assertEquals(JsonUtil.toJsonStringPrettyPrint(JsonUtil.toJson(value)),
+                    JsonUtil.toJsonStringPrettyPrint(value));
+        }
+
+        // the writer is left open
+        Writer writer = new StringWriter() {
+            public void close() {
+                throw new AssertionError("closed");
+            }
+        };
+        JsonUtil.writeJson(objectMap, writer);
+        writer.write("\n");
+        JsonUtil.writeJson(Arrays.asList(1, 2), writer);
+        assertEquals(JsonUtil.toJson(objectMap) + "\n[1,2]", writer.toString());
+    }
+
+    @Test
+    public void testCollidingKeys() throws IOException {
+        Map<Object, Object> m = new LinkedHashMap<>();
+        m.put(1, "int");
+        m.put("a", null);
+        m.put("1", "str");
+        m.put(null, "n");
+        m.put("null", "s");
+        // the member of keys whose strings are equal is written once, with the value of the last key
+        assertEquals("{\"1\":\"str\",\"a\":null,\"null\":\"s\"}", JsonUtil.toJson(m).toString());
+        Object nested = Arrays.asList(m, Collections.singletonMap("m", m));
+        for (Object o : Arrays.asList(m, nested)) {
+            assertEquals(JsonUtil.toJson(o).toString(), JsonUtil.toJsonString(o));
+            StringWriter writer = new StringWriter();
+            JsonUtil.writeJson(o, writer);
+            assertEquals(JsonUtil.toJson(o).toString(), writer.toString());
+            assertEquals(toJsonStringPrettyPrintOfTree(o), JsonUtil.toJsonStringPrettyPrint(o));
+        }
+
+        // an index whose values are null and "null"
+        Map<String, Function<? super String, ?>> keyFunctions = new HashMap<>();
+        keyFunctions.put("k", s -> s.isEmpty() ? null : "null");
+        IndexedSet<String> set = new IndexedSet<>(String.class, keyFunctions);
+        set.addAll(Arrays.asList("", "x"));
+        Map<String, Object> jsonObject = new HashMap<>();
+        jsonObject.put("elements", set);
+        jsonObject.put("index", set.index);
+        assertEquals(JsonUtil.toJson(jsonObject).toString(), set.toStringJson());
+        assertEquals(toJsonStringPrettyPrintOfTree(jsonObject), set.toStringJsonPrettyPrint());
+    }
+
+    private static String toJsonStringPrettyPrintOfTree(Object o) {
+        return JsonUtil.toJsonStringPrettyPrint(JsonUtil.toJson(o));
+    }
+
+    @Test
+    public void testScalars() throws IOException {
+        StringBuilder allChars = new StringBuilder();
+        for (int c = 0; c <= Character.MAX_VALUE; c++) {
+            allChars.append((char) c);
+        }
+        // scalars are equal to, and written like, the values of javax.json
+        JsonArray expected = Json.createArrayBuilder().add(allChars.toString()).add("").add(-3).add(1L << 40)
+                .add(1e10).add(-0.0).add(new BigDecimal("1.50")).add(new BigInteger("123456789012345678901"))
+                .add(Long.MIN_VALUE).build();
+        Object[] values = {allChars.toString(), "", -3, 1L << 40, 1e10, -0.0, new BigDecimal("1.50"),
+                new BigInteger("123456789012345678901"), Long.MIN_VALUE};
+        for (int i = 0; i < values.length; i++) {
+            jv = JsonUtil.toJson(values[i]);
+            assertEquals(expected.get(i), jv);
+            assertEquals(jv, expected.get(i));
+            assertEquals(expected.get(i).hashCode(), jv.hashCode());
+            assertEquals(expected.get(i).toString(), jv.toString());
+            assertEquals(expected.get(i).toString(), JsonUtil.toJsonString(values[i]));
+        }
+        assertEquals(expected.toString(), JsonUtil.toJson(values).toString());
+        assertEquals(expected.toString(), JsonUtil.toJsonString(Arrays.asList(values)));
+        assertFalse(JsonUtil.toJson(1).equals(JsonUtil.toJson("1")));
+
+        // items of primitive arrays are written like their boxed values
+        Object[] arrays = {new int[]{Integer.MIN_VALUE, 0}, new long[]{Long.MAX_VALUE}, new double[]{0.1, -1e300},
+                new boolean[]{false}, new char[]{'\n', 'x'}, new byte[]{-128}, new short[]{300}, new float[]{0.1f}};
+        Object[] boxedArrays = {new Integer[]{Integer.MIN_VALUE, 0}, new Long[]{Long.MAX_VALUE},
+                new Double[]{0.1, -1e300}, new Boolean[]{false}, new Character[]{'\n', 'x'}, new Byte[]{-128},
+                new Short[]{300}, new Float[]{0.1f}};
+        for (int i = 0; i < arrays.length; i++) {
+            assertEquals(JsonUtil.toJson(boxedArrays[i]), JsonUtil.toJson(arrays[i]));
+            StringWriter writer = new StringWriter();
+            JsonUtil.writeJson(arrays[i], writer);
+            assertEquals(JsonUtil.toJson(boxedArrays[i]).toString(), writer.toString());
+        }
+    }
+
+    /**
+     * Asserts that Object o is represented as expected by each of the methods of JsonUtil
+     */
+    private static void assertJson(String expected, Object o) throws IOException {
+        assertEquals(expected, JsonUtil.toJson(o).toString());
+        assertEquals(expected, JsonUtil.toJsonString(o));
+        StringWriter writer = new StringWriter();
+        JsonUtil.writeJson(o, writer);
+        assertEquals(expected, writer.toString());
+        writer = new StringWriter();
+        JsonUtil.writeJsonPrettyPrint(o, writer);
+        assertEquals(JsonUtil.toJsonStringPrettyPrint(JsonUtil.toJson(o)), writer.toString());
+    }
+
+    @Test
+    public void testRegisterBean() throws IOException {
+        List<Object> points = Arrays.asList(new Point(1, 2), new NamedPoint(0, 0, Arrays.asList("a", null)), null);
+        assertJson("[\"1,2\",\"0,0\",null]", points);
+        JsonUtil.registerBean(Point.class);
+        try {
+            // subclasses are represented by the getters of the registered class
+            assertJson("[{\"origin\":false,\"x\":1,\"y\":2},{\"origin\":true,\"x\":0,\"y\":0},null]", points);
+            JsonUtil.registerBean(NamedPoint.class);
+            assertJson("[{\"origin\":false,\"x\":1,\"y\":2}," +
+                    "{\"name\":[\"a\",null],\"origin\":true,\"x\":0,\"y\":0},null]", points);
+            assertJson("{\"name\":{\"name\":null,\"origin\":false,\"x\":3,\"y\":4},\"origin\":false,\"x\":1," +
+                    "\"y\":2}", new NamedPoint(1, 2, new NamedPoint(3, 4, null)));
+
+            // elements of an indexed set are dumped as JSON objects
+            IndexedSet<Point> set = new IndexedSet<>(Point.class, new String[] {"getX"});
+            set.add(new Point(5, 6));
+            assertEquals("{\"elements\":[{\"origin\":false,\"x\":5,\"y\":6}]," +
+                    "\"index\":{\"getX\":{\"5\":[{\"origin\":false,\"x\":5,\"y\":6}]}}}", set.toStringJson());
+        }
+        finally {
+            JsonUtil.unregister(Point.class);
+            JsonUtil.unregister(NamedPoint.class);
+        }
+        assertJson("[\"1,2\",\"0,0\",null]", points);
+
+        try {
+            JsonUtil.registerBean(Object.class);
+            fail();
+        }
+        catch (IllegalArgumentException e) {
+            assertEquals("Class java.lang.Object has no public getter", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testRegisterSerializer() throws IOException {
+        JsonUtil.registerSerializer(TimeUnit.class, unit -> unit.ordinal());
+        JsonUtil.registerSerializer(CharSequence.class, chars -> chars.length());
+        JsonUtil.registerSerializer(Point.class, point -> new int[] {point.getX(), point.getY()});
+        try {
+            assertJson("[3,6,5,[1,2]]", Arrays.asList(TimeUnit.SECONDS, new StringBuilder("abcdef"), "hello",
+                    new Point(1, 2)));
+            // the serializer of a class takes precedence over those of its interfaces
+            JsonUtil.registerSerializer(String.class, string -> string.toUpperCase());
+            assertJson("[\"HELLO\",6]", Arrays.asList("hello", new StringBuilder("abcdef")));
+            // serializers may return structures, scalars, or values with serializers at the top level
+            assertJson("[1,2]", new Point(1, 2));
+            assertJson("\"HELLO\"", "hello");
+            JsonUtil.registerSerializer(Point.class, point -> "p");
+            assertJson("\"P\"", new Point(1, 2));
+            JsonUtil.registerSerializer(Point.class, point -> null);
+            assertJson("null", new Point(1, 2));
+            // map keys are still represented by their strings
+            assertJson("{\"1,2\":null}", Collections.singletonMap(new Point(1, 2), new Point(1, 2)));
+        }
+        finally {
+            JsonUtil.unregister(TimeUnit.class);
+            JsonUtil.unregister(CharSequence.class);
+            JsonUtil.unregister(String.class);
+            JsonUtil.unregister(Point.class);
+        }
+        assertJson("[\"SECONDS\",\"hello\"]", Arrays.asList(TimeUnit.SECONDS, "hello"));
+    }
 }
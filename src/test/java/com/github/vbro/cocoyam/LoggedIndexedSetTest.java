@@ -0,0 +1,311 @@
+package com.github.vbro.cocoyam;
+
+import com.github.vbro.cocoyam.BinaryFormatTest.Item;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Tests of {@link LoggedIndexedSet}: the set opened from its directory is compared
+ * with an {@link IndexedSerializableSet} that had the same changes.
+ */
+public class LoggedIndexedSetTest {
+
+    private static final String[] METHOD_NAMES = {"getName", "getUnit", "getCount", "isFlag"};
+
+    private static final String[] SORTED_METHOD_NAMES = {"getId"};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final Supplier<IndexedSerializableSet<Item>> NEW_SET = () ->
+            new IndexedSerializableSet<>(Item.class, METHOD_NAMES, SORTED_METHOD_NAMES);
+
+    private static Item newItem(int id) {
+        return new Item(id, id % 7 == 0 ? null : "name" + id % 40);
+    }
+
+    /**
+     * Makes the same random changes to both sets
+     */
+    private static void change(Random random, int count, IndexedSet<Item> set1, IndexedSet<Item> set2) {
+        long seed = random.nextLong();
+        for (IndexedSet<Item> set : Arrays.asList(set1, set2)) {
+            Random setRandom = new Random(seed);
+            for (int i = 0; i < count; i++) {
+                int operation = setRandom.nextInt(100);
+                Item item = newItem(setRandom.nextInt(500));
+                if (operation < 55) {
+                    set.add(item);
+                }
+                else if (operation < 60) {
+                    set.add(item, false);
+                }
+                else if (operation < 85) {
+                    set.remove(item);
+                }
+                else if (operation < 90) {
+                    set.remove(item, false);
+                }
+                else if (operation < 95) {
+                    set.removeAll(Arrays.asList(newItem(setRandom.nextInt(500)), newItem(setRandom.nextInt(500))));
+                }
+                else {
+                    List<Item> items = new ArrayList<>();
+                    for (int j = 0; j < 20; j++) {
+                        items.add(newItem(setRandom.nextInt(500)));
+                    }
+                    set.addAll(items, BulkOptions.parallel(2));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        for (ElementCodec<Item> codec : Arrays.asList(null, BinaryFormatTest.ITEM_CODEC)) {
+            File directory = folder.newFolder();
+            IndexedSerializableSet<Item> expected = NEW_SET.get();
+            LoggedIndexedSet<Item> set = LoggedIndexedSet.open(directory, NEW_SET, codec,
+                    ChangeLogOptions.fsyncNever());
+            Assert.assertTrue(set.isEmpty());
+            Random random = new Random(31);
+            change(random, 2000, set, expected);
+            Assert.assertTrue(set.equalsComparingIndexes(expected));
+            set.close();
+
+            set = LoggedIndexedSet.open(directory, NEW_SET, codec, ChangeLogOptions.fsyncEveryChange());
+            Assert.assertTrue(set.equalsComparingIndexes(expected));
+            Assert.assertTrue(set.isSorted("getId"));
+
+            // operations without element are replayed too
+            set.retainAll(new HashSet<>(set.getRange("getId", 100, 300)));
+            expected.retainAll(new HashSet<>(expected.getRange("getId", 100, 300)));
+            set.clearIndex();
+            expected.clearIndex();
+            change(random, 100, set, expected);
+            set.close();
+            set = LoggedIndexedSet.open(directory, NEW_SET, codec, ChangeLogOptions.fsyncEvery(10));
+            Assert.assertTrue(set.equalsComparingIndexes(expected));
+            set.reIndex(2);
+            expected.reIndex();
+            set.clear(false);
+            expected.clear(false);
+            set.dropIndex("getUnit");
+            expected.dropIndex("getUnit");
+            set.addIndex("getScore");
+            expected.addIndex("getScore");
+            set.addIndex("getCount+isFlag", true);
+            expected.addIndex("getCount+isFlag", true);
+            set.add(newItem(1));
+            expected.add(newItem(1));
+            set.close();
+            set = LoggedIndexedSet.open(directory, NEW_SET, codec, ChangeLogOptions.fsyncNever());
+            Assert.assertTrue(set.equalsComparingIndexes(expected));
+            Assert.assertFalse(set.isIndexed("getUnit"));
+            Assert.assertTrue(set.isSorted("getCount+isFlag"));
+
+            // deferred indexes are not logged
+            set.deferIndexing();
+            set.add(newItem(2));
+            expected.add(newItem(2));
+            set.close();
+            set = LoggedIndexedSet.open(directory, NEW_SET, codec, ChangeLogOptions.fsyncNever());
+            Assert.assertTrue(set.equalsComparingIndexes(expected));
+            set.compact();
+            set.close();
+            set = LoggedIndexedSet.open(directory, NEW_SET, codec, ChangeLogOptions.fsyncNever());
+            Assert.assertTrue(set.equalsComparingIndexes(expected));
+            set.close();
+        }
+    }
+
+    @Test
+    public void testUpdate() throws Exception {
+        for (ElementCodec<Item> codec : Arrays.asList(null, BinaryFormatTest.ITEM_CODEC)) {
+            File directory = folder.newFolder();
+            LoggedIndexedSet<Item> set = LoggedIndexedSet.open(directory, NEW_SET, codec,
+                    ChangeLogOptions.fsyncNever());
+            List<Item> items = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                items.add(newItem(i));
+            }
+            set.addAll(items);
+            Assert.assertTrue(set.update(items.get(1), item -> item.setName("first")));
+            Assert.assertTrue(set.update(items.get(1), item -> item.setName("updated")));
+            Assert.assertFalse(set.update(newItem(1000), item -> item.setName("updated")));
+            items.get(2).setName("changed");
+            items.get(3).setName("changed");
+            set.reIndex(items.get(2));
+            set.reIndex(Arrays.asList(items.get(3), newItem(1000)));
+            try {
+                set.update(items.get(4), item -> {
+                    item.setName("failed");
+                    throw new IllegalStateException();
+                });
+                Assert.fail();
+            }
+            catch (IllegalStateException e) {
+                // the element is logged as it was left by the update
+            }
+            set.close();
+
+            IndexedSerializableSet<Item> expected = NEW_SET.get();
+            expected.addAll(items);
+            set = LoggedIndexedSet.open(directory, NEW_SET, codec, ChangeLogOptions.fsyncNever());
+            Assert.assertTrue(set.equalsComparingIndexes(expected));
+            Assert.assertEquals(1, set.count("getName", "updated"));
+            Assert.assertEquals(0, set.count("getName", "first"));
+            Assert.assertFalse(set.get("getName", "name1").contains(newItem(1)));
+            Assert.assertEquals(2, set.count("getName", "changed"));
+            Assert.assertEquals(1, set.count("getName", "failed"));
+            Assert.assertFalse(set.get("getName", "name2").contains(newItem(2)));
+            set.close();
+        }
+    }
+
+    @Test
+    public void testIteratorRemove() throws Exception {
+        File directory = folder.newFolder();
+        LoggedIndexedSet<Item> set = LoggedIndexedSet.open(directory, NEW_SET, ChangeLogOptions.fsyncNever());
+        IndexedSerializableSet<Item> expected = NEW_SET.get();
+        for (IndexedSet<Item> s : Arrays.asList(set, expected)) {
+            for (int i = 0; i < 100; i++) {
+                s.add(newItem(i));
+            }
+            s.removeIf(item -> item.getId() % 3 == 0);
+            Iterator<Item> iterator = s.iterator();
+            iterator.next();
+            iterator.remove();
+        }
+        set.close();
+        set = LoggedIndexedSet.open(directory, NEW_SET, ChangeLogOptions.fsyncNever());
+        Assert.assertEquals(65, set.size());
+        Assert.assertFalse(set.contains(newItem(3)));
+        Assert.assertTrue(set.equalsComparingIndexes(expected));
+        set.close();
+        try {
+            set.iterator().next();
+            Iterator<Item> iterator = set.iterator();
+            iterator.next();
+            iterator.remove();
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            Assert.assertEquals("LoggedIndexedSet is closed", e.getMessage());
+        }
+        Assert.assertEquals(65, set.size());
+    }
+
+    @Test
+    public void testIncompleteRecords() throws Exception {
+        File directory = folder.newFolder();
+        LoggedIndexedSet<Item> set = LoggedIndexedSet.open(directory, NEW_SET, ChangeLogOptions.fsyncEveryChange());
+        IndexedSerializableSet<Item> expected = NEW_SET.get();
+        change(new Random(37), 200, set, expected);
+        long logSize = set.getLogSize();
+        set.add(newItem(1000));
+        set.close();
+
+        // a crash while the last record was written
+        File log = new File(directory, "changes-0.log");
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            Assert.assertEquals(file.length(), set.getLogSize());
+            file.setLength(file.length() - 3);
+        }
+        set = LoggedIndexedSet.open(directory, NEW_SET, ChangeLogOptions.fsyncEveryChange());
+        Assert.assertTrue(set.equalsComparingIndexes(expected));
+        Assert.assertEquals(logSize, set.getLogSize());
+        set.add(newItem(1001));
+        expected.add(newItem(1001));
+        set.close();
+
+        // a damaged record
+        try (RandomAccessFile file = new RandomAccessFile(log, "rw")) {
+            file.seek(file.length() - 1);
+            int lastByte = file.read();
+            file.seek(file.length() - 1);
+            file.write(lastByte ^ 1);
+        }
+        set = LoggedIndexedSet.open(directory, NEW_SET, ChangeLogOptions.fsyncEveryChange());
+        expected.remove(newItem(1001));
+        Assert.assertTrue(set.equalsComparingIndexes(expected));
+        set.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        File directory = folder.newFolder();
+        ChangeLogOptions options = ChangeLogOptions.fsyncEvery(1000).withCompactionThreshold(4000);
+        LoggedIndexedSet<Item> set = LoggedIndexedSet.open(directory, NEW_SET, BinaryFormatTest.ITEM_CODEC,
+                options);
+        IndexedSerializableSet<Item> expected = NEW_SET.get();
+        change(new Random(41), 1000, set, expected);
+        Assert.assertTrue(set.getLogSize() <= 4000);
+        set.close();
+        List<String> names = Arrays.asList(directory.list());
+        Assert.assertEquals(2, names.size());
+        Assert.assertTrue(names.stream().anyMatch(name -> name.matches("snapshot-[1-9][0-9]*")));
+        Assert.assertTrue(names.stream().anyMatch(name -> name.matches("changes-[1-9][0-9]*\\.log")));
+
+        // a compaction that was interrupted while the snapshot was written
+        try (FileOutputStream out = new FileOutputStream(new File(directory, "snapshot-1000.tmp"))) {
+            out.write(new byte[10]);
+        }
+        set = LoggedIndexedSet.open(directory, NEW_SET, BinaryFormatTest.ITEM_CODEC, options);
+        Assert.assertTrue(set.equalsComparingIndexes(expected));
+        Assert.assertEquals(2, directory.list().length);
+        set.compact();
+        Assert.assertEquals(16, set.getLogSize());
+        set.close();
+        set = LoggedIndexedSet.open(directory, NEW_SET, BinaryFormatTest.ITEM_CODEC, options);
+        Assert.assertTrue(set.equalsComparingIndexes(expected));
+        set.close();
+    }
+
+    @Test
+    public void testClosed() throws Exception {
+        LoggedIndexedSet<Item> set = LoggedIndexedSet.open(folder.newFolder(), NEW_SET, ChangeLogOptions.fsyncNever());
+        set.add(newItem(1));
+        set.close();
+        set.close();
+        Assert.assertEquals(1, set.get("getId", 1).size());
+        List<Consumer<LoggedIndexedSet<Item>>> changes = Arrays.asList(
+                s -> s.add(newItem(2)),
+                s -> s.remove(newItem(1)),
+                s -> s.clear(),
+                s -> s.reIndex(),
+                s -> {
+                    try {
+                        s.sync();
+                    }
+                    catch (IOException e) {
+                        throw new AssertionError(e);
+                    }
+                });
+        for (Consumer<LoggedIndexedSet<Item>> change : changes) {
+            try {
+                change.accept(set);
+                Assert.fail();
+            }
+            catch (IllegalStateException e) {
+                Assert.assertEquals("LoggedIndexedSet is closed", e.getMessage());
+            }
+        }
+        Assert.assertEquals(1, set.size());
+    }
+}
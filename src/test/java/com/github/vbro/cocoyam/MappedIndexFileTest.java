@@ -0,0 +1,159 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of {@link MappedIndexFile}, compared with the {@link IndexedSerializableSet} it was written from.
+ */
+public class MappedIndexFileTest {
+
+    private static final String[] METHOD_NAMES = {"getName", "getUnit", "getCount", "getScore", "getTags",
+            "getUnit+getCount"};
+
+    private static final String[] SORTED_METHOD_NAMES = {"getRank"};
+
+    public static final class Item implements Serializable {
+
+        private final int id;
+        private final String name;
+
+        public Item(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public TimeUnit getUnit() {
+            return this.id % 9 == 0 ? null : TimeUnit.values()[this.id % TimeUnit.values().length];
+        }
+
+        public int getCount() {
+            return this.id % 100 - 50;
+        }
+
+        public double getScore() {
+            return this.id % 10 == 0 ? -0.0 : this.id % 1000 / 4.0;
+        }
+
+        public ArrayList<String> getTags() {
+            return new ArrayList<>(Arrays.asList("tag" + this.id % 3, "tag" + this.id % 5));
+        }
+
+        public Integer getRank() {
+            return this.id % 13 == 0 ? null : this.id % 300;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Item && ((Item) o).id == this.id;
+        }
+
+        public int hashCode() {
+            return this.id;
+        }
+
+        public String toString() {
+            return this.id + ":" + this.name;
+        }
+    }
+
+    private static File newFile() throws IOException {
+        File file = File.createTempFile("cocoyam", ".index");
+        file.deleteOnExit();
+        return file;
+    }
+
+    @Test
+    public void testLookups() throws IOException {
+        Random random = new Random(13);
+        IndexedSerializableSet<Item> set = new IndexedSerializableSet<>(Item.class, METHOD_NAMES,
+                SORTED_METHOD_NAMES);
+        for (int i = 0; i < 5000; i++) {
+            int id = random.nextInt(20000);
+            set.add(new Item(id, id % 7 == 0 ? null : "name" + id % 400));
+        }
+        // an element that was only removed from the set is still found through the index
+        Item removed = set.iterator().next();
+        set.remove(removed, false);
+
+        File file = newFile();
+        set.writeIndexFile(file);
+        MappedIndexFile<Item> indexFile = MappedIndexFile.open(file);
+        Assert.assertEquals(set.size(), indexFile.size());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("getName", "getUnit", "getCount", "getScore", "getTags",
+                "getUnit+getCount", "getRank")), indexFile.indexNames());
+        for (String methodName : indexFile.indexNames()) {
+            for (Map.Entry<Object, Set<Item>> entry : set.index.get(methodName).entrySet()) {
+                Assert.assertEquals(entry.getValue(), indexFile.get(methodName, entry.getKey()));
+                Assert.assertEquals(entry.getValue().size(), indexFile.count(methodName, entry.getKey()));
+            }
+        }
+        Assert.assertTrue(indexFile.get("getName", removed.getName()).contains(removed));
+        Assert.assertEquals(set.get("getScore", -0.0), indexFile.get("getScore", -0.0));
+        Assert.assertEquals(0, indexFile.count("getScore", 0.0));
+        Assert.assertEquals(0, indexFile.count("getCount", 5L));
+        Assert.assertEquals(new HashSet<>(), indexFile.get("getName", "unknown"));
+        Assert.assertEquals(set.get("getUnit+getCount", CompositeKey.of(TimeUnit.SECONDS, -47)),
+                indexFile.get("getUnit+getCount", CompositeKey.of(TimeUnit.SECONDS, -47)));
+        ArrayList<String> tags = new ArrayList<>(Arrays.asList("tag1", "tag2"));
+        Assert.assertEquals(set.get("getTags", tags), indexFile.get("getTags", tags));
+        // an equal value of another class is serialized to other bytes
+        Assert.assertEquals(0, indexFile.count("getTags", Arrays.asList("tag1", "tag2")));
+
+        // an element is deserialized once
+        Item item = indexFile.get("getName", "name7").iterator().next();
+        for (Item other : indexFile.get("getCount", item.getCount())) {
+            if (other.equals(item)) {
+                Assert.assertSame(item, other);
+            }
+        }
+
+        try {
+            indexFile.get("getId", 1);
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            // getId is not indexed
+        }
+    }
+
+    @Test
+    public void testEmptySet() throws IOException {
+        File file = newFile();
+        new IndexedSerializableSet<Item>(Item.class, METHOD_NAMES).writeIndexFile(file);
+        MappedIndexFile<Item> indexFile = MappedIndexFile.open(file);
+        Assert.assertEquals(0, indexFile.size());
+        Assert.assertEquals(0, indexFile.count("getName", "name7"));
+        Assert.assertTrue(indexFile.get("getUnit", null).isEmpty());
+    }
+
+    @Test
+    public void testNotAnIndexFile() throws IOException {
+        File file = newFile();
+        try (FileOutputStream out = new FileOutputStream(file)) {
+            out.write("not an index file, but long enough".getBytes("UTF-8"));
+        }
+        try {
+            MappedIndexFile.open(file);
+            Assert.fail();
+        }
+        catch (IOException e) {
+            Assert.assertEquals("Not an index file", e.getMessage());
+        }
+    }
+}
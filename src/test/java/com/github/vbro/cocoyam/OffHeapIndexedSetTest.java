@@ -0,0 +1,236 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests of {@link OffHeapIndexedSet}, compared with an {@link IndexedSet} of the same elements.
+ */
+public class OffHeapIndexedSetTest {
+
+    private static final String[] METHOD_NAMES = {"getName", "getUnit", "getCount", "isFlag", "getCode",
+            "getLevel", "getShort", "getLong", "getRatio", "getScore"};
+
+    public static final class Item {
+
+        private final int id;
+        private String name;
+
+        public Item(int id, String name) {
+            this.id = id;
+            this.name = name;
+        }
+
+        public String getName() {
+            return this.name;
+        }
+
+        public void setName(String name) {
+            this.name = name;
+        }
+
+        public TimeUnit getUnit() {
+            return this.id % 9 == 0 ? null : TimeUnit.values()[this.id % TimeUnit.values().length];
+        }
+
+        public Integer getCount() {
+            return this.id % 7 == 0 ? null : this.id % 100 - 50;
+        }
+
+        public boolean isFlag() {
+            return this.id % 3 == 0;
+        }
+
+        public char getCode() {
+            return (char) ('a' + this.id % 26);
+        }
+
+        public byte getLevel() {
+            return (byte) (this.id % 200);
+        }
+
+        public short getShort() {
+            return (short) (this.id * 31);
+        }
+
+        public long getLong() {
+            return (long) this.id << 33;
+        }
+
+        public float getRatio() {
+            return this.id % 50 / 8f;
+        }
+
+        public double getScore() {
+            return this.id % 10 == 0 ? -0.0 : this.id % 1000 / 4.0;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Item && ((Item) o).id == this.id;
+        }
+
+        public int hashCode() {
+            return this.id;
+        }
+
+        public String toString() {
+            return this.id + ":" + this.name;
+        }
+    }
+
+    private static Item randomItem(Random random) {
+        int id = random.nextInt(3000);
+        return new Item(id, id % 11 == 0 ? null : "name" + id % 400);
+    }
+
+    @Test
+    public void testRandomChanges() {
+        Random random = new Random(7);
+        OffHeapIndexedSet<Item> ohis = new OffHeapIndexedSet<>(Item.class, METHOD_NAMES);
+        IndexedSet<Item> is = new IndexedSet<>(Item.class, METHOD_NAMES);
+        for (int i = 0; i < 30000; i++) {
+            Item item = randomItem(random);
+            switch (random.nextInt(12)) {
+                case 0:
+                    List<Item> items = Arrays.asList(item, randomItem(random), randomItem(random));
+                    Assert.assertEquals(is.removeAll(items), ohis.removeAll(items));
+                    break;
+                case 1:
+                    Assert.assertEquals(is.add(item, false), ohis.add(item, false));
+                    break;
+                case 2:
+                    Assert.assertEquals(is.remove(item, false), ohis.remove(item, false));
+                    break;
+                case 3:
+                    if (random.nextInt(100) == 0) {
+                        is.reIndex();
+                        ohis.reIndex();
+                    }
+                    break;
+                case 4:
+                case 5:
+                case 6:
+                    Assert.assertEquals(is.remove(item), ohis.remove(item));
+                    break;
+                default:
+                    Assert.assertEquals(is.add(item), ohis.add(item));
+            }
+        }
+        Assert.assertEquals(is, ohis);
+        Assert.assertTrue(ohis.equalsComparingIndexes(is));
+        Assert.assertTrue(is.equalsComparingIndexes(ohis));
+        Assert.assertEquals(is.get("getName", "name7"), ohis.get("getName", "name7"));
+        Assert.assertEquals(is.get("getUnit", null), ohis.get("getUnit", null));
+        Assert.assertEquals(is.get("getScore", -0.0), ohis.get("getScore", -0.0));
+        Assert.assertEquals(0, ohis.count("getScore", 0.0));
+        Assert.assertEquals(0, ohis.count("getCount", 5L));
+        Assert.assertEquals(is.count("getCount", 5), ohis.count("getCount", 5));
+        Query<Item> query = Query.and(Query.in("getUnit", TimeUnit.SECONDS, TimeUnit.DAYS),
+                Query.eq("isFlag", true), Query.not(Query.eq("getName", null)));
+        Assert.assertEquals(is.query(query), ohis.query(query));
+
+        OffHeapIndexedSet<Item> clone = ohis.clone();
+        Assert.assertTrue(clone.equalsComparingIndexes(is));
+        ohis.trimToSize();
+        Assert.assertTrue(ohis.equalsComparingIndexes(is));
+        ohis.retainAll(new HashSet<>(new ArrayList<>(ohis).subList(0, 100)));
+        is.retainAll(new HashSet<>(ohis));
+        Assert.assertTrue(ohis.equalsComparingIndexes(is));
+        Assert.assertTrue(clone.equalsComparingIndexes(clone.clone()));
+
+        OffHeapIndexedSet<Item> bulkLoaded = new OffHeapIndexedSet<>(Item.class, METHOD_NAMES);
+        bulkLoaded.addAll(new ArrayList<>(clone), BulkOptions.parallel(2));
+        clone.reIndex();
+        Assert.assertTrue(bulkLoaded.equalsComparingIndexes(clone));
+    }
+
+    @Test
+    public void testAddIndex() {
+        OffHeapIndexedSet<Item> ohis = new OffHeapIndexedSet<>(Item.class, new String[] {"getName"});
+        ohis.add(new Item(1, "a"));
+        ohis.addIndex("getCount");
+        Assert.assertEquals(1, ohis.count("getCount", -49));
+        String[] invalidNames = {"getName+getCount", "getClass"};
+        for (String indexName : invalidNames) {
+            try {
+                ohis.addIndex(indexName);
+                Assert.fail();
+            }
+            catch (IllegalArgumentException e) {
+                Assert.assertFalse(ohis.isIndexed(indexName));
+            }
+        }
+        try {
+            ohis.addIndex("firstChar", item -> item.getName().charAt(0));
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+            Assert.assertEquals("OffHeapIndexedSet does not index functions", e.getMessage());
+        }
+    }
+
+    @Test
+    public void testChangedElements() {
+        OffHeapIndexedSet<Item> ohis = new OffHeapIndexedSet<>(Item.class, new String[] {"getName"});
+        IndexedSet<Item> is = new IndexedSet<>(Item.class, new String[] {"getName"});
+        Item item = new Item(1, "a");
+        for (IndexedSet<Item> set : Arrays.asList(ohis, is)) {
+            set.add(item);
+            set.add(new Item(2, "a"));
+        }
+
+        // an element that changed is filed under its old value until it is reindexed
+        item.setName("b");
+        Assert.assertEquals(2, ohis.count("getName", "a"));
+        for (IndexedSet<Item> set : Arrays.asList(ohis, is)) {
+            set.remove(item, false);
+            set.add(item);
+        }
+        Assert.assertEquals(new HashSet<>(Arrays.asList(item, new Item(2, "a"))), ohis.get("getName", "a"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(item)), ohis.get("getName", "b"));
+        Assert.assertTrue(ohis.equalsComparingIndexes(is));
+        item.setName("c");
+        Assert.assertTrue(ohis.remove(item));
+        Assert.assertTrue(is.remove(item));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(new Item(2, "a"))), ohis.get("getName", "a"));
+        Assert.assertEquals(0, ohis.count("getName", "b"));
+        Assert.assertTrue(ohis.equalsComparingIndexes(is));
+
+        // the ids of elements that are only held by a cleared index are released
+        ohis.removeAll(new ArrayList<>(ohis), false);
+        ohis.clearIndex();
+        Assert.assertEquals(-1, ((ElementIds<Item>) ohis.inventory).idOf(new Item(2, "a")));
+        ohis.add(item);
+        ohis.clear();
+        Assert.assertTrue(ohis.isEmpty());
+        Assert.assertEquals(0, ohis.count("getName", "c"));
+        ohis.add(item);
+        Assert.assertEquals(new HashSet<>(Arrays.asList(item)), ohis.get("getName", "c"));
+    }
+
+    @Test
+    public void testUnsupportedReturnTypes() {
+        try {
+            new OffHeapIndexedSet<>(String.class, new String[] {"length", "getBytes"});
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            // values of byte[] cannot be kept off-heap
+        }
+        try {
+            new OffHeapIndexedSet<>(Item.class, new String[] {"getName", "getName+getCount"});
+            Assert.fail();
+        }
+        catch (IllegalArgumentException e) {
+            Assert.assertEquals("OffHeapIndexedSet does not index composite keys (getName+getCount)",
+                    e.getMessage());
+        }
+    }
+}
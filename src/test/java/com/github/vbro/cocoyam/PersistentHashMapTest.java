@@ -0,0 +1,147 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Tests of {@link PersistentHashMap} and {@link PersistentHashSet}.
+ */
+public class PersistentHashMapTest {
+
+    /**
+     * Key with a hash code chosen by the test, to create collisions
+     */
+    private static final class Key {
+
+        private final int id;
+        private final int hash;
+
+        private Key(int id, int hash) {
+            this.id = id;
+            this.hash = hash;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Key && ((Key) o).id == this.id;
+        }
+
+        public int hashCode() {
+            return this.hash;
+        }
+
+        public String toString() {
+            return this.id + "#" + this.hash;
+        }
+    }
+
+    @Test
+    public void testRandomChanges() {
+        Random random = new Random(7);
+        Map<Key, Integer> expected = new HashMap<>();
+        PersistentHashMap<Key, Integer> map = new PersistentHashMap<>(new PersistentHashMap.Edit());
+        for (int i = 0; i < 20000; i++) {
+            int id = random.nextInt(2000);
+            // few distinct hashes, so that many keys collide, at every level of the trie
+            Key key = new Key(id, id % 3 == 0 ? id % 50 : id * 0x9E3779B9);
+            if (random.nextInt(3) == 0) {
+                Assert.assertEquals(expected.remove(key), map.remove(key));
+            }
+            else {
+                Assert.assertEquals(expected.put(key, i), map.put(key, i));
+            }
+            Assert.assertEquals(expected.size(), map.size());
+        }
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(map, expected);
+        Assert.assertEquals(expected.hashCode(), map.hashCode());
+        for (Key key : expected.keySet()) {
+            Assert.assertTrue(map.containsKey(key));
+            Assert.assertEquals(expected.get(key), map.get(key));
+        }
+        Assert.assertFalse(map.containsKey(new Key(5000, 1)));
+        Assert.assertNull(map.get(new Key(5000, 1)));
+    }
+
+    @Test
+    public void testNullKey() {
+        PersistentHashMap<String, String> map = new PersistentHashMap<>(new PersistentHashMap.Edit());
+        Assert.assertNull(map.put(null, "a"));
+        Assert.assertEquals("a", map.put(null, "b"));
+        map.put("x", null);
+        Assert.assertEquals(2, map.size());
+        Assert.assertTrue(map.containsKey(null));
+        Assert.assertTrue(map.containsKey("x"));
+        Assert.assertEquals("b", map.get(null));
+        Map<String, String> expected = new HashMap<>();
+        expected.put(null, "b");
+        expected.put("x", null);
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals("b", map.remove(null));
+        Assert.assertFalse(map.containsKey(null));
+        Assert.assertEquals(1, map.size());
+    }
+
+    @Test
+    public void testForkedVersions() {
+        PersistentHashMap.Edit edit1 = new PersistentHashMap.Edit();
+        PersistentHashMap<Integer, Integer> version1 = new PersistentHashMap<>(edit1);
+        for (int i = 0; i < 5000; i++) {
+            version1.put(i, i);
+        }
+        Assert.assertTrue(version1.isWritable(edit1));
+        edit1.close();
+        Assert.assertFalse(version1.isWritable(edit1));
+        Map<Integer, Integer> expected1 = new HashMap<>(version1);
+
+        PersistentHashMap.Edit edit2 = new PersistentHashMap.Edit();
+        PersistentHashMap<Integer, Integer> version2 = version1.fork(edit2);
+        for (int i = 0; i < 5000; i += 2) {
+            version2.remove(i);
+        }
+        for (int i = 5000; i < 6000; i++) {
+            version2.put(i, -i);
+        }
+        version2.put(1, 100);
+        Assert.assertEquals(expected1, version1);
+        Assert.assertEquals(3500, version2.size());
+        Assert.assertEquals(Integer.valueOf(100), version2.get(1));
+        Assert.assertNull(version2.get(2));
+        Assert.assertEquals(Integer.valueOf(-5500), version2.get(5500));
+
+        try {
+            version1.put(1, 1);
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // version1 is read-only after its edit is closed
+        }
+        try {
+            new PersistentHashMap<>(null).put(1, 1);
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // a map without edit is read-only
+        }
+    }
+
+    @Test
+    public void testSet() {
+        PersistentHashMap.Edit edit = new PersistentHashMap.Edit();
+        PersistentHashSet<String> set = new PersistentHashSet<>(edit);
+        Assert.assertTrue(set.add("a"));
+        Assert.assertFalse(set.add("a"));
+        Assert.assertTrue(set.add("b"));
+        edit.close();
+        PersistentHashSet<String> fork = set.fork(new PersistentHashMap.Edit());
+        Assert.assertTrue(fork.remove("a"));
+        Assert.assertFalse(fork.remove("a"));
+        Assert.assertTrue(set.contains("a"));
+        Assert.assertEquals(2, set.size());
+        Assert.assertEquals(1, fork.size());
+        Assert.assertEquals("[b]", fork.toString());
+    }
+}
@@ -0,0 +1,241 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests of {@link PrimitiveValuesMap}.
+ */
+public class PrimitiveValuesMapTest {
+
+    public static final class Item {
+
+        private final int id;
+        private final long value;
+
+        public Item(int id, long value) {
+            this.id = id;
+            this.value = value;
+        }
+
+        public int getInt() {
+            return (int) this.value;
+        }
+
+        public long getLong() {
+            return this.value;
+        }
+
+        public double getDouble() {
+            return this.value / 4.0;
+        }
+
+        public boolean equals(Object o) {
+            return o instanceof Item && ((Item) o).id == this.id;
+        }
+
+        public int hashCode() {
+            return this.id;
+        }
+
+        public String toString() {
+            return this.id + ":" + this.value;
+        }
+    }
+
+    private static <E> PrimitiveValuesMap<E> newMap(String methodName) throws NoSuchMethodException {
+        return PrimitiveValuesMap.of(Item.class.getMethod(methodName), 0);
+    }
+
+    /**
+     * @return a value that is often shared by other items, and that is negative, large, or a multiple
+     * of a large power of two, which all need the high bits of the value to find a slot
+     */
+    private static long randomValue(Random random) {
+        int n = random.nextInt(400);
+        switch (random.nextInt(4)) {
+            case 0:
+                return n;
+            case 1:
+                return -n;
+            case 2:
+                return (long) n << 20;
+            default:
+                return ((long) n << 40) + n;
+        }
+    }
+
+    @Test
+    public void testRandomChanges() throws Exception {
+        for (String methodName : new String[] {"getInt", "getLong", "getDouble"}) {
+            Random random = new Random(11);
+            PrimitiveValuesMap<Item> map = newMap(methodName);
+            Map<Object, Set<Item>> expected = new HashMap<>();
+            Map<Integer, Item> items = new HashMap<>();
+            for (int i = 0; i < 20000; i++) {
+                int id = random.nextInt(3000);
+                Item item = items.get(id);
+                if (item == null) {
+                    item = new Item(id, randomValue(random));
+                    items.put(id, item);
+                    map.addElement(item);
+                    expected.computeIfAbsent(Item.class.getMethod(methodName).invoke(item), v -> new HashSet<>())
+                            .add(item);
+                }
+                else {
+                    items.remove(id);
+                    Assert.assertTrue(map.removeElement(item));
+                    Object value = Item.class.getMethod(methodName).invoke(item);
+                    expected.get(value).remove(item);
+                    expected.remove(value, Collections.emptySet());
+                }
+                Assert.assertEquals(expected.size(), map.size());
+            }
+            Assert.assertEquals(expected, map);
+            Assert.assertEquals(map, expected);
+            Assert.assertEquals(expected.hashCode(), map.hashCode());
+            for (Map.Entry<Object, Set<Item>> entry : expected.entrySet()) {
+                Assert.assertTrue(map.containsKey(entry.getKey()));
+                Assert.assertEquals(entry.getValue(), map.get(entry.getKey()));
+            }
+            Assert.assertFalse(map.removeElement(new Item(5000, 3)));
+
+            // remove every other item by scanning all buckets
+            Set<Item> removed = new HashSet<>();
+            Iterator<Item> iterator = items.values().iterator();
+            while (iterator.hasNext()) {
+                removed.add(iterator.next());
+                if (iterator.hasNext()) {
+                    iterator.next();
+                }
+            }
+            map.removeFromAllBuckets(removed);
+            for (Set<Item> elementSet : expected.values()) {
+                elementSet.removeAll(removed);
+            }
+            expected.values().removeIf(Set::isEmpty);
+            Assert.assertEquals(expected, map);
+
+            map.clear();
+            Assert.assertTrue(map.isEmpty());
+            Assert.assertNull(map.get(expected.keySet().iterator().next()));
+        }
+    }
+
+    @Test
+    public void testDenseValuesChurn() throws Exception {
+        // a window of consecutive values, e.g. ids, that keeps moving up
+        PrimitiveValuesMap<Item> map = newMap("getLong");
+        Map<Object, Set<Item>> expected = new HashMap<>();
+        for (int i = 0; i < 5000; i++) {
+            Item item = new Item(i, i);
+            map.addElement(item);
+            expected.put((long) i, Collections.singleton(item));
+        }
+        for (int i = 5000; i < 50000; i++) {
+            Item item = new Item(i, i);
+            map.addElement(item);
+            expected.put((long) i, Collections.singleton(item));
+            Item old = new Item(i - 5000, i - 5000);
+            Assert.assertTrue(map.removeElement(old));
+            expected.remove((long) (i - 5000));
+            Assert.assertFalse(map.containsKey((long) (i - 5000)));
+            Assert.assertEquals(Collections.singleton(item), map.get((long) i));
+            Assert.assertEquals(5000, map.size());
+        }
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(map, expected);
+
+        map.removeFromAllBuckets(Collections.singleton(new Item(49000, 49000)));
+        expected.remove(49000L);
+        Assert.assertEquals(expected, map);
+        Assert.assertEquals(new HashSet<>(map.keySet()), expected.keySet());
+    }
+
+    @Test
+    public void testValueClass() throws Exception {
+        PrimitiveValuesMap<Item> intMap = newMap("getInt");
+        PrimitiveValuesMap<Item> longMap = newMap("getLong");
+        Item item = new Item(1, 8);
+        intMap.addElement(item);
+        longMap.addElement(item);
+
+        // values are only equal to values of the same class, as in a HashMap
+        Assert.assertEquals(Collections.singleton(item), intMap.get(8));
+        Assert.assertNull(intMap.get(8L));
+        Assert.assertNull(intMap.get(null));
+        Assert.assertNull(intMap.get("8"));
+        Assert.assertEquals(Collections.singleton(item), longMap.get(8L));
+        Assert.assertNull(longMap.get(8));
+        Assert.assertFalse(intMap.removeFromBucket(8L, item));
+        Assert.assertTrue(intMap.removeFromBucket(8, item));
+        Assert.assertTrue(intMap.isEmpty());
+
+        boolean isExceptionThrown = false;
+        try {
+            intMap.addToBucket(8L, item);
+        }
+        catch (ClassCastException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("ClassCastException should be thrown", isExceptionThrown);
+
+        Assert.assertNull(PrimitiveValuesMap.of(Item.class.getMethod("toString"), 0));
+    }
+
+    @Test
+    public void testDoubleValues() throws Exception {
+        PrimitiveValuesMap<Item> map = newMap("getDouble");
+        Item a = new Item(1, 0);
+        Item b = new Item(2, 0);
+        map.addToBucket(0.0, a);
+        map.addToBucket(-0.0, b);
+        map.addToBucket(Double.NaN, a);
+        map.addToBucket(Double.NaN, b);
+
+        // 0.0 and -0.0 are different values, and NaN is equal to itself, as in Double.equals
+        Assert.assertEquals(3, map.size());
+        Assert.assertEquals(Collections.singleton(a), map.get(0.0));
+        Assert.assertEquals(Collections.singleton(b), map.get(-0.0));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(a, b)), map.get(Double.NaN));
+
+        // the bucket of a single element is not a bucket of the map
+        Assert.assertTrue(map.removeFromBucket(Double.NaN, a));
+        Assert.assertEquals(Collections.singleton(b), map.get(Double.NaN));
+        Assert.assertEquals(Collections.singleton(b), map.put(Double.NaN, new HashSet<>(Arrays.asList(a, b))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(a, b)), map.get(Double.NaN));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(a, b)), map.remove(Double.NaN));
+        Assert.assertEquals(2, map.size());
+
+        boolean isExceptionThrown = false;
+        try {
+            map.get(0.0).add(b);
+        }
+        catch (UnsupportedOperationException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("UnsupportedOperationException should be thrown", isExceptionThrown);
+    }
+
+    @Test
+    public void testSmallValuesOrder() throws Exception {
+        PrimitiveValuesMap<Item> map = newMap("getInt");
+        Map<Object, Set<Item>> expected = new HashMap<>();
+        for (int value : new int[] {13, 2, 11, 6, 0}) {
+            Item item = new Item(value, value);
+            map.addElement(item);
+            expected.put(value, Collections.singleton(item));
+        }
+        // small values iterate in the same order as in a HashMap
+        Assert.assertEquals(Arrays.asList(expected.keySet().toArray()), Arrays.asList(map.keySet().toArray()));
+    }
+}
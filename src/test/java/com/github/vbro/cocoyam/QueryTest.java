@@ -0,0 +1,99 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+/**
+ * Tests of {@link Query} evaluated on an {@link IndexedSet}.
+ */
+public class QueryTest {
+
+    private IndexedSet<String> is1;
+
+    @Before
+    public void setUp() {
+        is1 = new IndexedSet<>(String.class, new String[] {"trim", "isEmpty"}, new String[] {"length"});
+        is1.addAll(Arrays.asList("", "a", "b", " b ", "cc", "dd", "eee", "Hello World", "Hello World  "));
+    }
+
+    @Test
+    public void testEq_In() {
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd")), is1.query(Query.eq("length", 2)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b", "cc", "dd")), is1.query(Query.in("length", 1, 2)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b", "cc", "dd")),
+                is1.query(Query.in("length", Arrays.asList(2, 1, 2))));
+        Assert.assertEquals(new HashSet<>(), is1.query(Query.eq("length", 100)));
+        Assert.assertEquals(2, is1.count(Query.eq("trim", "b")));
+    }
+
+    @Test
+    public void testAnd_Or_Not() {
+        Assert.assertEquals(new HashSet<>(Arrays.asList(" b ")),
+                is1.query(Query.and(Query.eq("trim", "b"), Query.eq("length", 3))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b")),
+                is1.query(Query.and(Query.eq("trim", "b"), Query.not(Query.eq("length", 3)))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "b", " b ")),
+                is1.query(Query.or(Query.eq("trim", "b"), Query.eq("length", 1))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("", "a", "b", " b ", "cc", "dd", "eee")),
+                is1.query(Query.not(Query.eq("trim", "Hello World"))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd", "eee")),
+                is1.query(Query.and(
+                        Query.or(Query.eq("length", 2), Query.eq("length", 3)),
+                        Query.not(Query.eq("trim", "b")),
+                        Query.eq("isEmpty", false))));
+        Assert.assertEquals(new HashSet<>(),
+                is1.query(Query.and(Query.eq("trim", "b"), Query.eq("trim", "a"))));
+    }
+
+    @Test
+    public void testRange_Where() {
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd", "eee", " b ")),
+                is1.query(Query.range("length", 2, true, 3, true)));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("eee")),
+                is1.query(Query.and(Query.range("length", 2, true, 3, true), Query.where(s -> s.startsWith("e")))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("Hello World", "Hello World  ")),
+                is1.query(Query.where(s -> s.contains("World"))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "Hello World", "Hello World  ")),
+                is1.query(Query.or(Query.where(s -> s.contains("World")), Query.eq("trim", "a"))));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "eee", " b ")),
+                is1.query(Query.or(Query.range("length", 3, true, 3, true), Query.eq("trim", "a"),
+                        Query.and(Query.eq("length", 1), Query.not(Query.eq("trim", "b"))))));
+    }
+
+    @Test
+    public void testIndexState() {
+        // queries are answered from the index, like IndexedSet.get
+        is1.add("ff", false);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd")), is1.query(Query.eq("length", 2)));
+        is1.reIndex();
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd", "ff")), is1.query(Query.eq("length", 2)));
+        is1.remove("cc");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("dd", "ff")),
+                is1.query(Query.and(Query.eq("length", 2), Query.eq("isEmpty", false))));
+    }
+
+    @Test
+    public void testExceptions() {
+        boolean isExceptionThrown = false;
+        try {
+            is1.query(Query.and(Query.eq("toUpperCase", "A"), Query.eq("length", 1)));
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+        isExceptionThrown = false;
+
+        try {
+            is1.query(Query.range("trim", "a", true, "b", true));
+        }
+        catch (IllegalArgumentException e) {
+            isExceptionThrown = true;
+        }
+        Assert.assertTrue("IllegalArgumentException should be thrown", isExceptionThrown);
+    }
+}
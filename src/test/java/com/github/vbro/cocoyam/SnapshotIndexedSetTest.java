@@ -0,0 +1,222 @@
+package com.github.vbro.cocoyam;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests of {@link SnapshotIndexedSet}.
+ */
+public class SnapshotIndexedSetTest {
+
+    @Test
+    public void testSnapshots() {
+        SnapshotIndexedSet<String> sis = new SnapshotIndexedSet<>(String.class, new String[] {"trim", "length"});
+        IndexedSet<String> empty = sis.snapshot();
+        Assert.assertTrue(sis.addAll(Arrays.asList("", "a", "b", " b ", "cc")));
+        IndexedSet<String> version1 = sis.snapshot();
+        Assert.assertTrue(empty.isEmpty());
+        Assert.assertEquals(0, empty.count("length", 1));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b", " b ")), version1.get("trim", "b"));
+
+        Assert.assertTrue(sis.remove("b"));
+        sis.add("dd");
+        IndexedSet<String> version2 = sis.snapshot();
+        Assert.assertEquals(new HashSet<>(Arrays.asList("", "a", "b", " b ", "cc")), version1);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("b", " b ")), version1.get("trim", "b"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc")), version1.get("length", 2));
+        Assert.assertEquals(new HashSet<>(Arrays.asList(" b ")), version2.get("trim", "b"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc", "dd")), version2.getView("length", 2));
+        Assert.assertEquals(2, version2.count(Query.eq("length", 2)));
+        Assert.assertTrue(version2.equalsComparingIndexes(sis));
+
+        sis.clear();
+        Assert.assertTrue(sis.snapshot().isEmpty());
+        Assert.assertEquals(5, version2.size());
+
+        try {
+            version2.add("e");
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // snapshots are read-only
+        }
+        try {
+            version2.iterator().remove();
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException | IllegalStateException e) {
+            // snapshots are read-only
+        }
+        try {
+            sis.update(s -> s.add(null));
+            Assert.fail();
+        }
+        catch (NullPointerException e) {
+            // null elements are rejected as in IndexedSet
+        }
+    }
+
+    @Test
+    public void testUpdate() {
+        SnapshotIndexedSet<String> sis = new SnapshotIndexedSet<>(String.class, new String[] {"length"});
+        sis.addAll(Arrays.asList("a", "bb"));
+        IndexedSet<String> before = sis.snapshot();
+        IndexedSet<String> after = sis.update(s -> {
+            s.add("ccc");
+            s.remove("a");
+            // changes are not published before the update completes
+            Assert.assertSame(before, sis.snapshot());
+            Assert.assertTrue(s.contains("ccc"));
+        });
+        Assert.assertSame(after, sis.snapshot());
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "bb")), before);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("bb", "ccc")), after);
+
+        try {
+            sis.update(s -> {
+                s.add("dddd");
+                throw new IllegalStateException("abort");
+            });
+            Assert.fail();
+        }
+        catch (IllegalStateException e) {
+            // a failed update is rolled back
+        }
+        Assert.assertSame(after, sis.snapshot());
+        Assert.assertFalse(sis.contains("dddd"));
+        Assert.assertEquals(0, sis.count("length", 4));
+        sis.add("dddd");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("dddd")), sis.snapshot().get("length", 4));
+    }
+
+    @Test
+    public void testDropIndex() {
+        SnapshotIndexedSet<String> sis = new SnapshotIndexedSet<>(String.class, new String[] {"trim", "length"});
+        sis.addAll(Arrays.asList("a", " a", "bb"));
+        IndexedSet<String> version1 = sis.snapshot();
+        sis.dropIndex("length");
+        sis.add("cc");
+        Assert.assertFalse(sis.snapshot().isIndexed("length"));
+        Assert.assertEquals(new HashSet<>(Arrays.asList("cc")), sis.snapshot().get("trim", "cc"));
+        Assert.assertEquals(2, version1.count("length", 2));
+        sis.addIndex("isEmpty");
+        Assert.assertEquals(4, sis.snapshot().count("isEmpty", false));
+        Assert.assertFalse(version1.isIndexed("isEmpty"));
+
+        // a dropped index is restored with the other changes of an update that fails
+        try {
+            sis.update(s -> {
+                s.dropIndex("trim");
+                s.add(null);
+            });
+            Assert.fail();
+        }
+        catch (NullPointerException e) {
+            // null elements are not accepted
+        }
+        Assert.assertEquals(2, sis.count("trim", "a"));
+        sis.add("d");
+        Assert.assertEquals(1, sis.snapshot().count("trim", "d"));
+
+        try {
+            sis.deferIndexing();
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // indexes are built eagerly
+        }
+        try {
+            version1.dropIndex("trim");
+            Assert.fail();
+        }
+        catch (UnsupportedOperationException e) {
+            // snapshots are read-only
+        }
+    }
+
+    @Test
+    public void testClone() {
+        SnapshotIndexedSet<String> sis = new SnapshotIndexedSet<>(String.class, new String[] {"length"});
+        sis.addAll(Arrays.asList("a", "bb"));
+        SnapshotIndexedSet<String> cloneSet = sis.clone();
+        cloneSet.add("cc");
+        sis.remove("bb");
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a")), sis);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("a", "bb", "cc")), cloneSet);
+        Assert.assertEquals(new HashSet<>(Arrays.asList("bb", "cc")), cloneSet.snapshot().get("length", 2));
+        Assert.assertEquals(0, sis.snapshot().count("length", 2));
+
+        IndexedSet<String> snapshotClone = cloneSet.snapshot().clone();
+        snapshotClone.add("e");
+        IndexedSet<String> expected = new IndexedSet<>(String.class, new String[] {"length"});
+        expected.addAll(Arrays.asList("a", "bb", "cc", "e"));
+        Assert.assertTrue(snapshotClone.equalsComparingIndexes(expected));
+        Assert.assertEquals(3, cloneSet.size());
+    }
+
+    @Test
+    public void testBulkLoad() {
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            strings.add("  ".substring(i % 3) + i);
+        }
+        SnapshotIndexedSet<String> sis = new SnapshotIndexedSet<>(String.class, new String[] {"trim", "length"});
+        IndexedSet<String> is = new IndexedSet<>(String.class, new String[] {"trim", "length"});
+        sis.add("first");
+        IndexedSet<String> before = sis.snapshot();
+        Assert.assertTrue(sis.addAll(strings, BulkOptions.parallel(4)));
+        is.add("first");
+        is.addAll(strings);
+        Assert.assertTrue(sis.snapshot().equalsComparingIndexes(is));
+        Assert.assertEquals(1, before.size());
+        sis.reIndex(4);
+        Assert.assertTrue(sis.snapshot().equalsComparingIndexes(is));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testSortedIndexNotSupported() {
+        new SnapshotIndexedSet<>(String.class, new String[] {"trim"}).newValuesMap(true, 0);
+    }
+
+    /**
+     * Applies the same random changes to a SnapshotIndexedSet and an IndexedSet, and checks
+     * that every published version matches the IndexedSet, and stays unchanged afterwards.
+     */
+    @Test
+    public void testRandomChanges() {
+        Random random = new Random(3);
+        String[] methodNames = {"trim", "length", "isEmpty"};
+        SnapshotIndexedSet<String> sis = new SnapshotIndexedSet<>(String.class, methodNames);
+        IndexedSet<String> is = new IndexedSet<>(String.class, methodNames);
+        List<IndexedSet<String>> snapshots = new ArrayList<>();
+        List<IndexedSet<String>> copies = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            String element = "     ".substring(random.nextInt(5)) + random.nextInt(300);
+            if (random.nextBoolean()) {
+                Assert.assertEquals(is.add(element), sis.add(element));
+            }
+            else {
+                Assert.assertEquals(is.remove(element), sis.remove(element));
+            }
+            if (i % 100 == 0) {
+                List<String> batch = new ArrayList<>();
+                for (int j = 0; j < 50; j++) {
+                    batch.add(String.valueOf(random.nextInt(300)));
+                }
+                Assert.assertEquals(is.removeAll(batch), sis.removeAll(batch));
+                snapshots.add(sis.snapshot());
+                copies.add(is.clone());
+            }
+        }
+        Assert.assertTrue(sis.equalsComparingIndexes(is));
+        for (int i = 0; i < snapshots.size(); i++) {
+            Assert.assertTrue(snapshots.get(i).equalsComparingIndexes(copies.get(i)));
+        }
+    }
+}